@@ -1,5 +1,8 @@
 package org.geant.shibboleth.plugin.userprofile.context;
 
+import java.util.List;
+
+import org.geant.shibboleth.plugin.userprofile.event.api.Attribute;
 import org.geant.shibboleth.plugin.userprofile.storage.Events;
 import org.geant.shibboleth.plugin.userprofile.storage.EventsCache;
 import org.opensaml.messaging.context.BaseContext;
@@ -12,6 +15,15 @@ public class UserProfileCacheContext extends BaseContext implements EventsCache
     /** Name of the authentication context class principal. */
     private String acr;
 
+    /** Username of the request, null if not resolved yet. */
+    private String username;
+
+    /** Relying party id of the request, null if not resolved yet. */
+    private String relyingPartyId;
+
+    /** Attributes released in the request, null if not built yet. */
+    private List<? extends Attribute> releasedAttributes;
+
     /** {@inheritDoc} */
     @Override
     public void setEvents(Events events) {
@@ -42,4 +54,61 @@ public class UserProfileCacheContext extends BaseContext implements EventsCache
         acr = name;
     }
 
+    /**
+     * Get username of the request. The username is resolved once per request and
+     * shared by the actions storing user profile events.
+     * 
+     * @return username of the request, null if not resolved yet
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Set username of the request.
+     * 
+     * @param name username of the request
+     */
+    public void setUsername(String name) {
+        username = name;
+    }
+
+    /**
+     * Get relying party id of the request. The relying party id is resolved once
+     * per request and shared by the actions storing user profile events.
+     * 
+     * @return relying party id of the request, null if not resolved yet
+     */
+    public String getRelyingPartyId() {
+        return relyingPartyId;
+    }
+
+    /**
+     * Set relying party id of the request.
+     * 
+     * @param id relying party id of the request
+     */
+    public void setRelyingPartyId(String id) {
+        relyingPartyId = id;
+    }
+
+    /**
+     * Get attributes released in the request. The attributes are built once per
+     * request and shared by the actions storing them.
+     * 
+     * @return attributes released in the request, null if not built yet
+     */
+    public List<? extends Attribute> getReleasedAttributes() {
+        return releasedAttributes;
+    }
+
+    /**
+     * Set attributes released in the request.
+     * 
+     * @param attributes attributes released in the request
+     */
+    public void setReleasedAttributes(List<? extends Attribute> attributes) {
+        releasedAttributes = attributes;
+    }
+
 }
@@ -16,6 +16,7 @@
 
 package org.geant.shibboleth.plugin.userprofile.context;
 
+import java.time.YearMonth;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -62,6 +63,13 @@ public final class UserProfileContext extends BaseContext implements EventsCache
     @Nonnull
     private final List<LoginEvent> loginEvents = new ArrayList<>();
 
+    /** Oldest month of login events read, null if login events are not stored per month. */
+    @Nullable
+    private YearMonth loginEventsMonth;
+
+    /** Whether there may be older login events not read yet. */
+    private boolean olderLoginEvents;
+
     /** Attribute context per relying party. */
     /** Note! Only used by (the most) experimental all services - page. */
     @Nonnull
@@ -145,6 +153,45 @@ public final class UserProfileContext extends BaseContext implements EventsCache
         return loginEvents;
     }
 
+    /**
+     * Get oldest month of login events read.
+     * 
+     * @return oldest month of login events read, null if login events are not
+     *         stored per month
+     */
+    @Nullable
+    public YearMonth getLoginEventsMonth() {
+        return loginEventsMonth;
+    }
+
+    /**
+     * Set oldest month of login events read.
+     * 
+     * @param month oldest month of login events read, null if login events are
+     *              not stored per month
+     */
+    public void setLoginEventsMonth(@Nullable final YearMonth month) {
+        loginEventsMonth = month;
+    }
+
+    /**
+     * Whether there may be older login events not read yet.
+     * 
+     * @return whether there may be older login events not read yet
+     */
+    public boolean isOlderLoginEvents() {
+        return olderLoginEvents;
+    }
+
+    /**
+     * Set whether there may be older login events not read yet.
+     * 
+     * @param flag whether there may be older login events not read yet
+     */
+    public void setOlderLoginEvents(final boolean flag) {
+        olderLoginEvents = flag;
+    }
+
     /**
      * Set attribute context for relying party.
      * 
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * {@link EventsCodec} storing events in a compact binary format.
+ * 
+ * <p>
+ * The record value is the header {@link #HEADER} followed by base64 encoded
+ * bytes. The bytes hold the number of events followed by the events. Each
+ * event is written as its name tag, event time, payload kind and payload. The
+ * payload is either a string value or json data written as a tagged tree: each
+ * node is its node tag followed by its content, arrays and objects by their
+ * size and members. Field names and text values are written once per record
+ * and referred to by their index thereafter. Names listed in the entry tags
+ * are written as their short tag, other names are written in full after tag 0.
+ * Numbers are written as unsigned variable length integers, signed ones zigzag
+ * encoded, and strings as their UTF-8 length followed by the UTF-8 bytes.
+ * </p>
+ * 
+ * <p>
+ * Records of the previous version {@link #HEADER_V1}, holding json data as json
+ * text, are still decoded.
+ * </p>
+ * 
+ * <p>
+ * Tags are persisted in records. Once assigned, a tag must not be reassigned
+ * to another entry name.
+ * </p>
+ */
+public class BinaryEventsCodec implements EventsCodec {
+
+    /** Header of the record, includes the format version. */
+    @Nonnull
+    public static final String HEADER = "upb2:";
+
+    /** Header of the previous record version holding json data as json text. */
+    @Nonnull
+    public static final String HEADER_V1 = "upb1:";
+
+    /** Tag preceding a name written in full. */
+    private static final int INLINE_NAME = 0;
+
+    /** Payload kind of a string value. */
+    private static final int PAYLOAD_VALUE = 0;
+
+    /** Payload kind of json data. */
+    private static final int PAYLOAD_DATA = 1;
+
+    /** Reference preceding a string written in full, other references are indexes to strings written. */
+    private static final int NEW_STRING = 0;
+
+    /** Node tag of json null. */
+    private static final int NODE_NULL = 0;
+
+    /** Node tag of json false. */
+    private static final int NODE_FALSE = 1;
+
+    /** Node tag of json true. */
+    private static final int NODE_TRUE = 2;
+
+    /** Node tag of an integral number fitting a long. */
+    private static final int NODE_LONG = 3;
+
+    /** Node tag of a floating point number. */
+    private static final int NODE_DOUBLE = 4;
+
+    /** Node tag of other numbers, written as their decimal text. */
+    private static final int NODE_NUMBER = 5;
+
+    /** Node tag of a text value. */
+    private static final int NODE_TEXT = 6;
+
+    /** Node tag of an array. */
+    private static final int NODE_ARRAY = 7;
+
+    /** Node tag of an object. */
+    private static final int NODE_OBJECT = 8;
+
+    /** Maximum nesting of json data. */
+    private static final int MAX_DEPTH = 256;
+
+    /** Reader for json data. */
+    @Nonnull
+    private static final ObjectReader DATA_READER = JsonSupport.readerFor(JsonNode.class);
+
+    /** Tags by entry name. */
+    @Nonnull
+    private Map<String, Integer> tagsByName = Map.of();
+
+    /** Entry names by tag. */
+    @Nonnull
+    private Map<Integer, String> namesByTag = Map.of();
+
+    /**
+     * Set short tags for entry names.
+     * 
+     * @param tags positive tags by entry name
+     */
+    public void setEntryTags(@Nullable final Map<String, Integer> tags) {
+        final Map<String, Integer> byName = new HashMap<>();
+        final Map<Integer, String> byTag = new HashMap<>();
+        if (tags != null) {
+            for (final Entry<String, Integer> entry : tags.entrySet()) {
+                Constraint.isTrue(entry.getValue() != null && entry.getValue() > INLINE_NAME,
+                        "Entry tag must be greater than 0");
+                Constraint.isTrue(byTag.put(entry.getValue(), entry.getKey()) == null,
+                        "Entry tags must be unique");
+                byName.put(entry.getKey(), entry.getValue());
+            }
+        }
+        tagsByName = Map.copyOf(byName);
+        namesByTag = Map.copyOf(byTag);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public String encode(@Nonnull final Events events) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Map<String, Integer> strings = new HashMap<>();
+        writeVarint(out, events.getEvents().size());
+        for (final Entry<String, Event> entry : events.getEvents().entrySet()) {
+            final Integer tag = tagsByName.get(entry.getKey());
+            if (tag != null) {
+                writeVarint(out, tag);
+            } else {
+                writeVarint(out, INLINE_NAME);
+                writeString(out, entry.getKey());
+            }
+            writeVarint(out, entry.getValue().getTime());
+            if (entry.getValue().isData()) {
+                writeVarint(out, PAYLOAD_DATA);
+                writeNode(out, strings, entry.getValue().getData(), 0);
+            } else {
+                writeVarint(out, PAYLOAD_VALUE);
+                writeString(out, entry.getValue().getValue());
+            }
+        }
+        return HEADER + Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public Events decode(@Nonnull final String record) throws IOException {
+        if (!isSupported(record)) {
+            throw new IOException("Record is not in binary format");
+        }
+        final byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(record.substring(HEADER.length()));
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Record is not base64 encoded", e);
+        }
+        final boolean dataAsText = record.startsWith(HEADER_V1);
+        final int[] position = {0};
+        final List<String> strings = new ArrayList<>();
+        final Events events = new Events();
+        final long count = readVarint(bytes, position);
+        for (long i = 0; i < count; i++) {
+            final int tag = (int) readVarint(bytes, position);
+            final String name = tag == INLINE_NAME ? readString(bytes, position) : namesByTag.get(tag);
+            if (name == null) {
+                throw new IOException("Unknown entry tag " + tag);
+            }
+            final long time = readVarint(bytes, position);
+            final long payload = readVarint(bytes, position);
+            if (payload == PAYLOAD_VALUE) {
+                events.getEvents().put(name, new Event(readString(bytes, position), time));
+            } else if (payload == PAYLOAD_DATA) {
+                final JsonNode data = dataAsText ? DATA_READER.readTree(readString(bytes, position))
+                        : readNode(bytes, position, strings, 0);
+                events.getEvents().put(name, new Event(data, time));
+            } else {
+                throw new IOException("Unknown payload kind " + payload);
+            }
+        }
+        return events;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isSupported(@Nonnull final String record) {
+        return record.startsWith(HEADER) || record.startsWith(HEADER_V1);
+    }
+
+    /**
+     * Write json node as a tagged tree.
+     * 
+     * @param out     stream to write to
+     * @param strings indexes of the strings already written
+     * @param node    node to write
+     * @param depth   nesting of the node
+     * @throws IOException if the node is not plain json or nests too deep
+     */
+    private static void writeNode(@Nonnull final ByteArrayOutputStream out,
+            @Nonnull final Map<String, Integer> strings, @Nullable final JsonNode node, final int depth)
+            throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Json data nests too deep");
+        }
+        if (node == null || node.isNull()) {
+            writeVarint(out, NODE_NULL);
+        } else if (node.isBoolean()) {
+            writeVarint(out, node.booleanValue() ? NODE_TRUE : NODE_FALSE);
+        } else if (node.isInt() || node.isLong() || node.isShort()) {
+            writeVarint(out, NODE_LONG);
+            final long value = node.longValue();
+            writeVarint(out, (value << 1) ^ (value >> 63));
+        } else if (node.isDouble() || node.isFloat()) {
+            writeVarint(out, NODE_DOUBLE);
+            final long bits = Double.doubleToRawLongBits(node.doubleValue());
+            for (int shift = 0; shift < 64; shift += 8) {
+                out.write((int) (bits >>> shift) & 0xFF);
+            }
+        } else if (node.isNumber()) {
+            writeVarint(out, NODE_NUMBER);
+            writeString(out, node.asText());
+        } else if (node.isTextual()) {
+            writeVarint(out, NODE_TEXT);
+            writeReference(out, strings, node.textValue());
+        } else if (node.isArray()) {
+            writeVarint(out, NODE_ARRAY);
+            writeVarint(out, node.size());
+            for (final JsonNode element : node) {
+                writeNode(out, strings, element, depth + 1);
+            }
+        } else if (node.isObject()) {
+            writeVarint(out, NODE_OBJECT);
+            writeVarint(out, node.size());
+            final Iterator<Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                final Entry<String, JsonNode> field = fields.next();
+                writeReference(out, strings, field.getKey());
+                writeNode(out, strings, field.getValue(), depth + 1);
+            }
+        } else {
+            throw new IOException("Unsupported json node " + node.getNodeType());
+        }
+    }
+
+    /**
+     * Read json node written as a tagged tree.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @param strings  strings read so far by their index
+     * @param depth    nesting of the node
+     * @return node read
+     * @throws IOException if the bytes end prematurely or are malformed
+     */
+    @Nonnull
+    private static JsonNode readNode(@Nonnull final byte[] bytes, @Nonnull final int[] position,
+            @Nonnull final List<String> strings, final int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Json data nests too deep");
+        }
+        final long tag = readVarint(bytes, position);
+        if (tag == NODE_NULL) {
+            return JsonNodeFactory.instance.nullNode();
+        } else if (tag == NODE_FALSE || tag == NODE_TRUE) {
+            return JsonNodeFactory.instance.booleanNode(tag == NODE_TRUE);
+        } else if (tag == NODE_LONG) {
+            final long zigzag = readVarint(bytes, position);
+            final long value = (zigzag >>> 1) ^ -(zigzag & 1);
+            return value == (int) value ? JsonNodeFactory.instance.numberNode((int) value)
+                    : JsonNodeFactory.instance.numberNode(value);
+        } else if (tag == NODE_DOUBLE) {
+            if (bytes.length - position[0] < 8) {
+                throw new IOException("Record ended prematurely");
+            }
+            long bits = 0;
+            for (int shift = 0; shift < 64; shift += 8) {
+                bits |= (long) (bytes[position[0]++] & 0xFF) << shift;
+            }
+            return JsonNodeFactory.instance.numberNode(Double.longBitsToDouble(bits));
+        } else if (tag == NODE_NUMBER) {
+            final JsonNode number = DATA_READER.readTree(readString(bytes, position));
+            if (number == null || !number.isNumber()) {
+                throw new IOException("Malformed number");
+            }
+            return number;
+        } else if (tag == NODE_TEXT) {
+            return JsonNodeFactory.instance.textNode(readReference(bytes, position, strings));
+        } else if (tag == NODE_ARRAY) {
+            final long size = readSize(bytes, position);
+            final ArrayNode array = JsonNodeFactory.instance.arrayNode();
+            for (long i = 0; i < size; i++) {
+                array.add(readNode(bytes, position, strings, depth + 1));
+            }
+            return array;
+        } else if (tag == NODE_OBJECT) {
+            final long size = readSize(bytes, position);
+            final ObjectNode object = JsonNodeFactory.instance.objectNode();
+            for (long i = 0; i < size; i++) {
+                final String field = readReference(bytes, position, strings);
+                object.set(field, readNode(bytes, position, strings, depth + 1));
+            }
+            return object;
+        }
+        throw new IOException("Unknown node tag " + tag);
+    }
+
+    /**
+     * Write string in full the first time and as its index thereafter.
+     * 
+     * @param out     stream to write to
+     * @param strings indexes of the strings already written
+     * @param value   value to write
+     */
+    private static void writeReference(@Nonnull final ByteArrayOutputStream out,
+            @Nonnull final Map<String, Integer> strings, @Nonnull final String value) {
+        final Integer index = strings.get(value);
+        if (index != null) {
+            writeVarint(out, index + 1);
+        } else {
+            strings.put(value, strings.size());
+            writeVarint(out, NEW_STRING);
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Read string written in full or as its index.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @param strings  strings read so far by their index
+     * @return value read
+     * @throws IOException if the bytes end prematurely or the index is unknown
+     */
+    @Nonnull
+    private static String readReference(@Nonnull final byte[] bytes, @Nonnull final int[] position,
+            @Nonnull final List<String> strings) throws IOException {
+        final long reference = readVarint(bytes, position);
+        if (reference == NEW_STRING) {
+            final String value = readString(bytes, position);
+            strings.add(value);
+            return value;
+        }
+        if (reference > strings.size()) {
+            throw new IOException("Unknown string reference " + reference);
+        }
+        return strings.get((int) reference - 1);
+    }
+
+    /**
+     * Read size of an array or object. Each member takes at least a byte.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @return size read
+     * @throws IOException if the size exceeds the remaining bytes
+     */
+    private static long readSize(@Nonnull final byte[] bytes, @Nonnull final int[] position) throws IOException {
+        final long size = readVarint(bytes, position);
+        if (size > bytes.length - position[0]) {
+            throw new IOException("Record ended prematurely");
+        }
+        return size;
+    }
+
+    /**
+     * Write unsigned variable length integer.
+     * 
+     * @param out   stream to write to
+     * @param value non-negative value
+     */
+    private static void writeVarint(@Nonnull final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    /**
+     * Write string as UTF-8 length and bytes.
+     * 
+     * @param out   stream to write to
+     * @param value value to write, null is written as empty
+     */
+    private static void writeString(@Nonnull final ByteArrayOutputStream out, @Nullable final String value) {
+        final byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Read unsigned variable length integer.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @return value read
+     * @throws IOException if the bytes end prematurely or value is too long
+     */
+    private static long readVarint(@Nonnull final byte[] bytes, @Nonnull final int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new IOException("Record ended prematurely");
+            }
+            final byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Read string written as UTF-8 length and bytes.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @return value read
+     * @throws IOException if the bytes end prematurely
+     */
+    @Nonnull
+    private static String readString(@Nonnull final byte[] bytes, @Nonnull final int[] position)
+            throws IOException {
+        final long length = readVarint(bytes, position);
+        if (length > bytes.length - position[0]) {
+            throw new IOException("Record ended prematurely");
+        }
+        final String value = new String(bytes, position[0], (int) length, StandardCharsets.UTF_8);
+        position[0] += (int) length;
+        return value;
+    }
+}
@@ -16,42 +16,147 @@
 
 package org.geant.shibboleth.plugin.userprofile.storage;
 
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Event stored to user profile storage.
+ * 
+ * <p>
+ * The event payload is either a string value or structured json data. Json data
+ * is embedded in the record as such, whereas a string value is embedded as an
+ * escaped json string. Both are available in either form: data as its json
+ * string representation and a string value parsed as json. The other form is
+ * computed on first use and published safely, events are shared between
+ * threads by the caches.
+ * </p>
  */
 public class Event {
 
-    /** Event value. */
-    private final String value;
+    /** Reader for event. */
+    private static final ObjectReader READER = JsonSupport.readerFor(Event.class);
+
+    /** Reader for event data. */
+    private static final ObjectReader DATA_READER = JsonSupport.readerFor(JsonNode.class);
+
+    /** Event value, computed from data on first use. */
+    @Nullable
+    private volatile String value;
+
+    /** Event data, parsed from value on first use. */
+    @Nullable
+    private volatile JsonNode data;
 
     /** Event time as seconds from epoch. */
     private final long time;
 
+    /** Whether the event was created with a string value instead of data. */
+    private final boolean storedAsValue;
+
+    /** Hash of the payload, null until computed. */
+    @Nullable
+    private volatile Integer payloadHash;
+
     /**
      * Constructor.
      * 
      * @param value event value
+     * @param data  event data, used if there is no value
      * @param time  event time as seconds from epoch
      */
     @JsonCreator
-    private Event(@JsonProperty("value") String value, @JsonProperty("time") long time) {
+    private Event(@JsonProperty("value") String value, @JsonProperty("data") JsonNode data,
+            @JsonProperty("time") long time) {
         this.value = value;
+        this.data = value == null ? data : null;
         this.time = time;
+        storedAsValue = value != null;
     }
 
     /**
-     * Get event value.
+     * Constructor.
+     * 
+     * @param value event value
+     * @param time  event time as seconds from epoch
+     */
+    Event(String value, long time) {
+        this(value, null, time);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param data event data
+     * @param time event time as seconds from epoch
+     */
+    Event(@Nonnull final JsonNode data, final long time) {
+        this(null, data, time);
+    }
+
+    /**
+     * Get event value. Data is returned as its json string representation.
      * 
      * @return event value
      */
+    @JsonIgnore
     public String getValue() {
-        return value;
+        String current = value;
+        if (current == null && data != null) {
+            current = data.toString();
+            value = current;
+        }
+        return current;
+    }
+
+    /**
+     * Get event data. A string value is parsed as json.
+     * 
+     * @return event data
+     * @throws JsonProcessingException if the string value is not json
+     */
+    @JsonIgnore
+    public JsonNode getData() throws JsonProcessingException {
+        JsonNode current = data;
+        if (current == null && value != null) {
+            current = DATA_READER.readTree(value);
+            data = current;
+        }
+        return current;
+    }
+
+    /**
+     * Whether the event payload is json data instead of a string value.
+     * 
+     * @return whether the event payload is json data
+     */
+    @JsonIgnore
+    public boolean isData() {
+        return !storedAsValue;
+    }
+
+    /**
+     * Whether the event has the same payload as another event. Event times are
+     * not compared. Payloads are compared by their hashes first.
+     * 
+     * @param other event to compare to
+     * @return whether the events have the same payload
+     */
+    public boolean hasSamePayload(@Nullable final Event other) {
+        if (other == null || storedAsValue != other.storedAsValue || getPayloadHash() != other.getPayloadHash()) {
+            return false;
+        }
+        return storedAsValue ? Objects.equals(value, other.value) : Objects.equals(data, other.data);
     }
 
     /**
@@ -69,8 +174,54 @@ public class Event {
      * @param value event value
      */
     Event(String value) {
-        this.value = value;
-        time = System.currentTimeMillis() / 1000;
+        this(value, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param data event data
+     */
+    Event(@Nonnull final JsonNode data) {
+        this(data, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Get the string value to store, if the event was created with one.
+     * 
+     * @return string value to store
+     */
+    @Nullable
+    @JsonProperty("value")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String getStoredValue() {
+        return storedAsValue ? value : null;
+    }
+
+    /**
+     * Get the data to store, if the event was created with data.
+     * 
+     * @return data to store
+     */
+    @Nullable
+    @JsonProperty("data")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private JsonNode getStoredData() {
+        return storedAsValue ? null : data;
+    }
+
+    /**
+     * Get hash of the payload the event was created with.
+     * 
+     * @return hash of the payload
+     */
+    private int getPayloadHash() {
+        Integer current = payloadHash;
+        if (current == null) {
+            current = Objects.hashCode(storedAsValue ? value : data);
+            payloadHash = current;
+        }
+        return current;
     }
 
     /**
@@ -82,8 +233,7 @@ public class Event {
      * @throws JsonProcessingException json string is most likely malformatted
      */
     static Event parse(String token) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(token, Event.class);
+        return READER.readValue(token);
     }
 
     /**
@@ -93,7 +243,6 @@ public class Event {
      * @throws jsonProcessingException Mapping instance values to json failed.
      */
     String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(this);
+        return JsonSupport.getWriter().writeValueAsString(this);
     }
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Merges a modification of an event with a concurrent modification of the same
+ * event.
+ * 
+ * <p>
+ * An event modified on top of a stored event that has since been replaced by
+ * another modification would overwrite that modification. A merger instead
+ * applies the change between the base event and the local event on top of the
+ * current event, for instance appending the added entries.
+ * </p>
+ * 
+ * <p>
+ * Implementations must be thread-safe.
+ * </p>
+ */
+public interface EventMerger {
+
+    /**
+     * Merge the local modification on top of the current event.
+     * 
+     * @param current data of the event currently stored
+     * @param base    data of the event the local modification was made on top of,
+     *                null if there was none
+     * @param local   data of the locally modified event
+     * @return merged data
+     */
+    @Nonnull
+    JsonNode merge(@Nonnull JsonNode current, @Nullable JsonNode base, @Nonnull JsonNode local);
+}
@@ -17,24 +17,55 @@
 package org.geant.shibboleth.plugin.userprofile.storage;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Events stored to user profile storage.
  */
 public class Events {
 
+    /** Reader for map of events by name. */
+    @Nonnull
+    private static final ObjectReader READER = JsonSupport.readerFor(new TypeReference<HashMap<String, Event>>() {
+    });
+
     /** Map of events, instances by name. */
     @Nonnull
     private Map<String, Event> events = new HashMap<>();
 
+    /**
+     * Names of the events set by {@link #setEvent(String, Event)} to a payload
+     * other than stored.
+     */
+    @Nonnull
+    private final Set<String> modifiedEvents = new HashSet<>();
+
+    /** Events as last read from or written to storage, instances by name. */
+    @Nonnull
+    private final Map<String, Event> storedEvents = new HashMap<>();
+
+    /** Version of the storage record the events were read from. */
+    @Nullable
+    private Long version;
+
+    /** Names of the events read from their own storage records. */
+    @Nonnull
+    private final Set<String> readEvents = new HashSet<>();
+
+    /** Versions of the storage records of events stored in their own records. */
+    @Nonnull
+    private final Map<String, Long> eventVersions = new HashMap<>();
+
     /**
      * Constructor.
      */
@@ -51,6 +82,202 @@ public class Events {
         return events;
     }
 
+    /**
+     * Set event by name and mark it modified. An event with the same payload as
+     * the stored event is not set and the stored event is kept as unmodified.
+     * 
+     * @param name  name of the event
+     * @param event the event
+     */
+    public void setEvent(@Nonnull final String name, @Nonnull final Event event) {
+        final Event stored = storedEvents.get(name);
+        if (event.hasSamePayload(stored)) {
+            events.put(name, stored);
+            modifiedEvents.remove(name);
+            return;
+        }
+        events.put(name, event);
+        modifiedEvents.add(name);
+    }
+
+    /**
+     * Set event by name as modified on top of a stored event other than the one
+     * read. An event with the same payload as the stored event is not modified.
+     * 
+     * @param name   name of the event
+     * @param event  the event
+     * @param stored the stored event the event is a modification of, null if none
+     */
+    void setEvent(@Nonnull final String name, @Nonnull final Event event, @Nullable final Event stored) {
+        if (stored != null) {
+            storedEvents.put(name, stored);
+        } else {
+            storedEvents.remove(name);
+        }
+        setEvent(name, event);
+    }
+
+    /**
+     * Get the event as last read from or written to storage. For a modified event
+     * this is the event the modification was made on top of.
+     * 
+     * @param name name of the event
+     * @return the stored event, null if none
+     */
+    @Nullable
+    Event getStoredEvent(@Nonnull final String name) {
+        return storedEvents.get(name);
+    }
+
+    /**
+     * Get names of the events set by {@link #setEvent(String, Event)} to a payload
+     * other than stored.
+     * 
+     * @return names of the modified events
+     */
+    @Nonnull
+    public Set<String> getModifiedEvents() {
+        return modifiedEvents;
+    }
+
+    /**
+     * Whether any of the events is modified.
+     * 
+     * @return whether any of the events is modified
+     */
+    public boolean isModified() {
+        return !modifiedEvents.isEmpty();
+    }
+
+    /**
+     * Mark the events as stored, the current events are then unmodified.
+     */
+    void setStored() {
+        storedEvents.clear();
+        storedEvents.putAll(events);
+        modifiedEvents.clear();
+    }
+
+    /**
+     * Mark the event as stored, the current event is then unmodified.
+     * 
+     * @param name name of the event
+     */
+    void setStored(@Nonnull final String name) {
+        final Event event = events.get(name);
+        if (event != null) {
+            storedEvents.put(name, event);
+        } else {
+            storedEvents.remove(name);
+        }
+        modifiedEvents.remove(name);
+    }
+
+    /**
+     * Get version of the storage record the events were read from.
+     * 
+     * @return version of the storage record, null if there was no record
+     */
+    @Nullable
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Set version of the storage record the events were read from.
+     * 
+     * @param recordVersion version of the storage record, null if there was no
+     *                      record
+     */
+    void setVersion(@Nullable final Long recordVersion) {
+        version = recordVersion;
+    }
+
+    /**
+     * Whether the event has been read from its own storage record. The event
+     * itself is null if there was no record.
+     * 
+     * @param name name of the event
+     * @return whether the event has been read
+     */
+    public boolean isRead(@Nonnull final String name) {
+        return readEvents.contains(name);
+    }
+
+    /**
+     * Get names of the events read from their own storage records.
+     * 
+     * @return names of the read events
+     */
+    @Nonnull
+    public Set<String> getReadEvents() {
+        return readEvents;
+    }
+
+    /**
+     * Get version of the storage record of an event stored in its own record.
+     * 
+     * @param name name of the event
+     * @return version of the storage record, null if there was no record
+     */
+    @Nullable
+    public Long getVersion(@Nonnull final String name) {
+        return eventVersions.get(name);
+    }
+
+    /**
+     * Set event read from its own storage record. An event modified before read
+     * is kept.
+     * 
+     * @param name          name of the event
+     * @param event         the event, null if there was no record
+     * @param recordVersion version of the storage record, null if there was no
+     *                      record
+     */
+    void setReadEvent(@Nonnull final String name, @Nullable final Event event, @Nullable final Long recordVersion) {
+        if (event != null) {
+            storedEvents.put(name, event);
+            if (!modifiedEvents.contains(name)) {
+                events.put(name, event);
+            }
+        }
+        readEvents.add(name);
+        setVersion(name, recordVersion);
+    }
+
+    /**
+     * Set version of the storage record of an event stored in its own record.
+     * 
+     * @param name          name of the event
+     * @param recordVersion version of the storage record, null if there is no
+     *                      record
+     */
+    void setVersion(@Nonnull final String name, @Nullable final Long recordVersion) {
+        if (recordVersion != null) {
+            eventVersions.put(name, recordVersion);
+        } else {
+            eventVersions.remove(name);
+        }
+    }
+
+    /**
+     * Copy the events, including the stored events and versions. The events
+     * themselves are shared.
+     * 
+     * @return copy of the events
+     */
+    @Nonnull
+    Events copy() {
+        final Events copy = new Events();
+        copy.events.putAll(events);
+        copy.modifiedEvents.addAll(modifiedEvents);
+        copy.storedEvents.putAll(storedEvents);
+        copy.version = version;
+        copy.readEvents.addAll(readEvents);
+        copy.eventVersions.putAll(eventVersions);
+        return copy;
+    }
+
     /**
      * Parse instance from json string representation.
      * 
@@ -60,10 +287,7 @@ public class Events {
      * @throws JsonProcessingException json string is most likely malformatted
      */
     public static Events parse(String tokens) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        TypeReference<HashMap<String, Event>> typeRef = new TypeReference<HashMap<String, Event>>() {
-        };
-        Map<String, Event> events = objectMapper.readValue(tokens, typeRef);
+        Map<String, Event> events = READER.readValue(tokens);
         Events eventsObject = new Events();
         eventsObject.getEvents().putAll(events);
         return eventsObject;
@@ -76,8 +300,7 @@ public class Events {
      * @throws JsonProcessingException mapping instance values to json failed
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(getEvents());
+        return JsonSupport.getWriter().writeValueAsString(getEvents());
     }
 
 }
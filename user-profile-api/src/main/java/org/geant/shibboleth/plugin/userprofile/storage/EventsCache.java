@@ -20,6 +20,13 @@ import javax.annotation.Nullable;
 
 /**
  * Interface for storing {@link UserProfileCache} {@link Events}.
+ * 
+ * <p>
+ * The cached events track which events have been modified. If events are
+ * stored in their own storage records, they also track which events have been
+ * read, and committing the cache writes only the records of the modified
+ * events.
+ * </p>
  */
 public interface EventsCache {
 
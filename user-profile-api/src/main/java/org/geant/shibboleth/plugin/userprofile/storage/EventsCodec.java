@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Encodes {@link Events} to user profile storage record values and decodes
+ * them back.
+ * 
+ * <p>
+ * Implementations must be thread-safe. A codec recognizes the records it has
+ * encoded by their leading header, so that records written in different formats
+ * may co-exist in the same store.
+ * </p>
+ */
+public interface EventsCodec {
+
+    /**
+     * Encode events to storage record value.
+     * 
+     * @param events events to encode
+     * @return storage record value
+     * @throws IOException if encoding fails
+     */
+    @Nonnull
+    String encode(@Nonnull Events events) throws IOException;
+
+    /**
+     * Decode events from storage record value.
+     * 
+     * @param record storage record value
+     * @return decoded events
+     * @throws IOException if decoding fails
+     */
+    @Nonnull
+    Events decode(@Nonnull String record) throws IOException;
+
+    /**
+     * Whether the storage record value is in the format of this codec.
+     * 
+     * @param record storage record value
+     * @return true if the codec is able to decode the record
+     */
+    boolean isSupported(@Nonnull String record);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Coalesces concurrent commits of modified {@link Events} by storage key into a
+ * single write.
+ *
+ * <p>
+ * The first commit of a key starts a batch and waits for the lock of the key.
+ * Commits of the same key arriving meanwhile join the batch and wait for it to
+ * be written. Holding the lock, the first commit closes the batch, writes the
+ * modifications of all the commits of the batch at once and completes them with
+ * the result of the write. Commits accumulate while the lock is held by the
+ * write of the previous batch, so the busier the key the fewer the writes.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class GroupCommit {
+
+    /** Open batches by key. */
+    @Nonnull
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    /** Writes modifications of a key to storage, returns whether successful. */
+    @Nonnull
+    private final BiPredicate<String, List<Events>> writer;
+
+    /** Looks up the lock serializing writes of a key. */
+    @Nonnull
+    private final Function<String, Lock> lockLookup;
+
+    /** Number of commits written by the write of another commit. */
+    @Nonnull
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param eventsWriter  writes modifications of a key to storage in commit
+     *                      order, returns whether successful
+     * @param keyLockLookup looks up the lock serializing writes of a key
+     */
+    public GroupCommit(@Nonnull final BiPredicate<String, List<Events>> eventsWriter,
+            @Nonnull final Function<String, Lock> keyLockLookup) {
+        writer = Constraint.isNotNull(eventsWriter, "Events writer cannot be null");
+        lockLookup = Constraint.isNotNull(keyLockLookup, "Lock lookup cannot be null");
+    }
+
+    /**
+     * Commit modified events of the key, together with the concurrent commits of
+     * the same key.
+     *
+     * @param key    the key events are stored by
+     * @param events events containing the modifications
+     * @return true if the write containing the modifications succeeded
+     */
+    public boolean commit(@Nonnull @NotEmpty final String key, @Nonnull final Events events) {
+        final boolean[] started = {false};
+        final Batch batch = batches.compute(key, (k, open) -> {
+            final Batch joined = open != null ? open : new Batch();
+            started[0] = open == null;
+            joined.commits.add(events);
+            return joined;
+        });
+        if (!started[0]) {
+            coalesced.increment();
+            return batch.result.join();
+        }
+        boolean success = false;
+        final Lock lock = lockLookup.apply(key);
+        lock.lock();
+        try {
+            // Commits join only while the batch is open, the list is not modified after this.
+            batches.remove(key, batch);
+            success = writer.test(key, batch.commits);
+            return success;
+        } finally {
+            lock.unlock();
+            batch.result.complete(success);
+        }
+    }
+
+    /**
+     * Get number of commits written by the write of another commit.
+     *
+     * @return number of coalesced commits
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /** Commits of a key written by a single write. */
+    private static final class Batch {
+
+        /** Events of the commits in commit order. */
+        @Nonnull
+        private final List<Events> commits = new ArrayList<>();
+
+        /** Result of the write. */
+        @Nonnull
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Fast storage tier holding copies of recently used user profile records.
+ *
+ * <p>
+ * The durable storage remains the record of truth. Records read from it are
+ * promoted to the hot tier, and records written to it are written through to
+ * the hot tier. Copies not used for the idle time are demoted in the
+ * background by removing them from the hot tier, so demotion never loses
+ * data. Copies in the hot tier expire after their own expiration.
+ * </p>
+ *
+ * <p>
+ * A copy carries the version of the durable record it was copied from. A copy
+ * is not replaced by an older one, and a copy that can not be written is
+ * removed, so the hot tier does not serve records older than those written to
+ * it. Failures of the hot tier are logged and the durable storage is used
+ * instead.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class HotTier {
+
+    /** Separator of the durable record version and the record in a copy. */
+    private static final char VERSION_SEPARATOR = ':';
+
+    /** Logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(HotTier.class);
+
+    /** Storage service of the hot tier. */
+    @Nonnull
+    private final StorageService storage;
+
+    /** Expiration of copies. */
+    @Nonnull
+    private final Duration expiration;
+
+    /** Time after which unused copies are demoted. */
+    @Nonnull
+    private final Duration idleTime;
+
+    /** Last use of copies by storage context and key, in milliseconds from epoch. */
+    @Nonnull
+    private final Map<Map.Entry<String, String>, Long> lastUsed = new ConcurrentHashMap<>();
+
+    /** Number of records read from the hot tier. */
+    @Nonnull
+    private final LongAdder hits = new LongAdder();
+
+    /** Number of records not found from the hot tier. */
+    @Nonnull
+    private final LongAdder misses = new LongAdder();
+
+    /** Number of records promoted. */
+    @Nonnull
+    private final LongAdder promotions = new LongAdder();
+
+    /** Number of records demoted. */
+    @Nonnull
+    private final LongAdder demotions = new LongAdder();
+
+    /** Executor running the demotion, null if not started. */
+    @Nullable
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param storageService storage service of the hot tier
+     * @param copyExpiration expiration of copies
+     * @param copyIdleTime   time after which unused copies are demoted
+     */
+    public HotTier(@Nonnull final StorageService storageService, @Nonnull final Duration copyExpiration,
+            @Nonnull final Duration copyIdleTime) {
+        storage = Constraint.isNotNull(storageService, "StorageService cannot be null");
+        Constraint.isTrue(copyExpiration != null && copyExpiration.toMillis() > 0,
+                "Hot tier expiration must be positive");
+        Constraint.isTrue(copyIdleTime != null && copyIdleTime.toMillis() > 0, "Hot tier idle time must be positive");
+        expiration = copyExpiration;
+        idleTime = copyIdleTime;
+    }
+
+    /**
+     * Start demoting unused copies.
+     *
+     * @param interval interval of demotion
+     */
+    public synchronized void start(@Nonnull final Duration interval) {
+        Constraint.isTrue(interval != null && interval.toMillis() > 0, "Demotion interval must be positive");
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "UserProfileHotTierDemotion");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                demote();
+            } catch (final RuntimeException e) {
+                log.error("Exception demoting User Profile Records", e);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop demoting unused copies.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Read copy of the record.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @return the copy, null if none or reading fails
+     */
+    @Nullable
+    public HotRecord read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        try {
+            final StorageRecord<?> entry = storage.read(context, key);
+            if (entry != null) {
+                final HotRecord copy = parse(entry.getValue());
+                if (copy != null) {
+                    hits.increment();
+                    lastUsed.put(Map.entry(context, key), System.currentTimeMillis());
+                    return copy;
+                }
+                log.warn("Malformed hot tier copy of User Profile Record in '{}' for user '{}'", context, key);
+            }
+        } catch (final IOException e) {
+            log.warn("Exception reading hot tier copy of User Profile Record in '{}' for user '{}'", context, key, e);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Promote a record read from the durable storage. An existing copy is not
+     * replaced, as it may have been written after the record was read.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @param version version of the durable record
+     * @param value   the record
+     */
+    public void promote(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long version, @Nonnull final String value) {
+        try {
+            if (storage.create(context, key, format(version, value), getExpiration())) {
+                promotions.increment();
+                lastUsed.put(Map.entry(context, key), System.currentTimeMillis());
+            }
+        } catch (final IOException e) {
+            log.warn("Exception promoting User Profile Record in '{}' for user '{}'", context, key, e);
+        }
+    }
+
+    /**
+     * Write through a record written to the durable storage. If the version is
+     * known, a copy of a newer version is not replaced. If the copy can not be
+     * written, it is removed.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @param version version of the durable record, null if not known
+     * @param value   the record
+     */
+    public void write(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nullable final Long version, @Nonnull final String value) {
+        final String copy = format(version != null ? version : 0, value);
+        try {
+            if (version == null) {
+                if (storage.update(context, key, copy, getExpiration())
+                        || storage.create(context, key, copy, getExpiration())) {
+                    lastUsed.put(Map.entry(context, key), System.currentTimeMillis());
+                    return;
+                }
+            } else {
+                final StorageRecord<?> current = storage.read(context, key);
+                final HotRecord currentCopy = current != null ? parse(current.getValue()) : null;
+                if (currentCopy != null && currentCopy.getVersion() != null && currentCopy.getVersion() >= version) {
+                    return;
+                }
+                if (current == null ? storage.create(context, key, copy, getExpiration())
+                        : storage.updateWithVersion(current.getVersion(), context, key, copy,
+                                getExpiration()) != null) {
+                    lastUsed.put(Map.entry(context, key), System.currentTimeMillis());
+                    return;
+                }
+            }
+        } catch (final VersionMismatchException e) {
+            log.debug("Hot tier copy of User Profile Record in '{}' for user '{}' written concurrently", context,
+                    key);
+        } catch (final IOException e) {
+            log.warn("Exception writing hot tier copy of User Profile Record in '{}' for user '{}'", context, key,
+                    e);
+        }
+        remove(context, key);
+    }
+
+    /**
+     * Demote copies not used for the idle time.
+     *
+     * @return number of copies demoted
+     */
+    public int demote() {
+        final long idleSince = System.currentTimeMillis() - idleTime.toMillis();
+        int demoted = 0;
+        for (final Map.Entry<Map.Entry<String, String>, Long> entry : lastUsed.entrySet()) {
+            if (entry.getValue() < idleSince && lastUsed.remove(entry.getKey(), entry.getValue())) {
+                try {
+                    storage.delete(entry.getKey().getKey(), entry.getKey().getValue());
+                    demoted++;
+                } catch (final IOException e) {
+                    log.warn("Exception demoting User Profile Record in '{}' for user '{}'", entry.getKey().getKey(),
+                            entry.getKey().getValue(), e);
+                }
+            }
+        }
+        if (demoted > 0) {
+            demotions.add(demoted);
+            log.debug("Demoted {} User Profile Records not used in {}", demoted, idleTime);
+        }
+        return demoted;
+    }
+
+    /**
+     * Get number of records read from the hot tier.
+     *
+     * @return number of records read from the hot tier
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get number of records not found from the hot tier.
+     *
+     * @return number of records not found from the hot tier
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get number of records promoted.
+     *
+     * @return number of records promoted
+     */
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    /**
+     * Get number of records demoted.
+     *
+     * @return number of records demoted
+     */
+    public long getDemotions() {
+        return demotions.sum();
+    }
+
+    /**
+     * Remove copy of the record.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     */
+    public void remove(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        lastUsed.remove(Map.entry(context, key));
+        try {
+            storage.delete(context, key);
+        } catch (final IOException e) {
+            log.error("Exception removing hot tier copy of User Profile Record in '{}' for user '{}', it may be stale",
+                    context, key, e);
+        }
+    }
+
+    /**
+     * Get expiration of a copy written now.
+     *
+     * @return expiration as milliseconds from epoch
+     */
+    private long getExpiration() {
+        return Instant.now().plus(expiration).toEpochMilli();
+    }
+
+    /**
+     * Format copy of the record.
+     *
+     * @param version version of the durable record, 0 if not known
+     * @param value   the record
+     * @return the copy
+     */
+    @Nonnull
+    private static String format(final long version, @Nonnull final String value) {
+        return Long.toString(version) + VERSION_SEPARATOR + value;
+    }
+
+    /**
+     * Parse copy of the record.
+     *
+     * @param copy the copy
+     * @return the record, null if malformed
+     */
+    @Nullable
+    private static HotRecord parse(@Nonnull final String copy) {
+        final int separator = copy.indexOf(VERSION_SEPARATOR);
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            final long version = Long.parseLong(copy, 0, separator, 10);
+            return new HotRecord(version > 0 ? version : null, copy.substring(separator + 1));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Record read from the hot tier. */
+    public static final class HotRecord {
+
+        /** Version of the durable record, null if not known. */
+        @Nullable
+        private final Long version;
+
+        /** The record. */
+        @Nonnull
+        private final String value;
+
+        /**
+         * Constructor.
+         *
+         * @param recordVersion version of the durable record, null if not known
+         * @param recordValue   the record
+         */
+        private HotRecord(@Nullable final Long recordVersion, @Nonnull final String recordValue) {
+            version = recordVersion;
+            value = recordValue;
+        }
+
+        /**
+         * Get version of the durable record.
+         *
+         * @return version of the durable record, null if not known
+         */
+        @Nullable
+        public Long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the record.
+         *
+         * @return the record
+         */
+        @Nonnull
+        public String getValue() {
+            return value;
+        }
+    }
+}
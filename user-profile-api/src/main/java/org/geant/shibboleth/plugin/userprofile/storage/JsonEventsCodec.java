@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * {@link EventsCodec} storing events as a json object of events by name. This
+ * is the original record format of the user profile storage.
+ */
+public class JsonEventsCodec implements EventsCodec {
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public String encode(@Nonnull final Events events) throws IOException {
+        return events.serialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public Events decode(@Nonnull final String record) throws IOException {
+        return Events.parse(record);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isSupported(@Nonnull final String record) {
+        for (int i = 0; i < record.length(); i++) {
+            final char c = record.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+}
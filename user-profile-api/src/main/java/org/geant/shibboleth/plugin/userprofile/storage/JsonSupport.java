@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Shared, pre-built json readers and writers for user profile records.
+ * 
+ * <p>
+ * Readers and writers are immutable and thread-safe. Building them once avoids
+ * constructing and configuring an {@link ObjectMapper} on every serialization.
+ * </p>
+ */
+public final class JsonSupport {
+
+    /** Mapper all readers and writers are derived from. */
+    @Nonnull
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Writer for any value. */
+    @Nonnull
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    /** Constructor. */
+    private JsonSupport() {
+    }
+
+    /**
+     * Get reader for the type.
+     * 
+     * @param type type to read
+     * @return reader for the type
+     */
+    @Nonnull
+    public static ObjectReader readerFor(@Nonnull final Class<?> type) {
+        return MAPPER.readerFor(type);
+    }
+
+    /**
+     * Get reader for the type.
+     * 
+     * @param type type to read
+     * @return reader for the type
+     */
+    @Nonnull
+    public static ObjectReader readerFor(@Nonnull final TypeReference<?> type) {
+        return MAPPER.readerFor(type);
+    }
+
+    /**
+     * Convert value to json tree.
+     * 
+     * @param value value to convert
+     * @return json tree of the value
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    @Nonnull
+    public static JsonNode valueToTree(@Nullable final Object value) {
+        return MAPPER.valueToTree(value);
+    }
+
+    /**
+     * Get writer for any value.
+     * 
+     * @return writer for any value
+     */
+    @Nonnull
+    public static ObjectWriter getWriter() {
+        return WRITER;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Bounded in-memory cache of values read from storage.
+ *
+ * <p>
+ * Entries expire after the time to live and the least recently used entries
+ * are evicted when the cache is full. Larger caches are split by key hash to
+ * segments of at least {@link #MIN_SEGMENT_ENTRIES} entries, each guarded by
+ * its own lock and evicting its own least recently used entries, so readers of
+ * different keys rarely contend. A cached value is revalidated against
+ * the storage before use, typically by comparing its record version, so the
+ * cache never returns a value the storage no longer has. Cached values are
+ * shared and must not be modified.
+ * </p>
+ *
+ * @param <K> type of the key
+ * @param <V> type of the cached value
+ */
+@ThreadSafeAfterInit
+public class NearCache<K, V> {
+
+    /** Min number of entries of a segment. */
+    public static final int MIN_SEGMENT_ENTRIES = 64;
+
+    /** Max number of segments. */
+    private static final int MAX_SEGMENTS = 64;
+
+    /** Segments of cached entries in least recently used order, each guarded by itself. */
+    @Nonnull
+    private final LinkedHashMap<K, Entry<V>>[] segments;
+
+    /** Time to live of an entry. */
+    @Nonnull
+    private final Duration timeToLive;
+
+    /** Number of values returned from the cache. */
+    @Nonnull
+    private final LongAdder hits = new LongAdder();
+
+    /** Number of values not cached, expired or changed in storage. */
+    @Nonnull
+    private final LongAdder misses = new LongAdder();
+
+    /** Number of entries evicted as expired or as the cache was full. */
+    @Nonnull
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Revalidation of a cached value against the storage.
+     *
+     * @param <V> type of the cached value
+     */
+    @FunctionalInterface
+    public interface Revalidator<V> {
+
+        /**
+         * Revalidate the cached value.
+         *
+         * @param cached the cached value
+         * @return the cached value if still current, the current value if changed,
+         *         null if no longer stored
+         * @throws IOException if revalidation fails
+         */
+        @Nullable
+        V revalidate(@Nonnull V cached) throws IOException;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries max number of entries
+     * @param ttl        time to live of an entry
+     */
+    public NearCache(@Positive final int maxEntries, @Nonnull final Duration ttl) {
+        Constraint.isTrue(maxEntries > 0, "Max number of entries must be greater than 0");
+        Constraint.isTrue(ttl != null && !ttl.isNegative() && !ttl.isZero(), "Time to live must be positive");
+        timeToLive = ttl;
+        int segmentCount = 1;
+        while (segmentCount * 2 <= MAX_SEGMENTS && segmentCount * 2 * MIN_SEGMENT_ENTRIES <= maxEntries) {
+            segmentCount *= 2;
+        }
+        @SuppressWarnings("unchecked")
+        final LinkedHashMap<K, Entry<V>>[] created = new LinkedHashMap[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            created[i] = createSegment(maxEntries / segmentCount);
+        }
+        segments = created;
+    }
+
+    /**
+     * Get revalidated value of the key. A value changed in storage replaces the
+     * cached value, a value no longer stored is removed.
+     *
+     * @param key         the key
+     * @param revalidator revalidation of the cached value
+     * @return the current value, null if not cached or no longer stored
+     * @throws IOException if revalidation fails
+     */
+    @Nullable
+    public V get(@Nonnull final K key, @Nonnull final Revalidator<V> revalidator) throws IOException {
+        final LinkedHashMap<K, Entry<V>> entries = getSegment(key);
+        final Entry<V> entry;
+        synchronized (entries) {
+            final Entry<V> cached = entries.get(key);
+            if (cached != null && cached.expires < System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions.increment();
+                entry = null;
+            } else {
+                entry = cached;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        final V current = revalidator.revalidate(entry.value);
+        if (current == entry.value) {
+            hits.increment();
+            return current;
+        }
+        misses.increment();
+        if (current != null) {
+            put(key, current);
+        } else {
+            invalidate(key);
+        }
+        return current;
+    }
+
+    /**
+     * Cache value of the key.
+     *
+     * @param key   the key
+     * @param value the value, not to be modified after this
+     */
+    public void put(@Nonnull final K key, @Nonnull final V value) {
+        final Entry<V> entry = new Entry<>(value, System.currentTimeMillis() + timeToLive.toMillis());
+        final LinkedHashMap<K, Entry<V>> entries = getSegment(key);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Remove value of the key, if cached.
+     *
+     * @param key the key
+     */
+    public void invalidate(@Nonnull final K key) {
+        final LinkedHashMap<K, Entry<V>> entries = getSegment(key);
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Get number of entries.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (final LinkedHashMap<K, Entry<V>> entries : segments) {
+            synchronized (entries) {
+                size += entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get number of values returned from the cache.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get number of values not cached, expired or changed in storage.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get number of entries evicted as expired or as the cache was full.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the segment of the key.
+     *
+     * @param key the key
+     * @return segment of the key
+     */
+    @Nonnull
+    private LinkedHashMap<K, Entry<V>> getSegment(@Nonnull final K key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Create a segment evicting its least recently used entries.
+     *
+     * @param maxEntries max number of entries of the segment
+     * @return the segment
+     */
+    @Nonnull
+    private LinkedHashMap<K, Entry<V>> createSegment(final int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 1L;
+
+            /** {@inheritDoc} */
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+                if (size() > maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Cached value with its expiration.
+     *
+     * @param <V> type of the cached value
+     */
+    private static final class Entry<V> {
+
+        /** The cached value. */
+        @Nonnull
+        private final V value;
+
+        /** Expiration as milliseconds from epoch. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param cachedValue the cached value
+         * @param expiration  expiration as milliseconds from epoch
+         */
+        private Entry(@Nonnull final V cachedValue, final long expiration) {
+            value = cachedValue;
+            expires = expiration;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Cache of serialized storage records held outside of the Java heap.
+ *
+ * <p>
+ * Records are stored in direct {@link ByteBuffer} slabs divided into fixed size
+ * blocks, a record taking a chain of blocks. The total size of the slabs is
+ * the byte budget of the cache, allocated up front. Records are located by an
+ * open addressing index of primitive arrays, so cached records retain no
+ * objects on the heap. Records are read back and decoded only on access.
+ * </p>
+ *
+ * <p>
+ * When blocks run out the cache evicts records in CLOCK order: records read
+ * since the hand last passed them get a second chance. Records also expire
+ * after the time to live. Records larger than the cache are not cached.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class OffHeapRecordCache {
+
+    /** Size of a slab. */
+    private static final int SLAB_SIZE = 1 << 20;
+
+    /** Block index marking the end of a chain or an empty index slot. */
+    private static final int NO_BLOCK = -1;
+
+    /** Size of the block link to the next block of the chain. */
+    private static final int LINK_SIZE = Integer.BYTES;
+
+    /** Size of the record header: key length, value length, version and expiration. */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /** Slabs holding the blocks. */
+    @Nonnull
+    private final ByteBuffer[] slabs;
+
+    /** Size of a block. */
+    private final int blockSize;
+
+    /** Number of blocks in a slab. */
+    private final int blocksPerSlab;
+
+    /** Number of blocks. */
+    private final int blockCount;
+
+    /** Stack of free blocks. */
+    @Nonnull
+    private final int[] freeBlocks;
+
+    /** Number of free blocks. */
+    private int freeCount;
+
+    /** First block of the record by index slot, {@link #NO_BLOCK} for an empty slot. */
+    @Nonnull
+    private final int[] slotBlocks;
+
+    /** Hash of the record key by index slot. */
+    @Nonnull
+    private final int[] slotHashes;
+
+    /** Whether the record has been read since the clock hand passed it, by index slot. */
+    @Nonnull
+    private final boolean[] slotReferenced;
+
+    /** Max number of records, keeps the index sparse enough for probing. */
+    private final int maxRecords;
+
+    /** Number of records. */
+    private int records;
+
+    /** Index slot the clock hand points at. */
+    private int hand;
+
+    /** Time to live of a record. */
+    @Nonnull
+    private final Duration timeToLive;
+
+    /** Number of records found. */
+    @Nonnull
+    private final LongAdder hits = new LongAdder();
+
+    /** Number of records not found or expired. */
+    @Nonnull
+    private final LongAdder misses = new LongAdder();
+
+    /** Number of records evicted as expired or to make room. */
+    @Nonnull
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes byte budget of the cache
+     * @param size     size of a block, a power of two from 64 to 65536
+     * @param ttl      time to live of a record
+     */
+    public OffHeapRecordCache(@Positive final long maxBytes, @Positive final int size, @Nonnull final Duration ttl) {
+        Constraint.isTrue(size >= 64 && size <= 65536 && Integer.bitCount(size) == 1,
+                "Block size must be a power of two from 64 to 65536");
+        Constraint.isTrue(maxBytes >= size && maxBytes / size <= Integer.MAX_VALUE / 2,
+                "Byte budget must hold at least one block and at most 2^30 blocks");
+        Constraint.isTrue(ttl != null && !ttl.isNegative() && !ttl.isZero(), "Time to live must be positive");
+        blockSize = size;
+        blockCount = (int) (maxBytes / size);
+        blocksPerSlab = SLAB_SIZE / size;
+        final int slabCount = (blockCount + blocksPerSlab - 1) / blocksPerSlab;
+        slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            final int slabBlocks = Math.min(blocksPerSlab, blockCount - i * blocksPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(slabBlocks * size);
+        }
+        freeBlocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks[i] = blockCount - 1 - i;
+        }
+        freeCount = blockCount;
+        final int slots = Integer.highestOneBit(Math.max(blockCount, 2) * 2 - 1);
+        slotBlocks = new int[slots];
+        Arrays.fill(slotBlocks, NO_BLOCK);
+        slotHashes = new int[slots];
+        slotReferenced = new boolean[slots];
+        maxRecords = Math.min(blockCount, slots / 4 * 3);
+        timeToLive = ttl;
+    }
+
+    /**
+     * Get cached record.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @return the cached record, null if not cached or expired
+     */
+    @Nullable
+    public synchronized CachedRecord get(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        final byte[] keyBytes = toKeyBytes(context, key);
+        final int slot = find(keyBytes, hash(keyBytes));
+        if (slot == NO_BLOCK) {
+            misses.increment();
+            return null;
+        }
+        final int head = slotBlocks[slot];
+        final ByteBuffer header = ByteBuffer.wrap(read(head, 0, HEADER_SIZE));
+        final int keyLength = header.getInt();
+        final int valueLength = header.getInt();
+        final long version = header.getLong();
+        if (header.getLong() < System.currentTimeMillis()) {
+            remove(slot);
+            evictions.increment();
+            misses.increment();
+            return null;
+        }
+        slotReferenced[slot] = true;
+        hits.increment();
+        return new CachedRecord(version,
+                new String(read(head, HEADER_SIZE + keyLength, valueLength), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Cache record, replacing the cached version of it. Records are evicted to
+     * make room for the record as needed.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @param version storage version of the record
+     * @param value   serialized record
+     * @return false if the record is larger than the cache
+     */
+    public synchronized boolean put(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            final long version, @Nonnull final String value) {
+        final byte[] keyBytes = toKeyBytes(context, key);
+        final int hash = hash(keyBytes);
+        final int existing = find(keyBytes, hash);
+        if (existing != NO_BLOCK) {
+            remove(existing);
+        }
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        final int payload = blockSize - LINK_SIZE;
+        final int needed = (length + payload - 1) / payload;
+        if (needed > blockCount) {
+            return false;
+        }
+        while (freeCount < needed || records >= maxRecords) {
+            evict();
+        }
+        final int[] chain = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            chain[i] = freeBlocks[--freeCount];
+        }
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        data.putInt(keyBytes.length).putInt(valueBytes.length).putLong(version)
+                .putLong(System.currentTimeMillis() + timeToLive.toMillis()).put(keyBytes).put(valueBytes);
+        final byte[] bytes = data.array();
+        for (int i = 0; i < needed; i++) {
+            final ByteBuffer slab = slabs[chain[i] / blocksPerSlab];
+            final int offset = (chain[i] % blocksPerSlab) * blockSize;
+            slab.putInt(offset, i + 1 < needed ? chain[i + 1] : NO_BLOCK);
+            slab.put(offset + LINK_SIZE, bytes, i * payload, Math.min(payload, length - i * payload));
+        }
+        int slot = hash & (slotBlocks.length - 1);
+        while (slotBlocks[slot] != NO_BLOCK) {
+            slot = (slot + 1) & (slotBlocks.length - 1);
+        }
+        slotBlocks[slot] = chain[0];
+        slotHashes[slot] = hash;
+        slotReferenced[slot] = false;
+        records++;
+        return true;
+    }
+
+    /**
+     * Remove record, if cached.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     */
+    public synchronized void remove(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key) {
+        final byte[] keyBytes = toKeyBytes(context, key);
+        final int slot = find(keyBytes, hash(keyBytes));
+        if (slot != NO_BLOCK) {
+            remove(slot);
+        }
+    }
+
+    /**
+     * Get number of cached records.
+     *
+     * @return number of cached records
+     */
+    public synchronized int size() {
+        return records;
+    }
+
+    /**
+     * Get number of bytes taken by cached records, in whole blocks.
+     *
+     * @return number of bytes in use
+     */
+    public synchronized long getUsedBytes() {
+        return (long) (blockCount - freeCount) * blockSize;
+    }
+
+    /**
+     * Get number of records found.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get number of records not found or expired.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get number of records evicted as expired or to make room.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Find index slot of the record.
+     *
+     * @param keyBytes key of the record
+     * @param hash     hash of the key
+     * @return index slot, {@link #NO_BLOCK} if not found
+     */
+    private int find(@Nonnull final byte[] keyBytes, final int hash) {
+        int slot = hash & (slotBlocks.length - 1);
+        while (slotBlocks[slot] != NO_BLOCK) {
+            if (slotHashes[slot] == hash) {
+                final byte[] header = read(slotBlocks[slot], 0, Integer.BYTES);
+                final int keyLength = ByteBuffer.wrap(header).getInt();
+                if (keyLength == keyBytes.length
+                        && Arrays.equals(read(slotBlocks[slot], HEADER_SIZE, keyLength), keyBytes)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & (slotBlocks.length - 1);
+        }
+        return NO_BLOCK;
+    }
+
+    /**
+     * Evict the record at the clock hand if not referenced since the hand last
+     * passed it, otherwise move the hand on until one is.
+     */
+    private void evict() {
+        while (true) {
+            if (slotBlocks[hand] != NO_BLOCK) {
+                if (!slotReferenced[hand]) {
+                    remove(hand);
+                    evictions.increment();
+                    return;
+                }
+                slotReferenced[hand] = false;
+            }
+            hand = (hand + 1) & (slotBlocks.length - 1);
+        }
+    }
+
+    /**
+     * Remove the record in the index slot, freeing its blocks. Records following
+     * in the probe sequence are shifted back so no tombstones are needed.
+     *
+     * @param slot index slot of the record
+     */
+    private void remove(final int slot) {
+        int block = slotBlocks[slot];
+        while (block != NO_BLOCK) {
+            freeBlocks[freeCount++] = block;
+            block = slabs[block / blocksPerSlab].getInt((block % blocksPerSlab) * blockSize);
+        }
+        records--;
+        final int mask = slotBlocks.length - 1;
+        int empty = slot;
+        int next = slot;
+        while (true) {
+            slotBlocks[empty] = NO_BLOCK;
+            while (true) {
+                next = (next + 1) & mask;
+                if (slotBlocks[next] == NO_BLOCK) {
+                    return;
+                }
+                final int home = slotHashes[next] & mask;
+                final boolean stays = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+                if (!stays) {
+                    break;
+                }
+            }
+            slotBlocks[empty] = slotBlocks[next];
+            slotHashes[empty] = slotHashes[next];
+            slotReferenced[empty] = slotReferenced[next];
+            empty = next;
+        }
+    }
+
+    /**
+     * Read bytes of the record stored in a chain of blocks.
+     *
+     * @param head   first block of the chain
+     * @param offset offset of the bytes within the record
+     * @param length number of bytes
+     * @return the bytes
+     */
+    @Nonnull
+    private byte[] read(final int head, final int offset, final int length) {
+        final byte[] bytes = new byte[length];
+        final int payload = blockSize - LINK_SIZE;
+        int block = head;
+        int position = 0;
+        int skip = offset;
+        while (position < length) {
+            final ByteBuffer slab = slabs[block / blocksPerSlab];
+            final int start = (block % blocksPerSlab) * blockSize;
+            if (skip < payload) {
+                final int count = Math.min(payload - skip, length - position);
+                slab.get(start + LINK_SIZE + skip, bytes, position, count);
+                position += count;
+                skip = 0;
+            } else {
+                skip -= payload;
+            }
+            block = slab.getInt(start);
+        }
+        return bytes;
+    }
+
+    /**
+     * Get key of the record.
+     *
+     * @param context storage context of the record
+     * @param key     storage key of the record
+     * @return key bytes
+     */
+    @Nonnull
+    private static byte[] toKeyBytes(@Nonnull final String context, @Nonnull final String key) {
+        return (context + '\0' + key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get hash of the key, spread over all bits.
+     *
+     * @param keyBytes key bytes
+     * @return hash of the key
+     */
+    private static int hash(@Nonnull final byte[] keyBytes) {
+        int hash = Arrays.hashCode(keyBytes);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Cached serialized record with its storage version. */
+    public static final class CachedRecord {
+
+        /** Storage version of the record. */
+        private final long version;
+
+        /** Serialized record. */
+        @Nonnull
+        private final String value;
+
+        /**
+         * Constructor.
+         *
+         * @param recordVersion storage version of the record
+         * @param recordValue   serialized record
+         */
+        private CachedRecord(final long recordVersion, @Nonnull final String recordValue) {
+            version = recordVersion;
+            value = recordValue;
+        }
+
+        /**
+         * Get storage version of the record.
+         *
+         * @return storage version of the record
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get serialized record.
+         *
+         * @return serialized record
+         */
+        @Nonnull
+        public String getValue() {
+            return value;
+        }
+    }
+}
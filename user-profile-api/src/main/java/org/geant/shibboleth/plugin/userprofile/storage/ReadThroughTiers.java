@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
+
+/**
+ * Reads user profile records through the tiers in front of the storage shards.
+ *
+ * <p>
+ * A record is looked up in the near cache of decoded records, then read once
+ * for concurrent readers from the hot tier, the off-heap cache and finally the
+ * storage shard of the key, falling back to the previous shard while records
+ * migrate. Records read from the storage are promoted to the hot tier. Each
+ * tier is optional. Records written to the storage are reported by
+ * {@link #written(String, String, String, Long)}, so that no tier serves a
+ * record older than the one written.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class ReadThroughTiers {
+
+    /** Logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(ReadThroughTiers.class);
+
+    /** Storage shards of the records. */
+    @Nonnull
+    private final StorageShards shards;
+
+    /** Codec of the records. */
+    @Nonnull
+    private final RecordCodec recordCodec;
+
+    /** Reads of records in flight, null if reads are not coalesced. */
+    @Nullable
+    private final SingleFlight<Map.Entry<String, String>, Events> readFlights;
+
+    /** Near cache of decoded records, null if not enabled. */
+    @Nullable
+    private final NearCache<Map.Entry<String, String>, Events> recordCache;
+
+    /** Off-heap cache of encoded records, null if not enabled. */
+    @Nullable
+    private final OffHeapRecordCache offHeapRecordCache;
+
+    /** Whether records in the off-heap cache are revalidated against the storage. */
+    private final boolean offHeapCacheRevalidation;
+
+    /** Hot tier of the records, null if records are not tiered. */
+    @Nullable
+    private final HotTier hotTier;
+
+    /**
+     * Constructor.
+     *
+     * @param storageShards       storage shards of the records
+     * @param codec               codec of the records
+     * @param flights             reads of records in flight, null if reads are not
+     *                            coalesced
+     * @param nearCache           near cache of decoded records, null if none
+     * @param offHeapCache        off-heap cache of encoded records, null if none
+     * @param offHeapRevalidation whether records in the off-heap cache are
+     *                            revalidated against the storage
+     * @param tier                hot tier of the records, null if none
+     */
+    public ReadThroughTiers(@Nonnull final StorageShards storageShards, @Nonnull final RecordCodec codec,
+            @Nullable final SingleFlight<Map.Entry<String, String>, Events> flights,
+            @Nullable final NearCache<Map.Entry<String, String>, Events> nearCache,
+            @Nullable final OffHeapRecordCache offHeapCache, final boolean offHeapRevalidation,
+            @Nullable final HotTier tier) {
+        shards = storageShards;
+        recordCodec = codec;
+        readFlights = flights;
+        recordCache = nearCache;
+        offHeapRecordCache = offHeapCache;
+        offHeapCacheRevalidation = offHeapRevalidation;
+        hotTier = tier;
+    }
+
+    /**
+     * Whether decoded records read are shared with other readers and must be
+     * copied before modifying them.
+     *
+     * @return whether decoded records read are shared
+     */
+    public boolean isShared() {
+        return readFlights != null || recordCache != null;
+    }
+
+    /**
+     * Read and decode record. With read coalescing or near cache the decoded
+     * events are shared with other readers of the same record and must not be
+     * modified.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @return events read as stored, null if there is no record
+     * @throws IOException if reading or decoding fails
+     */
+    @Nullable
+    public Events read(@Nonnull @NotEmpty final String recordContext, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final Map.Entry<String, String> recordKey = Map.entry(recordContext, key);
+        if (recordCache != null) {
+            final Events cached = recordCache.get(recordKey, events -> revalidate(recordContext, key, events));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final Events events = readFlights != null
+                ? readFlights.load(recordKey, () -> readStoredRecord(recordContext, key))
+                : readStoredRecord(recordContext, key);
+        if (recordCache != null && events != null) {
+            recordCache.put(recordKey, events);
+        }
+        return events;
+    }
+
+    /**
+     * Revalidate cached record against the hot tier or the storage by its
+     * version.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @param cached        events of the cached record
+     * @return the cached events if the version is current, the events of a newer
+     *         version, null if there is no record
+     * @throws IOException if reading or decoding fails
+     */
+    @Nullable
+    private Events revalidate(@Nonnull @NotEmpty final String recordContext, @Nonnull @NotEmpty final String key,
+            @Nonnull final Events cached) throws IOException {
+        if (hotTier != null) {
+            final HotTier.HotRecord copy = hotTier.read(recordContext, key);
+            if (copy != null) {
+                if (copy.getVersion() != null && copy.getVersion().equals(cached.getVersion())) {
+                    return cached;
+                }
+                log.trace("User Profile Record in '{}' for user '{}' changed in hot tier", recordContext, key);
+                return recordCodec.decodeRecord(copy.getValue(), copy.getVersion());
+            }
+        }
+        if (cached.getVersion() == null) {
+            return null;
+        }
+        final Pair<Long, StorageRecord<Object>> current = shards.getShard(key).read(recordContext, key,
+                cached.getVersion());
+        if (current.getFirst() == null) {
+            return null;
+        }
+        if (current.getSecond() == null) {
+            return cached;
+        }
+        log.trace("User Profile Record in '{}' for user '{}' changed", recordContext, key);
+        return recordCodec.decodeRecord(current.getSecond().getValue(), current.getSecond().getVersion());
+    }
+
+    /**
+     * Read and decode record from the off-heap cache or storage.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @return events read as stored, null if there is no record
+     * @throws IOException if reading or decoding fails
+     */
+    @Nullable
+    private Events readStoredRecord(@Nonnull @NotEmpty final String recordContext,
+            @Nonnull @NotEmpty final String key) throws IOException {
+        if (hotTier != null) {
+            final HotTier.HotRecord copy = hotTier.read(recordContext, key);
+            if (copy != null) {
+                log.trace("Located User Profile Record in hot tier in '{}' for user '{}'", recordContext, key);
+                return recordCodec.decodeRecord(copy.getValue(), copy.getVersion());
+            }
+        }
+        if (offHeapRecordCache != null) {
+            final OffHeapRecordCache.CachedRecord cached = offHeapRecordCache.get(recordContext, key);
+            if (cached != null && !offHeapCacheRevalidation) {
+                log.trace("Located User Profile Record off-heap in '{}' for user '{}'", recordContext, key);
+                return recordCodec.decodeRecord(cached.getValue(), cached.getVersion());
+            }
+            if (cached != null) {
+                final Pair<Long, StorageRecord<Object>> current = shards.getShard(key).read(recordContext, key,
+                        cached.getVersion());
+                if (current.getFirst() == null) {
+                    offHeapRecordCache.remove(recordContext, key);
+                    return null;
+                }
+                if (current.getSecond() == null) {
+                    promote(recordContext, key, cached.getVersion(), cached.getValue());
+                    return recordCodec.decodeRecord(cached.getValue(), cached.getVersion());
+                }
+                promote(recordContext, key, current.getSecond().getVersion(), current.getSecond().getValue());
+                return cacheOffHeap(recordContext, key, current.getSecond());
+            }
+        }
+        final StorageRecord<?> entry = shards.getShard(key).read(recordContext, key);
+        if (entry == null) {
+            final StorageShard previous = shards.getPreviousShard(key);
+            final StorageRecord<?> migrating = previous != null ? previous.read(recordContext, key) : null;
+            if (migrating == null) {
+                return null;
+            }
+            log.debug("User Profile Record in '{}' for user '{}' read from previous storage '{}'", recordContext,
+                    key, previous.getId());
+            // Not in the current storage, there is no version to update. The next write creates it there.
+            return recordCodec.decodeRecord(migrating.getValue(), null);
+        }
+        log.trace("Located User Profile Record '{}' in '{}' for user '{}'", entry.getValue(), recordContext, key);
+        promote(recordContext, key, entry.getVersion(), entry.getValue());
+        return offHeapRecordCache != null ? cacheOffHeap(recordContext, key, entry)
+                : recordCodec.decodeRecord(entry.getValue(), entry.getVersion());
+    }
+
+    /**
+     * Promote record read from the durable storage to the hot tier, if records
+     * are tiered.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @param version       version of the record
+     * @param value         the record
+     */
+    private void promote(@Nonnull @NotEmpty final String recordContext, @Nonnull @NotEmpty final String key,
+            final long version, @Nonnull final String value) {
+        if (hotTier != null) {
+            hotTier.promote(recordContext, key, version, value);
+        }
+    }
+
+    /**
+     * Cache record outside of the heap and decode it.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @param entry         the record
+     * @return events read as stored
+     * @throws IOException if decoding fails
+     */
+    @Nonnull
+    private Events cacheOffHeap(@Nonnull @NotEmpty final String recordContext, @Nonnull @NotEmpty final String key,
+            @Nonnull final StorageRecord<?> entry) throws IOException {
+        final Events events = recordCodec.decodeRecord(entry.getValue(), entry.getVersion());
+        offHeapRecordCache.put(recordContext, key, entry.getVersion(), entry.getValue());
+        return events;
+    }
+
+    /**
+     * Forget reads of the record in flight and the cached records, and write the
+     * record through to the hot tier, the record has been written to the storage.
+     *
+     * @param recordContext storage context of the record
+     * @param key           the key events are stored by
+     * @param value         the record written
+     * @param version       version of the record written, null if not known
+     */
+    public void written(@Nonnull @NotEmpty final String recordContext, @Nonnull @NotEmpty final String key,
+            @Nonnull final String value, @Nullable final Long version) {
+        if (readFlights != null) {
+            readFlights.forget(Map.entry(recordContext, key));
+        }
+        if (recordCache != null) {
+            recordCache.invalidate(Map.entry(recordContext, key));
+        }
+        if (offHeapRecordCache != null) {
+            offHeapRecordCache.remove(recordContext, key);
+        }
+        if (hotTier != null) {
+            if (version == null && recordCache != null) {
+                // A copy of unknown version can not revalidate cached records, the next read promotes the record.
+                hotTier.remove(recordContext, key);
+            } else {
+                hotTier.write(recordContext, key, version, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+
+/**
+ * Encodes events to storage record values and decodes them back.
+ *
+ * <p>
+ * Records are encoded by the codec and, if enabled, compressed. An encoded
+ * record must fit the value size of the storage, and a compressed record must
+ * not exceed the max decompressed length of the compressor. Records are
+ * decoded by the codec supporting their format, so records written in the
+ * format of another codec stay readable.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class RecordCodec {
+
+    /** Codec used to encode records. */
+    @Nonnull
+    private final EventsCodec codec;
+
+    /** Codecs used to decode records not in the format of {@link #codec}. */
+    @Nonnull
+    private final List<EventsCodec> decoders;
+
+    /** Compressor of records, null if records are not compressed. */
+    @Nullable
+    private final RecordCompressor compressor;
+
+    /** Decompressor of compressed records, also if records are no longer compressed. */
+    @Nonnull
+    private final RecordCompressor decompressor;
+
+    /** Max record value size of the storage. */
+    private final long valueSize;
+
+    /**
+     * Constructor.
+     *
+     * @param eventsCodec      codec used to encode records
+     * @param eventsDecoders   codecs used to decode records not in the format of
+     *                         the codec
+     * @param recordCompressor compressor of records
+     * @param compression      whether to compress records
+     * @param storageValueSize max record value size of the storage
+     */
+    public RecordCodec(@Nonnull final EventsCodec eventsCodec, @Nonnull final List<EventsCodec> eventsDecoders,
+            @Nonnull final RecordCompressor recordCompressor, final boolean compression,
+            final long storageValueSize) {
+        codec = eventsCodec;
+        decoders = List.copyOf(eventsDecoders);
+        compressor = compression ? recordCompressor : null;
+        decompressor = recordCompressor;
+        valueSize = storageValueSize;
+    }
+
+    /**
+     * Encode events to record, compressing it if enabled.
+     *
+     * @param events events to encode
+     * @return storage record value
+     * @throws IOException if encoding fails or the record exceeds the value size of
+     *                     the storage or the max decompressed length
+     */
+    @Nonnull
+    public String encode(@Nonnull final Events events) throws IOException {
+        final String encoded = codec.encode(events);
+        final String value = compressor != null ? compressor.compress(encoded) : encoded;
+        // A char takes at most 3 bytes in UTF-8, only long records are measured.
+        final long maxLength = decompressor.getMaxDecompressedLength();
+        if (RecordCompressor.isCompressed(value) && encoded.length() * 3L > maxLength
+                && encoded.getBytes(StandardCharsets.UTF_8).length > maxLength) {
+            throw new IOException("Record of " + encoded.length() + " characters exceeds max decompressed length "
+                    + maxLength);
+        }
+        if (value.length() > valueSize) {
+            throw new IOException("Record of " + value.length() + " characters exceeds storage value size "
+                    + valueSize);
+        }
+        return value;
+    }
+
+    /**
+     * Encode event to a record of its own.
+     *
+     * @param eventName name of the event
+     * @param events    events containing the event
+     * @return storage record value, null if there is no such event
+     * @throws IOException if encoding fails or the record exceeds the value size of
+     *                     the storage
+     */
+    @Nullable
+    public String encodeEvent(@Nonnull final String eventName, @Nonnull final Events events) throws IOException {
+        final Event event = events.getEvents().get(eventName);
+        if (event == null) {
+            return null;
+        }
+        final Events record = new Events();
+        record.getEvents().put(eventName, event);
+        return encode(record);
+    }
+
+    /**
+     * Decode record with the codec supporting the record format. Compressed
+     * record is decompressed first.
+     *
+     * @param record storage record value
+     * @return decoded events
+     * @throws IOException if no codec supports the record or decoding fails
+     */
+    @Nonnull
+    public Events decode(@Nonnull final String record) throws IOException {
+        final String value = decompressor.decompress(record);
+        if (codec.isSupported(value)) {
+            return codec.decode(value);
+        }
+        for (final EventsCodec decoder : decoders) {
+            if (decoder.isSupported(value)) {
+                return decoder.decode(value);
+            }
+        }
+        throw new IOException("No codec supports the record format");
+    }
+
+    /**
+     * Decode record read from storage as stored events.
+     *
+     * @param value   storage record value
+     * @param version storage record version, null if not read from the current
+     *                storage
+     * @return events read as stored
+     * @throws IOException if decoding fails
+     */
+    @Nonnull
+    public Events decodeRecord(@Nonnull final String value, @Nullable final Long version) throws IOException {
+        final Events events = decode(value);
+        events.setVersion(version);
+        events.setStored();
+        return events;
+    }
+}
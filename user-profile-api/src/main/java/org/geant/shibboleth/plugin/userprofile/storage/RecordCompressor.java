@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Compresses user profile record values with {@link Deflater}.
+ *
+ * <p>
+ * Values shorter than the threshold are returned as such. Compressed values
+ * are the header {@link #HEADER} followed by the base64 encoded deflate stream.
+ * The stream may be primed with a preset dictionary of strings typical to the
+ * records, such as attribute names and json field names, which improves the
+ * compression of short records considerably.
+ * </p>
+ *
+ * <p>
+ * The deflate stream identifies the dictionary it was compressed with. Records
+ * compressed with a dictionary can be decompressed only with the same
+ * dictionary, so a dictionary replaced must be kept as a previous dictionary
+ * for as long as records compressed with it are stored.
+ * </p>
+ *
+ * <p>
+ * Values are not decompressed beyond the max decompressed length, so a small
+ * malformed or hostile value can not inflate without bound.
+ * </p>
+ */
+public class RecordCompressor {
+
+    /** Header of a compressed value, includes the format version. */
+    @Nonnull
+    public static final String HEADER = "upz1:";
+
+    /** Size of the buffer used for deflating and inflating. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /** Min length of value to compress. Defaults to 512. */
+    @NonNegative
+    private int threshold = 512;
+
+    /** Compression level. */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /** Max length of a decompressed value in bytes. Defaults to 10 MiB. */
+    @Positive
+    private long maxDecompressedLength = 10L * 1024 * 1024;
+
+    /** Preset dictionary, null if none. */
+    @Nullable
+    private byte[] dictionary;
+
+    /** Dictionaries records were compressed with before the preset dictionary. */
+    @Nonnull
+    private List<byte[]> previousDictionaries = List.of();
+
+    /**
+     * Set min length of value to compress.
+     *
+     * @param length min length of value to compress
+     */
+    public void setThreshold(@NonNegative final int length) {
+        Constraint.isTrue(length >= 0, "Threshold must not be negative");
+        threshold = length;
+    }
+
+    /**
+     * Set compression level.
+     *
+     * @param compressionLevel compression level from 0 to 9, or -1 for default
+     */
+    public void setLevel(final int compressionLevel) {
+        Constraint.isTrue(compressionLevel >= Deflater.DEFAULT_COMPRESSION
+                && compressionLevel <= Deflater.BEST_COMPRESSION, "Compression level must be between -1 and 9");
+        level = compressionLevel;
+    }
+
+    /**
+     * Set max length of a decompressed value in bytes. Values longer than that
+     * are not decompressed, and should not be compressed either.
+     *
+     * @param length max length of a decompressed value in bytes
+     */
+    public void setMaxDecompressedLength(@Positive final long length) {
+        Constraint.isTrue(length > 0, "Max decompressed length must be greater than 0");
+        maxDecompressedLength = length;
+    }
+
+    /**
+     * Get max length of a decompressed value in bytes.
+     *
+     * @return max length of a decompressed value in bytes
+     */
+    @Positive
+    public long getMaxDecompressedLength() {
+        return maxDecompressedLength;
+    }
+
+    /**
+     * Set strings forming the preset dictionary. Strings occurring most often
+     * should be last in the list.
+     *
+     * @param strings strings forming the preset dictionary
+     */
+    public void setDictionary(@Nullable final List<String> strings) {
+        dictionary = strings == null || strings.isEmpty() ? null
+                : String.join("", strings).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Set dictionaries records were compressed with before the preset dictionary,
+     * used only for decompressing them.
+     *
+     * @param dictionaries strings forming each of the previous dictionaries
+     */
+    public void setPreviousDictionaries(@Nullable final List<List<String>> dictionaries) {
+        final List<byte[]> previous = new ArrayList<>();
+        if (dictionaries != null) {
+            for (final List<String> strings : dictionaries) {
+                previous.add(String.join("", strings).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        previousDictionaries = List.copyOf(previous);
+    }
+
+    /**
+     * Whether the value is compressed.
+     *
+     * @param value record value
+     * @return whether the value is compressed
+     */
+    public static boolean isCompressed(@Nonnull final String value) {
+        return value.startsWith(HEADER);
+    }
+
+    /**
+     * Compress the value if it is at least of threshold length and compressing
+     * makes it shorter.
+     *
+     * @param value value to compress
+     * @return compressed value or the value as such
+     */
+    @Nonnull
+    public String compress(@Nonnull final String value) {
+        if (value.length() < threshold) {
+            return value;
+        }
+        final Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            final String compressed = HEADER + Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray());
+            return compressed.length() < value.length() ? compressed : value;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress the value if it is compressed, up to the max decompressed
+     * length.
+     *
+     * @param value value to decompress
+     * @return decompressed value or the value as such
+     * @throws IOException if the value is malformed, compressed with another
+     *                     dictionary or decompresses to more than the max
+     *                     decompressed length
+     */
+    @Nonnull
+    public String decompress(@Nonnull final String value) throws IOException {
+        return decompress(value, maxDecompressedLength);
+    }
+
+    /**
+     * Decompress the value if it is compressed, up to the max length.
+     *
+     * @param value     value to decompress
+     * @param maxLength max length of the decompressed value in bytes
+     * @return decompressed value or the value as such
+     * @throws IOException if the value is malformed, compressed with another
+     *                     dictionary or decompresses to more than the max length
+     */
+    @Nonnull
+    public String decompress(@Nonnull final String value, final long maxLength) throws IOException {
+        if (!isCompressed(value)) {
+            return value;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(value.substring(HEADER.length())));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(value.length() * 4L, Math.min(maxLength, Integer.MAX_VALUE - 8)));
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(getDictionary(inflater.getAdler()));
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Compressed record ended prematurely");
+                    }
+                }
+                if (out.size() + (long) length > maxLength) {
+                    throw new IOException("Compressed record exceeds " + maxLength + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Compressed record is malformed or dictionary does not match", e);
+        } catch (final DataFormatException e) {
+            throw new IOException("Compressed record is malformed", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Get the preset or previous dictionary by its Adler-32 checksum.
+     *
+     * @param checksum Adler-32 checksum of the dictionary
+     * @return the dictionary
+     * @throws IOException if no dictionary has the checksum
+     */
+    @Nonnull
+    private byte[] getDictionary(final int checksum) throws IOException {
+        if (dictionary == null && previousDictionaries.isEmpty()) {
+            throw new IOException("Record is compressed with a dictionary, none is set");
+        }
+        if (dictionary != null && adler32(dictionary) == checksum) {
+            return dictionary;
+        }
+        for (final byte[] previous : previousDictionaries) {
+            if (adler32(previous) == checksum) {
+                return previous;
+            }
+        }
+        throw new IOException("Record is compressed with a dictionary not set");
+    }
+
+    /**
+     * Compute Adler-32 checksum of the bytes.
+     *
+     * @param bytes bytes to compute the checksum of
+     * @return the checksum
+     */
+    private static int adler32(@Nonnull final byte[] bytes) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(bytes);
+        return (int) adler32.getValue();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+
+/**
+ * Merges events modified locally on top of events modified concurrently.
+ *
+ * <p>
+ * An event modified on top of a base event replaces the current event, unless
+ * the current event has changed since the base event and there is a merger for
+ * the event. Buckets of an event share the merger of the event.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class RecordMerger {
+
+    /** Logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(RecordMerger.class);
+
+    /** Mergers of concurrently modified events, by event name. */
+    @Nonnull
+    private final Map<String, EventMerger> eventMergers;
+
+    /**
+     * Constructor.
+     *
+     * @param mergers mergers of concurrently modified events, by event name
+     */
+    public RecordMerger(@Nonnull final Map<String, EventMerger> mergers) {
+        eventMergers = Map.copyOf(mergers);
+    }
+
+    /**
+     * Whether there is a merger for the event.
+     *
+     * @param name name of an event or a bucket
+     * @return whether there is a merger for the event
+     */
+    public boolean hasMerger(@Nonnull final String name) {
+        return eventMergers.containsKey(UserProfileCache.getBucketedName(name));
+    }
+
+    /**
+     * Merge modified events on top of events queued for writing behind. The
+     * queued events are not modified, new queued events are returned instead.
+     *
+     * @param queued queued events, null if none
+     * @param local  events containing the modifications
+     * @return new queued events
+     */
+    @Nonnull
+    public Events queueMerged(@Nullable final Events queued, @Nonnull final Events local) {
+        final Events merged = new Events();
+        if (queued != null) {
+            for (final String name : queued.getModifiedEvents()) {
+                merged.setEvent(name, queued.getEvents().get(name), queued.getStoredEvent(name));
+            }
+        }
+        for (final String name : local.getModifiedEvents()) {
+            final Event event = local.getEvents().get(name);
+            if (event == null) {
+                continue;
+            }
+            if (merged.getModifiedEvents().contains(name)) {
+                merge(merged, name, local);
+            } else {
+                merged.setEvent(name, event, local.getStoredEvent(name));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merge modified events on top of events read from storage.
+     *
+     * @param stored events read from storage
+     * @param local  events containing the modifications
+     * @return stored events with the modified events applied
+     */
+    @Nonnull
+    public Events merge(@Nonnull final Events stored, @Nonnull final Events local) {
+        for (final String name : local.getModifiedEvents()) {
+            merge(stored, name, local);
+        }
+        return stored;
+    }
+
+    /**
+     * Merge modified event on top of events read from storage. Does nothing if
+     * the event is not modified.
+     *
+     * @param stored events read from storage
+     * @param name   name of the event
+     * @param local  events containing the modification
+     */
+    public void merge(@Nonnull final Events stored, @Nonnull final String name, @Nonnull final Events local) {
+        final Event event = local.getEvents().get(name);
+        if (event != null && local.getModifiedEvents().contains(name)) {
+            stored.setEvent(name, mergeEvent(name, stored.getEvents().get(name), local.getStoredEvent(name), event));
+        }
+    }
+
+    /**
+     * Merge an event modified on top of a base event with the current event. The
+     * modified event replaces the current event if the current event is the base
+     * event or there is no merger for the event.
+     *
+     * @param name    name of the event
+     * @param current the current event, null if none
+     * @param base    the event the modification was made on top of, null if none
+     * @param local   the modified event
+     * @return the merged event
+     */
+    @Nonnull
+    public Event mergeEvent(@Nonnull final String name, @Nullable final Event current, @Nullable final Event base,
+            @Nonnull final Event local) {
+        final EventMerger merger = eventMergers.get(UserProfileCache.getBucketedName(name));
+        if (merger == null || current == null || current.hasSamePayload(base)) {
+            return local;
+        }
+        try {
+            return new Event(merger.merge(current.getData(), base != null ? base.getData() : null, local.getData()),
+                    local.getTime());
+        } catch (final JsonProcessingException e) {
+            log.warn("Failed merging concurrent modifications of User Profile event '{}', keeping the latest", name,
+                    e);
+            return local;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+
+/**
+ * Writes events to user profile records in the storage shards.
+ *
+ * <p>
+ * Events are stored in the single record of the user, or each event in a
+ * record of its own. Records are written either under the lock of the caller
+ * or by versioned updates, merging the modified events on top of the current
+ * record on a version conflict. Written records are reported to the tiers
+ * records are read through. Modifications of the same record committed
+ * together are merged and written at once.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class RecordWriter {
+
+    /** Logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(RecordWriter.class);
+
+    /** Storage context of the single records. */
+    @Nonnull
+    @NotEmpty
+    private final String context;
+
+    /** Storage shards of the records. */
+    @Nonnull
+    private final StorageShards shards;
+
+    /** Codec of the records. */
+    @Nonnull
+    private final RecordCodec recordCodec;
+
+    /** Tiers records are read through. */
+    @Nonnull
+    private final ReadThroughTiers readTiers;
+
+    /** Merger of concurrently modified events. */
+    @Nonnull
+    private final RecordMerger recordMerger;
+
+    /** Lifetime of the single records. */
+    @Nonnull
+    private final Duration expires;
+
+    /** Lifetimes of events stored in records of their own, by event name. */
+    @Nonnull
+    private final Map<String, Duration> eventExpirations;
+
+    /** Whether to store each event in a record of its own. */
+    private final boolean splitEvents;
+
+    /** Whether to use versioned updates instead of locks. */
+    private final boolean optimisticLocking;
+
+    /** Max number of retries of a versioned update on version conflict. */
+    @Positive
+    private final int maxVersionRetries;
+
+    /** Number of writes skipped as the events were not modified. */
+    @Nonnull
+    private final LongAdder skippedWrites;
+
+    /**
+     * Constructor.
+     *
+     * @param recordContext    storage context of the single records
+     * @param storageShards    storage shards of the records
+     * @param codec            codec of the records
+     * @param tiers            tiers records are read through
+     * @param merger           merger of concurrently modified events
+     * @param recordExpiration lifetime of the single records
+     * @param expirations      lifetimes of events stored in records of their own,
+     *                         by event name
+     * @param split            whether to store each event in a record of its own
+     * @param versioned        whether to use versioned updates instead of locks
+     * @param retries          max number of retries of a versioned update
+     * @param skipped          number of writes skipped as the events were not
+     *                         modified
+     */
+    public RecordWriter(@Nonnull @NotEmpty final String recordContext, @Nonnull final StorageShards storageShards,
+            @Nonnull final RecordCodec codec, @Nonnull final ReadThroughTiers tiers,
+            @Nonnull final RecordMerger merger, @Nonnull final Duration recordExpiration,
+            @Nonnull final Map<String, Duration> expirations, final boolean split, final boolean versioned,
+            @Positive final int retries, @Nonnull final LongAdder skipped) {
+        context = recordContext;
+        shards = storageShards;
+        recordCodec = codec;
+        readTiers = tiers;
+        recordMerger = merger;
+        expires = recordExpiration;
+        eventExpirations = Map.copyOf(expirations);
+        splitEvents = split;
+        optimisticLocking = versioned;
+        maxVersionRetries = retries;
+        skippedWrites = skipped;
+    }
+
+    /**
+     * Sets event to its own record. The event replaces any pre-existing event of
+     * same name. With optimistic locking the record version of the event is kept
+     * up to date, and on a version conflict the event is merged on top of the
+     * current one.
+     *
+     * @param key       the key events are stored by
+     * @param eventName name of the event
+     * @param events    events containing the event
+     * @return true if operation was success
+     */
+    public boolean setSplitEvent(@Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String eventName,
+            @Nonnull final Events events) {
+        final String eventContext = getEventContext(eventName);
+        final StorageShard shard = shards.getShard(key);
+        try {
+            final long expiration = Instant.now().plus(eventExpirations.getOrDefault(UserProfileCache.getBucketedName(eventName), expires))
+                    .toEpochMilli();
+            if (!optimisticLocking) {
+                final String value = recordCodec.encodeEvent(eventName, events);
+                if (value == null) {
+                    return true;
+                }
+                if (shard.update(eventContext, key, value, expiration)
+                        || shard.create(eventContext, key, value, expiration)
+                        || shard.update(eventContext, key, value, expiration)) {
+                    readTiers.written(eventContext, key, value, null);
+                    events.setStored(eventName);
+                    return true;
+                }
+                return false;
+            }
+            for (int i = 0; i <= maxVersionRetries; i++) {
+                final String value = recordCodec.encodeEvent(eventName, events);
+                if (value == null) {
+                    return true;
+                }
+                final Long version = events.getVersion(eventName);
+                if (version == null) {
+                    if (shard.create(eventContext, key, value, expiration)) {
+                        events.setVersion(eventName, 1L);
+                        readTiers.written(eventContext, key, value, 1L);
+                        events.setStored(eventName);
+                        return true;
+                    }
+                } else {
+                    try {
+                        final Long updated = shard.updateWithVersion(version, eventContext, key, value, expiration);
+                        if (updated != null) {
+                            events.setVersion(eventName, updated);
+                            readTiers.written(eventContext, key, value, updated);
+                            events.setStored(eventName);
+                            return true;
+                        }
+                    } catch (final VersionMismatchException e) {
+                        log.debug("User Profile Record '{}' for '{}' updated concurrently", eventName, key);
+                    }
+                }
+                final StorageRecord<?> current = shard.read(eventContext, key);
+                events.setVersion(eventName, current != null ? current.getVersion() : null);
+                if (current != null && recordMerger.hasMerger(eventName)) {
+                    final Event stored = recordCodec.decode(current.getValue()).getEvents().get(eventName);
+                    events.setEvent(eventName, recordMerger.mergeEvent(eventName, stored, events.getStoredEvent(eventName),
+                            events.getEvents().get(eventName)), stored);
+                    if (!events.getModifiedEvents().contains(eventName)) {
+                        log.debug("User Profile Record '{}' for '{}' already has the modified event", eventName,
+                                key);
+                        skippedWrites.increment();
+                        return true;
+                    }
+                }
+            }
+            log.error("Failed updating User Profile Record '{}' for '{}' after {} retries", eventName, key,
+                    maxVersionRetries);
+        } catch (final IOException e) {
+            log.error("Exception reading/writing to storage service", e);
+        }
+        return false;
+    }
+
+    /**
+     * Read event from its own record. If there is no such record, the event is
+     * read from the single record of the user.
+     *
+     * @param key       the key events are stored by
+     * @param eventName name of the event
+     * @param events    events to add the event to
+     */
+    public void readSplitEvent(@Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final String eventName,
+            @Nonnull final Events events) {
+        try {
+            final Events record = readTiers.read(getEventContext(eventName), key);
+            if (record != null) {
+                events.setReadEvent(eventName, record.getEvents().get(eventName), record.getVersion());
+                return;
+            }
+        } catch (final IOException e) {
+            log.error("Exception reading from storage service, user '{}'. Empty record is created.", key, e);
+            events.setReadEvent(eventName, null, null);
+            return;
+        }
+        log.debug("No User Profile Record '{}' for '{}', reading single record", eventName, key);
+        events.setReadEvent(eventName, getEvents(key).getEvents().get(eventName), null);
+    }
+
+    /**
+     * Write modifications of committed events, in commit order, on top of the
+     * events currently stored. Called holding the lock of the key.
+     *
+     * @param key           the key events are stored by
+     * @param modifications events containing the modifications, in commit order
+     * @return true if operation was success
+     */
+    public boolean writeMerged(@Nonnull @NotEmpty final String key, @Nonnull final List<Events> modifications) {
+        if (splitEvents) {
+            final Set<String> names = new LinkedHashSet<>();
+            for (final Events local : modifications) {
+                names.addAll(local.getModifiedEvents());
+            }
+            final Events current = new Events();
+            boolean success = true;
+            for (final String name : names) {
+                if (recordMerger.hasMerger(name)) {
+                    readSplitEvent(key, name, current);
+                }
+                for (final Events local : modifications) {
+                    recordMerger.merge(current, name, local);
+                }
+                if (current.getModifiedEvents().contains(name)) {
+                    success &= setSplitEvent(key, name, current);
+                } else {
+                    skippedWrites.increment();
+                }
+            }
+            return success;
+        }
+        final Events current = getEvents(key);
+        for (final Events local : modifications) {
+            recordMerger.merge(current, local);
+        }
+        if (!current.isModified()) {
+            skippedWrites.increment();
+            return true;
+        }
+        return optimisticLocking ? setEventsWithVersion(key, current) != null : setEvents(key, current);
+    }
+
+    /**
+     * Sets events.
+     *
+     * @param key    the key events are stored by.
+     * @param events the events to be stored.
+     * @return true if operation was success.
+     */
+
+    public boolean setEvents(@Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final Events events) {
+        try {
+            final String value = recordCodec.encode(events);
+            final StorageShard shard = shards.getShard(key);
+            if (!shard.update(context, key, value, Instant.now().plus(expires).toEpochMilli())
+                    && !shard.create(context, key, value, Instant.now().plus(expires).toEpochMilli())) {
+                return false;
+            }
+            readTiers.written(context, key, value, null);
+            events.setStored();
+            return true;
+        } catch (final Exception e) {
+            log.error("Exception reading/writing to storage service", e);
+            return false;
+        }
+    }
+
+    /**
+     * Sets events using versioned updates. If the record has changed since the
+     * events were read, the modified events are merged on top of the current
+     * record and the update is retried.
+     *
+     * @param key    the key events are stored by.
+     * @param events the events to be stored.
+     * @return the events as stored, null if operation failed.
+     */
+    @Nullable
+    public Events setEventsWithVersion(@Nonnull @NotEmpty final String key, @Nonnull final Events events) {
+        Events current = events;
+        try {
+            for (int i = 0; i <= maxVersionRetries; i++) {
+                final long expiration = Instant.now().plus(expires).toEpochMilli();
+                final String value = recordCodec.encode(current);
+                if (current.getVersion() == null) {
+                    if (shards.getShard(key).create(context, key, value, expiration)) {
+                        readTiers.written(context, key, value, 1L);
+                        current.setVersion(1L);
+                        current.setStored();
+                        return current;
+                    }
+                    log.debug("User Profile Record for '{}' created concurrently, merging", key);
+                } else {
+                    try {
+                        final Long version = shards.getShard(key).updateWithVersion(current.getVersion(), context, key,
+                                value, expiration);
+                        if (version != null) {
+                            readTiers.written(context, key, value, version);
+                            current.setVersion(version);
+                            current.setStored();
+                            return current;
+                        }
+                        log.debug("User Profile Record for '{}' removed concurrently, recreating", key);
+                    } catch (final VersionMismatchException e) {
+                        log.debug("User Profile Record for '{}' updated concurrently, merging", key);
+                    }
+                }
+                current = recordMerger.merge(getEvents(key), current);
+                if (!current.isModified()) {
+                    log.debug("User Profile Record for '{}' already has the modified events", key);
+                    skippedWrites.increment();
+                    return current;
+                }
+            }
+            log.error("Failed updating User Profile Record for '{}' after {} retries", key, maxVersionRetries);
+        } catch (final IOException e) {
+            log.error("Exception reading/writing to storage service", e);
+        }
+        return null;
+    }
+
+    /**
+     * Get events.
+     *
+     * @param key the key events are stored by.
+     * @return events if such exist.
+     */
+    @Nonnull
+    public Events getEvents(@Nonnull @NotEmpty final String key) {
+        // TODO: Add optional symmetric encryption for record.
+        try {
+            final Events record = readTiers.read(context, key);
+            if (record == null) {
+                log.debug("No User Profile Record for  '{}'", key);
+                return new Events();
+            }
+            return readTiers.isShared() ? record.copy() : record;
+        } catch (final IOException e) {
+            log.error("Exception reading from storage service, user '{}'. Empty record is created.", key, e);
+            return new Events();
+        }
+    }
+
+    /**
+     * Get storage context of an event stored in its own record.
+     *
+     * @param eventName name of the event
+     * @return storage context
+     */
+    @Nonnull
+    @NotEmpty
+    private String getEventContext(@Nonnull @NotEmpty final String eventName) {
+        final String eventContext = context + "/" + eventName;
+        if (eventContext.length() > shards.getContextSize()) {
+            return context + "/" + DigestUtils.sha1Hex(eventName);
+        }
+        return eventContext;
+    }
+}
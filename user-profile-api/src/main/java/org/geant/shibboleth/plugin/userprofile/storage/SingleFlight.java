@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+
+/**
+ * Deduplicates concurrent loads of the same key.
+ *
+ * <p>
+ * The first caller loading a key performs the load. Callers loading the same
+ * key while the load is in flight wait for it and share its result, or its
+ * exception. The result is not cached beyond the load, a load started after
+ * the previous one completed or was forgotten loads again.
+ * </p>
+ *
+ * @param <K> type of the key
+ * @param <V> type of the loaded value
+ */
+@ThreadSafeAfterInit
+public class SingleFlight<K, V> {
+
+    /** Loads in flight by key. */
+    @Nonnull
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /** Number of loads performed. */
+    @Nonnull
+    private final LongAdder loads = new LongAdder();
+
+    /** Number of loads shared with a load in flight. */
+    @Nonnull
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Load of a value.
+     *
+     * @param <V> type of the loaded value
+     */
+    @FunctionalInterface
+    public interface Loader<V> {
+
+        /**
+         * Load the value.
+         *
+         * @return the loaded value
+         * @throws IOException if loading fails
+         */
+        @Nullable
+        V load() throws IOException;
+    }
+
+    /**
+     * Load the value of the key, sharing a load of the key in flight if there is
+     * one. The shared value must not be modified by the callers.
+     *
+     * @param key    the key
+     * @param loader load of the value
+     * @return the loaded value
+     * @throws IOException if loading fails
+     */
+    @Nullable
+    public V load(@Nonnull final K key, @Nonnull final Loader<V> loader) throws IOException {
+        final CompletableFuture<V> flight = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.increment();
+            try {
+                return existing.join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        loads.increment();
+        try {
+            final V value = loader.load();
+            flight.complete(value);
+            return value;
+        } catch (final IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Forget the load of the key in flight, if any. Loads of the key started
+     * after this do not share it. Called when the loaded value has changed.
+     *
+     * @param key the key
+     */
+    public void forget(@Nonnull final K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Get number of loads performed.
+     *
+     * @return number of loads performed
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * Get number of loads shared with a load in flight.
+     *
+     * @return number of coalesced loads
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
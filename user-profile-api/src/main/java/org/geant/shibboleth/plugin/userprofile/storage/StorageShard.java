@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.collection.Pair;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Storage service user profile records are stored to, with latency metrics.
+ *
+ * <p>
+ * Exposes the storage operations used for user profile records and measures
+ * the number and latency of the operations.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class StorageShard {
+
+    /** The storage service. */
+    @Nonnull
+    private final StorageService storage;
+
+    /** Number of operations. */
+    @Nonnull
+    private final LongAdder operations = new LongAdder();
+
+    /** Total latency of the operations in nanoseconds. */
+    @Nonnull
+    private final LongAdder totalNanos = new LongAdder();
+
+    /** Max latency of an operation in nanoseconds. */
+    @Nonnull
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructor.
+     *
+     * @param storageService the storage service
+     */
+    public StorageShard(@Nonnull final StorageService storageService) {
+        storage = Constraint.isNotNull(storageService, "StorageService cannot be null");
+    }
+
+    /**
+     * Get the storage service.
+     *
+     * @return the storage service
+     */
+    @Nonnull
+    public StorageService getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get id of the storage service.
+     *
+     * @return id of the storage service
+     */
+    @Nullable
+    public String getId() {
+        return storage.getId();
+    }
+
+    /**
+     * Read record.
+     *
+     * @param context storage context
+     * @param key     storage key
+     * @return the record, null if none
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    public StorageRecord<Object> read(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key)
+            throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return storage.read(context, key);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Read record if newer than the version.
+     *
+     * @param context storage context
+     * @param key     storage key
+     * @param version version of the record already read
+     * @return current version, null if there is no record, and the record if newer
+     * @throws IOException if reading fails
+     */
+    @Nonnull
+    public Pair<Long, StorageRecord<Object>> read(@Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, final long version) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return storage.read(context, key, version);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Create record.
+     *
+     * @param context    storage context
+     * @param key        storage key
+     * @param value      record value
+     * @param expiration expiration as milliseconds from epoch
+     * @return false if the record already exists
+     * @throws IOException if writing fails
+     */
+    public boolean create(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final String value, final long expiration) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return storage.create(context, key, value, expiration);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Update record.
+     *
+     * @param context    storage context
+     * @param key        storage key
+     * @param value      record value
+     * @param expiration expiration as milliseconds from epoch
+     * @return false if there is no record
+     * @throws IOException if writing fails
+     */
+    public boolean update(@Nonnull @NotEmpty final String context, @Nonnull @NotEmpty final String key,
+            @Nonnull final String value, final long expiration) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return storage.update(context, key, value, expiration);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Update record if its version is the given version.
+     *
+     * @param version    version of the record read
+     * @param context    storage context
+     * @param key        storage key
+     * @param value      record value
+     * @param expiration expiration as milliseconds from epoch
+     * @return new version of the record, null if there is no record
+     * @throws IOException              if writing fails
+     * @throws VersionMismatchException if the record has another version
+     */
+    @Nullable
+    public Long updateWithVersion(final long version, @Nonnull @NotEmpty final String context,
+            @Nonnull @NotEmpty final String key, @Nonnull final String value, final long expiration)
+            throws IOException, VersionMismatchException {
+        final long start = System.nanoTime();
+        try {
+            return storage.updateWithVersion(version, context, key, value, expiration);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Get number of operations.
+     *
+     * @return number of operations
+     */
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    /**
+     * Get average latency of the operations.
+     *
+     * @return average latency of the operations
+     */
+    @Nonnull
+    public Duration getAverageLatency() {
+        final long count = operations.sum();
+        return Duration.ofNanos(count > 0 ? totalNanos.sum() / count : 0);
+    }
+
+    /**
+     * Get max latency of an operation.
+     *
+     * @return max latency of an operation
+     */
+    @Nonnull
+    public Duration getMaxLatency() {
+        return Duration.ofNanos(maxNanos.get());
+    }
+
+    /**
+     * Record latency of an operation.
+     *
+     * @param start start of the operation as from {@link System#nanoTime()}
+     */
+    private void record(final long start) {
+        final long nanos = System.nanoTime() - start;
+        operations.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+}
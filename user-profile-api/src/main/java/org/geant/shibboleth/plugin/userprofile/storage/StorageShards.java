@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageService;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Routes storage keys to storage services by consistent hashing.
+ *
+ * <p>
+ * Each storage service is placed on a hash ring at a number of virtual nodes
+ * derived from its id, and a key is owned by the service of the first virtual
+ * node following the hash of the key. Adding or removing a service moves only
+ * the keys owned by its virtual nodes, and the ring does not depend on the
+ * order the services are listed in.
+ * </p>
+ *
+ * <p>
+ * While records are migrated after changing the services, the ring of the
+ * previous services tells the previous owner of a key, so that records not yet
+ * written to their new owner can be read from the previous one.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class StorageShards {
+
+    /** Shards by storage service id. */
+    @Nonnull
+    private final Map<String, StorageShard> shards = new LinkedHashMap<>();
+
+    /** Ring of the storage services. */
+    @Nonnull
+    private final Ring ring;
+
+    /** Ring of the previous storage services, null if none. */
+    @Nullable
+    private final Ring previousRing;
+
+    /** Min context size of the storage services. */
+    private final int contextSize;
+
+    /** Min key size of the storage services. */
+    private final int keySize;
+
+    /** Min value size of the storage services. */
+    private final long valueSize;
+
+    /**
+     * Constructor.
+     *
+     * @param services         storage services
+     * @param previousServices previous storage services, empty if not migrating
+     * @param virtualNodes     number of virtual nodes per storage service
+     */
+    public StorageShards(@Nonnull @NotEmpty final List<StorageService> services,
+            @Nonnull final List<StorageService> previousServices, @Positive final int virtualNodes) {
+        Constraint.isTrue(services != null && !services.isEmpty(), "Storage services cannot be empty");
+        Constraint.isTrue(virtualNodes > 0, "Number of virtual nodes must be greater than 0");
+        ring = new Ring(toShards(services), virtualNodes);
+        previousRing = previousServices == null || previousServices.isEmpty() ? null
+                : new Ring(toShards(previousServices), virtualNodes);
+        int minContextSize = Integer.MAX_VALUE;
+        int minKeySize = Integer.MAX_VALUE;
+        long minValueSize = Long.MAX_VALUE;
+        for (final StorageShard shard : shards.values()) {
+            final StorageCapabilities caps = shard.getStorage().getCapabilities();
+            minContextSize = Math.min(minContextSize, caps.getContextSize());
+            minKeySize = Math.min(minKeySize, caps.getKeySize());
+            minValueSize = Math.min(minValueSize, caps.getValueSize());
+        }
+        contextSize = minContextSize;
+        keySize = minKeySize;
+        valueSize = minValueSize;
+    }
+
+    /**
+     * Get the shard owning the key.
+     *
+     * @param key storage key
+     * @return the shard owning the key
+     */
+    @Nonnull
+    public StorageShard getShard(@Nonnull @NotEmpty final String key) {
+        return ring.getOwner(key);
+    }
+
+    /**
+     * Get the shard previously owning the key, if other than the current owner.
+     *
+     * @param key storage key
+     * @return the shard previously owning the key, null if the owner has not
+     *         changed or not migrating
+     */
+    @Nullable
+    public StorageShard getPreviousShard(@Nonnull @NotEmpty final String key) {
+        if (previousRing == null) {
+            return null;
+        }
+        final StorageShard previous = previousRing.getOwner(key);
+        return previous != ring.getOwner(key) ? previous : null;
+    }
+
+    /**
+     * Get all the shards, current and previous.
+     *
+     * @return all the shards
+     */
+    @Nonnull
+    public List<StorageShard> getShards() {
+        return List.copyOf(shards.values());
+    }
+
+    /**
+     * Get the min context size of the storage services.
+     *
+     * @return min context size
+     */
+    public int getContextSize() {
+        return contextSize;
+    }
+
+    /**
+     * Get the min key size of the storage services.
+     *
+     * @return min key size
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Get the min value size of the storage services.
+     *
+     * @return min value size
+     */
+    public long getValueSize() {
+        return valueSize;
+    }
+
+    /**
+     * Get shards of the storage services, sharing the shard of a service listed
+     * both as current and previous.
+     *
+     * @param services storage services
+     * @return shards of the storage services
+     */
+    @Nonnull
+    private List<StorageShard> toShards(@Nonnull final List<StorageService> services) {
+        final List<StorageShard> serviceShards = new ArrayList<>();
+        for (final StorageService service : services) {
+            Constraint.isNotNull(service, "Storage service cannot be null");
+            final String id = Constraint.isNotNull(service.getId(), "Storage service must have an id");
+            final StorageShard shard = shards.computeIfAbsent(id, k -> new StorageShard(service));
+            Constraint.isTrue(shard.getStorage() == service, "Storage service ids must be unique");
+            Constraint.isFalse(serviceShards.contains(shard), "Storage service listed twice");
+            serviceShards.add(shard);
+        }
+        return serviceShards;
+    }
+
+    /**
+     * Get position of a string on the ring.
+     *
+     * @param value the string
+     * @return position on the ring
+     */
+    private static long hash(@Nonnull final String value) {
+        return ByteBuffer.wrap(DigestUtils.md5(value)).getLong();
+    }
+
+    /** Hash ring of shards. */
+    private static final class Ring {
+
+        /** Positions of the virtual nodes in ascending order. */
+        @Nonnull
+        private final long[] positions;
+
+        /** Owners of the virtual nodes in position order. */
+        @Nonnull
+        private final StorageShard[] owners;
+
+        /**
+         * Constructor.
+         *
+         * @param ringShards   shards on the ring
+         * @param virtualNodes number of virtual nodes per shard
+         */
+        private Ring(@Nonnull final List<StorageShard> ringShards, final int virtualNodes) {
+            final int size = ringShards.size() == 1 ? 1 : ringShards.size() * virtualNodes;
+            final long[][] nodes = new long[size][];
+            int node = 0;
+            for (int shard = 0; shard < ringShards.size(); shard++) {
+                for (int i = 0; i < size / ringShards.size(); i++) {
+                    nodes[node++] = new long[] {hash(ringShards.get(shard).getId() + "#" + i), shard};
+                }
+            }
+            Arrays.sort(nodes, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+            positions = new long[size];
+            owners = new StorageShard[size];
+            for (int i = 0; i < size; i++) {
+                positions[i] = nodes[i][0];
+                owners[i] = ringShards.get((int) nodes[i][1]);
+            }
+        }
+
+        /**
+         * Get the owner of the key.
+         *
+         * @param key storage key
+         * @return the owner of the key
+         */
+        @Nonnull
+        private StorageShard getOwner(@Nonnull final String key) {
+            if (owners.length == 1) {
+                return owners[0];
+            }
+            final int index = Arrays.binarySearch(positions, hash(key));
+            final int node = index >= 0 ? index : -index - 1;
+            return owners[node < owners.length ? node : 0];
+        }
+    }
+}
@@ -18,18 +18,24 @@ package org.geant.shibboleth.plugin.userprofile.storage;
 
 import java.io.IOException;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.opensaml.storage.StorageCapabilities;
-import org.opensaml.storage.StorageRecord;
 import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
 import net.shibboleth.shared.annotation.constraint.NotEmpty;
 import net.shibboleth.shared.annotation.constraint.Positive;
@@ -37,20 +43,117 @@ import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.component.AbstractIdentifiableInitializableComponent;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.logic.ConstraintViolationException;
 
 /**
  * Stores and returns user profile events.
  * 
  * <p>
- * This class is thread-safe and uses a synchronized method to prevent race
- * conditions within the underlying store (lacking an atomic "check and insert"
- * operation).
+ * This class is thread-safe and uses striped locks keyed by the storage key to
+ * prevent race conditions within the underlying store (lacking an atomic "check
+ * and insert" operation). Operations for different users proceed in parallel
+ * unless their keys happen to map to the same lock stripe.
+ * </p>
+ * 
+ * <p>
+ * Optionally the cache may be set to use optimistic locking instead. Records
+ * are then updated only if their storage version has not changed since read.
+ * On a version conflict the record is read again, the modified events are
+ * merged on top of it and the update is retried. This mode does not rely on
+ * JVM locks and is safe for several nodes sharing the same store.
+ * </p>
+ * 
+ * <p>
+ * By default all events of a user are stored in a single record. Optionally
+ * each event is stored in its own record, in a storage context of its own and
+ * with an expiration of its own. Events are then read only when requested and
+ * only the modified events are written. Events not yet in a record of their
+ * own are read from the single record of the user, if there is one.
+ * </p>
+ * 
+ * <p>
+ * Writes that would not change the stored events are skipped. Events set to
+ * the payload they were read with are not modified, and committing unmodified
+ * events causes no storage writes. The number of skipped writes is available
+ * from {@link #getSkippedWrites()}.
+ * </p>
+ * 
+ * <p>
+ * Optionally committed events are written behind, by background writers
+ * draining a bounded queue. Events queued or being written are returned by
+ * reads of this instance. Queued events are written on {@link #destroy()}.
+ * </p>
+ * 
+ * <p>
+ * Optionally concurrent commits of a user are grouped and written by a single
+ * write. The modified events of the commits are applied on top of the events
+ * read from storage under the lock of the user.
+ * </p>
+ * 
+ * <p>
+ * An event modified concurrently since read is replaced by the later
+ * modification, unless there is an {@link EventMerger} for the event. The
+ * merger then combines the modifications, whether they meet in a group commit,
+ * in the write-behind queue or in a version conflict.
+ * </p>
+ * 
+ * <p>
+ * Optionally concurrent reads of a record share a single storage read. A read
+ * is shared only while in flight, and a write of the record makes later reads
+ * read again.
+ * </p>
+ * 
+ * <p>
+ * Optionally read records are cached in memory, bounded by size and time to
+ * live. A cached record is used only after checking its storage version is
+ * still current, which saves transferring and decoding an unchanged record.
+ * Writes of this instance remove the record from the cache.
+ * </p>
+ * 
+ * <p>
+ * Alternatively or in addition, read records are cached serialized outside of
+ * the heap within a byte budget. They are version checked the same way and
+ * decoded on each use, so cached records do not burden the garbage collector.
+ * </p>
+ * 
+ * <p>
+ * Records may be sharded to several storage services by consistent hashing of
+ * the storage key. When the services change, records not yet written to their
+ * new owner are read from their previous owner.
+ * </p>
+ * 
+ * <p>
+ * Optionally recently used records are copied to a fast hot tier storage in
+ * front of the durable storage. Records are promoted to the hot tier on read
+ * and written through to it on write, and copies not used for the idle time
+ * are demoted by removing them from the hot tier in the background. Copies are
+ * not revalidated against the durable storage, so the hot tier storage must be
+ * clustered if the durable storage is.
+ * </p>
+ * 
+ * <p>
+ * An event may be divided to buckets, such as login events per month, each an
+ * event of its own named by {@link #getBucketName(String, String)}. Buckets
+ * share the expiration and merger of the event. Stored in records of their own,
+ * only the buckets used are read and written.
+ * </p>
+ * 
+ * <p>
+ * Large records may optionally be compressed before storing them. Compressed
+ * records are recognized and decompressed on read whether or not compression is
+ * enabled. A record is stored if it fits the value size of the storage once
+ * compressed. No record is decompressed beyond the max decompressed length of
+ * the compressor, so records longer than that are not stored compressed.
  * </p>
  * 
  */
 @ThreadSafeAfterInit
 public class UserProfileCache extends AbstractIdentifiableInitializableComponent {
 
+    /** Separator of event name and bucket in the name of an event bucket. */
+    @Nonnull
+    public static final String BUCKET_SEPARATOR = "#";
+
     /** Logger. */
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(UserProfileCache.class);
@@ -60,10 +163,26 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
     @NotEmpty
     final private String context = UserProfileCache.class.getCanonicalName();
 
-    /** Backing storage for the user profile authentication events. */
-    @NonnullAfterInit
+    /** Backing storage for the user profile authentication events, not used if sharded. */
+    @Nullable
     private StorageService storage;
 
+    /** Storage services records are sharded to, empty if not sharded. */
+    @Nonnull
+    private List<StorageService> shardStorages = List.of();
+
+    /** Storage services records were sharded to before the current ones, empty if not migrating. */
+    @Nonnull
+    private List<StorageService> previousShardStorages = List.of();
+
+    /** Number of virtual nodes per storage service on the hash ring. Defaults to 160. */
+    @Positive
+    private int virtualNodes = 160;
+
+    /** Storage services by key. */
+    @NonnullAfterInit
+    private StorageShards shards;
+
     /**
      * Lifetime of user profile authentication events. The lifetime starts from last
      * update to user profile record. Defaults to 180 days.
@@ -72,6 +191,161 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
     @Positive
     private Duration expires = Duration.ofDays(180);
 
+    /** Number of lock stripes guarding read-modify-write operations. Defaults to 128. */
+    @Positive
+    private int lockStripes = 128;
+
+    /** Whether to use versioned updates instead of locks. */
+    private boolean optimisticLocking;
+
+    /** Max number of retries of a versioned update on version conflict. Defaults to 10. */
+    @Positive
+    private int maxVersionRetries = 10;
+
+    /** Codec used to encode records. */
+    @Nonnull
+    private EventsCodec codec = new JsonEventsCodec();
+
+    /** Codecs used to decode records not in the format of {@link #codec}. */
+    @Nonnull
+    private List<EventsCodec> decoders = List.of(new JsonEventsCodec());
+
+    /** Whether to store each event in a record of its own. */
+    private boolean splitEvents;
+
+    /** Lifetimes of events stored in records of their own, by event name. */
+    @Nonnull
+    private Map<String, Duration> eventExpirations = Map.of();
+
+    /** Whether to compress large records. */
+    private boolean compression;
+
+    /** Compressor of records. */
+    @Nonnull
+    private RecordCompressor compressor = new RecordCompressor();
+
+    /** Codec of records, encoding and compressing them to fit the storage. */
+    @NonnullAfterInit
+    private RecordCodec recordCodec;
+
+    /** Whether to write committed events behind. */
+    private boolean writeBehind;
+
+    /** Max number of users with events queued for writing. Defaults to 10000. */
+    @Positive
+    private int writeBehindQueueSize = 10000;
+
+    /** Number of writers writing queued events. Defaults to 2. */
+    @Positive
+    private int writeBehindWriters = 2;
+
+    /** Policy applied when the write-behind queue is full. Defaults to writing in the calling thread. */
+    @Nonnull
+    private WriteBehindQueue.OverflowPolicy writeBehindOverflowPolicy = WriteBehindQueue.OverflowPolicy.CALLER_RUNS;
+
+    /** Time to wait for the writers to write queued events on destroy. Defaults to 30 seconds. */
+    @Nonnull
+    private Duration writeBehindShutdownTimeout = Duration.ofSeconds(30);
+
+    /** Write-behind queue, null if events are written in the calling thread. */
+    @Nullable
+    private WriteBehindQueue writeBehindQueue;
+
+    /** Mergers of concurrent modifications, by event name. */
+    @Nonnull
+    private Map<String, EventMerger> eventMergers = Map.of();
+
+    /** Whether to group concurrent commits of a user to a single write. */
+    private boolean groupCommit;
+
+    /** Group commit, null if commits are written one by one. */
+    @Nullable
+    private GroupCommit groupCommitter;
+
+    /** Whether to share reads of a record with concurrent readers of the same record. */
+    private boolean coalesceReads;
+
+    /** Reads of records in flight by storage context and key, null if reads are not coalesced. */
+    @Nullable
+    private SingleFlight<Map.Entry<String, String>, Events> readFlights;
+
+    /** Whether to cache read events in memory. */
+    private boolean nearCache;
+
+    /** Max number of records cached in memory. Defaults to 10000. */
+    @Positive
+    private int nearCacheSize = 10000;
+
+    /** Time to live of records cached in memory. Defaults to 5 minutes. */
+    @Nonnull
+    private Duration nearCacheTimeToLive = Duration.ofMinutes(5);
+
+    /** Records cached in memory by storage context and key, null if records are not cached. */
+    @Nullable
+    private NearCache<Map.Entry<String, String>, Events> recordCache;
+
+    /** Whether to cache read records outside of the heap. */
+    private boolean offHeapCache;
+
+    /** Byte budget of the off-heap cache. Defaults to 64 MiB. */
+    @Positive
+    private long offHeapCacheSize = 64L * 1024 * 1024;
+
+    /** Block size of the off-heap cache. Defaults to 256 bytes. */
+    @Positive
+    private int offHeapCacheBlockSize = 256;
+
+    /** Time to live of records cached outside of the heap. Defaults to 5 minutes. */
+    @Nonnull
+    private Duration offHeapCacheTimeToLive = Duration.ofMinutes(5);
+
+    /** Whether records cached outside of the heap are revalidated against the storage before use. */
+    private boolean offHeapCacheRevalidation = true;
+
+    /** Records cached outside of the heap, null if not cached. */
+    @Nullable
+    private OffHeapRecordCache offHeapRecordCache;
+
+    /** Storage service of the hot tier, null if records are not tiered. */
+    @Nullable
+    private StorageService hotStorage;
+
+    /** Expiration of records in the hot tier. Defaults to 1 day. */
+    @Nonnull
+    private Duration hotExpiration = Duration.ofDays(1);
+
+    /** Time after which records not used are demoted from the hot tier. Defaults to 30 minutes. */
+    @Nonnull
+    private Duration hotIdleTime = Duration.ofMinutes(30);
+
+    /** Interval of demoting records from the hot tier. Defaults to 5 minutes. */
+    @Nonnull
+    private Duration demotionInterval = Duration.ofMinutes(5);
+
+    /** Hot tier, null if records are not tiered. */
+    @Nullable
+    private HotTier hotTier;
+
+    /** Tiers records are read through. */
+    @NonnullAfterInit
+    private ReadThroughTiers readTiers;
+
+    /** Merger of concurrently modified events. */
+    @NonnullAfterInit
+    private RecordMerger recordMerger;
+
+    /** Writer of records. */
+    @NonnullAfterInit
+    private RecordWriter recordWriter;
+
+    /** Number of writes skipped as the events were not modified. */
+    @Nonnull
+    private final LongAdder skippedWrites = new LongAdder();
+
+    /** Lock stripes guarding read-modify-write operations per storage key. */
+    @NonnullAfterInit
+    private Lock[] locks;
+
     /**
      * Set the default user profile authentication record expiration.
      * 
@@ -84,16 +358,572 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
         expires = recordExpiration;
     }
 
+    /**
+     * Set the number of lock stripes guarding read-modify-write operations of
+     * records. Records whose keys map to different stripes are updated in
+     * parallel.
+     * 
+     * @param stripes number of lock stripes
+     */
+    public void setLockStripes(@Positive final int stripes) {
+        checkSetterPreconditions();
+        Constraint.isTrue(stripes > 0, "Number of lock stripes must be greater than 0");
+        lockStripes = stripes;
+    }
+
+    /**
+     * Set whether to use versioned updates of records instead of locks.
+     * 
+     * @param flag whether to use versioned updates of records instead of locks
+     */
+    public void setOptimisticLocking(final boolean flag) {
+        checkSetterPreconditions();
+        optimisticLocking = flag;
+    }
+
+    /**
+     * Set max number of retries of a versioned update on version conflict.
+     * 
+     * @param retries max number of retries of a versioned update
+     */
+    public void setMaxVersionRetries(@Positive final int retries) {
+        checkSetterPreconditions();
+        Constraint.isTrue(retries > 0, "Number of retries must be greater than 0");
+        maxVersionRetries = retries;
+    }
+
+    /**
+     * Set the codec used to encode records. Records are decoded with the codec
+     * supporting the record format.
+     * 
+     * @param eventsCodec codec used to encode records
+     */
+    public void setCodec(@Nonnull final EventsCodec eventsCodec) {
+        checkSetterPreconditions();
+        codec = Constraint.isNotNull(eventsCodec, "EventsCodec cannot be null");
+    }
+
+    /**
+     * Set the codecs used to decode records not in the format of the codec used
+     * for encoding. Defaults to json codec.
+     * 
+     * @param codecs codecs used to decode records
+     */
+    public void setDecoders(@Nonnull final List<EventsCodec> codecs) {
+        checkSetterPreconditions();
+        decoders = List.copyOf(Constraint.isNotNull(codecs, "Decoders cannot be null"));
+    }
+
+    /**
+     * Set whether to store each event in a record of its own.
+     * 
+     * @param flag whether to store each event in a record of its own
+     */
+    public void setSplitEvents(final boolean flag) {
+        checkSetterPreconditions();
+        splitEvents = flag;
+    }
+
+    /**
+     * Whether each event is stored in a record of its own.
+     * 
+     * @return whether each event is stored in a record of its own
+     */
+    public boolean isSplitEvents() {
+        return splitEvents;
+    }
+
+    /**
+     * Set lifetimes of events stored in records of their own. Events without a
+     * lifetime of their own use the record expiration.
+     * 
+     * @param expirations lifetimes of events by event name
+     */
+    public void setEventExpirations(@Nullable final Map<String, Duration> expirations) {
+        checkSetterPreconditions();
+        if (expirations == null) {
+            eventExpirations = Map.of();
+            return;
+        }
+        expirations.values().forEach(expiration -> Constraint.isTrue(
+                expiration != null && !expiration.isNegative() && !expiration.isZero(),
+                "Event expiration must be greater than 0"));
+        eventExpirations = Map.copyOf(expirations);
+    }
+
+    /**
+     * Set whether to compress large records.
+     * 
+     * @param flag whether to compress large records
+     */
+    public void setCompression(final boolean flag) {
+        checkSetterPreconditions();
+        compression = flag;
+    }
+
+    /**
+     * Set the compressor of records. The compressor is used also for reading
+     * compressed records if compression is disabled.
+     * 
+     * @param recordCompressor compressor of records
+     */
+    public void setCompressor(@Nonnull final RecordCompressor recordCompressor) {
+        checkSetterPreconditions();
+        compressor = Constraint.isNotNull(recordCompressor, "Record compressor cannot be null");
+    }
+
+    /**
+     * Set whether to write committed events behind.
+     * 
+     * @param flag whether to write committed events behind
+     */
+    public void setWriteBehind(final boolean flag) {
+        checkSetterPreconditions();
+        writeBehind = flag;
+    }
+
+    /**
+     * Set max number of users with events queued for writing.
+     * 
+     * @param size max number of users with events queued for writing
+     */
+    public void setWriteBehindQueueSize(@Positive final int size) {
+        checkSetterPreconditions();
+        Constraint.isTrue(size > 0, "Write-behind queue size must be greater than 0");
+        writeBehindQueueSize = size;
+    }
+
+    /**
+     * Set number of writers writing queued events. Writers on virtual threads are
+     * used where available.
+     * 
+     * @param writers number of writers
+     */
+    public void setWriteBehindWriters(@Positive final int writers) {
+        checkSetterPreconditions();
+        Constraint.isTrue(writers > 0, "Number of write-behind writers must be greater than 0");
+        writeBehindWriters = writers;
+    }
+
+    /**
+     * Set policy applied when the write-behind queue is full.
+     * 
+     * @param policy policy applied when the write-behind queue is full
+     */
+    public void setWriteBehindOverflowPolicy(@Nonnull final WriteBehindQueue.OverflowPolicy policy) {
+        checkSetterPreconditions();
+        writeBehindOverflowPolicy = Constraint.isNotNull(policy, "Write-behind overflow policy cannot be null");
+    }
+
+    /**
+     * Set time to wait for the writers to write queued events on destroy. Events
+     * still queued after that are written by the destroying thread.
+     * 
+     * @param timeout time to wait for the writers
+     */
+    public void setWriteBehindShutdownTimeout(@Nonnull final Duration timeout) {
+        checkSetterPreconditions();
+        Constraint.isTrue(timeout != null && !timeout.isNegative(), "Write-behind shutdown timeout cannot be negative");
+        writeBehindShutdownTimeout = timeout;
+    }
+
+    /**
+     * Set mergers of concurrent modifications, by event name.
+     * 
+     * @param mergers mergers of concurrent modifications, by event name
+     */
+    public void setEventMergers(@Nullable final Map<String, EventMerger> mergers) {
+        checkSetterPreconditions();
+        eventMergers = mergers != null ? Map.copyOf(mergers) : Map.of();
+    }
+
+    /**
+     * Set whether to group concurrent commits of a user to a single write.
+     * 
+     * @param flag whether to group concurrent commits of a user
+     */
+    public void setGroupCommit(final boolean flag) {
+        checkSetterPreconditions();
+        groupCommit = flag;
+    }
+
+    /**
+     * Get the number of commits written by the write of a concurrent commit.
+     * 
+     * @return number of coalesced commits
+     */
+    public long getCoalescedCommits() {
+        return groupCommitter != null ? groupCommitter.getCoalesced() : 0;
+    }
+
+    /**
+     * Set whether to share reads of a record with concurrent readers of the same
+     * record. Readers then share a single storage read and decoding of the record.
+     * 
+     * @param flag whether to coalesce concurrent reads
+     */
+    public void setCoalesceReads(final boolean flag) {
+        checkSetterPreconditions();
+        coalesceReads = flag;
+    }
+
+    /**
+     * Get the number of record reads shared with a concurrent read of the same
+     * record.
+     * 
+     * @return number of coalesced reads
+     */
+    public long getCoalescedReads() {
+        return readFlights != null ? readFlights.getCoalesced() : 0;
+    }
+
+    /**
+     * Set whether to cache read events in memory. A cached record is used only
+     * if its storage version is still current, checked against the hot tier
+     * copy if there is one.
+     * 
+     * @param flag whether to cache read events in memory
+     */
+    public void setNearCache(final boolean flag) {
+        checkSetterPreconditions();
+        nearCache = flag;
+    }
+
+    /**
+     * Set max number of records cached in memory.
+     * 
+     * @param size max number of records cached in memory
+     */
+    public void setNearCacheSize(@Positive final int size) {
+        checkSetterPreconditions();
+        Constraint.isTrue(size > 0, "Near cache size must be greater than 0");
+        nearCacheSize = size;
+    }
+
+    /**
+     * Set time to live of records cached in memory.
+     * 
+     * @param ttl time to live of records cached in memory
+     */
+    public void setNearCacheTimeToLive(@Nonnull final Duration ttl) {
+        checkSetterPreconditions();
+        Constraint.isTrue(ttl != null && !ttl.isNegative() && !ttl.isZero(),
+                "Near cache time to live must be positive");
+        nearCacheTimeToLive = ttl;
+    }
+
+    /**
+     * Get the number of records returned from the near cache.
+     * 
+     * @return number of near cache hits
+     */
+    public long getNearCacheHits() {
+        return recordCache != null ? recordCache.getHits() : 0;
+    }
+
+    /**
+     * Get the number of records not in the near cache, expired or changed in
+     * storage.
+     * 
+     * @return number of near cache misses
+     */
+    public long getNearCacheMisses() {
+        return recordCache != null ? recordCache.getMisses() : 0;
+    }
+
+    /**
+     * Get the number of records evicted from the near cache as expired or as the
+     * cache was full.
+     * 
+     * @return number of near cache evictions
+     */
+    public long getNearCacheEvictions() {
+        return recordCache != null ? recordCache.getEvictions() : 0;
+    }
+
+    /**
+     * Set whether to cache read records outside of the heap. A cached record is
+     * used only if its storage version is still current, unless revalidation is
+     * turned off, and is decoded on each use.
+     * 
+     * @param flag whether to cache read records outside of the heap
+     */
+    public void setOffHeapCache(final boolean flag) {
+        checkSetterPreconditions();
+        offHeapCache = flag;
+    }
+
+    /**
+     * Set byte budget of the off-heap cache, allocated on initialization.
+     * 
+     * @param bytes byte budget of the off-heap cache
+     */
+    public void setOffHeapCacheSize(@Positive final long bytes) {
+        checkSetterPreconditions();
+        Constraint.isTrue(bytes > 0, "Off-heap cache size must be greater than 0");
+        offHeapCacheSize = bytes;
+    }
+
+    /**
+     * Set block size of the off-heap cache, a power of two from 64 to 65536.
+     * 
+     * @param size block size of the off-heap cache
+     */
+    public void setOffHeapCacheBlockSize(@Positive final int size) {
+        checkSetterPreconditions();
+        Constraint.isTrue(size > 0, "Off-heap cache block size must be greater than 0");
+        offHeapCacheBlockSize = size;
+    }
+
+    /**
+     * Set time to live of records cached outside of the heap.
+     * 
+     * @param ttl time to live of records cached outside of the heap
+     */
+    public void setOffHeapCacheTimeToLive(@Nonnull final Duration ttl) {
+        checkSetterPreconditions();
+        Constraint.isTrue(ttl != null && !ttl.isNegative() && !ttl.isZero(),
+                "Off-heap cache time to live must be positive");
+        offHeapCacheTimeToLive = ttl;
+    }
+
+    /**
+     * Set whether records cached outside of the heap are revalidated against the
+     * storage before use. Revalidation reads the record conditionally on its
+     * version, which saves the transfer only on storages reading by version
+     * cheaply. Without revalidation a cached record is used until it expires, and
+     * records written by other nodes may be missed for the time to live. Turn it
+     * off only for deployments with a single node writing the records.
+     * 
+     * @param flag whether records cached outside of the heap are revalidated
+     */
+    public void setOffHeapCacheRevalidation(final boolean flag) {
+        checkSetterPreconditions();
+        offHeapCacheRevalidation = flag;
+    }
+
+    /**
+     * Set storage service of the hot tier, for instance a memory or memcached
+     * storage in front of a durable storage. Records are not tiered if not set.
+     * The hot tier storage must be clustered if the durable storage is, a
+     * memory storage of each node would serve records written by other nodes
+     * stale.
+     * 
+     * @param storageService storage service of the hot tier
+     */
+    public void setHotStorage(@Nullable final StorageService storageService) {
+        checkSetterPreconditions();
+        if (storageService != null) {
+            checkServerSide(storageService);
+        }
+        hotStorage = storageService;
+    }
+
+    /**
+     * Set expiration of records in the hot tier. Should not exceed the expiration
+     * of records in the durable storage.
+     * 
+     * @param expiration expiration of records in the hot tier
+     */
+    public void setHotExpiration(@Nonnull final Duration expiration) {
+        checkSetterPreconditions();
+        Constraint.isTrue(expiration != null && !expiration.isNegative() && !expiration.isZero(),
+                "Hot tier expiration must be positive");
+        hotExpiration = expiration;
+    }
+
+    /**
+     * Set time after which records not used are demoted from the hot tier.
+     * 
+     * @param idleTime time after which records not used are demoted
+     */
+    public void setHotIdleTime(@Nonnull final Duration idleTime) {
+        checkSetterPreconditions();
+        Constraint.isTrue(idleTime != null && !idleTime.isNegative() && !idleTime.isZero(),
+                "Hot tier idle time must be positive");
+        hotIdleTime = idleTime;
+    }
+
+    /**
+     * Set interval of demoting records from the hot tier.
+     * 
+     * @param interval interval of demoting records
+     */
+    public void setDemotionInterval(@Nonnull final Duration interval) {
+        checkSetterPreconditions();
+        Constraint.isTrue(interval != null && !interval.isNegative() && !interval.isZero(),
+                "Demotion interval must be positive");
+        demotionInterval = interval;
+    }
+
+    /**
+     * Get the number of records found in the off-heap cache.
+     * 
+     * @return number of off-heap cache hits
+     */
+    public long getOffHeapCacheHits() {
+        return offHeapRecordCache != null ? offHeapRecordCache.getHits() : 0;
+    }
+
+    /**
+     * Get the number of records not found in the off-heap cache or expired.
+     * 
+     * @return number of off-heap cache misses
+     */
+    public long getOffHeapCacheMisses() {
+        return offHeapRecordCache != null ? offHeapRecordCache.getMisses() : 0;
+    }
+
+    /**
+     * Get the number of records evicted from the off-heap cache as expired or to
+     * make room.
+     * 
+     * @return number of off-heap cache evictions
+     */
+    public long getOffHeapCacheEvictions() {
+        return offHeapRecordCache != null ? offHeapRecordCache.getEvictions() : 0;
+    }
+
+    /**
+     * Get the number of records read from the hot tier.
+     * 
+     * @return number of hot tier hits
+     */
+    public long getHotTierHits() {
+        return hotTier != null ? hotTier.getHits() : 0;
+    }
+
+    /**
+     * Get the number of records not found from the hot tier.
+     * 
+     * @return number of hot tier misses
+     */
+    public long getHotTierMisses() {
+        return hotTier != null ? hotTier.getMisses() : 0;
+    }
+
+    /**
+     * Get the number of records promoted to the hot tier.
+     * 
+     * @return number of promotions
+     */
+    public long getPromotions() {
+        return hotTier != null ? hotTier.getPromotions() : 0;
+    }
+
+    /**
+     * Get the number of records demoted from the hot tier.
+     * 
+     * @return number of demotions
+     */
+    public long getDemotions() {
+        return hotTier != null ? hotTier.getDemotions() : 0;
+    }
+
+    /**
+     * Demote records not used for the idle time from the hot tier now.
+     * 
+     * @return number of records demoted
+     */
+    public int demote() {
+        return hotTier != null ? hotTier.demote() : 0;
+    }
+
+    /**
+     * Get the number of users with events queued for writing.
+     * 
+     * @return number of users with events queued for writing
+     */
+    public int getQueuedWrites() {
+        return writeBehindQueue != null ? writeBehindQueue.getQueued() : 0;
+    }
+
+    /**
+     * Get the number of queued writes dropped as the write-behind queue was full.
+     * 
+     * @return number of dropped writes
+     */
+    public long getDroppedWrites() {
+        return writeBehindQueue != null ? writeBehindQueue.getDropped() : 0;
+    }
+
+    /**
+     * Get the number of queued writes that failed in the background. The
+     * modifications of a failed write are lost, a non-zero value needs attention.
+     * 
+     * @return number of failed writes
+     */
+    public long getFailedWrites() {
+        return writeBehindQueue != null ? writeBehindQueue.getFailed() : 0;
+    }
+
+    /**
+     * Get the number of writes skipped as the events were not modified.
+     * 
+     * @return number of skipped writes
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.sum();
+    }
+
     /**
      * Get the backing store for the cache.
      * 
-     * @return the backing store.
+     * @return the backing store, not used if records are sharded to several stores
      */
-    @NonnullAfterInit
+    @Nullable
     public StorageService getStorage() {
         return storage;
     }
 
+    /**
+     * Set storage services to shard records to, instead of a single backing
+     * store. Each key is stored to the service owning it on a consistent hash
+     * ring. Services are identified on the ring by their id.
+     * 
+     * @param storageServices storage services to shard records to
+     */
+    public void setShardStorages(@Nullable final List<StorageService> storageServices) {
+        checkSetterPreconditions();
+        shardStorages = storageServices != null ? List.copyOf(storageServices) : List.of();
+        shardStorages.forEach(this::checkServerSide);
+    }
+
+    /**
+     * Set storage services records were sharded to before the current ones.
+     * While migrating, a record not found from its owner is read from its previous
+     * owner, and is written to its owner on next write.
+     * 
+     * @param storageServices storage services records were sharded to before
+     */
+    public void setPreviousShardStorages(@Nullable final List<StorageService> storageServices) {
+        checkSetterPreconditions();
+        previousShardStorages = storageServices != null ? List.copyOf(storageServices) : List.of();
+        previousShardStorages.forEach(this::checkServerSide);
+    }
+
+    /**
+     * Set number of virtual nodes per storage service on the hash ring. More
+     * nodes spread keys more evenly between the services.
+     * 
+     * @param nodes number of virtual nodes per storage service
+     */
+    public void setVirtualNodes(@Positive final int nodes) {
+        checkSetterPreconditions();
+        Constraint.isTrue(nodes > 0, "Number of virtual nodes must be greater than 0");
+        virtualNodes = nodes;
+    }
+
+    /**
+     * Get the storage services with their operation counts and latencies.
+     * 
+     * @return the storage services
+     */
+    @Nonnull
+    public List<StorageShard> getStorageShards() {
+        return shards != null ? shards.getShards() : List.of();
+    }
+
     /**
      * Set the backing store for the cache.
      * 
@@ -101,18 +931,101 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
      */
     public void setStorage(@Nonnull final StorageService storageService) {
         storage = Constraint.isNotNull(storageService, "StorageService cannot be null");
-        final StorageCapabilities caps = storage.getCapabilities();
+        checkServerSide(storage);
+    }
+
+    /**
+     * Check the storage service is server-side.
+     * 
+     * @param storageService storage service to check
+     */
+    private void checkServerSide(@Nonnull final StorageService storageService) {
+        Constraint.isNotNull(storageService, "StorageService cannot be null");
+        final StorageCapabilities caps = storageService.getCapabilities();
         if (caps instanceof StorageCapabilities) {
             Constraint.isTrue(caps.isServerSide(), "StorageService cannot be client-side");
         }
     }
 
+    /**
+     * Whether the storage service is clustered.
+     * 
+     * @param storageService storage service to check
+     * @return whether the storage service is clustered
+     */
+    private static boolean isClustered(@Nonnull final StorageService storageService) {
+        final StorageCapabilities caps = storageService.getCapabilities();
+        return caps != null && caps.isClustered();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void doInitialize() throws ComponentInitializationException {
-        if (storage == null) {
+        if (storage == null && shardStorages.isEmpty()) {
             throw new ComponentInitializationException("StorageService cannot be null");
         }
+        try {
+            shards = new StorageShards(shardStorages.isEmpty() ? List.of(storage) : shardStorages,
+                    previousShardStorages, virtualNodes);
+        } catch (final ConstraintViolationException e) {
+            throw new ComponentInitializationException("Invalid storage shards", e);
+        }
+        recordCodec = new RecordCodec(codec, decoders, compressor, compression, shards.getValueSize());
+        locks = new Lock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        if (coalesceReads) {
+            readFlights = new SingleFlight<>();
+        }
+        if (nearCache) {
+            recordCache = new NearCache<>(nearCacheSize, nearCacheTimeToLive);
+        }
+        if (offHeapCache) {
+            try {
+                offHeapRecordCache = new OffHeapRecordCache(offHeapCacheSize, offHeapCacheBlockSize,
+                        offHeapCacheTimeToLive);
+            } catch (final ConstraintViolationException e) {
+                throw new ComponentInitializationException("Invalid off-heap cache configuration", e);
+            }
+        }
+        if (hotStorage != null) {
+            final List<StorageService> durableStorages = new ArrayList<>(
+                    shardStorages.isEmpty() ? List.of(storage) : shardStorages);
+            durableStorages.addAll(previousShardStorages);
+            if (!isClustered(hotStorage) && durableStorages.stream().anyMatch(UserProfileCache::isClustered)) {
+                throw new ComponentInitializationException(
+                        "Hot tier StorageService must be clustered if the durable StorageService is");
+            }
+            hotTier = new HotTier(hotStorage, hotExpiration, hotIdleTime);
+            hotTier.start(demotionInterval);
+        }
+        readTiers = new ReadThroughTiers(shards, recordCodec, readFlights, recordCache, offHeapRecordCache,
+                offHeapCacheRevalidation, hotTier);
+        recordMerger = new RecordMerger(eventMergers);
+        recordWriter = new RecordWriter(context, shards, recordCodec, readTiers, recordMerger, expires,
+                eventExpirations, splitEvents, optimisticLocking, maxVersionRetries, skippedWrites);
+        if (writeBehind) {
+            writeBehindQueue = new WriteBehindQueue(writeBehindQueueSize, writeBehindWriters,
+                    writeBehindOverflowPolicy, (key, queued) -> recordWriter.writeMerged(key, List.of(queued)),
+                    this::getLock, recordMerger::queueMerged);
+            writeBehindQueue.start();
+        }
+        if (groupCommit) {
+            groupCommitter = new GroupCommit(recordWriter::writeMerged, this::getLock);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.stop(writeBehindShutdownTimeout);
+        }
+        if (hotTier != null) {
+            hotTier.stop();
+        }
+        super.doDestroy();
     }
 
     /**
@@ -125,12 +1038,9 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
      * @return true if event was successfully set
      * @throws IOException
      */
-    public synchronized boolean setSingleEvent(@Nonnull @NotEmpty final String user,
+    public boolean setSingleEvent(@Nonnull @NotEmpty final String user,
             @Nonnull @NotEmpty final String eventName, @Nonnull @NotEmpty final String eventValue) {
-        final String key = getKey(user);
-        Events events = getEvents(key);
-        events.getEvents().put(eventName, new Event(eventValue));
-        return setEvents(key, events);
+        return setSingleEvent(user, eventName, new Event(eventValue));
     }
 
     /**
@@ -145,7 +1055,36 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
      */
     public void setSingleEvent(@Nonnull @NotEmpty final String eventName, @Nonnull @NotEmpty final String eventValue,
             @Nonnull EventsCache eventsCache) {
-        eventsCache.getEvents().getEvents().put(eventName, new Event(eventValue));
+        eventsCache.getEvents().setEvent(eventName, new Event(eventValue));
+    }
+
+    /**
+     * Sets event data for user by event name. Overwrites any pre-existing event of
+     * same name. The data is stored as json as such, without wrapping it to a
+     * string value.
+     * 
+     * @param user      the user event is stored for
+     * @param eventName name of the event
+     * @param eventData data of the event
+     * @return true if event was successfully set
+     */
+    public boolean setSingleEvent(@Nonnull @NotEmpty final String user,
+            @Nonnull @NotEmpty final String eventName, @Nonnull final JsonNode eventData) {
+        return setSingleEvent(user, eventName, new Event(eventData));
+    }
+
+    /**
+     * Sets event data by event name. Overwrites any pre-existing event of same
+     * name. The data is stored as json as such, without wrapping it to a string
+     * value.
+     * 
+     * @param eventName   name of the event
+     * @param eventData   data of the event
+     * @param eventsCache cache for events
+     */
+    public void setSingleEvent(@Nonnull @NotEmpty final String eventName, @Nonnull final JsonNode eventData,
+            @Nonnull final EventsCache eventsCache) {
+        eventsCache.getEvents().setEvent(eventName, new Event(eventData));
     }
 
     /**
@@ -155,9 +1094,51 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
      * @param eventsCache cache for events
      * @return
      */
-    public synchronized boolean commitEventsCache(@Nonnull @NotEmpty final String user,
+    public boolean commitEventsCache(@Nonnull @NotEmpty final String user,
             @Nonnull EventsCache eventsCache) {
-        return setEvents(getKey(user), eventsCache.getEvents());
+        final Events events = eventsCache.getEvents();
+        if (events == null || !events.isModified()) {
+            log.debug("User Profile events of '{}' not modified, nothing to commit", user);
+            skippedWrites.increment();
+            return true;
+        }
+        final String key = getKey(user);
+        if (writeBehindQueue != null) {
+            final boolean queued = writeBehindQueue.offer(key, events);
+            if (queued) {
+                events.setStored();
+            }
+            return queued;
+        }
+        if (groupCommitter != null) {
+            final boolean committed = groupCommitter.commit(key, events);
+            if (committed) {
+                events.setStored();
+            }
+            return committed;
+        }
+        if (splitEvents) {
+            boolean success = true;
+            for (final String name : List.copyOf(events.getModifiedEvents())) {
+                success &= recordWriter.setSplitEvent(key, name, events);
+            }
+            return success;
+        }
+        if (optimisticLocking) {
+            final Events committed = recordWriter.setEventsWithVersion(key, events);
+            if (committed == null) {
+                return false;
+            }
+            eventsCache.setEvents(committed);
+            return true;
+        }
+        final Lock lock = getLock(key);
+        lock.lock();
+        try {
+            return recordWriter.setEvents(key, events);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -170,9 +1151,17 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
 
     @Nullable
     @NotEmpty
-    public synchronized Event getSingleEvent(@Nonnull @NotEmpty final String user,
+    public Event getSingleEvent(@Nonnull @NotEmpty final String user,
             @Nonnull @NotEmpty String eventName) {
-        Events events = getEvents(getKey(user));
+        final String key = getKey(user);
+        if (splitEvents) {
+            final Events events = new Events();
+            recordWriter.readSplitEvent(key, eventName, events);
+            applyQueued(key, events, eventName);
+            return events.getEvents().get(eventName);
+        }
+        Events events = recordWriter.getEvents(key);
+        applyQueued(key, events, null);
         return events.getEvents().get(eventName);
     }
 
@@ -188,55 +1177,128 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
     @NotEmpty
     public Event getSingleEvent(@Nonnull @NotEmpty final String user, @Nonnull @NotEmpty String eventName,
             @Nonnull EventsCache eventsCache) {
-        if (eventsCache.getEvents() == null) {
-            eventsCache.setEvents(getEvents(getKey(user)));
+        if (splitEvents) {
+            if (eventsCache.getEvents() == null) {
+                eventsCache.setEvents(new Events());
+            }
+            if (!eventsCache.getEvents().isRead(eventName)) {
+                final String key = getKey(user);
+                recordWriter.readSplitEvent(key, eventName, eventsCache.getEvents());
+                applyQueued(key, eventsCache.getEvents(), eventName);
+            }
+        } else if (eventsCache.getEvents() == null) {
+            final String key = getKey(user);
+            final Events events = recordWriter.getEvents(key);
+            applyQueued(key, events, null);
+            eventsCache.setEvents(events);
         }
         return eventsCache.getEvents().getEvents().get(eventName);
     }
 
     /**
-     * Sets events.
+     * Sets event for user by event name. Overwrites any pre-existing event of same
+     * name.
      * 
-     * @param key    the key events are stored by.
-     * @param events the events to be stored.
-     * @return true if operation was success.
+     * @param user      the user event is stored for
+     * @param eventName name of the event
+     * @param event     the event
+     * @return true if event was successfully set
      */
-
-    private boolean setEvents(@Nonnull @NotEmpty final String key, @Nonnull @NotEmpty final Events events) {
+    private boolean setSingleEvent(@Nonnull @NotEmpty final String user, @Nonnull @NotEmpty final String eventName,
+            @Nonnull final Event event) {
+        final String key = getKey(user);
+        if (splitEvents) {
+            final Events events = new Events();
+            events.setEvent(eventName, event);
+            return recordWriter.setSplitEvent(key, eventName, events);
+        }
+        if (optimisticLocking) {
+            final Events events = recordWriter.getEvents(key);
+            events.setEvent(eventName, event);
+            if (!events.isModified()) {
+                skippedWrites.increment();
+                return true;
+            }
+            return recordWriter.setEventsWithVersion(key, events) != null;
+        }
+        final Lock lock = getLock(key);
+        lock.lock();
         try {
-            if (!storage.update(context, key, events.serialize(), Instant.now().plus(expires).toEpochMilli())) {
-                return storage.create(context, key, events.serialize(), Instant.now().plus(expires).toEpochMilli());
+            final Events events = recordWriter.getEvents(key);
+            events.setEvent(eventName, event);
+            if (!events.isModified()) {
+                skippedWrites.increment();
+                return true;
             }
-            return true;
-        } catch (final Exception e) {
-            log.error("Exception reading/writing to storage service", e);
-            return false;
+            return recordWriter.setEvents(key, events);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Get events.
+     * Apply events queued for writing behind or being written on top of events
+     * read from storage, so that reads return the committed events. Events
+     * modified locally are kept.
      * 
-     * @param key the key events are stored by.
-     * @return events if such exist.
+     * @param key       the key events are stored by
+     * @param events    events read from storage
+     * @param eventName name of the only event to apply, null to apply all
      */
-    @Nonnull
-    private synchronized Events getEvents(@Nonnull @NotEmpty final String key) {
-        // TODO: Add optional symmetric encryption for record.
-        try {
-            final StorageRecord<?> entry = storage.read(context, key);
-            if (entry == null) {
-                log.debug("No User Profile Record for  '{}'", key);
-                return new Events();
+    private void applyQueued(@Nonnull @NotEmpty final String key, @Nonnull final Events events,
+            @Nullable final String eventName) {
+        if (writeBehindQueue == null) {
+            return;
+        }
+        for (final Events queued : writeBehindQueue.getPending(key)) {
+            for (final String name : queued.getModifiedEvents()) {
+                if ((eventName == null || eventName.equals(name)) && !events.getModifiedEvents().contains(name)) {
+                    events.getEvents().put(name, queued.getEvents().get(name));
+                }
             }
-            log.trace("Located User Profile Record '{}' for user '{}'", entry.getValue(), key);
-            return Events.parse(entry.getValue());
-        } catch (final IOException e) {
-            log.error("Exception reading from storage service, user '{}'. Empty record is created.", key, e);
-            return new Events();
         }
     }
 
+    /**
+     * Get the lock stripe guarding the record stored by the key.
+     * 
+     * @param key the key events are stored by
+     * @return lock guarding the record
+     */
+    @Nonnull
+    private Lock getLock(@Nonnull @NotEmpty final String key) {
+        final int hash = key.hashCode();
+        return locks[Math.floorMod(hash ^ (hash >>> 16), locks.length)];
+    }
+
+    /**
+     * Get name of a bucket of an event. Buckets are events of their own, sharing
+     * the expiration and merger of the event.
+     * 
+     * @param eventName name of the event
+     * @param bucket    name of the bucket, such as a month
+     * @return name of the bucket of the event
+     */
+    @Nonnull
+    @NotEmpty
+    public static String getBucketName(@Nonnull @NotEmpty final String eventName,
+            @Nonnull @NotEmpty final String bucket) {
+        return eventName + BUCKET_SEPARATOR + bucket;
+    }
+
+    /**
+     * Get name of the event divided to buckets, the name as such if not a bucket.
+     * 
+     * @param eventName name of an event or a bucket
+     * @return name of the event
+     */
+    @Nonnull
+    @NotEmpty
+    static String getBucketedName(@Nonnull @NotEmpty final String eventName) {
+        final int separator = eventName.lastIndexOf(BUCKET_SEPARATOR);
+        return separator > 0 ? eventName.substring(0, separator) : eventName;
+    }
+
     /**
      * Get storage key by user.
      * 
@@ -248,8 +1310,7 @@ public class UserProfileCache extends AbstractIdentifiableInitializableComponent
     @NotEmpty
     private String getKey(@Nonnull @NotEmpty final String user) {
         // TODO: Key user with salted hash. Basic precaution.
-        final StorageCapabilities caps = storage.getCapabilities();
-        if (user.length() > caps.getKeySize()) {
+        if (user.length() > shards.getKeySize()) {
             return DigestUtils.sha1Hex(user);
         } else {
             return user;
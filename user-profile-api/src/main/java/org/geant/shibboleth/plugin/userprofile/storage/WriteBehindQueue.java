@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.shared.annotation.constraint.NotEmpty;
+import net.shibboleth.shared.annotation.constraint.Positive;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Bounded write-behind queue of modified {@link Events} by storage key.
+ *
+ * <p>
+ * Modified events are queued per key and written by background writers.
+ * Events queued for a key not yet written are merged by the queue merger, so a
+ * key is queued at most once. Writes of a key
+ * are serialized by the lock of the key. Queued and in-flight events remain
+ * available for reading until written.
+ * </p>
+ *
+ * <p>
+ * Writers run on virtual threads where available, otherwise on a fixed number
+ * of daemon platform threads. On {@link #stop(Duration)} the queue is drained before
+ * returning.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class WriteBehindQueue {
+
+    /** Policy applied when the queue is full. */
+    public enum OverflowPolicy {
+
+        /** Drop the modifications. */
+        DROP,
+
+        /** Write the modifications in the calling thread. */
+        CALLER_RUNS,
+
+        /** Block the calling thread until there is room in the queue. */
+        BLOCK
+    }
+
+    /** Interval at which idle writers check whether the queue is stopped. */
+    private static final long POLL_INTERVAL_MS = 100;
+
+    /** Logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    /** Keys of the queued events, in queuing order. */
+    @Nonnull
+    private final BlockingQueue<String> keys;
+
+    /** Queued events by key. */
+    @Nonnull
+    private final Map<String, Events> queued = new ConcurrentHashMap<>();
+
+    /** Events being written by key. */
+    @Nonnull
+    private final Map<String, Events> inFlight = new ConcurrentHashMap<>();
+
+    /** Writes modified events of a key to storage, returns whether successful. */
+    @Nonnull
+    private final BiPredicate<String, Events> writer;
+
+    /** Looks up the lock serializing writes of a key. */
+    @Nonnull
+    private final Function<String, Lock> lockLookup;
+
+    /** Merges modified events on top of queued events, null if none, to new queued events. */
+    @Nonnull
+    private final BinaryOperator<Events> merger;
+
+    /** Policy applied when the queue is full. */
+    @Nonnull
+    private final OverflowPolicy overflowPolicy;
+
+    /** Number of writers. */
+    @Positive
+    private final int writers;
+
+    /** Number of dropped modifications. */
+    @Nonnull
+    private final LongAdder dropped = new LongAdder();
+
+    /** Number of failed writes. */
+    @Nonnull
+    private final LongAdder failed = new LongAdder();
+
+    /** Executor running the writers, null if not started. */
+    @Nullable
+    private ExecutorService executor;
+
+    /** Whether the queue accepts events and writers keep running. */
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity       max number of queued keys
+     * @param writerCount    number of writers
+     * @param policy         policy applied when the queue is full
+     * @param eventsWriter   writes modified events of a key to storage, returns
+     *                       whether successful
+     * @param keyLockLookup  looks up the lock serializing writes of a key
+     * @param queueMerger    merges modified events on top of queued events, null
+     *                       if none, to new queued events not modified after
+     *                       queuing
+     */
+    public WriteBehindQueue(@Positive final int capacity, @Positive final int writerCount,
+            @Nonnull final OverflowPolicy policy, @Nonnull final BiPredicate<String, Events> eventsWriter,
+            @Nonnull final Function<String, Lock> keyLockLookup, @Nonnull final BinaryOperator<Events> queueMerger) {
+        Constraint.isTrue(capacity > 0, "Capacity must be greater than 0");
+        Constraint.isTrue(writerCount > 0, "Number of writers must be greater than 0");
+        keys = new LinkedBlockingQueue<>(capacity);
+        writers = writerCount;
+        overflowPolicy = Constraint.isNotNull(policy, "Overflow policy cannot be null");
+        writer = Constraint.isNotNull(eventsWriter, "Events writer cannot be null");
+        lockLookup = Constraint.isNotNull(keyLockLookup, "Lock lookup cannot be null");
+        merger = Constraint.isNotNull(queueMerger, "Queue merger cannot be null");
+    }
+
+    /**
+     * Start the writers.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        running = true;
+        executor = createExecutor();
+        for (int i = 0; i < writers; i++) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Stop accepting events and write the queued events. Events not written by
+     * the writers within the timeout are written by the calling thread.
+     *
+     * @param timeout time to wait for the writers to drain the queue
+     */
+    public synchronized void stop(@Nonnull final Duration timeout) {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("User Profile write-behind writers did not finish in {}", timeout);
+                executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        executor = null;
+        String key;
+        while ((key = keys.poll()) != null) {
+            write(key);
+        }
+        if (!queued.isEmpty()) {
+            log.error("{} User Profile Records not written on shutdown", queued.size());
+        }
+    }
+
+    /**
+     * Queue modified events of the key. If the key is already queued, the
+     * modifications are merged to the queued events. If the queue is not running,
+     * the events are written in the calling thread.
+     *
+     * @param key    the key events are stored by
+     * @param events events containing the modifications
+     * @return false if the modifications were dropped or written and the write
+     *         failed
+     */
+    public boolean offer(@Nonnull @NotEmpty final String key, @Nonnull final Events events) {
+        final boolean[] added = {false};
+        final boolean[] enqueued = {false};
+        // The key is queued while merging, so the events are dropped only if no other thread merged to them.
+        queued.compute(key, (k, existing) -> {
+            added[0] = existing == null;
+            if (added[0] && running) {
+                enqueued[0] = keys.offer(k);
+                if (!enqueued[0] && overflowPolicy == OverflowPolicy.DROP) {
+                    return null;
+                }
+            }
+            return merger.apply(existing, events);
+        });
+        if (!running) {
+            return write(key);
+        }
+        if (!added[0] || enqueued[0]) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    keys.put(key);
+                    return true;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while queuing User Profile Record for '{}', writing it", key);
+                    return write(key);
+                }
+            case CALLER_RUNS:
+                log.debug("User Profile write-behind queue full, writing '{}' in calling thread", key);
+                return write(key);
+            case DROP:
+            default:
+                dropped.increment();
+                log.warn("User Profile write-behind queue full, dropped modifications for '{}'", key);
+                return false;
+        }
+    }
+
+    /**
+     * Get events queued or being written for the key. Events queued are more
+     * recent than the events being written.
+     *
+     * @param key the key events are stored by
+     * @return pending events in the order they are written
+     */
+    @Nonnull
+    public List<Events> getPending(@Nonnull @NotEmpty final String key) {
+        final Events writing = inFlight.get(key);
+        final Events waiting = queued.get(key);
+        if (writing == null) {
+            return waiting == null ? List.of() : List.of(waiting);
+        }
+        return waiting == null ? List.of(writing) : List.of(writing, waiting);
+    }
+
+    /**
+     * Get number of queued keys.
+     *
+     * @return number of queued keys
+     */
+    public int getQueued() {
+        return queued.size();
+    }
+
+    /**
+     * Get number of dropped modifications.
+     *
+     * @return number of dropped modifications
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get number of failed writes.
+     *
+     * @return number of failed writes
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Write queued keys until stopped and the queue is empty.
+     */
+    private void drain() {
+        while (running || !keys.isEmpty()) {
+            try {
+                final String key = keys.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    write(key);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final RuntimeException e) {
+                log.error("Exception writing User Profile Record", e);
+            }
+        }
+    }
+
+    /**
+     * Write the events queued for the key. The lock of the key is held from
+     * taking the events until they are written, so writes of a key are in
+     * queuing order.
+     *
+     * @param key the key events are stored by
+     * @return true if there was nothing to write or the write succeeded
+     */
+    private boolean write(@Nonnull @NotEmpty final String key) {
+        final Lock lock = lockLookup.apply(key);
+        lock.lock();
+        try {
+            final Events events = queued.remove(key);
+            if (events == null) {
+                return true;
+            }
+            inFlight.put(key, events);
+            try {
+                if (writer.test(key, events)) {
+                    return true;
+                }
+                failed.increment();
+                log.error("Failed writing queued User Profile Record for '{}'", key);
+                return false;
+            } finally {
+                inFlight.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create executor for the writers, using virtual threads if available.
+     *
+     * @return executor for the writers
+     */
+    @Nonnull
+    private ExecutorService createExecutor() {
+        try {
+            final ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.debug("User Profile write-behind writers use virtual threads");
+            return virtual;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            log.debug("Virtual threads not available, User Profile write-behind writers use platform threads");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(writers, runnable -> {
+            final Thread thread = new Thread(runnable, "UserProfileWriteBehind-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link BinaryEventsCodec}.
+ */
+public class BinaryEventsCodecTest {
+
+    private final String entryName = "org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents";
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        codec.setEntryTags(Map.of(entryName, 1));
+        final Events events = Events.parse("{\"" + entryName + "\" : {\"value\":\"[{\\\"id\\\":\\\"rp\\\"}]\",\"time\":100},"
+                + " \"other\" : {\"value\":\"foo\",\"time\":200} }");
+        final String record = codec.encode(events);
+        Assert.assertTrue(codec.isSupported(record));
+        Assert.assertFalse(new JsonEventsCodec().isSupported(record));
+        Assert.assertFalse(record.contains(entryName));
+        Assert.assertTrue(record.length() < events.serialize().length());
+        final Events decoded = codec.decode(record);
+        Assert.assertEquals(decoded.getEvents().size(), 2);
+        Assert.assertEquals(decoded.getEvents().get(entryName).getValue(), "[{\"id\":\"rp\"}]");
+        Assert.assertEquals(decoded.getEvents().get(entryName).getTime(), 100);
+        Assert.assertEquals(decoded.getEvents().get("other").getValue(), "foo");
+        Assert.assertEquals(decoded.getEvents().get("other").getTime(), 200);
+    }
+
+    @Test
+    public void testRoundTripData() throws IOException {
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        final Events events = Events.parse("{\"" + entryName + "\" : {\"data\":[{\"id\":\"rp\"}],\"time\":100} }");
+        final Events decoded = codec.decode(codec.encode(events));
+        final Event event = decoded.getEvents().get(entryName);
+        Assert.assertTrue(event.isData());
+        Assert.assertEquals(event.getData().get(0).get("id").asText(), "rp");
+        Assert.assertEquals(event.getTime(), 100);
+    }
+
+    @Test
+    public void testLoginEventsSize() throws IOException {
+        final ArrayNode loginEvents = JsonNodeFactory.instance.arrayNode();
+        for (int i = 0; i < 50; i++) {
+            final ObjectNode loginEvent = loginEvents.addObject();
+            loginEvent.put("id", "https://sp" + (i % 5) + ".example.org/shibboleth");
+            loginEvent.put("time", 1700000000L + i * 3600);
+            final ArrayNode attributes = loginEvent.putArray("attributes");
+            for (final String id : new String[] {"eduPersonPrincipalName", "mail", "displayName",
+                    "eduPersonAffiliation"}) {
+                final ObjectNode attribute = attributes.addObject();
+                attribute.put("id", id);
+                attribute.putArray("values").add(id.equals("eduPersonAffiliation") ? "member" : "jdoe@example.org");
+            }
+        }
+        final Events events = new Events();
+        events.setEvent(entryName, new Event(loginEvents, 100));
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        codec.setEntryTags(Map.of(entryName, 1));
+        final String record = codec.encode(events);
+        final String json = new JsonEventsCodec().encode(events);
+        Assert.assertTrue(record.length() * 3 < json.length(), "Binary " + record.length() + ", json " + json.length());
+        Assert.assertEquals(codec.decode(record).getEvents().get(entryName).getValue(), loginEvents.toString());
+    }
+
+    @Test
+    public void testRoundTripNodes() throws IOException {
+        final ObjectNode data = JsonNodeFactory.instance.objectNode();
+        data.putNull("null");
+        data.put("true", true);
+        data.put("false", false);
+        data.put("int", -5);
+        data.put("long", Long.MAX_VALUE);
+        data.put("double", 1.5);
+        data.put("big", new BigInteger("123456789012345678901234567890"));
+        data.put("text", "text");
+        data.putArray("array").add("text").add(0).addObject();
+        final Events events = new Events();
+        events.setEvent(entryName, new Event(data, 100));
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        Assert.assertEquals(codec.decode(codec.encode(events)).getEvents().get(entryName).getData(), data);
+    }
+
+    @Test
+    public void testDecodeVersion1() throws IOException {
+        // One event named "n" at time 100 with json data written as json text
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] json = "[{\"id\":\"rp\"}]".getBytes(StandardCharsets.UTF_8);
+        out.write(new byte[] {1, 0, 1, 'n', 100, 1, (byte) json.length});
+        out.write(json);
+        final String record = BinaryEventsCodec.HEADER_V1
+                + Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray());
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        Assert.assertTrue(codec.isSupported(record));
+        final Event event = codec.decode(record).getEvents().get("n");
+        Assert.assertEquals(event.getTime(), 100);
+        Assert.assertEquals(event.getData().get(0).get("id").asText(), "rp");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testUnknownTag() throws IOException {
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        codec.setEntryTags(Map.of(entryName, 1));
+        final Events events = new Events();
+        events.setEvent(entryName, new Event("value"));
+        new BinaryEventsCodec().decode(codec.encode(events));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        final BinaryEventsCodec codec = new BinaryEventsCodec();
+        final Events events = new Events();
+        events.setEvent("name", new Event("value"));
+        final String record = codec.encode(events);
+        codec.decode(record.substring(0, record.length() - 4));
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testDuplicateTags() {
+        new BinaryEventsCodec().setEntryTags(Map.of("name1", 1, "name2", 1));
+    }
+}
@@ -16,6 +16,9 @@
 
 package org.geant.shibboleth.plugin.userprofile.storage;
 
+import java.util.List;
+import java.util.Map;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -33,5 +36,38 @@ public class EventTest {
         event = Event.parse(event.serialize());
         Assert.assertEquals(event.getTime(), 100);
         Assert.assertEquals(event.getValue(), "foo");
+        Assert.assertFalse(event.isData());
+    }
+
+    @Test
+    public void testData() throws JsonMappingException, JsonProcessingException {
+        Event event = new Event(JsonSupport.valueToTree(List.of("foo", "bar")), 100);
+        String serialized = event.serialize();
+        Assert.assertEquals(serialized, "{\"data\":[\"foo\",\"bar\"],\"time\":100}");
+        event = Event.parse(serialized);
+        Assert.assertTrue(event.isData());
+        Assert.assertEquals(event.getTime(), 100);
+        Assert.assertEquals(event.getData().get(1).asText(), "bar");
+        Assert.assertEquals(event.getValue(), "[\"foo\",\"bar\"]");
+        Assert.assertEquals(Event.parse(event.serialize()).getData(), event.getData());
+    }
+
+    @Test
+    public void testLegacyValueAsData() throws JsonMappingException, JsonProcessingException {
+        Event event = Event.parse("{\"value\":\"[\\\"foo\\\"]\",\"time\":100}");
+        Assert.assertFalse(event.isData());
+        Assert.assertEquals(event.getData().get(0).asText(), "foo");
+        Assert.assertEquals(event.serialize(), "{\"value\":\"[\\\"foo\\\"]\",\"time\":100}");
+    }
+
+    @Test
+    public void testSamePayload() throws JsonMappingException, JsonProcessingException {
+        Assert.assertTrue(new Event("foo", 100).hasSamePayload(new Event("foo", 200)));
+        Assert.assertFalse(new Event("foo", 100).hasSamePayload(new Event("bar", 100)));
+        Assert.assertFalse(new Event("foo", 100).hasSamePayload(null));
+        final Event data = Event.parse("{\"data\":{\"foo\":[1,2]},\"time\":100}");
+        Assert.assertTrue(data.hasSamePayload(new Event(JsonSupport.valueToTree(Map.of("foo", List.of(1, 2))))));
+        Assert.assertFalse(data.hasSamePayload(new Event(JsonSupport.valueToTree(Map.of("foo", List.of(2, 1))))));
+        Assert.assertFalse(data.hasSamePayload(new Event("{\"foo\":[1,2]}")));
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.time.Duration;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link HotTier}.
+ */
+public class HotTierTest {
+
+    private MemoryStorageService storage;
+
+    private HotTier hotTier;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        storage = new MemoryStorageService();
+        storage.setId("hot");
+        storage.initialize();
+        hotTier = new HotTier(storage, Duration.ofMinutes(1), Duration.ofMillis(1));
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        hotTier.stop();
+        storage.destroy();
+    }
+
+    @Test
+    public void testPromote() {
+        Assert.assertNull(hotTier.read("ctx", "key"));
+        hotTier.promote("ctx", "key", 3, "value");
+        final HotTier.HotRecord copy = hotTier.read("ctx", "key");
+        Assert.assertEquals(copy.getVersion(), Long.valueOf(3));
+        Assert.assertEquals(copy.getValue(), "value");
+        // A record read before a write does not replace the written copy.
+        hotTier.promote("ctx", "key", 2, "older");
+        Assert.assertEquals(hotTier.read("ctx", "key").getValue(), "value");
+        Assert.assertEquals(hotTier.getPromotions(), 1);
+        Assert.assertEquals(hotTier.getHits(), 2);
+        Assert.assertEquals(hotTier.getMisses(), 1);
+    }
+
+    @Test
+    public void testWrite() {
+        hotTier.write("ctx", "key", 2L, "value2");
+        hotTier.write("ctx", "key", 1L, "value1");
+        Assert.assertEquals(hotTier.read("ctx", "key").getValue(), "value2");
+        hotTier.write("ctx", "key", 3L, "value3");
+        Assert.assertEquals(hotTier.read("ctx", "key").getValue(), "value3");
+        hotTier.write("ctx", "key", null, "value:4");
+        final HotTier.HotRecord copy = hotTier.read("ctx", "key");
+        Assert.assertNull(copy.getVersion());
+        Assert.assertEquals(copy.getValue(), "value:4");
+    }
+
+    @Test
+    public void testDemote() throws Exception {
+        hotTier.write("ctx", "key", 1L, "value");
+        Thread.sleep(10);
+        Assert.assertEquals(hotTier.demote(), 1);
+        Assert.assertNull(storage.read("ctx", "key"));
+        Assert.assertEquals(hotTier.demote(), 0);
+        Assert.assertEquals(hotTier.getDemotions(), 1);
+    }
+
+    @Test
+    public void testMalformedCopy() throws Exception {
+        storage.create("ctx", "key", "value", null);
+        Assert.assertNull(hotTier.read("ctx", "key"));
+    }
+}
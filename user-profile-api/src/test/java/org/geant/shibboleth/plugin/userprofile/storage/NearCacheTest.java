@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link NearCache}.
+ */
+public class NearCacheTest {
+
+    @Test
+    public void testRevalidate() throws IOException {
+        final NearCache<String, String> cache = new NearCache<>(10, Duration.ofMinutes(1));
+        Assert.assertNull(cache.get("key", cached -> cached));
+        cache.put("key", "value1");
+        Assert.assertEquals(cache.get("key", cached -> cached), "value1");
+        Assert.assertEquals(cache.get("key", cached -> "value2"), "value2");
+        Assert.assertEquals(cache.get("key", cached -> cached), "value2");
+        Assert.assertNull(cache.get("key", cached -> null));
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getHits(), 2);
+        Assert.assertEquals(cache.getMisses(), 3);
+    }
+
+    @Test
+    public void testEviction() throws IOException, InterruptedException {
+        final NearCache<String, String> cache = new NearCache<>(2, Duration.ofMillis(100));
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+        // Least recently used is evicted.
+        Assert.assertEquals(cache.get("key1", cached -> cached), "value1");
+        cache.put("key3", "value3");
+        Assert.assertNull(cache.get("key2", cached -> cached));
+        Assert.assertEquals(cache.getEvictions(), 1);
+        Thread.sleep(150);
+        Assert.assertNull(cache.get("key1", cached -> cached));
+        Assert.assertEquals(cache.getEvictions(), 2);
+        cache.invalidate("key3");
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testSegmentedEviction() throws IOException {
+        final int maxEntries = NearCache.MIN_SEGMENT_ENTRIES * 8;
+        final NearCache<String, String> cache = new NearCache<>(maxEntries, Duration.ofMinutes(1));
+        for (int i = 0; i < maxEntries * 2; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        Assert.assertTrue(cache.size() <= maxEntries);
+        Assert.assertEquals(cache.getEvictions(), maxEntries * 2 - cache.size());
+        final String last = "key" + (maxEntries * 2 - 1);
+        Assert.assertEquals(cache.get(last, cached -> cached), "value" + (maxEntries * 2 - 1));
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidSize() {
+        new NearCache<String, String>(0, Duration.ofMinutes(1));
+    }
+}
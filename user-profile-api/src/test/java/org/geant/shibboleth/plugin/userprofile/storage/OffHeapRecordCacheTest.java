@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.time.Duration;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Unit tests for {@link OffHeapRecordCache}.
+ */
+public class OffHeapRecordCacheTest {
+
+    private final String context = "context";
+
+    @Test
+    public void testPutGet() {
+        final OffHeapRecordCache cache = new OffHeapRecordCache(64 * 1024, 64, Duration.ofMinutes(1));
+        Assert.assertNull(cache.get(context, "key"));
+        final String value = "ä".repeat(500);
+        Assert.assertTrue(cache.put(context, "key", 3, value));
+        Assert.assertTrue(cache.put("other", "key", 4, "short"));
+        final OffHeapRecordCache.CachedRecord cached = cache.get(context, "key");
+        Assert.assertEquals(cached.getVersion(), 3);
+        Assert.assertEquals(cached.getValue(), value);
+        Assert.assertEquals(cache.get("other", "key").getValue(), "short");
+        Assert.assertTrue(cache.put(context, "key", 5, "replaced"));
+        Assert.assertEquals(cache.get(context, "key").getValue(), "replaced");
+        Assert.assertEquals(cache.size(), 2);
+        cache.remove(context, "key");
+        Assert.assertNull(cache.get(context, "key"));
+        Assert.assertEquals(cache.getUsedBytes(), 64);
+        Assert.assertEquals(cache.getHits(), 3);
+        Assert.assertEquals(cache.getMisses(), 2);
+    }
+
+    @Test
+    public void testManyKeys() {
+        final OffHeapRecordCache cache = new OffHeapRecordCache(1024 * 1024, 64, Duration.ofMinutes(1));
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertTrue(cache.put(context, "key" + i, i, "value" + i));
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            cache.remove(context, "key" + i);
+        }
+        for (int i = 1; i < 5000; i += 2) {
+            Assert.assertEquals(cache.get(context, "key" + i).getValue(), "value" + i);
+        }
+        Assert.assertEquals(cache.size(), 2500);
+        Assert.assertEquals(cache.getEvictions(), 0);
+    }
+
+    @Test
+    public void testClockEviction() {
+        // Room for 4 records of one block each.
+        final OffHeapRecordCache cache = new OffHeapRecordCache(256, 64, Duration.ofMinutes(1));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(cache.put(context, "key" + i, i, "value"));
+        }
+        Assert.assertNotNull(cache.get(context, "key0"));
+        Assert.assertNotNull(cache.get(context, "key1"));
+        for (int i = 3; i < 6; i++) {
+            Assert.assertTrue(cache.put(context, "key" + i, i, "value"));
+        }
+        Assert.assertTrue(cache.getUsedBytes() <= 256);
+        Assert.assertEquals(cache.getEvictions(), 3);
+        // The referenced records get a second chance.
+        Assert.assertNull(cache.get(context, "key2"));
+        Assert.assertNotNull(cache.get(context, "key5"));
+        Assert.assertFalse(cache.put(context, "large", 1, "x".repeat(1000)));
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        final OffHeapRecordCache cache = new OffHeapRecordCache(1024, 64, Duration.ofMillis(50));
+        cache.put(context, "key", 1, "value");
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(context, "key"));
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getEvictions(), 1);
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testInvalidBlockSize() {
+        new OffHeapRecordCache(1024, 100, Duration.ofMinutes(1));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link ReadThroughTiers}.
+ */
+public class ReadThroughTiersTest {
+
+    private final String record = "{\"name\":{\"value\":\"foo\",\"time\":100}}";
+
+    private MemoryStorageService storage;
+
+    private MemoryStorageService previousStorage;
+
+    private MemoryStorageService hotStorage;
+
+    private HotTier hotTier;
+
+    private RecordCodec recordCodec;
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        storage = storage("storage");
+        previousStorage = storage("previous");
+        hotStorage = storage("hot");
+        hotTier = new HotTier(hotStorage, Duration.ofMinutes(1), Duration.ofMinutes(1));
+        recordCodec = new RecordCodec(new JsonEventsCodec(), List.of(), new RecordCompressor(), false, 4096);
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        hotTier.stop();
+        storage.destroy();
+        previousStorage.destroy();
+        hotStorage.destroy();
+    }
+
+    private MemoryStorageService storage(String id) throws ComponentInitializationException {
+        final MemoryStorageService service = new MemoryStorageService();
+        service.setId(id);
+        service.initialize();
+        return service;
+    }
+
+    private ReadThroughTiers tiers(NearCache<Map.Entry<String, String>, Events> nearCache) {
+        return new ReadThroughTiers(new StorageShards(List.of(storage), List.of(previousStorage), 160), recordCodec,
+                new SingleFlight<>(), nearCache, null, true, hotTier);
+    }
+
+    @Test
+    public void testReadThrough() throws IOException {
+        final ReadThroughTiers tiers = tiers(new NearCache<>(10, Duration.ofMinutes(1)));
+        Assert.assertTrue(tiers.isShared());
+        Assert.assertNull(tiers.read("ctx", "key"));
+        storage.create("ctx", "key", record, null);
+        final Events events = tiers.read("ctx", "key");
+        Assert.assertEquals(events.getEvents().get("name").getValue(), "foo");
+        Assert.assertEquals(events.getVersion(), Long.valueOf(1));
+        // Promoted to the hot tier, the near cache is revalidated against it.
+        Assert.assertEquals(hotTier.getPromotions(), 1);
+        Assert.assertSame(tiers.read("ctx", "key"), events);
+    }
+
+    @Test
+    public void testWritten() throws IOException {
+        final ReadThroughTiers tiers = tiers(new NearCache<>(10, Duration.ofMinutes(1)));
+        storage.create("ctx", "key", record, null);
+        Assert.assertNotNull(tiers.read("ctx", "key"));
+        final String written = "{\"name\":{\"value\":\"bar\",\"time\":200}}";
+        storage.update("ctx", "key", written, null);
+        tiers.written("ctx", "key", written, 2L);
+        Assert.assertEquals(hotTier.read("ctx", "key").getValue(), written);
+        Assert.assertEquals(tiers.read("ctx", "key").getEvents().get("name").getValue(), "bar");
+    }
+
+    @Test
+    public void testPreviousShard() throws IOException {
+        final ReadThroughTiers tiers = tiers(null);
+        previousStorage.create("ctx", "key", record, null);
+        final Events events = tiers.read("ctx", "key");
+        Assert.assertEquals(events.getEvents().get("name").getValue(), "foo");
+        // Not in the current storage, there is no version to update.
+        Assert.assertNull(events.getVersion());
+        Assert.assertEquals(hotTier.getPromotions(), 0);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link RecordCodec}.
+ */
+public class RecordCodecTest {
+
+    private final String entryName = "org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents";
+
+    private Events events() throws IOException {
+        return events("foo");
+    }
+
+    private Events events(String other) throws IOException {
+        return Events.parse("{\"" + entryName + "\" : {\"value\":\"[{\\\"id\\\":\\\"rp\\\"}]\",\"time\":100},"
+                + " \"other\" : {\"value\":\"" + other + "\",\"time\":200} }");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        final RecordCodec recordCodec = new RecordCodec(new JsonEventsCodec(), List.of(), compressor, true, 4096);
+        final String record = recordCodec.encode(events("foo".repeat(100)));
+        Assert.assertTrue(RecordCompressor.isCompressed(record));
+        final Events decoded = recordCodec.decodeRecord(record, 2L);
+        Assert.assertEquals(decoded.getVersion(), Long.valueOf(2));
+        Assert.assertEquals(decoded.getEvents().get("other").getValue(), "foo".repeat(100));
+        // Compressed records are read also with compression disabled.
+        Assert.assertEquals(new RecordCodec(new JsonEventsCodec(), List.of(), compressor, false, 4096)
+                .decode(record).getEvents().size(), 2);
+    }
+
+    @Test
+    public void testDecoders() throws IOException {
+        final BinaryEventsCodec binary = new BinaryEventsCodec();
+        binary.setEntryTags(Map.of(entryName, 1));
+        final String record = new RecordCodec(binary, List.of(), new RecordCompressor(), false, 4096)
+                .encode(events());
+        final RecordCodec recordCodec = new RecordCodec(new JsonEventsCodec(), List.of(binary),
+                new RecordCompressor(), false, 4096);
+        Assert.assertEquals(recordCodec.decode(record).getEvents().get(entryName).getTime(), 100);
+        try {
+            new RecordCodec(new JsonEventsCodec(), List.of(), new RecordCompressor(), false, 4096).decode(record);
+            Assert.fail("Record format should not be supported");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEncodeEvent() throws IOException {
+        final RecordCodec recordCodec = new RecordCodec(new JsonEventsCodec(), List.of(), new RecordCompressor(),
+                false, 4096);
+        final Events decoded = recordCodec.decode(recordCodec.encodeEvent("other", events()));
+        Assert.assertEquals(decoded.getEvents().keySet(), Set.of("other"));
+        Assert.assertNull(recordCodec.encodeEvent("missing", events()));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testValueSize() throws IOException {
+        new RecordCodec(new JsonEventsCodec(), List.of(), new RecordCompressor(), false, 10).encode(events());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMaxDecompressedLength() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        compressor.setMaxDecompressedLength(10);
+        new RecordCodec(new JsonEventsCodec(), List.of(), compressor, true, 4096).encode(events("foo".repeat(100)));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link RecordCompressor}.
+ */
+public class RecordCompressorTest {
+
+    private final String record = "{\"name\":{\"data\":[{\"id\":\"mail\",\"name\":\"Email\"},"
+            + "{\"id\":\"displayName\",\"name\":\"Display name\"},{\"id\":\"eduPersonPrincipalName\","
+            + "\"name\":\"Principal name\"}],\"time\":100}}";
+
+    @Test
+    public void testBelowThreshold() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(record.length() + 1);
+        Assert.assertEquals(compressor.compress(record), record);
+        Assert.assertEquals(compressor.decompress(record), record);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        final String compressed = compressor.compress(record + record + record);
+        Assert.assertTrue(RecordCompressor.isCompressed(compressed));
+        Assert.assertTrue(compressed.length() < record.length() * 3);
+        Assert.assertEquals(compressor.decompress(compressed), record + record + record);
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        final RecordCompressor plain = new RecordCompressor();
+        plain.setThreshold(0);
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        compressor.setDictionary(List.of("mail", "displayName", "eduPersonPrincipalName", "{\"id\":\"", "\",\"name\":\""));
+        final String compressed = compressor.compress(record);
+        Assert.assertTrue(RecordCompressor.isCompressed(compressed));
+        Assert.assertTrue(compressed.length() < plain.compress(record).length());
+        Assert.assertEquals(compressor.decompress(compressed), record);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingDictionary() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        compressor.setDictionary(List.of("mail", "displayName", "eduPersonPrincipalName"));
+        new RecordCompressor().decompress(compressor.compress(record));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOtherDictionary() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        compressor.setDictionary(List.of("mail", "displayName", "eduPersonPrincipalName"));
+        final RecordCompressor other = new RecordCompressor();
+        other.setDictionary(List.of("givenName"));
+        other.decompress(compressor.compress(record));
+    }
+
+    @Test
+    public void testPreviousDictionary() throws IOException {
+        final RecordCompressor previous = new RecordCompressor();
+        previous.setThreshold(0);
+        previous.setDictionary(List.of("mail", "displayName", "eduPersonPrincipalName"));
+        final String compressed = previous.compress(record);
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setDictionary(List.of("givenName"));
+        compressor.setPreviousDictionaries(List.of(List.of("mail", "displayName", "eduPersonPrincipalName")));
+        Assert.assertEquals(compressor.decompress(compressed), record);
+    }
+
+    @Test
+    public void testMaxLength() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        final String compressed = compressor.compress(record + record + record);
+        Assert.assertEquals(compressor.decompress(compressed, record.length() * 3), record + record + record);
+        try {
+            compressor.decompress(compressed, record.length() * 3 - 1);
+            Assert.fail("Decompressed beyond the max length");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMaxDecompressedLength() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        final String compressed = compressor.compress(record + record);
+        compressor.setMaxDecompressedLength(record.length() * 2);
+        Assert.assertEquals(compressor.decompress(compressed), record + record);
+        compressor.setMaxDecompressedLength(record.length());
+        try {
+            compressor.decompress(compressed);
+            Assert.fail("Decompressed beyond the max decompressed length");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(0);
+        final String compressed = compressor.compress(record);
+        compressor.decompress(compressed.substring(0, compressed.length() - 8));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Unit tests for {@link RecordMerger}.
+ */
+public class RecordMergerTest {
+
+    private final RecordMerger merger = new RecordMerger(Map.of("list", (current, base, local) -> {
+        final ArrayNode merged = current.deepCopy();
+        local.forEach(entry -> {
+            if (base == null || !base.toString().contains(entry.toString())) {
+                merged.add(entry);
+            }
+        });
+        return merged;
+    }));
+
+    private Events stored(String list) throws IOException {
+        final Events events = Events.parse("{\"list\":{\"data\":" + list + ",\"time\":1},"
+                + "\"other\":{\"value\":\"foo\",\"time\":1}}");
+        events.setStored();
+        return events;
+    }
+
+    private Events modified(String entry) throws IOException {
+        final Events events = stored("[\"a\"]");
+        events.setEvent("list", new Event(JsonNodeFactory.instance.arrayNode().add("a").add(entry), 2));
+        return events;
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        Assert.assertTrue(merger.hasMerger("list"));
+        Assert.assertTrue(merger.hasMerger(UserProfileCache.getBucketName("list", "2025-01")));
+        Assert.assertFalse(merger.hasMerger("other"));
+        final Events merged = merger.merge(stored("[\"a\",\"c\"]"), modified("b"));
+        Assert.assertEquals(merged.getEvents().get("list").getData().toString(), "[\"a\",\"c\",\"b\"]");
+        Assert.assertEquals(merged.getModifiedEvents(), Set.of("list"));
+        // Not modified concurrently, the modification replaces the stored event.
+        Assert.assertEquals(merger.merge(stored("[\"a\"]"), modified("b")).getEvents().get("list").getData()
+                .toString(), "[\"a\",\"b\"]");
+    }
+
+    @Test
+    public void testQueueMerged() throws IOException {
+        final Events queued = merger.queueMerged(null, modified("b"));
+        final Events merged = merger.queueMerged(queued, modified("c"));
+        Assert.assertNotSame(merged, queued);
+        Assert.assertEquals(queued.getEvents().get("list").getData().toString(), "[\"a\",\"b\"]");
+        Assert.assertEquals(merged.getEvents().get("list").getData().toString(), "[\"a\",\"b\",\"c\"]");
+        Assert.assertFalse(merged.getEvents().containsKey("other"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.ConstraintViolationException;
+
+/**
+ * Tests for {@link StorageShards}.
+ */
+public class StorageShardsTest {
+
+    private final List<MemoryStorageService> services = new ArrayList<>();
+
+    @BeforeMethod
+    protected void setUp() throws ComponentInitializationException {
+        for (int i = 0; i < 4; i++) {
+            final MemoryStorageService service = new MemoryStorageService();
+            service.setId("shard" + i);
+            service.initialize();
+            services.add(service);
+        }
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        services.forEach(MemoryStorageService::destroy);
+        services.clear();
+    }
+
+    @Test
+    public void testDistribution() {
+        final StorageShards shards = new StorageShards(List.copyOf(services.subList(0, 3)), List.of(), 160);
+        final Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            owned.merge(shards.getShard("user" + i).getId(), 1, Integer::sum);
+        }
+        Assert.assertEquals(owned.size(), 3);
+        owned.values().forEach(count -> Assert.assertTrue(count > 700, "Uneven distribution " + owned));
+        Assert.assertEquals(shards.getShards().size(), 3);
+    }
+
+    @Test
+    public void testOrderIndependent() {
+        final StorageShards shards = new StorageShards(List.copyOf(services), List.of(), 160);
+        final List<StorageService> reversed = new ArrayList<>(services);
+        Collections.reverse(reversed);
+        final StorageShards reversedShards = new StorageShards(reversed, List.of(), 160);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(reversedShards.getShard("user" + i).getId(), shards.getShard("user" + i).getId());
+        }
+    }
+
+    @Test
+    public void testAddedShardMovesOnlyItsKeys() {
+        final List<StorageService> previous = List.copyOf(services.subList(0, 3));
+        final StorageShards shards = new StorageShards(List.copyOf(services), previous, 160);
+        final StorageShards previousShards = new StorageShards(previous, List.of(), 160);
+        int moved = 0;
+        for (int i = 0; i < 4000; i++) {
+            final String key = "user" + i;
+            final StorageShard owner = shards.getShard(key);
+            final StorageShard previousOwner = shards.getPreviousShard(key);
+            if (previousOwner == null) {
+                Assert.assertEquals(owner.getId(), previousShards.getShard(key).getId());
+            } else {
+                moved++;
+                Assert.assertEquals(owner.getId(), "shard3");
+                Assert.assertEquals(previousOwner.getId(), previousShards.getShard(key).getId());
+            }
+        }
+        Assert.assertTrue(moved > 600 && moved < 1400, "Moved " + moved);
+    }
+
+    @Test
+    public void testNotMigrating() {
+        final StorageShards shards = new StorageShards(List.copyOf(services), List.of(), 160);
+        Assert.assertNull(shards.getPreviousShard("user"));
+    }
+
+    @Test(expectedExceptions = ConstraintViolationException.class)
+    public void testNoServices() {
+        new StorageShards(List.of(), List.of(), 160);
+    }
+}
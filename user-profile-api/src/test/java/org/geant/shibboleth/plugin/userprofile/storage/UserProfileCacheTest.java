@@ -18,11 +18,29 @@ package org.geant.shibboleth.plugin.userprofile.storage;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
 import org.opensaml.storage.impl.client.ClientStorageService;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import net.shibboleth.shared.collection.Pair;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.ConstraintViolationException;
 
@@ -102,4 +120,1132 @@ public class UserProfileCacheTest {
         Assert.assertEquals(userProfileCache.getSingleEvent(foobarUser, "name2").getValue(), "value3");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testConcurrentSingleEventsForSameUser() throws Exception {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads * 4; i++) {
+                final String name = "name" + i;
+                results.add(executor.submit(() -> userProfileCache.setSingleEvent(foobarUser, name, "value")));
+            }
+            for (final Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < threads * 4; i++) {
+            Assert.assertEquals(userProfileCache.getSingleEvent(foobarUser, "name" + i).getValue(), "value");
+        }
+    }
+
+    @Test
+    public void testUsersWriteConcurrently() throws Exception {
+        // Both writes must be inside the storage at the same time, a single monitor would deadlock the gate.
+        final GatedStorageService gatedStorage = new GatedStorageService(2);
+        gatedStorage.setId("gated");
+        gatedStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(gatedStorage);
+        cache.initialize();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Boolean> first = executor.submit(() -> cache.setSingleEvent("user0", "name", "value"));
+            final Future<Boolean> second = executor.submit(() -> cache.setSingleEvent("user1", "name", "value"));
+            Assert.assertTrue(gatedStorage.awaitEntered(), "Writes of different users did not overlap");
+            gatedStorage.release();
+            Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(second.get(5, TimeUnit.SECONDS));
+        } finally {
+            gatedStorage.release();
+            executor.shutdown();
+        }
+        Assert.assertEquals(cache.getSingleEvent("user0", "name").getValue(), "value");
+        Assert.assertEquals(cache.getSingleEvent("user1", "name").getValue(), "value");
+        cache.destroy();
+        gatedStorage.destroy();
+    }
+
+    @Test
+    public void testOptimisticCommitMergesConcurrentUpdate() throws ComponentInitializationException {
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setOptimisticLocking(true);
+        cache.initialize();
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", "value1"));
+
+        final EventsCache first = new TestEventsCache();
+        final EventsCache second = new TestEventsCache();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", first).getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", second).getValue(), "value1");
+        cache.setSingleEvent("name2", "value2", first);
+        cache.setSingleEvent("name3", "value3", second);
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, first));
+        // Second cache holds a stale version and is merged on top of the first commit.
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, second));
+        Assert.assertEquals(second.getEvents().getEvents().get("name2").getValue(), "value2");
+
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2").getValue(), "value2");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name3").getValue(), "value3");
+        cache.destroy();
+    }
+
+    @Test
+    public void testOptimisticConcurrentSingleEvents() throws Exception {
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setOptimisticLocking(true);
+        cache.setMaxVersionRetries(100);
+        cache.initialize();
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads * 4; i++) {
+                final String name = "name" + i;
+                results.add(executor.submit(() -> cache.setSingleEvent(foobarUser, name, "value")));
+            }
+            for (final Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (int i = 0; i < threads * 4; i++) {
+            Assert.assertEquals(cache.getSingleEvent(foobarUser, "name" + i).getValue(), "value");
+        }
+        cache.destroy();
+    }
+
+    @Test
+    public void testCodecs() throws ComponentInitializationException {
+        Assert.assertTrue(userProfileCache.setSingleEvent(foobarUser, "name", "value1"));
+        final BinaryEventsCodec binaryCodec = new BinaryEventsCodec();
+        binaryCodec.setEntryTags(Map.of("name", 1));
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setCodec(binaryCodec);
+        cache.initialize();
+        // Json record written earlier is read and rewritten in binary format.
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name2", "value2"));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2").getValue(), "value2");
+        cache.destroy();
+        // Json encoding cache reads binary records when binary codec is a decoder.
+        final UserProfileCache jsonCache = new UserProfileCache();
+        jsonCache.setStorage(storageService);
+        jsonCache.setDecoders(List.of(binaryCodec));
+        jsonCache.initialize();
+        Assert.assertEquals(jsonCache.getSingleEvent(foobarUser, "name2").getValue(), "value2");
+        jsonCache.destroy();
+    }
+
+    @Test
+    public void testCompression() throws ComponentInitializationException, IOException {
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(100);
+        compressor.setDictionary(List.of("\"value\":\"", "\"time\":"));
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setCompression(true);
+        cache.setCompressor(compressor);
+        cache.initialize();
+        final String value = "value".repeat(100);
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", value));
+        final String record = (String) storageService.read(UserProfileCache.class.getCanonicalName(), foobarUser)
+                .getValue();
+        Assert.assertTrue(RecordCompressor.isCompressed(record));
+        Assert.assertTrue(record.length() < value.length());
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), value);
+        cache.destroy();
+        // Compressed records are read also if compression is disabled.
+        final UserProfileCache uncompressingCache = new UserProfileCache();
+        uncompressingCache.setStorage(storageService);
+        uncompressingCache.setCompressor(compressor);
+        uncompressingCache.initialize();
+        Assert.assertEquals(uncompressingCache.getSingleEvent(foobarUser, "name").getValue(), value);
+        uncompressingCache.destroy();
+    }
+
+    @Test
+    public void testValueSizeExceeded() throws ComponentInitializationException {
+        final MemoryStorageService smallStorage = new SmallValueStorageService(200);
+        smallStorage.setId("small");
+        smallStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(smallStorage);
+        cache.initialize();
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", "value"));
+        Assert.assertFalse(cache.setSingleEvent(foobarUser, "name", "value".repeat(100)));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value");
+        cache.destroy();
+        smallStorage.destroy();
+    }
+
+    @Test
+    public void testCompressedValueSize() throws ComponentInitializationException, IOException {
+        final MemoryStorageService smallStorage = new SmallValueStorageService(200);
+        smallStorage.setId("small");
+        smallStorage.initialize();
+        final RecordCompressor compressor = new RecordCompressor();
+        compressor.setThreshold(100);
+        compressor.setMaxDecompressedLength(1000);
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(smallStorage);
+        cache.setCompression(true);
+        cache.setCompressor(compressor);
+        cache.initialize();
+        // Fits the value size only once compressed.
+        final String value = "value".repeat(100);
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", value));
+        Assert.assertTrue(RecordCompressor.isCompressed((String) smallStorage
+                .read(UserProfileCache.class.getCanonicalName(), foobarUser).getValue()));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), value);
+        // Would not be decompressed.
+        Assert.assertFalse(cache.setSingleEvent(foobarUser, "name", "value".repeat(300)));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), value);
+        cache.destroy();
+        smallStorage.destroy();
+    }
+
+    @Test
+    public void testSplitEvents() throws ComponentInitializationException, IOException {
+        final String context = UserProfileCache.class.getCanonicalName();
+        // Event in the single record of the user is read as fallback.
+        Assert.assertTrue(userProfileCache.setSingleEvent(foobarUser, "name", "value1"));
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setSplitEvents(true);
+        cache.setEventExpirations(Map.of("name2", Duration.ofDays(1)));
+        cache.initialize();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name2", "value2"));
+        Assert.assertNotNull(storageService.read(context + "/name2", foobarUser));
+        Assert.assertNull(storageService.read(context + "/name", foobarUser));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2").getValue(), "value2");
+
+        // Only the events read are read and only the modified events are written.
+        final TestEventsCache eventsCache = new TestEventsCache();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2", eventsCache).getValue(), "value2");
+        Assert.assertFalse(eventsCache.getEvents().isRead("name"));
+        Assert.assertTrue(eventsCache.getEvents().isRead("name2"));
+        cache.setSingleEvent("name3", "value3", eventsCache);
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertEquals(storageService.read(context + "/name2", foobarUser).getVersion(), 1);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name3").getValue(), "value3");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        cache.destroy();
+    }
+
+    @Test
+    public void testSplitEventsOptimistic() throws ComponentInitializationException {
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setSplitEvents(true);
+        cache.setOptimisticLocking(true);
+        cache.initialize();
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", "value1"));
+        final TestEventsCache eventsCache = new TestEventsCache();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", eventsCache).getValue(), "value1");
+        // Concurrent update of the event is replaced by the committed one.
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", "value2"));
+        cache.setSingleEvent("name", "value3", eventsCache);
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertEquals(eventsCache.getEvents().getVersion("name"), Long.valueOf(3));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value3");
+        cache.destroy();
+    }
+
+    @Test
+    public void testBuckets() throws ComponentInitializationException, IOException {
+        final String context = UserProfileCache.class.getCanonicalName();
+        final String bucket1 = UserProfileCache.getBucketName("name", "2025-01");
+        final String bucket2 = UserProfileCache.getBucketName("name", "2025-02");
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(storageService);
+        cache.setSplitEvents(true);
+        cache.setEventExpirations(Map.of("name", Duration.ofDays(1)));
+        cache.initialize();
+        // Buckets are stored in records of their own with the expiration of the event.
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, bucket1, "value1"));
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, bucket2, "value2"));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, bucket1).getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, bucket2).getValue(), "value2");
+        Assert.assertNull(cache.getSingleEvent(foobarUser, "name"));
+        Assert.assertTrue(storageService.read(context + "/" + bucket1, foobarUser)
+                .getExpiration() <= System.currentTimeMillis() + Duration.ofDays(1).toMillis());
+        Assert.assertNotNull(storageService.read(context + "/" + bucket2, foobarUser));
+        cache.destroy();
+    }
+
+    @Test
+    public void testSkipUnmodifiedWrites() throws IOException {
+        final String context = UserProfileCache.class.getCanonicalName();
+        Assert.assertTrue(userProfileCache.setSingleEvent(foobarUser, "name", "value1"));
+        Assert.assertEquals(storageService.read(context, foobarUser).getVersion(), 1);
+        // Same payload is not written again.
+        Assert.assertTrue(userProfileCache.setSingleEvent(foobarUser, "name", "value1"));
+        Assert.assertEquals(userProfileCache.getSkippedWrites(), 1);
+
+        // Nothing read or set.
+        final TestEventsCache eventsCache = new TestEventsCache();
+        Assert.assertTrue(userProfileCache.commitEventsCache(foobarUser, eventsCache));
+        // Read but set to the same payload.
+        userProfileCache.getSingleEvent(foobarUser, "name", eventsCache);
+        userProfileCache.setSingleEvent("name", "value1", eventsCache);
+        Assert.assertFalse(eventsCache.getEvents().isModified());
+        Assert.assertTrue(userProfileCache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertEquals(userProfileCache.getSkippedWrites(), 3);
+        Assert.assertEquals(storageService.read(context, foobarUser).getVersion(), 1);
+
+        // Modified and committed once.
+        userProfileCache.setSingleEvent("name", "value2", eventsCache);
+        Assert.assertTrue(userProfileCache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertTrue(userProfileCache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertEquals(userProfileCache.getSkippedWrites(), 4);
+        Assert.assertEquals(storageService.read(context, foobarUser).getVersion(), 2);
+        Assert.assertEquals(userProfileCache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        final GatedStorageService gatedStorage = new GatedStorageService(1);
+        gatedStorage.setId("gated");
+        gatedStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(gatedStorage);
+        cache.setWriteBehind(true);
+        cache.initialize();
+        final TestEventsCache eventsCache = new TestEventsCache();
+        Assert.assertNull(cache.getSingleEvent(foobarUser, "name", eventsCache));
+        cache.setSingleEvent("name", "value1", eventsCache);
+        // The commit returns while the write is held in the storage.
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertTrue(gatedStorage.awaitEntered());
+        // Read your writes before the record is written.
+        Assert.assertNull(gatedStorage.read(UserProfileCache.class.getCanonicalName(), foobarUser));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", new TestEventsCache()).getValue(), "value1");
+        // Destroy writes the queued events.
+        gatedStorage.release();
+        cache.destroy();
+        Assert.assertEquals(cache.getQueuedWrites(), 0);
+        final UserProfileCache reader = new UserProfileCache();
+        reader.setStorage(gatedStorage);
+        reader.initialize();
+        Assert.assertEquals(reader.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        reader.destroy();
+        gatedStorage.destroy();
+    }
+
+    @Test
+    public void testWriteBehindOverflow() throws Exception {
+        final GatedStorageService blockingStorage = new GatedStorageService(1);
+        blockingStorage.setId("blocking");
+        blockingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(blockingStorage);
+        cache.setWriteBehind(true);
+        cache.setWriteBehindQueueSize(1);
+        cache.setWriteBehindWriters(1);
+        cache.setWriteBehindOverflowPolicy(WriteBehindQueue.OverflowPolicy.DROP);
+        cache.initialize();
+        Assert.assertTrue(commit(cache, "user1"));
+        // Wait for the writer to take the first user.
+        Assert.assertTrue(blockingStorage.awaitEntered());
+        Assert.assertTrue(commit(cache, "user2"));
+        Assert.assertFalse(commit(cache, "user3"));
+        Assert.assertEquals(cache.getDroppedWrites(), 1);
+        blockingStorage.release();
+        cache.destroy();
+        final UserProfileCache reader = new UserProfileCache();
+        reader.setStorage(blockingStorage);
+        reader.initialize();
+        Assert.assertEquals(reader.getSingleEvent("user1", "name").getValue(), "user1");
+        Assert.assertEquals(reader.getSingleEvent("user2", "name").getValue(), "user2");
+        Assert.assertNull(reader.getSingleEvent("user3", "name"));
+        reader.destroy();
+        blockingStorage.destroy();
+    }
+
+    @Test
+    public void testWriteBehindSplitEvents() throws Exception {
+        final String context = UserProfileCache.class.getCanonicalName();
+        final GatedStorageService gatedStorage = new GatedStorageService(1);
+        gatedStorage.setId("gated");
+        gatedStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(gatedStorage);
+        cache.setWriteBehind(true);
+        cache.setSplitEvents(true);
+        cache.initialize();
+        final TestEventsCache eventsCache = new TestEventsCache();
+        Assert.assertNull(cache.getSingleEvent(foobarUser, "name1", eventsCache));
+        cache.setSingleEvent("name1", "value1", eventsCache);
+        cache.setSingleEvent("name2", "value2", eventsCache);
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, eventsCache));
+        Assert.assertTrue(gatedStorage.awaitEntered());
+        // A second commit updating one of the queued events.
+        final TestEventsCache updateCache = new TestEventsCache();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2", updateCache).getValue(), "value2");
+        cache.setSingleEvent("name2", "value3", updateCache);
+        Assert.assertTrue(cache.commitEventsCache(foobarUser, updateCache));
+        // Read your writes of both events before the records are written.
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name1").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name2").getValue(), "value3");
+        // Destroy writes the queued events to their own records.
+        gatedStorage.release();
+        cache.destroy();
+        Assert.assertEquals(cache.getQueuedWrites(), 0);
+        Assert.assertEquals(cache.getFailedWrites(), 0);
+        Assert.assertNotNull(gatedStorage.read(context + "/name1", foobarUser));
+        Assert.assertNotNull(gatedStorage.read(context + "/name2", foobarUser));
+        final UserProfileCache reader = new UserProfileCache();
+        reader.setStorage(gatedStorage);
+        reader.setSplitEvents(true);
+        reader.initialize();
+        Assert.assertEquals(reader.getSingleEvent(foobarUser, "name1").getValue(), "value1");
+        Assert.assertEquals(reader.getSingleEvent(foobarUser, "name2").getValue(), "value3");
+        reader.destroy();
+        gatedStorage.destroy();
+    }
+
+    @Test
+    public void testWriteBehindFailure() throws Exception {
+        final MemoryStorageService failingStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public boolean create(final String context, final String key, final String value, final Long expiration)
+                    throws IOException {
+                throw new IOException("unavailable");
+            }
+        };
+        failingStorage.setId("failing");
+        failingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(failingStorage);
+        cache.setWriteBehind(true);
+        cache.initialize();
+        Assert.assertTrue(commit(cache, "user1"));
+        cache.destroy();
+        Assert.assertEquals(cache.getFailedWrites(), 1);
+        failingStorage.destroy();
+    }
+
+    @Test
+    public void testWriteBehindDroppedStaysModified() throws Exception {
+        final GatedStorageService blockingStorage = new GatedStorageService(1);
+        blockingStorage.setId("blocking");
+        blockingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(blockingStorage);
+        cache.setWriteBehind(true);
+        cache.setWriteBehindQueueSize(1);
+        cache.setWriteBehindWriters(1);
+        cache.setWriteBehindOverflowPolicy(WriteBehindQueue.OverflowPolicy.DROP);
+        cache.initialize();
+        try {
+            Assert.assertTrue(commit(cache, "user1"));
+            Assert.assertTrue(blockingStorage.awaitEntered());
+            Assert.assertTrue(commit(cache, "user2"));
+            final TestEventsCache eventsCache = new TestEventsCache();
+            cache.getSingleEvent("user3", "name", eventsCache);
+            cache.setSingleEvent("name", "user3", eventsCache);
+            Assert.assertFalse(cache.commitEventsCache("user3", eventsCache));
+            // Dropped modifications are kept to be committed again.
+            Assert.assertTrue(eventsCache.getEvents().isModified());
+            Assert.assertEquals(cache.getQueuedWrites(), 1);
+        } finally {
+            blockingStorage.release();
+        }
+        cache.destroy();
+        blockingStorage.destroy();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final SlowStorageService slowStorage = new SlowStorageService(100);
+        slowStorage.setId("slow");
+        slowStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(slowStorage);
+        cache.setGroupCommit(true);
+        cache.setEventMergers(Map.of("list", (current, base, local) -> {
+            final ArrayNode merged = current.deepCopy();
+            local.forEach(entry -> {
+                if (base == null || !base.toString().contains(entry.toString())) {
+                    merged.add(entry);
+                }
+            });
+            return merged;
+        }));
+        cache.initialize();
+        final int commits = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(commits);
+        final ExecutorService executor = Executors.newFixedThreadPool(commits);
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < commits; i++) {
+            final String entry = "entry" + i;
+            results.add(executor.submit(() -> {
+                final TestEventsCache eventsCache = new TestEventsCache();
+                final Event read = cache.getSingleEvent(foobarUser, "list", eventsCache);
+                final ArrayNode list = read != null ? (ArrayNode) read.getData().deepCopy()
+                        : JsonNodeFactory.instance.arrayNode();
+                cache.setSingleEvent("list", list.add(entry), eventsCache);
+                // All commits modify the same stored list.
+                barrier.await();
+                return cache.commitEventsCache(foobarUser, eventsCache);
+            }));
+        }
+        for (final Future<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        executor.shutdown();
+        Assert.assertTrue(cache.getCoalescedCommits() > 0);
+        final JsonNode list = cache.getSingleEvent(foobarUser, "list").getData();
+        Assert.assertEquals(list.size(), commits);
+        for (int i = 0; i < commits; i++) {
+            Assert.assertTrue(list.toString().contains("\"entry" + i + "\""));
+        }
+        cache.destroy();
+        slowStorage.destroy();
+    }
+
+    @Test
+    public void testGroupCommitOptimistic() throws Exception {
+        final SlowStorageService slowStorage = new SlowStorageService(100);
+        slowStorage.setId("slow");
+        slowStorage.initialize();
+        final Map<String, EventMerger> mergers = Map.of("list", (current, base, local) -> {
+            final ArrayNode merged = current.deepCopy();
+            local.forEach(entry -> {
+                if (base == null || !base.toString().contains(entry.toString())) {
+                    merged.add(entry);
+                }
+            });
+            return merged;
+        });
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(slowStorage);
+        cache.setGroupCommit(true);
+        cache.setOptimisticLocking(true);
+        cache.setEventMergers(mergers);
+        cache.initialize();
+        final UserProfileCache otherNode = new UserProfileCache();
+        otherNode.setStorage(slowStorage);
+        otherNode.setOptimisticLocking(true);
+        otherNode.setEventMergers(mergers);
+        otherNode.initialize();
+        final int commits = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(commits + 1);
+        final ExecutorService executor = Executors.newFixedThreadPool(commits + 1);
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i <= commits; i++) {
+            final String entry = "entry" + i;
+            // The last commit is made by another node and conflicts with the group.
+            final UserProfileCache committer = i < commits ? cache : otherNode;
+            results.add(executor.submit(() -> {
+                final TestEventsCache eventsCache = new TestEventsCache();
+                final Event read = committer.getSingleEvent(foobarUser, "list", eventsCache);
+                final ArrayNode list = read != null ? (ArrayNode) read.getData().deepCopy()
+                        : JsonNodeFactory.instance.arrayNode();
+                committer.setSingleEvent("list", list.add(entry), eventsCache);
+                barrier.await();
+                return committer.commitEventsCache(foobarUser, eventsCache);
+            }));
+        }
+        for (final Future<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        executor.shutdown();
+        Assert.assertTrue(cache.getCoalescedCommits() > 0);
+        final JsonNode list = cache.getSingleEvent(foobarUser, "list").getData();
+        Assert.assertEquals(list.size(), commits + 1);
+        for (int i = 0; i <= commits; i++) {
+            Assert.assertTrue(list.toString().contains("\"entry" + i + "\""));
+        }
+        otherNode.destroy();
+        cache.destroy();
+        slowStorage.destroy();
+    }
+
+    @Test
+    public void testCoalescedReads() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final MemoryStorageService slowReadStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                reads.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(context, key);
+            }
+        };
+        slowReadStorage.setId("slowRead");
+        slowReadStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(slowReadStorage);
+        cache.setCoalesceReads(true);
+        cache.initialize();
+        cache.setSingleEvent(foobarUser, "name", "value1");
+        reads.set(0);
+        final int readers = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(readers);
+        final ExecutorService executor = Executors.newFixedThreadPool(readers);
+        final List<Future<Event>> results = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            results.add(executor.submit(() -> {
+                barrier.await();
+                return cache.getSingleEvent(foobarUser, "name", new TestEventsCache());
+            }));
+        }
+        for (final Future<Event> result : results) {
+            Assert.assertEquals(result.get().getValue(), "value1");
+        }
+        executor.shutdown();
+        Assert.assertTrue(reads.get() < readers);
+        Assert.assertEquals(cache.getCoalescedReads(), readers - reads.get());
+        // A write makes later reads read again.
+        cache.setSingleEvent(foobarUser, "name", "value2");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        cache.destroy();
+        slowReadStorage.destroy();
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final MemoryStorageService countingStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key);
+            }
+        };
+        countingStorage.setId("counting");
+        countingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(countingStorage);
+        cache.setNearCache(true);
+        cache.initialize();
+        cache.setSingleEvent(foobarUser, "name", "value1");
+        reads.set(0);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", new TestEventsCache()).getValue(), "value1");
+        // Only the first read transfers the record, the others check its version.
+        Assert.assertEquals(reads.get(), 1);
+        Assert.assertEquals(cache.getNearCacheHits(), 2);
+        // A write of another node is noticed by the version check.
+        final UserProfileCache otherNode = new UserProfileCache();
+        otherNode.setStorage(countingStorage);
+        otherNode.initialize();
+        otherNode.setSingleEvent(foobarUser, "name", "value2");
+        final long misses = cache.getNearCacheMisses();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        Assert.assertEquals(cache.getNearCacheMisses(), misses + 1);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        Assert.assertEquals(cache.getNearCacheHits(), 3);
+        // Own writes invalidate the cached record.
+        cache.setSingleEvent(foobarUser, "name", "value3");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value3");
+        otherNode.destroy();
+        cache.destroy();
+        countingStorage.destroy();
+    }
+
+    @Test
+    public void testOffHeapCache() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final MemoryStorageService countingStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key);
+            }
+        };
+        countingStorage.setId("counting");
+        countingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(countingStorage);
+        cache.setOffHeapCache(true);
+        cache.setOffHeapCacheSize(64 * 1024);
+        cache.initialize();
+        cache.setSingleEvent(foobarUser, "name", "value1");
+        reads.set(0);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", new TestEventsCache()).getValue(), "value1");
+        // Only the first read transfers the record, the others check its version.
+        Assert.assertEquals(reads.get(), 1);
+        Assert.assertEquals(cache.getOffHeapCacheHits(), 2);
+        // A write of another node is noticed by the version check.
+        final UserProfileCache otherNode = new UserProfileCache();
+        otherNode.setStorage(countingStorage);
+        otherNode.initialize();
+        otherNode.setSingleEvent(foobarUser, "name", "value2");
+        final long misses = cache.getOffHeapCacheMisses();
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        Assert.assertEquals(cache.getOffHeapCacheHits(), 4);
+        Assert.assertEquals(cache.getOffHeapCacheMisses(), misses);
+        // Own writes invalidate the cached record.
+        cache.setSingleEvent(foobarUser, "name", "value3");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value3");
+        otherNode.destroy();
+        cache.destroy();
+        countingStorage.destroy();
+    }
+
+    @Test
+    public void testOffHeapCacheWithoutRevalidation() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final MemoryStorageService countingStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key);
+            }
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> Pair<Long, StorageRecord<T>> read(final String context, final String key, final long version)
+                    throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key, version);
+            }
+        };
+        countingStorage.setId("counting");
+        countingStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(countingStorage);
+        cache.setOffHeapCache(true);
+        cache.setOffHeapCacheSize(64 * 1024);
+        cache.setOffHeapCacheRevalidation(false);
+        cache.initialize();
+        cache.setSingleEvent(foobarUser, "name", "value1");
+        reads.set(0);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name", new TestEventsCache()).getValue(), "value1");
+        // Only the first read reaches the storage.
+        Assert.assertEquals(reads.get(), 1);
+        Assert.assertEquals(cache.getOffHeapCacheHits(), 2);
+        // Own writes still invalidate the cached record.
+        cache.setSingleEvent(foobarUser, "name", "value2");
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        cache.destroy();
+        countingStorage.destroy();
+    }
+
+    @Test
+    public void testSharding() throws Exception {
+        final List<StorageService> storages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final MemoryStorageService storage = new MemoryStorageService();
+            storage.setId("shard" + i);
+            storage.initialize();
+            storages.add(storage);
+        }
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setShardStorages(storages.subList(0, 2));
+        cache.initialize();
+        Assert.assertNull(cache.getStorage());
+        for (int i = 0; i < 50; i++) {
+            cache.setSingleEvent("user" + i, "name", "value" + i);
+        }
+        Assert.assertEquals(cache.getStorageShards().size(), 2);
+        for (final StorageShard shard : cache.getStorageShards()) {
+            Assert.assertTrue(shard.getOperations() > 0);
+            Assert.assertTrue(shard.getMaxLatency().compareTo(shard.getAverageLatency()) >= 0);
+        }
+        // A third storage is added, records not yet moved are read from their previous storage.
+        final UserProfileCache migrating = new UserProfileCache();
+        migrating.setShardStorages(storages);
+        migrating.setPreviousShardStorages(storages.subList(0, 2));
+        migrating.initialize();
+        final UserProfileCache migrated = new UserProfileCache();
+        migrated.setShardStorages(storages);
+        migrated.initialize();
+        int moved = 0;
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(migrating.getSingleEvent("user" + i, "name").getValue(), "value" + i);
+            if (migrated.getSingleEvent("user" + i, "name") == null) {
+                moved++;
+                migrating.setSingleEvent("user" + i, "other", "other" + i);
+                Assert.assertEquals(migrated.getSingleEvent("user" + i, "name").getValue(), "value" + i);
+            }
+        }
+        Assert.assertTrue(moved > 0);
+        migrated.destroy();
+        migrating.destroy();
+        cache.destroy();
+        storages.forEach(storage -> ((MemoryStorageService) storage).destroy());
+    }
+
+    @Test
+    public void testHotTier() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final MemoryStorageService coldStorage = new MemoryStorageService() {
+
+            /** {@inheritDoc} */
+            @Override
+            public <T> StorageRecord<T> read(final String context, final String key) throws IOException {
+                reads.incrementAndGet();
+                return super.read(context, key);
+            }
+        };
+        coldStorage.setId("cold");
+        coldStorage.initialize();
+        final MemoryStorageService hotStorage = new MemoryStorageService();
+        hotStorage.setId("hot");
+        hotStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(coldStorage);
+        cache.setHotStorage(hotStorage);
+        cache.setHotIdleTime(Duration.ofMillis(1));
+        cache.setOptimisticLocking(true);
+        cache.initialize();
+        cache.setSingleEvent(foobarUser, "name", "value1");
+        reads.set(0);
+        // Written through to the hot tier.
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(reads.get(), 0);
+        Assert.assertEquals(cache.getHotTierHits(), 1);
+        Thread.sleep(10);
+        Assert.assertEquals(cache.demote(), 1);
+        Assert.assertEquals(cache.getDemotions(), 1);
+        // Promoted on read from the durable storage.
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(reads.get(), 1);
+        Assert.assertEquals(cache.getPromotions(), 1);
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value1");
+        Assert.assertEquals(reads.get(), 1);
+        // Versioned updates use the version of the promoted record.
+        Assert.assertTrue(cache.setSingleEvent(foobarUser, "name", "value2"));
+        Assert.assertEquals(cache.getSingleEvent(foobarUser, "name").getValue(), "value2");
+        Assert.assertEquals(cache.getHotTierMisses(), 2);
+        cache.destroy();
+        hotStorage.destroy();
+        coldStorage.destroy();
+    }
+
+    @Test
+    public void testHotTierClustered() throws Exception {
+        final MemoryStorageService clusteredStorage = new SmallValueStorageService(Long.MAX_VALUE, true);
+        clusteredStorage.setId("clustered");
+        clusteredStorage.initialize();
+        final MemoryStorageService hotStorage = new MemoryStorageService();
+        hotStorage.setId("hot");
+        hotStorage.initialize();
+        // A memory storage of each node in front of a clustered storage would serve stale records.
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setStorage(clusteredStorage);
+        cache.setHotStorage(hotStorage);
+        try {
+            cache.initialize();
+            Assert.fail("Hot tier not clustered in front of clustered storage");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+        final UserProfileCache clusteredCache = new UserProfileCache();
+        clusteredCache.setStorage(clusteredStorage);
+        clusteredCache.setHotStorage(clusteredStorage);
+        clusteredCache.initialize();
+        clusteredCache.destroy();
+        hotStorage.destroy();
+        clusteredStorage.destroy();
+    }
+
+    @Test
+    public void testNearCacheHotTierShards() throws Exception {
+        final List<StorageService> storages = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final MemoryStorageService storage = new MemoryStorageService();
+            storage.setId("shard" + i);
+            storage.initialize();
+            storages.add(storage);
+        }
+        final MemoryStorageService hotStorage = new MemoryStorageService();
+        hotStorage.setId("hot");
+        hotStorage.initialize();
+        final UserProfileCache cache = new UserProfileCache();
+        cache.setShardStorages(storages);
+        cache.setHotStorage(hotStorage);
+        cache.setHotIdleTime(Duration.ofMillis(1));
+        cache.setNearCache(true);
+        cache.initialize();
+        final UserProfileCache otherNode = new UserProfileCache();
+        otherNode.setShardStorages(storages);
+        otherNode.setHotStorage(hotStorage);
+        otherNode.setHotIdleTime(Duration.ofMillis(1));
+        otherNode.initialize();
+        final int users = 20;
+        for (int i = 0; i < users; i++) {
+            cache.setSingleEvent("user" + i, "name", "value" + i);
+        }
+        for (int i = 0; i < users; i++) {
+            Assert.assertEquals(cache.getSingleEvent("user" + i, "name").getValue(), "value" + i);
+            Assert.assertEquals(cache.getSingleEvent("user" + i, "name").getValue(), "value" + i);
+        }
+        Assert.assertTrue(cache.getNearCacheHits() >= users);
+        // Cached records are revalidated against the hot tier copies only.
+        final long operations = cache.getStorageShards().stream().mapToLong(StorageShard::getOperations).sum();
+        for (int i = 0; i < users; i++) {
+            Assert.assertEquals(cache.getSingleEvent("user" + i, "name").getValue(), "value" + i);
+        }
+        Assert.assertEquals(cache.getStorageShards().stream().mapToLong(StorageShard::getOperations).sum(),
+                operations);
+        // Writes of another node through the shared hot tier are noticed.
+        for (int i = 0; i < users; i += 2) {
+            otherNode.setSingleEvent("user" + i, "name", "other" + i);
+        }
+        for (int i = 0; i < users; i++) {
+            Assert.assertEquals(cache.getSingleEvent("user" + i, "name").getValue(),
+                    (i % 2 == 0 ? "other" : "value") + i);
+        }
+        // Records demoted to their shard are still read consistently.
+        Thread.sleep(10);
+        Assert.assertEquals(cache.demote(), users);
+        for (final StorageShard shard : cache.getStorageShards()) {
+            Assert.assertTrue(shard.getOperations() > 0);
+        }
+        for (int i = 0; i < users; i++) {
+            Assert.assertEquals(cache.getSingleEvent("user" + i, "name").getValue(),
+                    (i % 2 == 0 ? "other" : "value") + i);
+        }
+        otherNode.setSingleEvent("user1", "name", "other1");
+        Assert.assertEquals(cache.getSingleEvent("user1", "name").getValue(), "other1");
+        otherNode.destroy();
+        cache.destroy();
+        hotStorage.destroy();
+        storages.forEach(storage -> ((MemoryStorageService) storage).destroy());
+    }
+
+    /**
+     * Commit event of name "name" with the user as value.
+     * 
+     * @param cache cache to commit to
+     * @param user  user to commit for
+     * @return whether commit succeeded
+     */
+    private boolean commit(final UserProfileCache cache, final String user) {
+        final TestEventsCache eventsCache = new TestEventsCache();
+        cache.getSingleEvent(user, "name", eventsCache);
+        cache.setSingleEvent("name", user, eventsCache);
+        return cache.commitEventsCache(user, eventsCache);
+    }
+
+    /**
+     * Minimal {@link EventsCache} implementation.
+     */
+    private static class TestEventsCache implements EventsCache {
+
+        /** Cached events. */
+        private Events events;
+
+        /** {@inheritDoc} */
+        @Override
+        public void setEvents(final Events cachedEvents) {
+            events = cachedEvents;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Events getEvents() {
+            return events;
+        }
+    }
+
+    /**
+     * Storage service holding writes until the expected number of writers have entered it.
+     */
+    private static class GatedStorageService extends MemoryStorageService {
+
+        /** Counts the writers that have entered the storage. */
+        private final CountDownLatch entered;
+
+        /** Opened to let the held writers proceed. */
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        /**
+         * Constructor.
+         * 
+         * @param writers number of writers expected to be inside the storage at once
+         */
+        GatedStorageService(final int writers) {
+            entered = new CountDownLatch(writers);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean create(final String context, final String key, final String value, final Long expiration)
+                throws IOException {
+            pass();
+            return super.create(context, key, value, expiration);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean update(final String context, final String key, final String value, final Long expiration)
+                throws IOException {
+            pass();
+            return super.update(context, key, value, expiration);
+        }
+
+        /**
+         * Wait for the expected number of writers to be inside the storage.
+         * 
+         * @return whether the writers entered in time
+         * @throws InterruptedException if interrupted while waiting
+         */
+        boolean awaitEntered() throws InterruptedException {
+            return entered.await(5, TimeUnit.SECONDS);
+        }
+
+        /** Let the held writers proceed. */
+        void release() {
+            released.countDown();
+        }
+
+        /** Announce the writer and hold it until released. */
+        private void pass() {
+            entered.countDown();
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Memory storage service simulating the write latency of a remote store.
+     */
+    private static class SlowStorageService extends MemoryStorageService {
+
+        /** Latency added to each write in milliseconds. */
+        private final long latency;
+
+        /**
+         * Constructor.
+         * 
+         * @param writeLatency latency added to each write in milliseconds
+         */
+        SlowStorageService(final long writeLatency) {
+            latency = writeLatency;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean create(final String context, final String key, final String value, final Long expiration)
+                throws IOException {
+            pause();
+            return super.create(context, key, value, expiration);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean update(final String context, final String key, final String value, final Long expiration)
+                throws IOException {
+            pause();
+            return super.update(context, key, value, expiration);
+        }
+
+        /** Sleep for the configured latency. */
+        private void pause() {
+            try {
+                Thread.sleep(latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Memory storage service with a small max value size.
+     */
+    private static class SmallValueStorageService extends MemoryStorageService {
+
+        /** Max value size. */
+        private final long valueSize;
+
+        /** Whether the storage is clustered. */
+        private final boolean clustered;
+
+        /**
+         * Constructor.
+         * 
+         * @param size max value size
+         */
+        SmallValueStorageService(final long size) {
+            this(size, false);
+        }
+
+        /**
+         * Constructor.
+         * 
+         * @param size          max value size
+         * @param clusteredFlag whether the storage is clustered
+         */
+        SmallValueStorageService(final long size, final boolean clusteredFlag) {
+            valueSize = size;
+            clustered = clusteredFlag;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public StorageCapabilities getCapabilities() {
+            final StorageCapabilities capabilities = super.getCapabilities();
+            return new StorageCapabilities() {
+
+                /** {@inheritDoc} */
+                @Override
+                public boolean isServerSide() {
+                    return capabilities.isServerSide();
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public boolean isClustered() {
+                    return clustered || capabilities.isClustered();
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public int getContextSize() {
+                    return capabilities.getContextSize();
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public int getKeySize() {
+                    return capabilities.getKeySize();
+                }
+
+                /** {@inheritDoc} */
+                @Override
+                public long getValueSize() {
+                    return valueSize;
+                }
+            };
+        }
+    }
+
+}
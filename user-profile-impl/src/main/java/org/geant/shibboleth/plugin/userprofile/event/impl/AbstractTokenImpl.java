@@ -19,9 +19,9 @@ package org.geant.shibboleth.plugin.userprofile.event.impl;
 import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.Token;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import net.shibboleth.idp.plugin.oidc.op.token.support.TokenClaimsSet;
 
@@ -127,8 +127,7 @@ public abstract class AbstractTokenImpl implements Token {
      * @throws JsonProcessingException if error occurs
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(this);
+        return JsonSupport.getWriter().writeValueAsString(this);
     }
 
 }
@@ -19,12 +19,13 @@ package org.geant.shibboleth.plugin.userprofile.event.impl;
 import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.AccessToken;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import net.shibboleth.idp.plugin.oidc.op.token.support.AccessTokenClaimsSet;
 
@@ -33,6 +34,9 @@ import net.shibboleth.idp.plugin.oidc.op.token.support.AccessTokenClaimsSet;
  */
 public class AccessTokenImpl extends AbstractTokenImpl implements AccessToken {
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(AccessTokenImpl.class);
+
     /** Audience of the token. */
     private final List<String> audience;
 
@@ -83,8 +87,7 @@ public class AccessTokenImpl extends AbstractTokenImpl implements AccessToken {
      * @throws JsonProcessingException json is not json at all
      */
     public static AccessTokenImpl parse(String token) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(token, AccessTokenImpl.class);
+        return READER.readValue(token);
     }
 
 }
@@ -20,20 +20,33 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class providing serialization and deserialization for access tokens
  * {@link AccessTokenImpl}. Access tokens are stored to user profile storage by
  * key {@link AccessTokens.ENTRY_NAME}
+ * 
+ * <p>
+ * The tokens are stored ordered by expiration in a framed representation, so
+ * that a token is inserted and the expired tokens are dropped by
+ * {@link #append(String, AccessTokenImpl, long)} without parsing the stored
+ * tokens.
+ * </p>
  */
 public class AccessTokens {
 
     /** Entry name in user profile storage. */
     public final static String ENTRY_NAME = "org.geant.shibboleth.plugin.userprofile.event.impl.AccessTokens";
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(AccessTokenImpl[].class);
+
     /** Access tokens. */
     private List<AccessTokenImpl> accessTokens = new ArrayList<>();
 
@@ -62,13 +75,49 @@ public class AccessTokens {
      * @throws JsonProcessingException json is not json at all.
      */
     public static AccessTokens parse(String tokens) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        AccessTokenImpl[] accessTokens = objectMapper.readValue(tokens, AccessTokenImpl[].class);
+        if (tokens.stripLeading().startsWith("{")) {
+            return parse(READER.readTree(tokens));
+        }
+        AccessTokenImpl[] accessTokens = READER.readValue(tokens);
+        AccessTokens accTokens = new AccessTokens();
+        accTokens.accessTokens = new ArrayList<>(Arrays.asList(accessTokens));
+        return accTokens;
+    }
+
+    /**
+     * Parse instance from json tree.
+     * 
+     * @param tokens json tree.
+     * @return AccessTokens parsed from json tree.
+     * @throws JsonMappingException    json contained illegal fields
+     * @throws JsonProcessingException json is not json at all.
+     */
+    public static AccessTokens parse(JsonNode tokens) throws JsonMappingException, JsonProcessingException {
+        if (TokenArrays.isFramed(tokens)) {
+            return parse(TokenArrays.unframe(tokens));
+        }
+        AccessTokenImpl[] accessTokens = READER.treeToValue(tokens, READER.getValueType());
         AccessTokens accTokens = new AccessTokens();
         accTokens.accessTokens = new ArrayList<>(Arrays.asList(accessTokens));
         return accTokens;
     }
 
+    /**
+     * Insert access token by its expiration to serialized framed access tokens
+     * without parsing the stored tokens. Expired tokens are dropped.
+     * 
+     * @param tokens serialized framed access tokens, null if none.
+     * @param token  access token to insert.
+     * @param now    current time as seconds from epoch, tokens expired before it
+     *               are dropped.
+     * @return serialized framed access tokens with the token inserted, null if the
+     *         tokens are not in framed representation.
+     * @throws JsonProcessingException if the token cannot be serialized
+     */
+    public static String append(String tokens, AccessTokenImpl token, long now) throws JsonProcessingException {
+        return TokenArrays.append(tokens, token, now);
+    }
+
     /**
      * Serialize instance to json string.
      * 
@@ -76,7 +125,24 @@ public class AccessTokens {
      * @throws JsonProcessingException something went wrong.
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(getAccessTokens());
+        return JsonSupport.getWriter().writeValueAsString(getAccessTokens());
+    }
+
+    /**
+     * Convert instance to json tree.
+     * 
+     * @return json tree representing the instance.
+     */
+    public JsonNode toJson() {
+        return JsonSupport.valueToTree(getAccessTokens());
+    }
+
+    /**
+     * Convert instance to framed json tree, tokens ordered by expiration.
+     * 
+     * @return framed json tree representing the instance.
+     */
+    public JsonNode toFramedJson() {
+        return TokenArrays.frame(toJson());
     }
 }
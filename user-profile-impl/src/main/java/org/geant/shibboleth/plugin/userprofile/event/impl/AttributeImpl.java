@@ -19,20 +19,32 @@ package org.geant.shibboleth.plugin.userprofile.event.impl;
 import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.Attribute;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class implementing {@link Attribute} and providing serialization and
  * deserialization.
+ * 
+ * <p>
+ * Attributes are stored by id only, display name and description are resolved
+ * by {@link AttributeMetadataDictionary} when rendered. Missing fields are not
+ * serialized.
+ * </p>
  */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class AttributeImpl implements Attribute {
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(AttributeImpl.class);
+
     /** Attribute id. */
     private final String id;
 
@@ -45,6 +57,16 @@ public class AttributeImpl implements Attribute {
     /** Attribute values. */
     private final List<String> values;
 
+    /**
+     * Constructor for attribute stored by id only.
+     * 
+     * @param id     attribute id
+     * @param values attribute values
+     */
+    public AttributeImpl(String id, List<String> values) {
+        this(id, null, null, values);
+    }
+
     /**
      * Constructor.
      * 
@@ -90,7 +112,8 @@ public class AttributeImpl implements Attribute {
     @Override
     @JsonIgnore
     public String getDisplayValue() {
-        return values != null ? name + " [ " + String.join(",", values) + " ] " : name;
+        String label = name != null ? name : id;
+        return values != null ? label + " [ " + String.join(",", values) + " ] " : label;
     }
 
     /**
@@ -102,8 +125,7 @@ public class AttributeImpl implements Attribute {
      * @throws JsonProcessingException json is not json at all
      */
     public static AttributeImpl parse(String attribute) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(attribute, AttributeImpl.class);
+        return READER.readValue(attribute);
     }
 
     /**
@@ -113,7 +135,6 @@ public class AttributeImpl implements Attribute {
      * @throws JsonProcessingException something went wrong.
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(this);
+        return JsonSupport.getWriter().writeValueAsString(this);
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import jakarta.servlet.http.HttpServletRequest;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.transcoding.AttributeTranscoderRegistry;
+import net.shibboleth.idp.consent.logic.impl.AttributeDisplayDescriptionFunction;
+import net.shibboleth.idp.consent.logic.impl.AttributeDisplayNameFunction;
+import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.primitive.StringSupport;
+import net.shibboleth.shared.service.ReloadableService;
+
+/**
+ * Global dictionary of attribute display metadata derived from the
+ * {@link AttributeTranscoderRegistry}.
+ * 
+ * <p>
+ * Attributes are stored in user profile storage by attribute id only. Their
+ * display name and description are the same for every user and every login, so
+ * they are resolved from the dictionary when rendered, in the languages of the
+ * request. Display metadata stored by earlier versions is used for attributes
+ * the registry has none for.
+ * </p>
+ * 
+ * <p>
+ * The dictionary is versioned by the time the registry was last loaded, so
+ * anything derived from it may be invalidated when the registry is reloaded.
+ * </p>
+ * 
+ * <p>
+ * Resolved display metadata is memoized by attribute id and the languages of
+ * the request, so resolving it walks the registry and matches languages once
+ * per attribute and language list. The memo is replaced when the registry is
+ * reloaded. Once the memo holds {@link #MAX_MEMOIZED} entries, further display
+ * metadata is resolved without memoizing it.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class AttributeMetadataDictionary {
+
+    /** Max number of memoized display metadata entries. */
+    public static final int MAX_MEMOIZED = 10000;
+
+    /** Transcoder registry service object. */
+    @Nonnull
+    private final ReloadableService<AttributeTranscoderRegistry> transcoderRegistry;
+
+    /** Memo of display metadata resolved from the current version of the registry. */
+    @Nonnull
+    private final AtomicReference<Memo> memo = new AtomicReference<>(new Memo(null));
+
+    /** The system wide languages to inspect if there is no match with browser. */
+    @Nullable
+    private final List<String> fallbackLanguages;
+
+    /**
+     * Constructor.
+     * 
+     * @param registry registry of transcoding rules supplying attribute display
+     *                 metadata
+     * @param langs    the system wide languages to inspect if there is no match
+     *                 with browser
+     */
+    public AttributeMetadataDictionary(@Nonnull final ReloadableService<AttributeTranscoderRegistry> registry,
+            @Nullable @NonnullElements final List<String> langs) {
+        transcoderRegistry = Constraint.isNotNull(registry, "Transcoder registry cannot be null");
+        fallbackLanguages = langs != null ? List.copyOf(StringSupport.normalizeStringCollection(langs)) : null;
+    }
+
+    /**
+     * Get version of the dictionary, the time the registry was last loaded.
+     * 
+     * @return version of the dictionary, null if the registry is not loaded
+     */
+    @Nullable
+    public Instant getVersion() {
+        return transcoderRegistry.getLastSuccessfulReloadInstant();
+    }
+
+    /**
+     * Get resolver of attribute display metadata in the languages of the request.
+     * The resolver returns an attribute with the display name and description
+     * resolved and the id and values of the stored attribute.
+     * 
+     * @param request request whose languages are preferred, null if none
+     * @return resolver of attribute display metadata
+     */
+    @Nonnull
+    public UnaryOperator<AttributeImpl> getResolver(@Nullable final HttpServletRequest request) {
+        final Memo current = getMemo();
+        final String languages = getLanguages(request);
+        final AttributeDisplayNameFunction nameFunction = new AttributeDisplayNameFunction(request,
+                fallbackLanguages, transcoderRegistry);
+        final AttributeDisplayDescriptionFunction descriptionFunction = new AttributeDisplayDescriptionFunction(
+                request, fallbackLanguages, transcoderRegistry);
+        return attribute -> {
+            if (attribute == null || attribute.getId() == null || attribute.getId().isEmpty()) {
+                return attribute;
+            }
+            final String key = languages + '|' + attribute.getId();
+            String[] metadata = current.entries.get(key);
+            if (metadata == null) {
+                final IdPAttribute idpAttribute = new IdPAttribute(attribute.getId());
+                metadata = new String[] {nameFunction.apply(idpAttribute), descriptionFunction.apply(idpAttribute)};
+                if (current.entries.size() < MAX_MEMOIZED) {
+                    current.entries.putIfAbsent(key, metadata);
+                }
+            }
+            return new AttributeImpl(attribute.getId(), select(metadata[0], attribute.getName(), attribute.getId()),
+                    select(metadata[1], attribute.getDescription(), attribute.getId()), attribute.getValues());
+        };
+    }
+
+    /**
+     * Get number of memoized display metadata entries.
+     * 
+     * @return number of memoized display metadata entries
+     */
+    public int getMemoized() {
+        return getMemo().entries.size();
+    }
+
+    /**
+     * Get memo of the current version of the registry, replacing the memo of a
+     * previous version.
+     * 
+     * @return memo of the current version of the registry
+     */
+    @Nonnull
+    private Memo getMemo() {
+        final Instant version = getVersion();
+        Memo current = memo.get();
+        while (!Objects.equals(current.version, version)) {
+            final Memo replacement = new Memo(version);
+            if (memo.compareAndSet(current, replacement)) {
+                return replacement;
+            }
+            current = memo.get();
+        }
+        return current;
+    }
+
+    /**
+     * Get the languages of the request the display metadata is resolved in.
+     * 
+     * @param request request whose languages are preferred, null if none
+     * @return the languages of the request as language tags
+     */
+    @Nonnull
+    private static String getLanguages(@Nullable final HttpServletRequest request) {
+        if (request == null) {
+            return "";
+        }
+        return Collections.list(request.getLocales()).stream().map(Locale::toLanguageTag)
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Select resolved display metadata over stored one. The display functions
+     * default to the attribute id, in which case stored metadata is preferred.
+     * 
+     * @param resolved resolved display metadata
+     * @param stored   stored display metadata
+     * @param id       attribute id
+     * @return display metadata to use
+     */
+    @Nullable
+    private static String select(@Nullable final String resolved, @Nullable final String stored,
+            @Nonnull final String id) {
+        if (resolved == null || (stored != null && resolved.equals(id))) {
+            return stored;
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolve display metadata of the attributes in place.
+     * 
+     * @param attributes attributes to resolve display metadata of, null if none
+     * @param resolver   resolver of attribute display metadata
+     */
+    public static void resolve(@Nullable final List<AttributeImpl> attributes,
+            @Nonnull final UnaryOperator<AttributeImpl> resolver) {
+        if (attributes != null && !attributes.isEmpty()) {
+            attributes.replaceAll(resolver);
+        }
+    }
+
+    /** Display metadata memoized for a version of the registry. */
+    private static final class Memo {
+
+        /** Version of the registry, null if not loaded. */
+        @Nullable
+        private final Instant version;
+
+        /** Display name and description by the languages and id of the attribute. */
+        @Nonnull
+        private final Map<String, String[]> entries = new ConcurrentHashMap<>();
+
+        /**
+         * Constructor.
+         * 
+         * @param registryVersion version of the registry, null if not loaded
+         */
+        private Memo(@Nullable final Instant registryVersion) {
+            version = registryVersion;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Deduplicated json representation of entries carrying attribute sets, such as
+ * {@link LoginEventImpl} and {@link ConnectedServiceImpl}.
+ * 
+ * <p>
+ * Logins to the same service almost always release an identical set of
+ * attributes. Each distinct set of attributes is stored once, by a short hash of
+ * its content, in the field {@link #SETS_FIELD}. The entries, an array or an
+ * object, are stored in the field {@link #ENTRIES_FIELD} and reference their
+ * attributes by the hash in the field {@link #REFERENCE_FIELD}.
+ * </p>
+ * 
+ * <p>
+ * Only the sets referenced by the entries are stored, so sets no longer
+ * referenced are dropped on every write. The entries of the json trees are
+ * shared, not modified.
+ * </p>
+ */
+public final class AttributeSets {
+
+    /** Field holding the attribute sets by hash. */
+    @Nonnull
+    public static final String SETS_FIELD = "attributeSets";
+
+    /** Field holding the entries. */
+    @Nonnull
+    public static final String ENTRIES_FIELD = "entries";
+
+    /** Field of an entry holding the hash of its attribute set. */
+    @Nonnull
+    public static final String REFERENCE_FIELD = "attributeSet";
+
+    /** Number of characters of the base64 encoded hash used, 66 bits. */
+    private static final int HASH_LENGTH = 11;
+
+    /** Constructor. */
+    private AttributeSets() {
+    }
+
+    /**
+     * Whether the json tree is a deduplicated representation.
+     * 
+     * @param node json tree
+     * @return whether the json tree is a deduplicated representation
+     */
+    public static boolean isDeduplicated(@Nullable final JsonNode node) {
+        return node != null && node.isObject() && node.path(SETS_FIELD).isObject() && node.has(ENTRIES_FIELD);
+    }
+
+    /**
+     * Deduplicate attribute sets of the entries.
+     * 
+     * @param entries         entries, an array or an object
+     * @param attributesField field of an entry holding its attribute set
+     * @return deduplicated representation
+     */
+    @Nonnull
+    public static ObjectNode deduplicate(@Nonnull final JsonNode entries, @Nonnull final String attributesField) {
+        final ObjectNode sets = JsonNodeFactory.instance.objectNode();
+        final JsonNode deduplicated;
+        if (entries.isObject()) {
+            final ObjectNode entriesNode = JsonNodeFactory.instance.objectNode();
+            final Iterator<Map.Entry<String, JsonNode>> fields = entries.fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                entriesNode.set(field.getKey(), reference(field.getValue(), attributesField, sets));
+            }
+            deduplicated = entriesNode;
+        } else {
+            final ArrayNode entriesNode = JsonNodeFactory.instance.arrayNode(entries.size());
+            for (final JsonNode entry : entries) {
+                entriesNode.add(reference(entry, attributesField, sets));
+            }
+            deduplicated = entriesNode;
+        }
+        return wrap(sets, deduplicated);
+    }
+
+    /**
+     * Wrap attribute sets and entries referencing them to deduplicated
+     * representation.
+     * 
+     * @param sets    attribute sets by hash
+     * @param entries entries referencing the attribute sets
+     * @return deduplicated representation
+     */
+    @Nonnull
+    public static ObjectNode wrap(@Nonnull final ObjectNode sets, @Nonnull final JsonNode entries) {
+        final ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.set(SETS_FIELD, sets);
+        node.set(ENTRIES_FIELD, entries);
+        return node;
+    }
+
+    /**
+     * Replace attribute set of the entry with a reference to it, adding the set to
+     * the sets if absent. Entries without attributes are returned as such.
+     * 
+     * @param entry           entry
+     * @param attributesField field of the entry holding its attribute set
+     * @param sets            attribute sets by hash
+     * @return entry referencing its attribute set
+     */
+    @Nonnull
+    public static JsonNode reference(@Nonnull final JsonNode entry, @Nonnull final String attributesField,
+            @Nonnull final ObjectNode sets) {
+        final JsonNode attributes = entry.get(attributesField);
+        if (!entry.isObject() || attributes == null || !attributes.isArray() || attributes.isEmpty()) {
+            return entry;
+        }
+        final String hash = hash(attributes);
+        if (!sets.has(hash)) {
+            sets.set(hash, attributes);
+        }
+        final ObjectNode referencing = JsonNodeFactory.instance.objectNode().setAll((ObjectNode) entry);
+        referencing.remove(attributesField);
+        referencing.put(REFERENCE_FIELD, hash);
+        return referencing;
+    }
+
+    /**
+     * Inline attribute sets to the entries of deduplicated representation.
+     * 
+     * @param node            deduplicated representation
+     * @param attributesField field of an entry holding its attribute set
+     * @return entries with their attribute sets, an array or an object
+     * @throws JsonMappingException if an entry references a missing set
+     */
+    @Nonnull
+    public static JsonNode inline(@Nonnull final JsonNode node, @Nonnull final String attributesField)
+            throws JsonMappingException {
+        final JsonNode sets = node.path(SETS_FIELD);
+        final JsonNode entries = node.path(ENTRIES_FIELD);
+        if (entries.isObject()) {
+            final ObjectNode inlined = JsonNodeFactory.instance.objectNode();
+            final Iterator<Map.Entry<String, JsonNode>> fields = entries.fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                inlined.set(field.getKey(), dereference(field.getValue(), attributesField, sets));
+            }
+            return inlined;
+        }
+        if (!entries.isArray()) {
+            throw malformed("Entries of deduplicated attribute sets are malformed");
+        }
+        final ArrayNode inlined = JsonNodeFactory.instance.arrayNode(entries.size());
+        for (final JsonNode entry : entries) {
+            inlined.add(dereference(entry, attributesField, sets));
+        }
+        return inlined;
+    }
+
+    /**
+     * Get hash of the entry's attribute set, null if it has no reference to one.
+     * 
+     * @param entry entry
+     * @return hash of the attribute set, null if none
+     */
+    @Nullable
+    public static String getReference(@Nonnull final JsonNode entry) {
+        final JsonNode reference = entry.get(REFERENCE_FIELD);
+        return reference != null && reference.isTextual() ? reference.asText() : null;
+    }
+
+    /**
+     * Get hash of content of the attribute set.
+     * 
+     * @param attributes attribute set
+     * @return base64url encoded hash of content of the attribute set
+     */
+    @Nonnull
+    public static String hash(@Nonnull final JsonNode attributes) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(attributes.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, HASH_LENGTH);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Replace reference of the entry with the attribute set it references.
+     * Entries without a reference are returned as such.
+     * 
+     * @param entry           entry
+     * @param attributesField field of the entry holding its attribute set
+     * @param sets            attribute sets by hash
+     * @return entry with its attribute set
+     * @throws JsonMappingException if the entry references a missing set
+     */
+    @Nonnull
+    private static JsonNode dereference(@Nonnull final JsonNode entry, @Nonnull final String attributesField,
+            @Nonnull final JsonNode sets) throws JsonMappingException {
+        final String hash = getReference(entry);
+        if (hash == null) {
+            return entry;
+        }
+        final JsonNode attributes = sets.get(hash);
+        if (attributes == null) {
+            throw malformed("Attribute set " + hash + " is missing");
+        }
+        final ObjectNode inlined = JsonNodeFactory.instance.objectNode().setAll((ObjectNode) entry);
+        inlined.remove(REFERENCE_FIELD);
+        inlined.set(attributesField, attributes);
+        return inlined;
+    }
+
+    /**
+     * Create exception for malformed representation.
+     * 
+     * @param message description of the problem
+     * @return the exception
+     */
+    @Nonnull
+    private static JsonMappingException malformed(@Nonnull final String message) {
+        return JsonMappingException.from((JsonParser) null, message);
+    }
+}
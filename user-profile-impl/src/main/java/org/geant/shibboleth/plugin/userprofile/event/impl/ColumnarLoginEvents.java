@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Columnar json representation of a list of {@link LoginEventImpl}.
+ * 
+ * <p>
+ * Relying party ids, service names, authentication context classes and client
+ * addresses are stored once in a dictionary of strings, and attributes once in
+ * a dictionary of attributes. The login events are stored column by column as
+ * a base64 encoded sequence of unsigned variable length integers:
+ * </p>
+ * <ol>
+ * <li>number of login events</li>
+ * <li>authentication times in seconds, each as a zigzag encoded delta to the
+ * previous time</li>
+ * <li>relying party ids, service names, authentication context classes and
+ * client addresses, each as index to the strings plus one, 0 for none</li>
+ * <li>number of attributes of each login event plus one, 0 for none</li>
+ * <li>attributes of the login events as indexes to the attributes</li>
+ * </ol>
+ * 
+ * <p>
+ * Values repeating from login to login are thus stored once, and the times of
+ * successive logins take a few bytes each.
+ * </p>
+ */
+public final class ColumnarLoginEvents {
+
+    /** Field holding the format version, tells the representation is columnar. */
+    @Nonnull
+    public static final String FORMAT_FIELD = "columnar";
+
+    /** Format version. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Field holding the dictionary of strings. */
+    @Nonnull
+    private static final String STRINGS_FIELD = "strings";
+
+    /** Field holding the dictionary of attributes. */
+    @Nonnull
+    private static final String ATTRIBUTES_FIELD = "attributes";
+
+    /** Field holding the columns. */
+    @Nonnull
+    private static final String COLUMNS_FIELD = "columns";
+
+    /** Value of missing authentication context class and client address. */
+    @Nonnull
+    private static final String NOT_AVAILABLE = "n/a";
+
+    /** Reader for attributes. */
+    @Nonnull
+    private static final ObjectReader ATTRIBUTE_READER = JsonSupport.readerFor(AttributeImpl.class);
+
+    /** Constructor. */
+    private ColumnarLoginEvents() {
+    }
+
+    /**
+     * Whether the json tree is a columnar representation.
+     * 
+     * @param loginEvents json tree
+     * @return whether the json tree is a columnar representation
+     */
+    public static boolean isColumnar(@Nullable final JsonNode loginEvents) {
+        return loginEvents != null && loginEvents.isObject() && loginEvents.has(FORMAT_FIELD);
+    }
+
+    /**
+     * Encode login events to columnar representation.
+     * 
+     * @param loginEvents login events, oldest first
+     * @return columnar representation
+     */
+    @Nonnull
+    public static JsonNode encode(@Nonnull final List<LoginEventImpl> loginEvents) {
+        final Map<String, Integer> strings = new HashMap<>();
+        final ArrayNode stringsNode = JsonNodeFactory.instance.arrayNode();
+        final Map<String, Integer> attributes = new HashMap<>();
+        final ArrayNode attributesNode = JsonNodeFactory.instance.arrayNode();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(loginEvents.size() * 8);
+        writeVarint(out, loginEvents.size());
+        long previousTime = 0;
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            final long delta = loginEvent.getTime() - previousTime;
+            writeVarint(out, (delta << 1) ^ (delta >> 63));
+            previousTime = loginEvent.getTime();
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            writeVarint(out, reference(loginEvent.getId(), strings, stringsNode));
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            writeVarint(out, reference(loginEvent.getName(), strings, stringsNode));
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            writeVarint(out, reference(available(loginEvent.getAcr()), strings, stringsNode));
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            writeVarint(out, reference(available(loginEvent.getAddress()), strings, stringsNode));
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            writeVarint(out, loginEvent.getAttributes() != null ? loginEvent.getAttributes().size() + 1 : 0);
+        }
+        for (final LoginEventImpl loginEvent : loginEvents) {
+            if (loginEvent.getAttributes() != null) {
+                for (final Object attribute : loginEvent.getAttributes()) {
+                    final JsonNode attributeNode = JsonSupport.valueToTree(attribute);
+                    writeVarint(out, attributes.computeIfAbsent(attributeNode.toString(), text -> {
+                        attributesNode.add(attributeNode);
+                        return attributesNode.size() - 1;
+                    }));
+                }
+            }
+        }
+        final ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put(FORMAT_FIELD, FORMAT_VERSION);
+        node.set(STRINGS_FIELD, stringsNode);
+        node.set(ATTRIBUTES_FIELD, attributesNode);
+        node.put(COLUMNS_FIELD, Base64.getEncoder().withoutPadding().encodeToString(out.toByteArray()));
+        return node;
+    }
+
+    /**
+     * Decode login events from columnar representation.
+     * 
+     * @param loginEvents columnar representation
+     * @return login events, oldest first
+     * @throws JsonMappingException    if the representation is malformed
+     * @throws JsonProcessingException if an attribute is malformed
+     */
+    @Nonnull
+    public static LoginEventImpl[] decode(@Nonnull final JsonNode loginEvents)
+            throws JsonMappingException, JsonProcessingException {
+        if (loginEvents.path(FORMAT_FIELD).asInt() != FORMAT_VERSION) {
+            throw malformed("Unsupported columnar login events format " + loginEvents.path(FORMAT_FIELD));
+        }
+        final JsonNode stringsNode = loginEvents.path(STRINGS_FIELD);
+        final List<AttributeImpl> attributes = new ArrayList<>();
+        for (final JsonNode attributeNode : loginEvents.path(ATTRIBUTES_FIELD)) {
+            attributes.add(ATTRIBUTE_READER.treeToValue(attributeNode, AttributeImpl.class));
+        }
+        final byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(loginEvents.path(COLUMNS_FIELD).asText());
+        } catch (final IllegalArgumentException e) {
+            throw malformed("Columnar login events are not base64 encoded", e);
+        }
+        final int[] position = {0};
+        final long length = readVarint(bytes, position);
+        if (length > bytes.length) {
+            throw malformed("Columnar login events have more events than columns");
+        }
+        final int count = (int) length;
+        final long[] times = new long[count];
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            final long zigzag = readVarint(bytes, position);
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+            times[i] = time;
+        }
+        final String[][] columns = new String[4][count];
+        for (final String[] column : columns) {
+            for (int i = 0; i < count; i++) {
+                column[i] = string(stringsNode, readVarint(bytes, position));
+            }
+        }
+        final int[] attributeCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            attributeCounts[i] = (int) readVarint(bytes, position);
+        }
+        final LoginEventImpl[] decoded = new LoginEventImpl[count];
+        for (int i = 0; i < count; i++) {
+            List<AttributeImpl> eventAttributes = null;
+            if (attributeCounts[i] > 0) {
+                eventAttributes = new ArrayList<>(attributeCounts[i] - 1);
+                for (int j = 1; j < attributeCounts[i]; j++) {
+                    final long index = readVarint(bytes, position);
+                    if (index >= attributes.size()) {
+                        throw malformed("Columnar login events refer to unknown attribute " + index);
+                    }
+                    eventAttributes.add(attributes.get((int) index));
+                }
+            }
+            decoded[i] = new LoginEventImpl(columns[0][i], columns[1][i], times[i], eventAttributes, columns[2][i],
+                    columns[3][i]);
+        }
+        return decoded;
+    }
+
+    /**
+     * Get reference to a string in the dictionary, adding it if not there yet.
+     * 
+     * @param value       the string, null if none
+     * @param strings     indexes of the strings in the dictionary
+     * @param stringsNode the dictionary
+     * @return index of the string plus one, 0 if none
+     */
+    private static long reference(@Nullable final String value, @Nonnull final Map<String, Integer> strings,
+            @Nonnull final ArrayNode stringsNode) {
+        if (value == null) {
+            return 0;
+        }
+        return strings.computeIfAbsent(value, text -> {
+            stringsNode.add(text);
+            return stringsNode.size();
+        });
+    }
+
+    /**
+     * Get string referred to.
+     * 
+     * @param stringsNode the dictionary
+     * @param reference   index of the string plus one, 0 if none
+     * @return the string, null if none
+     * @throws JsonMappingException if there is no such string
+     */
+    @Nullable
+    private static String string(@Nonnull final JsonNode stringsNode, final long reference)
+            throws JsonMappingException {
+        if (reference == 0) {
+            return null;
+        }
+        if (reference > stringsNode.size()) {
+            throw malformed("Columnar login events refer to unknown string " + reference);
+        }
+        return stringsNode.get((int) reference - 1).asText();
+    }
+
+    /**
+     * Map the value of a missing authentication context class or client address
+     * to null.
+     * 
+     * @param value the value
+     * @return the value, null if missing
+     */
+    @Nullable
+    private static String available(@Nullable final String value) {
+        return NOT_AVAILABLE.equals(value) ? null : value;
+    }
+
+    /**
+     * Create exception for malformed representation.
+     * 
+     * @param message description of the problem
+     * @return the exception
+     */
+    @Nonnull
+    private static JsonMappingException malformed(@Nonnull final String message) {
+        return JsonMappingException.from((JsonParser) null, message);
+    }
+
+    /**
+     * Create exception for malformed representation.
+     * 
+     * @param message description of the problem
+     * @param cause   cause of the problem
+     * @return the exception
+     */
+    @Nonnull
+    private static JsonMappingException malformed(@Nonnull final String message, @Nonnull final Exception cause) {
+        return JsonMappingException.from((JsonParser) null, message, cause);
+    }
+
+    /**
+     * Write unsigned variable length integer.
+     * 
+     * @param out   stream to write to
+     * @param value non-negative value
+     */
+    private static void writeVarint(@Nonnull final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    /**
+     * Read unsigned variable length integer.
+     * 
+     * @param bytes    bytes to read from
+     * @param position current position, advanced by the read
+     * @return value read
+     * @throws JsonMappingException if the bytes end prematurely or value is too
+     *                              long
+     */
+    private static long readVarint(@Nonnull final byte[] bytes, @Nonnull final int[] position)
+            throws JsonMappingException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw malformed("Columnar login events ended prematurely");
+            }
+            final byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw malformed("Malformed variable length integer in columnar login events");
+    }
+}
@@ -21,13 +21,14 @@ import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.Attribute;
 import org.geant.shibboleth.plugin.userprofile.event.api.ConnectedService;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class implementing {@link ConnectedService} and providing serialization and
@@ -35,6 +36,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  */
 public class ConnectedServiceImpl implements ConnectedService {
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(ConnectedServiceImpl.class);
+
     /** Relying party id of the connected service. */
     private final String id;
 
@@ -126,8 +130,7 @@ public class ConnectedServiceImpl implements ConnectedService {
      */
     public static ConnectedServiceImpl parse(String connectedService)
             throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(connectedService, ConnectedServiceImpl.class);
+        return READER.readValue(connectedService);
     }
 
     /**
@@ -137,8 +140,7 @@ public class ConnectedServiceImpl implements ConnectedService {
      * @throws JsonProcessingException something went wrong
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(this);
+        return JsonSupport.getWriter().writeValueAsString(this);
     }
 
 }
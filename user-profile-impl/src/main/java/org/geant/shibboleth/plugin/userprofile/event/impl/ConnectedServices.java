@@ -19,24 +19,44 @@ package org.geant.shibboleth.plugin.userprofile.event.impl;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class providing serialization and deserialization for map of 'relying party'
  * -> {@link ConnectedServiceImpl}. Map is stored to user profile storage by key
  * name {@link ConnectedServiceImpl.ENTRY_NAME}
+ * 
+ * <p>
+ * Optionally the map is serialized with the attribute sets of the connected
+ * services deduplicated to {@link AttributeSets}. Both representations are
+ * parsed.
+ * </p>
  */
 public class ConnectedServices {
 
     /** Entry name in user profile storage. */
     public final static String ENTRY_NAME = "org.geant.shibboleth.plugin.userprofile.event.impl.ConnectedServices";
 
+    /** Field of a connected service holding its attributes. */
+    private static final String ATTRIBUTES_FIELD = "lastAttributes";
+
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport
+            .readerFor(new TypeReference<HashMap<String, ConnectedServiceImpl>>() {
+            });
+
     /** Map of connected services record per relying party. */
     private Map<String, ConnectedServiceImpl> connectedServices = new HashMap<>();
 
+    /** Whether to serialize with attribute sets deduplicated. */
+    private boolean attributeSets;
+
     /**
      * Constructor.
      */
@@ -52,6 +72,15 @@ public class ConnectedServices {
         return connectedServices;
     }
 
+    /**
+     * Set whether to serialize with attribute sets deduplicated.
+     * 
+     * @param flag whether to serialize with attribute sets deduplicated.
+     */
+    public void setAttributeSets(boolean flag) {
+        attributeSets = flag;
+    }
+
     /**
      * Parse instance from json representation.
      * 
@@ -62,10 +91,24 @@ public class ConnectedServices {
      */
     public static ConnectedServices parse(String connectedServices)
             throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        TypeReference<HashMap<String, ConnectedServiceImpl>> typeRef = new TypeReference<HashMap<String, ConnectedServiceImpl>>() {
-        };
-        Map<String, ConnectedServiceImpl> connectedOrganizations = objectMapper.readValue(connectedServices, typeRef);
+        return parse(READER.readTree(connectedServices));
+    }
+
+    /**
+     * Parse instance from json tree.
+     * 
+     * @param connectedServices json tree.
+     * @return ConnectedServices parsed from json tree.
+     * @throws JsonMappingException    json contained illegal fields.
+     * @throws JsonProcessingException json is not json at all.
+     */
+    public static ConnectedServices parse(JsonNode connectedServices)
+            throws JsonMappingException, JsonProcessingException {
+        if (AttributeSets.isDeduplicated(connectedServices)) {
+            return parse(AttributeSets.inline(connectedServices, ATTRIBUTES_FIELD));
+        }
+        Map<String, ConnectedServiceImpl> connectedOrganizations = READER.treeToValue(connectedServices,
+                READER.getValueType());
         ConnectedServices services = new ConnectedServices();
         services.getConnectedServices().putAll(connectedOrganizations);
         return services;
@@ -78,7 +121,16 @@ public class ConnectedServices {
      * @throws JsonProcessingException something went wrong.
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(getConnectedServices());
+        return JsonSupport.getWriter().writeValueAsString(toJson());
+    }
+
+    /**
+     * Convert instance to json tree.
+     * 
+     * @return json tree representing the instance.
+     */
+    public JsonNode toJson() {
+        final JsonNode map = JsonSupport.valueToTree(getConnectedServices());
+        return attributeSets ? AttributeSets.deduplicate(map, ATTRIBUTES_FIELD) : map;
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.EventMerger;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Merges concurrent modifications of {@link ConnectedServices}.
+ * 
+ * <p>
+ * Authentications counted by the local modification are added to the current
+ * count of the connected service, and the service is otherwise updated to the
+ * local one. Services added concurrently are kept. Services with
+ * {@link AttributeSets} deduplicated are merged with the sets inlined, and the
+ * merged services are in the representation of the local modification.
+ * </p>
+ */
+public class ConnectedServicesMerger implements EventMerger {
+
+    /** Name of the json field holding the attributes of a connected service. */
+    private static final String ATTRIBUTES = "lastAttributes";
+
+    /** Name of the json field holding the number of authentications. */
+    private static final String TIMES = "times";
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public JsonNode merge(@Nonnull final JsonNode current, @Nullable final JsonNode base,
+            @Nonnull final JsonNode local) {
+        if (AttributeSets.isDeduplicated(current) || AttributeSets.isDeduplicated(base)
+                || AttributeSets.isDeduplicated(local)) {
+            try {
+                final JsonNode merged = merge(inline(current), base != null ? inline(base) : null, inline(local));
+                return AttributeSets.isDeduplicated(local) ? AttributeSets.deduplicate(merged, ATTRIBUTES) : merged;
+            } catch (final JsonMappingException e) {
+                return local;
+            }
+        }
+        if (!current.isObject() || !local.isObject()) {
+            return local;
+        }
+        final ObjectNode merged = ((ObjectNode) current).deepCopy();
+        final Iterator<Map.Entry<String, JsonNode>> services = local.fields();
+        while (services.hasNext()) {
+            final Map.Entry<String, JsonNode> service = services.next();
+            final JsonNode currentService = merged.get(service.getKey());
+            if (currentService == null || !service.getValue().isObject()) {
+                merged.set(service.getKey(), service.getValue());
+                continue;
+            }
+            final JsonNode baseService = base != null ? base.get(service.getKey()) : null;
+            final long added = getTimes(service.getValue()) - getTimes(baseService);
+            if (added > 0) {
+                final ObjectNode updated = ((ObjectNode) service.getValue()).deepCopy();
+                updated.put(TIMES, getTimes(currentService) + added);
+                merged.set(service.getKey(), updated);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Inline attribute sets of connected services if deduplicated.
+     * 
+     * @param services json representation of {@link ConnectedServices}
+     * @return connected services with attribute sets inlined
+     * @throws JsonMappingException if a service references a missing set
+     */
+    @Nonnull
+    private static JsonNode inline(@Nonnull final JsonNode services) throws JsonMappingException {
+        return AttributeSets.isDeduplicated(services) ? AttributeSets.inline(services, ATTRIBUTES) : services;
+    }
+
+    /**
+     * Get number of authentications to a connected service.
+     * 
+     * @param service json representation of {@link ConnectedServiceImpl}, null if
+     *                none
+     * @return number of authentications
+     */
+    private static long getTimes(@Nullable final JsonNode service) {
+        return service != null ? service.path(TIMES).asLong() : 0;
+    }
+}
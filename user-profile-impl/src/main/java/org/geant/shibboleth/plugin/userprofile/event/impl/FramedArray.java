@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Framed json representation of an array, spliced as a string.
+ *
+ * <p>
+ * The entries are stored in the entries field, preceded by the index field
+ * holding for each entry its optional key and the length of its serialized
+ * form:
+ * </p>
+ *
+ * <pre>
+ * {"index":[k1,l1,...,kn,ln],"entries":[e1,...,en]}
+ * </pre>
+ *
+ * <p>
+ * Keyed entries are ordered by their keys. The index gives the count, the keys
+ * and the offsets of the entries, so entries are cut and inserted by
+ * {@link #splice(Frame, int, int, long, String)} on the serialized string by
+ * reading the index only. The entries are neither parsed nor serialized again.
+ * </p>
+ */
+final class FramedArray {
+
+    /** Serialized form after the entries. */
+    @Nonnull
+    private static final String SUFFIX = "]}";
+
+    /** Field holding the index. */
+    @Nonnull
+    private final String indexField;
+
+    /** Field holding the entries. */
+    @Nonnull
+    private final String entriesField;
+
+    /** Whether the entries are keyed. */
+    private final boolean keyed;
+
+    /** Serialized form up to the index. */
+    @Nonnull
+    private final String prefix;
+
+    /** Serialized form between the index and the entries. */
+    @Nonnull
+    private final String separator;
+
+    /**
+     * Constructor.
+     *
+     * @param index   field holding the index
+     * @param entries field holding the entries
+     * @param isKeyed whether the entries are keyed
+     */
+    FramedArray(@Nonnull final String index, @Nonnull final String entries, final boolean isKeyed) {
+        indexField = index;
+        entriesField = entries;
+        keyed = isKeyed;
+        prefix = "{\"" + index + "\":[";
+        separator = "],\"" + entries + "\":[";
+    }
+
+    /**
+     * Whether the json tree is a framed representation.
+     *
+     * @param node json tree
+     * @return whether the json tree is a framed representation
+     */
+    boolean isFramed(@Nullable final JsonNode node) {
+        return node != null && node.isObject() && node.path(indexField).isArray()
+                && node.path(entriesField).isArray();
+    }
+
+    /**
+     * Frame json array. Keyed entries are ordered by their keys.
+     *
+     * @param entries json array
+     * @param key     key of an entry, null if the entries are not keyed
+     * @return framed representation
+     */
+    @Nonnull
+    ObjectNode frame(@Nonnull final JsonNode entries, @Nullable final ToLongFunction<JsonNode> key) {
+        final List<JsonNode> ordered = new ArrayList<>(entries.size());
+        entries.forEach(ordered::add);
+        if (keyed) {
+            ordered.sort(Comparator.comparingLong(key));
+        }
+        final ArrayNode index = JsonNodeFactory.instance.arrayNode(ordered.size() * (keyed ? 2 : 1));
+        final ArrayNode framedEntries = JsonNodeFactory.instance.arrayNode(ordered.size());
+        for (final JsonNode entry : ordered) {
+            if (keyed) {
+                index.add(key.applyAsLong(entry));
+            }
+            index.add(entry.toString().length());
+            framedEntries.add(entry);
+        }
+        final ObjectNode framed = JsonNodeFactory.instance.objectNode();
+        framed.set(indexField, index);
+        framed.set(entriesField, framedEntries);
+        return framed;
+    }
+
+    /**
+     * Get json array of the entries of the framed representation.
+     *
+     * @param node framed representation
+     * @return json array of the entries
+     */
+    @Nonnull
+    JsonNode unframe(@Nonnull final JsonNode node) {
+        return node.path(entriesField);
+    }
+
+    /**
+     * Read the index of serialized framed representation.
+     *
+     * @param stored serialized framed representation, null if none
+     * @return the frame, null if not a framed representation, the index does not
+     *         match the entries or keyed entries are not ordered
+     */
+    @Nullable
+    Frame read(@Nullable final String stored) {
+        if (stored == null) {
+            return new Frame(prefix + separator + SUFFIX, 0, new long[0], new int[0], new int[0],
+                    prefix.length(), prefix.length() + separator.length());
+        }
+        if (!stored.startsWith(prefix) || !stored.endsWith(SUFFIX)) {
+            return null;
+        }
+        final int indexEnd = stored.indexOf(separator, prefix.length());
+        if (indexEnd < 0 || stored.charAt(indexEnd - 1) == ',') {
+            return null;
+        }
+        final int entriesEnd = stored.length() - SUFFIX.length();
+        int count = 0;
+        long[] keys = new long[16];
+        int[] indexOffsets = new int[16];
+        int[] entryOffsets = new int[16];
+        int entryOffset = indexEnd + separator.length();
+        int position = prefix.length();
+        while (position < indexEnd) {
+            // Each entry but the first follows a comma.
+            if (entryOffset > entriesEnd || count > 0 && stored.charAt(entryOffset - 1) != ',') {
+                return null;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, count * 2);
+                entryOffsets = Arrays.copyOf(entryOffsets, count * 2);
+            }
+            indexOffsets[count] = position;
+            entryOffsets[count] = entryOffset;
+            if (keyed) {
+                final int keyEnd = stored.indexOf(',', position);
+                if (keyEnd < 0 || keyEnd >= indexEnd) {
+                    return null;
+                }
+                try {
+                    keys[count] = Long.parseLong(stored, position, keyEnd, 10);
+                } catch (final NumberFormatException e) {
+                    return null;
+                }
+                if (count > 0 && keys[count] < keys[count - 1]) {
+                    return null;
+                }
+                position = keyEnd + 1;
+            }
+            int length = 0;
+            final int digitsStart = position;
+            while (position < indexEnd && stored.charAt(position) >= '0' && stored.charAt(position) <= '9') {
+                length = length * 10 + stored.charAt(position++) - '0';
+                if (length > entriesEnd) {
+                    return null;
+                }
+            }
+            if (position == digitsStart || (position < indexEnd && stored.charAt(position++) != ',')) {
+                return null;
+            }
+            entryOffset += length + 1;
+            count++;
+        }
+        // The last entry ends the array.
+        if (entryOffset - (count > 0 ? 1 : 0) != entriesEnd) {
+            return null;
+        }
+        return new Frame(stored, count, keys, indexOffsets, entryOffsets, indexEnd, entriesEnd);
+    }
+
+    /**
+     * Cut the first entries of the frame and insert an entry.
+     *
+     * @param frame    the frame
+     * @param cut      number of first entries cut
+     * @param insertAt position of the inserted entry among the entries before
+     *                 the cut, not before the cut entries
+     * @param key      key of the inserted entry, ignored if the entries are not
+     *                 keyed
+     * @param entry    serialized inserted entry, null if none
+     * @return serialized framed representation
+     */
+    @Nonnull
+    String splice(@Nonnull final Frame frame, final int cut, final int insertAt, final long key,
+            @Nullable final String entry) {
+        final String stored = frame.stored;
+        final int at = Math.max(cut, insertAt);
+        final StringBuilder spliced = new StringBuilder(stored.length() + (entry != null ? entry.length() + 32 : 0));
+        spliced.append(prefix);
+        final int start = spliced.length();
+        appendRange(spliced, start, stored, frame.indexOffsets, frame.indexEnd, cut, at, frame.count);
+        if (entry != null) {
+            if (spliced.length() > start) {
+                spliced.append(',');
+            }
+            if (keyed) {
+                spliced.append(key).append(',');
+            }
+            spliced.append(entry.length());
+        }
+        appendRange(spliced, start, stored, frame.indexOffsets, frame.indexEnd, at, frame.count,
+                frame.count);
+        spliced.append(separator);
+        final int entriesStart = spliced.length();
+        appendRange(spliced, entriesStart, stored, frame.entryOffsets, frame.entriesEnd, cut, at,
+                frame.count);
+        if (entry != null) {
+            if (spliced.length() > entriesStart) {
+                spliced.append(',');
+            }
+            spliced.append(entry);
+        }
+        appendRange(spliced, entriesStart, stored, frame.entryOffsets, frame.entriesEnd, at, frame.count,
+                frame.count);
+        return spliced.append(SUFFIX).toString();
+    }
+
+    /**
+     * Append the serialized range of entries or their index, separated by a comma
+     * from what precedes it in the array.
+     *
+     * @param builder builder appended to
+     * @param start   start of the array in the builder
+     * @param stored  serialized framed representation
+     * @param offsets offsets of the entries or their index
+     * @param end     end of the entries or the index
+     * @param from    first entry of the range
+     * @param to      entry after the range
+     * @param count   number of entries
+     */
+    private static void appendRange(@Nonnull final StringBuilder builder, final int start,
+            @Nonnull final String stored, @Nonnull final int[] offsets, final int end, final int from, final int to,
+            final int count) {
+        if (from >= to) {
+            return;
+        }
+        if (builder.length() > start) {
+            builder.append(',');
+        }
+        builder.append(stored, offsets[from], to < count ? offsets[to] - 1 : end);
+    }
+
+    /**
+     * Index of serialized framed representation.
+     */
+    static final class Frame {
+
+        /** Serialized framed representation. */
+        @Nonnull
+        private final String stored;
+
+        /** Number of entries. */
+        private final int count;
+
+        /** Keys of the entries. */
+        @Nonnull
+        private final long[] keys;
+
+        /** Offsets of the index of the entries. */
+        @Nonnull
+        private final int[] indexOffsets;
+
+        /** Offsets of the entries. */
+        @Nonnull
+        private final int[] entryOffsets;
+
+        /** End of the index. */
+        private final int indexEnd;
+
+        /** End of the entries. */
+        private final int entriesEnd;
+
+        /**
+         * Constructor.
+         *
+         * @param serialized   serialized framed representation
+         * @param entries      number of entries
+         * @param entryKeys    keys of the entries
+         * @param indexStarts  offsets of the index of the entries
+         * @param entryStarts  offsets of the entries
+         * @param indexLimit   end of the index
+         * @param entriesLimit end of the entries
+         */
+        private Frame(@Nonnull final String serialized, final int entries, @Nonnull final long[] entryKeys,
+                @Nonnull final int[] indexStarts, @Nonnull final int[] entryStarts, final int indexLimit,
+                final int entriesLimit) {
+            stored = serialized;
+            count = entries;
+            keys = entryKeys;
+            indexOffsets = indexStarts;
+            entryOffsets = entryStarts;
+            indexEnd = indexLimit;
+            entriesEnd = entriesLimit;
+        }
+
+        /**
+         * Get number of entries.
+         *
+         * @return number of entries
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Get key of an entry.
+         *
+         * @param entry the entry
+         * @return key of the entry
+         */
+        long getKey(final int entry) {
+            return keys[entry];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Framed json representation of a list of {@link LoginEventImpl}, appended to
+ * as a string.
+ *
+ * <p>
+ * The login events, oldest first, are stored in the field
+ * {@link #EVENTS_FIELD}, preceded by the field {@link #LENGTHS_FIELD} holding
+ * the length of the serialized form of each login event:
+ * </p>
+ *
+ * <pre>
+ * {"lengths":[l1,...,ln],"events":[e1,...,en]}
+ * </pre>
+ *
+ * <p>
+ * The header gives the count and the offsets of the login events, so a login
+ * event is appended and the oldest ones exceeding the max number of entries are
+ * cut by {@link #append(String, LoginEventImpl, long)} on the serialized string,
+ * without parsing the stored login events. The representation is json, read as
+ * any other representation by {@link LoginEvents#parse(JsonNode)}.
+ * </p>
+ */
+public final class FramedLoginEvents {
+
+    /** Field holding the lengths of the login events, tells the representation is framed. */
+    @Nonnull
+    public static final String LENGTHS_FIELD = "lengths";
+
+    /** Field holding the login events. */
+    @Nonnull
+    public static final String EVENTS_FIELD = "events";
+
+    /** Framed array of the login events. */
+    @Nonnull
+    private static final FramedArray FRAMED = new FramedArray(LENGTHS_FIELD, EVENTS_FIELD, false);
+
+    /** Constructor. */
+    private FramedLoginEvents() {
+    }
+
+    /**
+     * Whether the json tree is a framed representation.
+     *
+     * @param loginEvents json tree
+     * @return whether the json tree is a framed representation
+     */
+    public static boolean isFramed(@Nullable final JsonNode loginEvents) {
+        return FRAMED.isFramed(loginEvents);
+    }
+
+    /**
+     * Frame json array of login events.
+     *
+     * @param loginEvents json array of login events, oldest first
+     * @return framed representation
+     */
+    @Nonnull
+    public static ObjectNode frame(@Nonnull final JsonNode loginEvents) {
+        return FRAMED.frame(loginEvents, null);
+    }
+
+    /**
+     * Get json array of the login events of the framed representation.
+     *
+     * @param loginEvents framed representation
+     * @return json array of login events, oldest first
+     */
+    @Nonnull
+    public static JsonNode unframe(@Nonnull final JsonNode loginEvents) {
+        return FRAMED.unframe(loginEvents);
+    }
+
+    /**
+     * Append login event to serialized framed login events without parsing the
+     * stored login events. The oldest login events exceeding the max number of
+     * entries are cut by their offsets. Only the lengths are read.
+     *
+     * @param loginEvents serialized framed login events, null if none.
+     * @param loginEvent  login event to append.
+     * @param maxEntries  max number of entries.
+     * @return serialized framed login events with the login event appended, null
+     *         if the login events are not in framed representation or their
+     *         lengths do not match them.
+     * @throws JsonProcessingException if the login event cannot be serialized
+     */
+    @Nullable
+    public static String append(@Nullable final String loginEvents, @Nonnull final LoginEventImpl loginEvent,
+            final long maxEntries) throws JsonProcessingException {
+        final FramedArray.Frame frame = FRAMED.read(loginEvents);
+        if (frame == null) {
+            return null;
+        }
+        final int count = frame.getCount();
+        if (maxEntries <= 0) {
+            return FRAMED.splice(frame, count, count, 0, null);
+        }
+        final int cut = (int) Math.max(0, count - maxEntries + 1);
+        return FRAMED.splice(frame, cut, count, 0, JsonSupport.getWriter().writeValueAsString(loginEvent));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.EventMerger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Merges concurrent modifications of an event holding a list, such as
+ * {@link LoginEvents}, {@link AccessTokens} and {@link RefreshTokens}.
+ * 
+ * <p>
+ * Entries added by the local modification are appended to the current entries
+ * and entries removed by it are removed from the current entries, so that
+ * entries added concurrently are kept. Equal entries are counted, not
+ * collapsed. The oldest entries exceeding the max
+ * number of entries are dropped.
+ * </p>
+ */
+public class ListEventMerger implements EventMerger {
+
+    /** Max number of entries, 0 for no limit. */
+    private long maxEntries;
+
+    /**
+     * Set max number of entries, 0 for no limit.
+     * 
+     * @param max max number of entries
+     */
+    public void setMaxEntries(final long max) {
+        maxEntries = max;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public JsonNode merge(@Nonnull final JsonNode current, @Nullable final JsonNode base,
+            @Nonnull final JsonNode local) {
+        if (!current.isArray() || !local.isArray()) {
+            return local;
+        }
+        // Entries are compared by their json text, numbers of the same value may differ by node type. Equal
+        // entries are counted, so an entry added again by the local modification is kept.
+        final Map<String, Integer> baseCounts = count(base);
+        final Map<String, Integer> localCounts = count(local);
+        // Occurrences removed from the current entries, the oldest first.
+        final Map<String, Integer> removed = new HashMap<>();
+        baseCounts.forEach((text, count) -> removed.put(text, count - localCounts.getOrDefault(text, 0)));
+        // Occurrences of the local entries already in base, the oldest are not appended.
+        final Map<String, Integer> kept = new HashMap<>();
+        localCounts.forEach((text, count) -> kept.put(text, Math.min(count, baseCounts.getOrDefault(text, 0))));
+        final List<JsonNode> merged = new ArrayList<>(current.size() + local.size());
+        for (final JsonNode entry : current) {
+            if (!take(removed, entry.toString())) {
+                merged.add(entry);
+            }
+        }
+        for (final JsonNode entry : local) {
+            if (!take(kept, entry.toString())) {
+                merged.add(entry);
+            }
+        }
+        if (maxEntries > 0 && merged.size() > maxEntries) {
+            merged.subList(0, (int) (merged.size() - maxEntries)).clear();
+        }
+        return JsonNodeFactory.instance.arrayNode(merged.size()).addAll(merged);
+    }
+
+    /**
+     * Count entries of a list by their json text.
+     * 
+     * @param list the list, null if none
+     * @return number of entries by json text
+     */
+    @Nonnull
+    private static Map<String, Integer> count(@Nullable final JsonNode list) {
+        final Map<String, Integer> counts = new HashMap<>();
+        if (list != null && list.isArray()) {
+            for (final JsonNode entry : list) {
+                counts.merge(entry.toString(), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Take one occurrence of the entry from the counts, if any left.
+     * 
+     * @param counts number of occurrences left by json text
+     * @param text   json text of the entry
+     * @return whether an occurrence was taken
+     */
+    private static boolean take(@Nonnull final Map<String, Integer> counts, @Nonnull final String text) {
+        final Integer left = counts.get(text);
+        if (left == null || left <= 0) {
+            return false;
+        }
+        counts.put(text, left - 1);
+        return true;
+    }
+}
@@ -20,12 +20,14 @@ import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.Attribute;
 import org.geant.shibboleth.plugin.userprofile.event.api.LoginEvent;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class implementing {@link LoginEvent} and providing serialization and
@@ -33,6 +35,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  */
 public class LoginEventImpl implements LoginEvent {
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(LoginEventImpl.class);
+
     /** Relying party id of the connected service. */
     private final String id;
 
@@ -135,6 +140,16 @@ public class LoginEventImpl implements LoginEvent {
         return attributes;
     }
 
+    /**
+     * Get attributes sent.
+     * 
+     * @return attributes sent.
+     */
+    @JsonIgnore
+    public List<AttributeImpl> getAttributesImpl() {
+        return attributes;
+    }
+
     /**
      * Parse instance from json representation.
      * 
@@ -144,8 +159,7 @@ public class LoginEventImpl implements LoginEvent {
      * @throws JsonProcessingException json is not json at all
      */
     public static LoginEventImpl parse(String loginEvent) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(loginEvent, LoginEventImpl.class);
+        return READER.readValue(loginEvent);
     }
 
     /**
@@ -155,8 +169,7 @@ public class LoginEventImpl implements LoginEvent {
      * @throws JsonProcessingException something went wrong
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(this);
+        return JsonSupport.getWriter().writeValueAsString(this);
     }
 
 }
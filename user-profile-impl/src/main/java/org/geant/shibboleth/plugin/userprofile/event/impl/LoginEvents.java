@@ -16,29 +16,78 @@
 
 package org.geant.shibboleth.plugin.userprofile.event.impl;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.time.YearMonth;
 import java.util.List;
 
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Class providing serialization and deserialization for list of
  * {@link LoginEventImpl}. List is stored to user profile storage by key name
  * {@link LoginEvents.ENTRY_NAME}
+ * 
+ * <p>
+ * Login events are held in a {@link RingBuffer}, oldest first. Adding a login
+ * event by {@link #addLoginEvent(LoginEventImpl)} drops the oldest one when
+ * there are max number of entries, and the events are viewed newest first by
+ * {@link #getLoginEventsNewestFirst()} without sorting.
+ * </p>
+ * 
+ * <p>
+ * Optionally login events are serialized to the compact
+ * {@link ColumnarLoginEvents} representation, or with the attribute sets of
+ * the login events deduplicated to {@link AttributeSets}. On login they are
+ * otherwise stored in the {@link FramedLoginEvents} representation. All
+ * representations are parsed.
+ * </p>
+ * 
+ * <p>
+ * Optionally login events are stored per month, each month by the bucket name
+ * {@link #getBucketName(YearMonth)}, so that only the current month is read and
+ * written on login.
+ * </p>
+ * 
+ * <p>
+ * On login a login event is appended to the serialized framed login events by
+ * {@link FramedLoginEvents#append(String, LoginEventImpl, long)} without
+ * parsing them. With attribute sets deduplicated, a login event is appended to
+ * the stored json tree by {@link #append(JsonNode, LoginEventImpl, long, boolean)}
+ * without mapping the stored login events to objects. The stored elements are
+ * then still referenced into a new tree, so that append is linear in the number
+ * of stored login events.
+ * </p>
  */
 public class LoginEvents {
 
     /** Entry name in user profile storage. */
     public final static String ENTRY_NAME = "org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents";
 
+    /** Field of a login event holding its attributes. */
+    private static final String ATTRIBUTES_FIELD = "attributes";
+
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(LoginEventImpl[].class);
+
     /** Max number of items serialized. */
     private long maxEntries = 50;
 
-    /** List of login events. */
-    private List<LoginEventImpl> loginEvents = new ArrayList<>();
+    /** Whether to serialize to columnar representation. */
+    private boolean columnar;
+
+    /** Whether to serialize with attribute sets deduplicated. */
+    private boolean attributeSets;
+
+    /** Login events, oldest first. */
+    private final RingBuffer<LoginEventImpl> loginEvents = new RingBuffer<>(toCapacity(maxEntries));
 
     /**
      * Constuctor.
@@ -48,16 +97,48 @@ public class LoginEvents {
     }
 
     /**
-     * Set max number of items serialized.
+     * Get name of the bucket login events of the month are stored by.
+     * 
+     * @param month month of the login events
+     * @return name of the bucket login events of the month are stored by
+     */
+    public static String getBucketName(YearMonth month) {
+        return UserProfileCache.getBucketName(ENTRY_NAME, month.toString());
+    }
+
+    /**
+     * Set max number of items serialized. The oldest items exceeding the max
+     * number are dropped.
      * 
      * @param maxEntries max number of items serialized.
      */
     public void setMaxEntries(long maxEntries) {
         this.maxEntries = maxEntries;
+        loginEvents.setCapacity(toCapacity(maxEntries));
+    }
+
+    /**
+     * Set whether to serialize to columnar representation.
+     * 
+     * @param flag whether to serialize to columnar representation.
+     */
+    public void setColumnar(boolean flag) {
+        columnar = flag;
+    }
+
+    /**
+     * Set whether to serialize with attribute sets deduplicated. Columnar
+     * representation takes precedence.
+     * 
+     * @param flag whether to serialize with attribute sets deduplicated.
+     */
+    public void setAttributeSets(boolean flag) {
+        attributeSets = flag;
     }
 
     /**
-     * Get list of login events.
+     * Get list of login events, oldest first. The oldest login events exceeding
+     * the max number of entries are dropped when serialized.
      * 
      * @return list of login events.
      */
@@ -65,6 +146,25 @@ public class LoginEvents {
         return loginEvents;
     }
 
+    /**
+     * Add login event as the newest one, dropping the oldest login event when
+     * there are max number of entries.
+     * 
+     * @param loginEvent login event to add.
+     */
+    public void addLoginEvent(LoginEventImpl loginEvent) {
+        loginEvents.addEvicting(loginEvent);
+    }
+
+    /**
+     * Get view of login events, newest first.
+     * 
+     * @return view of login events, newest first.
+     */
+    public List<LoginEventImpl> getLoginEventsNewestFirst() {
+        return loginEvents.newestFirst();
+    }
+
     /**
      * Parse instance from json representation.
      * 
@@ -74,13 +174,132 @@ public class LoginEvents {
      * @throws JsonProcessingException json is not json at all
      */
     public static LoginEvents parse(String loginEvents) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        LoginEventImpl[] accessTokens = objectMapper.readValue(loginEvents, LoginEventImpl[].class);
+        if (loginEvents.stripLeading().startsWith("{")) {
+            return parse(READER.readTree(loginEvents));
+        }
+        LoginEventImpl[] accessTokens = READER.readValue(loginEvents);
+        return of(accessTokens);
+    }
+
+    /**
+     * Parse instance from json tree.
+     * 
+     * @param loginEvents json tree.
+     * @return LoginEvents parsed from json tree.
+     * @throws JsonMappingException    json contained illegal fields
+     * @throws JsonProcessingException json is not json at all
+     */
+    public static LoginEvents parse(JsonNode loginEvents) throws JsonMappingException, JsonProcessingException {
+        if (FramedLoginEvents.isFramed(loginEvents)) {
+            return parse(FramedLoginEvents.unframe(loginEvents));
+        }
+        if (ColumnarLoginEvents.isColumnar(loginEvents)) {
+            return of(ColumnarLoginEvents.decode(loginEvents));
+        }
+        if (AttributeSets.isDeduplicated(loginEvents)) {
+            return parse(AttributeSets.inline(loginEvents, ATTRIBUTES_FIELD));
+        }
+        LoginEventImpl[] accessTokens = READER.treeToValue(loginEvents, READER.getValueType());
+        return of(accessTokens);
+    }
+
+    /**
+     * Append login event to json array of login events without mapping the login
+     * events to objects. The stored elements are shared with the returned array,
+     * not copied nor modified, but are referenced one by one, so appending is
+     * linear in the number of login events. The oldest login events exceeding the
+     * max number of entries are dropped.
+     * 
+     * @param loginEvents json array of login events, null if none.
+     * @param loginEvent  login event to append.
+     * @param maxEntries  max number of entries.
+     * @return json array of the login events with the login event appended, null
+     *         if the login events are not a json array, e.g. columnar.
+     */
+    public static JsonNode append(JsonNode loginEvents, LoginEventImpl loginEvent, long maxEntries) {
+        return append(loginEvents, loginEvent, maxEntries, false);
+    }
+
+    /**
+     * Append login event to json tree of login events without mapping the login
+     * events to objects, with or without attribute sets deduplicated. The stored
+     * elements are shared with the returned tree, not copied nor modified, but
+     * are referenced one by one, so appending is linear in the number of login
+     * events. The oldest login events exceeding the max number of entries are
+     * dropped, and so are the attribute sets no longer referenced.
+     * 
+     * @param loginEvents   json tree of login events, null if none.
+     * @param loginEvent    login event to append.
+     * @param maxEntries    max number of entries.
+     * @param attributeSets whether the attribute sets are deduplicated.
+     * @return json tree of the login events with the login event appended, null
+     *         if the login events are in another representation.
+     */
+    public static JsonNode append(JsonNode loginEvents, LoginEventImpl loginEvent, long maxEntries,
+            boolean attributeSets) {
+        JsonNode stored = loginEvents;
+        if (attributeSets && loginEvents != null) {
+            stored = AttributeSets.isDeduplicated(loginEvents) ? loginEvents.get(AttributeSets.ENTRIES_FIELD) : null;
+        }
+        if (loginEvents != null && (stored == null || !stored.isArray())) {
+            return null;
+        }
+        final int capacity = toCapacity(maxEntries);
+        final int size = stored != null ? stored.size() : 0;
+        final ArrayNode appended = JsonNodeFactory.instance.arrayNode(Math.min(size + 1, capacity));
+        for (int i = Math.max(0, size - capacity + 1); i < size; i++) {
+            appended.add(stored.get(i));
+        }
+        final JsonNode added = JsonSupport.valueToTree(loginEvent);
+        if (!attributeSets) {
+            if (capacity > 0) {
+                appended.add(added);
+            }
+            return appended;
+        }
+        final ObjectNode sets = JsonNodeFactory.instance.objectNode();
+        for (JsonNode event : appended) {
+            String hash = AttributeSets.getReference(event);
+            if (hash != null && !sets.has(hash)) {
+                JsonNode set = loginEvents.path(AttributeSets.SETS_FIELD).get(hash);
+                if (set == null) {
+                    return null;
+                }
+                sets.set(hash, set);
+            }
+        }
+        if (capacity > 0) {
+            appended.add(AttributeSets.reference(added, ATTRIBUTES_FIELD, sets));
+        }
+        return AttributeSets.wrap(sets, appended);
+    }
+
+    /**
+     * Create instance of parsed login events, oldest first. All of them are kept
+     * until max number of entries is set.
+     * 
+     * @param parsed parsed login events, oldest first.
+     * @return LoginEvents holding the login events.
+     */
+    private static LoginEvents of(LoginEventImpl[] parsed) {
         LoginEvents events = new LoginEvents();
-        events.loginEvents = new ArrayList<LoginEventImpl>(Arrays.asList(accessTokens));
+        events.loginEvents.setCapacity(Math.max(events.loginEvents.getCapacity(), parsed.length));
+        for (LoginEventImpl event : parsed) {
+            events.loginEvents.add(event);
+        }
         return events;
     }
 
+    /**
+     * Convert max number of entries to capacity of the ring buffer.
+     * 
+     * @param maxEntries max number of entries.
+     * @return capacity of the ring buffer.
+     */
+    private static int toCapacity(long maxEntries) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE - 8, maxEntries));
+    }
+
     /**
      * Serialize instance to json string. Serialized instance has a maximum number
      * of entries that defaults to 50.
@@ -89,11 +308,32 @@ public class LoginEvents {
      * @throws JsonProcessingException something went wrong.
      */
     public String serializeWithMaxEntries() throws JsonProcessingException {
-        while (getLoginEvents().size() > maxEntries) {
-            getLoginEvents().remove(0);
-        }
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(getLoginEvents());
+        loginEvents.setCapacity(toCapacity(maxEntries));
+        return JsonSupport.getWriter().writeValueAsString(toRepresentation());
+
+    }
+
+    /**
+     * Convert instance to json tree. Converted instance has a maximum number of
+     * entries that defaults to 50.
+     * 
+     * @return json tree representing the instance.
+     */
+    public JsonNode toJsonWithMaxEntries() {
+        loginEvents.setCapacity(toCapacity(maxEntries));
+        return toRepresentation();
+    }
 
+    /**
+     * Convert login events to json tree of the representation serialized to.
+     * 
+     * @return json tree of the representation serialized to.
+     */
+    private JsonNode toRepresentation() {
+        if (columnar) {
+            return ColumnarLoginEvents.encode(loginEvents);
+        }
+        final JsonNode list = JsonSupport.valueToTree(getLoginEvents());
+        return attributeSets ? AttributeSets.deduplicate(list, ATTRIBUTES_FIELD) : list;
     }
 }
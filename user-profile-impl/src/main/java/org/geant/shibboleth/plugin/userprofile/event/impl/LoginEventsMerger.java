@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Merges concurrent modifications of {@link LoginEvents} as a
+ * {@link ListEventMerger}, in list, {@link FramedLoginEvents},
+ * {@link ColumnarLoginEvents} or {@link AttributeSets} representation. The merged login events are in the
+ * representation of the local modification.
+ */
+public class LoginEventsMerger extends ListEventMerger {
+
+    /** Field of a login event holding its attributes. */
+    @Nonnull
+    private static final String ATTRIBUTES_FIELD = "attributes";
+
+    /** Reader for login events. */
+    @Nonnull
+    private static final ObjectReader READER = JsonSupport.readerFor(LoginEventImpl[].class);
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public JsonNode merge(@Nonnull final JsonNode current, @Nullable final JsonNode base,
+            @Nonnull final JsonNode local) {
+        if (isList(current) && (base == null || isList(base)) && isList(local)) {
+            return super.merge(current, base, local);
+        }
+        try {
+            final JsonNode merged = super.merge(toList(current), base != null ? toList(base) : null, toList(local));
+            if (FramedLoginEvents.isFramed(local)) {
+                return FramedLoginEvents.frame(merged);
+            }
+            if (ColumnarLoginEvents.isColumnar(local)) {
+                return ColumnarLoginEvents.encode(Arrays.asList(READER.treeToValue(merged, LoginEventImpl[].class)));
+            }
+            return AttributeSets.isDeduplicated(local) ? AttributeSets.deduplicate(merged, ATTRIBUTES_FIELD)
+                    : merged;
+        } catch (final JsonProcessingException e) {
+            return local;
+        }
+    }
+
+    /**
+     * Whether login events are in list representation.
+     * 
+     * @param loginEvents login events
+     * @return whether login events are in list representation
+     */
+    private static boolean isList(@Nonnull final JsonNode loginEvents) {
+        return !FramedLoginEvents.isFramed(loginEvents) && !ColumnarLoginEvents.isColumnar(loginEvents)
+                && !AttributeSets.isDeduplicated(loginEvents);
+    }
+
+    /**
+     * Convert login events to list representation.
+     * 
+     * @param loginEvents login events in any representation
+     * @return login events in list representation
+     * @throws JsonProcessingException if the login events are malformed
+     */
+    @Nonnull
+    private static JsonNode toList(@Nonnull final JsonNode loginEvents) throws JsonProcessingException {
+        if (FramedLoginEvents.isFramed(loginEvents)) {
+            return FramedLoginEvents.unframe(loginEvents);
+        }
+        if (ColumnarLoginEvents.isColumnar(loginEvents)) {
+            return JsonSupport.valueToTree(ColumnarLoginEvents.decode(loginEvents));
+        }
+        return AttributeSets.isDeduplicated(loginEvents) ? AttributeSets.inline(loginEvents, ATTRIBUTES_FIELD)
+                : loginEvents;
+    }
+}
@@ -19,12 +19,13 @@ package org.geant.shibboleth.plugin.userprofile.event.impl;
 import java.util.List;
 
 import org.geant.shibboleth.plugin.userprofile.event.api.Token;
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import net.shibboleth.idp.plugin.oidc.op.token.support.RefreshTokenClaimsSet;
 
@@ -33,6 +34,9 @@ import net.shibboleth.idp.plugin.oidc.op.token.support.RefreshTokenClaimsSet;
  */
 public class RefreshTokenImpl extends AbstractTokenImpl implements Token {
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(RefreshTokenImpl.class);
+
     /**
      * Constructor.
      * 
@@ -67,8 +71,7 @@ public class RefreshTokenImpl extends AbstractTokenImpl implements Token {
      * @throws JsonProcessingException json is not json at all
      */
     public static RefreshTokenImpl parse(String token) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.readValue(token, RefreshTokenImpl.class);
+        return READER.readValue(token);
     }
 
 }
@@ -20,20 +20,33 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * Class providing serialization and deserialization for refresh tokens
  * {@link RefreshTokenImpl}. Access tokens are stored to user profile storage by
  * key {@link RefreshTokens.ENTRY_NAME}
+ * 
+ * <p>
+ * The tokens are stored ordered by expiration in a framed representation, so
+ * that a token is inserted and the expired tokens are dropped by
+ * {@link #append(String, RefreshTokenImpl, long)} without parsing the stored
+ * tokens.
+ * </p>
  */
 public class RefreshTokens {
 
     /** Entry name in user profile storage. */
     public final static String ENTRY_NAME = "org.geant.shibboleth.plugin.userprofile.event.impl.RefreshTokens";
 
+    /** Reader for json representation. */
+    private static final ObjectReader READER = JsonSupport.readerFor(RefreshTokenImpl[].class);
+
     /** Refresh tokens. */
     private List<RefreshTokenImpl> refreshTokens = new ArrayList<>();
 
@@ -62,13 +75,49 @@ public class RefreshTokens {
      * @throws JsonProcessingException json is not json at all.
      */
     public static RefreshTokens parse(String tokens) throws JsonMappingException, JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        RefreshTokenImpl[] refreshTokens = objectMapper.readValue(tokens, RefreshTokenImpl[].class);
+        if (tokens.stripLeading().startsWith("{")) {
+            return parse(READER.readTree(tokens));
+        }
+        RefreshTokenImpl[] refreshTokens = READER.readValue(tokens);
+        RefreshTokens refTokens = new RefreshTokens();
+        refTokens.refreshTokens = new ArrayList<RefreshTokenImpl>(Arrays.asList(refreshTokens));
+        return refTokens;
+    }
+
+    /**
+     * Parse instance from json tree.
+     * 
+     * @param tokens json tree.
+     * @return RefreshTokens parsed from json tree.
+     * @throws JsonMappingException    json contained illegal fields
+     * @throws JsonProcessingException json is not json at all.
+     */
+    public static RefreshTokens parse(JsonNode tokens) throws JsonMappingException, JsonProcessingException {
+        if (TokenArrays.isFramed(tokens)) {
+            return parse(TokenArrays.unframe(tokens));
+        }
+        RefreshTokenImpl[] refreshTokens = READER.treeToValue(tokens, READER.getValueType());
         RefreshTokens refTokens = new RefreshTokens();
         refTokens.refreshTokens = new ArrayList<RefreshTokenImpl>(Arrays.asList(refreshTokens));
         return refTokens;
     }
 
+    /**
+     * Insert refresh token by its expiration to serialized framed refresh tokens
+     * without parsing the stored tokens. Expired tokens are dropped.
+     * 
+     * @param tokens serialized framed refresh tokens, null if none.
+     * @param token  refresh token to insert.
+     * @param now    current time as seconds from epoch, tokens expired before it
+     *               are dropped.
+     * @return serialized framed refresh tokens with the token inserted, null if the
+     *         tokens are not in framed representation.
+     * @throws JsonProcessingException if the token cannot be serialized
+     */
+    public static String append(String tokens, RefreshTokenImpl token, long now) throws JsonProcessingException {
+        return TokenArrays.append(tokens, token, now);
+    }
+
     /**
      * Serialize instance to json string.
      * 
@@ -76,8 +125,25 @@ public class RefreshTokens {
      * @throws JsonProcessingException something went wrong.
      */
     public String serialize() throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(getRefreshTokens());
+        return JsonSupport.getWriter().writeValueAsString(getRefreshTokens());
 
     }
+
+    /**
+     * Convert instance to json tree.
+     * 
+     * @return json tree representing the instance.
+     */
+    public JsonNode toJson() {
+        return JsonSupport.valueToTree(getRefreshTokens());
+    }
+
+    /**
+     * Convert instance to framed json tree, tokens ordered by expiration.
+     * 
+     * @return framed json tree representing the instance.
+     */
+    public JsonNode toFramedJson() {
+        return TokenArrays.frame(toJson());
+    }
 }
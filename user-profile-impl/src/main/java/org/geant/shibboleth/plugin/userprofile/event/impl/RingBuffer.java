@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.shibboleth.shared.annotation.constraint.NonNegative;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * List of elements in the order they were added, backed by a circular array and
+ * bounded by a capacity when added to by {@link #addEvicting(Object)}.
+ *
+ * <p>
+ * The buffer is a regular {@link List}: {@link #add(Object)} appends and grows
+ * the buffer, and elements may be inserted and removed at any index. Adding by
+ * {@link #addEvicting(Object)} to a buffer holding its capacity of elements
+ * drops the oldest element instead, in O(1), so the buffer holds the most
+ * recently added elements. Elements are accessed by index in O(1), oldest
+ * first, and {@link #newestFirst()} views them newest first without copying.
+ * Removing the oldest element is O(1), inserting and removing elsewhere shift
+ * the elements after the index.
+ * </p>
+ *
+ * @param <E> type of the elements
+ */
+public class RingBuffer<E> extends AbstractList<E> implements RandomAccess {
+
+    /** Initial length of the backing array. */
+    private static final int INITIAL_LENGTH = 16;
+
+    /** Max length of the backing array. */
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    /** Max number of elements kept by {@link #addEvicting(Object)}. */
+    @NonNegative
+    private int capacity;
+
+    /** Elements, the oldest at {@link #head}. */
+    @Nonnull
+    private Object[] elements;
+
+    /** Index of the oldest element. */
+    private int head;
+
+    /** Number of elements. */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param maxElements max number of elements kept by {@link #addEvicting(Object)}
+     */
+    public RingBuffer(@NonNegative final int maxElements) {
+        Constraint.isTrue(maxElements >= 0, "Capacity must not be negative");
+        capacity = maxElements;
+        elements = new Object[Math.min(capacity, INITIAL_LENGTH)];
+    }
+
+    /**
+     * Get max number of elements kept by {@link #addEvicting(Object)}.
+     *
+     * @return max number of elements kept by {@link #addEvicting(Object)}
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set max number of elements kept by {@link #addEvicting(Object)}. The oldest
+     * elements exceeding the capacity are dropped.
+     *
+     * @param maxElements max number of elements
+     */
+    public void setCapacity(@NonNegative final int maxElements) {
+        Constraint.isTrue(maxElements >= 0, "Capacity must not be negative");
+        capacity = maxElements;
+        if (size > capacity) {
+            while (size > capacity) {
+                removeOldest();
+            }
+            modCount++;
+        }
+    }
+
+    /**
+     * Add element as the newest element, dropping the oldest element if the
+     * buffer holds its capacity of elements.
+     *
+     * @param element element to add
+     */
+    public void addEvicting(@Nullable final E element) {
+        if (capacity == 0) {
+            return;
+        }
+        while (size >= capacity) {
+            removeOldest();
+        }
+        add(element);
+    }
+
+    /**
+     * Add element as the newest element.
+     *
+     * @param element element to add
+     * @return true
+     */
+    @Override
+    public boolean add(@Nullable final E element) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[index(size)] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(final int index, @Nullable final E element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        if (size == elements.length) {
+            grow();
+        }
+        for (int i = size; i > index; i--) {
+            elements[index(i)] = elements[index(i - 1)];
+        }
+        elements[index(index)] = element;
+        size++;
+        modCount++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(final int index) {
+        checkIndex(index);
+        return (E) elements[index(index)];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(final int index, @Nullable final E element) {
+        checkIndex(index);
+        final int i = index(index);
+        final E previous = (E) elements[i];
+        elements[i] = element;
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(final int index) {
+        checkIndex(index);
+        final E removed = (E) elements[index(index)];
+        if (index == 0) {
+            removeOldest();
+        } else {
+            for (int i = index; i < size - 1; i++) {
+                elements[index(i)] = elements[index(i + 1)];
+            }
+            elements[index(size - 1)] = null;
+            size--;
+        }
+        modCount++;
+        return removed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+        elements = new Object[Math.min(capacity, INITIAL_LENGTH)];
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Get view of the elements, newest first.
+     *
+     * @return view of the elements, newest first
+     */
+    @Nonnull
+    public List<E> newestFirst() {
+        return new NewestFirst();
+    }
+
+    /**
+     * Remove the oldest element.
+     */
+    private void removeOldest() {
+        elements[head] = null;
+        head = (head + 1) % elements.length;
+        size--;
+    }
+
+    /**
+     * Get index in the backing array of the element at the index.
+     *
+     * @param index index of the element, oldest first
+     * @return index in the backing array
+     */
+    private int index(final int index) {
+        return (head + index) % elements.length;
+    }
+
+    /**
+     * Check the index is of an element.
+     *
+     * @param index index of the element
+     */
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    /**
+     * Grow the backing array.
+     */
+    private void grow() {
+        if (elements.length == MAX_LENGTH) {
+            throw new IllegalStateException("Ring buffer is full");
+        }
+        final Object[] grown = new Object[(int) Math.min(MAX_LENGTH,
+                Math.max(INITIAL_LENGTH, 2L * elements.length))];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[index(i)];
+        }
+        elements = grown;
+        head = 0;
+    }
+
+    /** View of the elements, newest first. */
+    private final class NewestFirst extends AbstractList<E> implements RandomAccess {
+
+        /** {@inheritDoc} */
+        @Override
+        public E get(final int index) {
+            return RingBuffer.this.get(size - 1 - index);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
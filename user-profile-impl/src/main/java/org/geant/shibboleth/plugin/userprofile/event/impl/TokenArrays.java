@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Framed json representation of tokens, ordered by expiration and appended to
+ * as a string.
+ *
+ * <p>
+ * The tokens are stored in the field {@link #TOKENS_FIELD}, preceded by the
+ * field {@link #INDEX_FIELD} holding the expiration and the length of the
+ * serialized form of each token:
+ * </p>
+ *
+ * <pre>
+ * {"index":[exp1,l1,...,expn,ln],"tokens":[t1,...,tn]}
+ * </pre>
+ *
+ * <p>
+ * The expired tokens are the first ones, so they are cut and a token is inserted
+ * by its expiration on the serialized string, by reading the index only. The
+ * stored tokens are neither parsed nor serialized again.
+ * </p>
+ */
+final class TokenArrays {
+
+    /** Field of a token holding its expiration as seconds from epoch. */
+    static final String EXP_FIELD = "exp";
+
+    /** Field holding the index of the tokens, tells the representation is framed. */
+    static final String INDEX_FIELD = "index";
+
+    /** Field holding the tokens. */
+    static final String TOKENS_FIELD = "tokens";
+
+    /** Framed array of the tokens, keyed by expiration. */
+    @Nonnull
+    private static final FramedArray FRAMED = new FramedArray(INDEX_FIELD, TOKENS_FIELD, true);
+
+    /** Constructor. */
+    private TokenArrays() {
+
+    }
+
+    /**
+     * Whether the json tree is a framed representation.
+     * 
+     * @param tokens json tree
+     * @return whether the json tree is a framed representation
+     */
+    static boolean isFramed(@Nullable final JsonNode tokens) {
+        return FRAMED.isFramed(tokens);
+    }
+
+    /**
+     * Frame json array of tokens, ordered by expiration.
+     * 
+     * @param tokens json array of tokens
+     * @return framed representation
+     */
+    @Nonnull
+    static JsonNode frame(@Nonnull final JsonNode tokens) {
+        return FRAMED.frame(tokens, token -> token.path(EXP_FIELD).asLong());
+    }
+
+    /**
+     * Get json array of the tokens of the framed representation.
+     * 
+     * @param tokens framed representation
+     * @return json array of the tokens, ordered by expiration
+     */
+    @Nonnull
+    static JsonNode unframe(@Nonnull final JsonNode tokens) {
+        return FRAMED.unframe(tokens);
+    }
+
+    /**
+     * Insert token by its expiration to serialized framed tokens, cutting the
+     * expired tokens. Only the index is read.
+     * 
+     * @param tokens serialized framed tokens, null if none.
+     * @param token  token to insert.
+     * @param now    current time as seconds from epoch, tokens expired before it
+     *               are cut.
+     * @return serialized framed tokens with the token inserted, null if the tokens
+     *         are not in framed representation or their index does not match
+     *         them.
+     * @throws JsonProcessingException if the token cannot be serialized
+     */
+    @Nullable
+    static String append(@Nullable final String tokens, @Nonnull final AbstractTokenImpl token, final long now)
+            throws JsonProcessingException {
+        final FramedArray.Frame frame = FRAMED.read(tokens);
+        if (frame == null) {
+            return null;
+        }
+        int cut = 0;
+        while (cut < frame.getCount() && frame.getKey(cut) < now) {
+            cut++;
+        }
+        // Tokens issued later mostly expire later, so the position is searched from the end.
+        int insertAt = frame.getCount();
+        while (insertAt > cut && frame.getKey(insertAt - 1) > token.getExp()) {
+            insertAt--;
+        }
+        return FRAMED.splice(frame, cut, insertAt, token.getExp(),
+                JsonSupport.getWriter().writeValueAsString(token));
+    }
+}
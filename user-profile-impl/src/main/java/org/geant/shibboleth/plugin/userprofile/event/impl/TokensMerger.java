@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Merges concurrent modifications of {@link AccessTokens} and
+ * {@link RefreshTokens} as a {@link ListEventMerger}, in list or framed
+ * representation. The merged tokens are in the representation of the local
+ * modification.
+ */
+public class TokensMerger extends ListEventMerger {
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull
+    public JsonNode merge(@Nonnull final JsonNode current, @Nullable final JsonNode base,
+            @Nonnull final JsonNode local) {
+        final JsonNode merged = super.merge(toList(current), base != null ? toList(base) : null, toList(local));
+        return TokenArrays.isFramed(local) ? TokenArrays.frame(merged) : merged;
+    }
+
+    /**
+     * Convert tokens to list representation.
+     * 
+     * @param tokens tokens in any representation
+     * @return tokens in list representation
+     */
+    @Nonnull
+    private static JsonNode toList(@Nonnull final JsonNode tokens) {
+        return TokenArrays.isFramed(tokens) ? TokenArrays.unframe(tokens) : tokens;
+    }
+}
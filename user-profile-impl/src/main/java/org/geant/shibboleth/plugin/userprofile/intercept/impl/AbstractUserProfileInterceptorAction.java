@@ -16,26 +16,43 @@
 
 package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
+import org.geant.shibboleth.plugin.userprofile.event.api.Attribute;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
 import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
 import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.context.AttributeContext;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
-import net.shibboleth.shared.annotation.constraint.NonnullBeforeExec;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
 /**
- * Updates access token information in user profile cache.
+ * Base class for actions storing user profile events to user profile cache.
+ * 
+ * <p>
+ * The actions hold no state of the request, which is carried by the
+ * {@link UserProfileCacheContext} and the other contexts of the request, so an
+ * action may be shared by concurrent requests.
+ * </p>
  */
+@ThreadSafeAfterInit
 abstract class AbstractUserProfileInterceptorAction extends AbstractProfileAction {
 
     /** Class logger. */
@@ -54,10 +71,6 @@ abstract class AbstractUserProfileInterceptorAction extends AbstractProfileActio
     @NonnullAfterInit
     protected Function<ProfileRequestContext, String> relyingPartyIdLookupStrategy;
 
-    /** User profile cache context. */
-    @NonnullBeforeExec
-    protected UserProfileCacheContext userProfileCacheContext;
-
     /**
      * Lookup strategy for user profile cache context.
      */
@@ -141,16 +154,105 @@ abstract class AbstractUserProfileInterceptorAction extends AbstractProfileActio
         if (!super.doPreExecute(profileRequestContext)) {
             return false;
         }
-        if (usernameLookupStrategy.apply(profileRequestContext) == null
-                || usernameLookupStrategy.apply(profileRequestContext).isEmpty()) {
-            log.warn("{} No username", getLogPrefix());
-            return false;
-        }
-        userProfileCacheContext = userProfileCacheContextLookupStrategy.apply(profileRequestContext);
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
         if (userProfileCacheContext == null) {
             log.warn("{} No user profile cache context", getLogPrefix());
             return false;
         }
+        String username = userProfileCacheContext.getUsername();
+        if (username == null) {
+            username = usernameLookupStrategy.apply(profileRequestContext);
+            userProfileCacheContext.setUsername(username);
+        }
+        if (username == null || username.isEmpty()) {
+            log.warn("{} No username", getLogPrefix());
+            return false;
+        }
         return true;
     }
+
+    /**
+     * Get user profile cache context of the request. The context carries the state
+     * of the request, so the action itself holds none. The username of the request
+     * is set to the context before execution.
+     * 
+     * @param profileRequestContext current profile context
+     * @return user profile cache context of the request, null if none
+     */
+    @Nullable
+    protected UserProfileCacheContext getUserProfileCacheContext(
+            @Nonnull final ProfileRequestContext profileRequestContext) {
+        return userProfileCacheContextLookupStrategy.apply(profileRequestContext);
+    }
+
+    /**
+     * Get relying party id of the request. The relying party id is resolved on
+     * first use and stored to the user profile cache context.
+     * 
+     * @param profileRequestContext   current profile context
+     * @param userProfileCacheContext user profile cache context of the request
+     * @return relying party id of the request, null if none
+     */
+    @Nullable
+    protected String getRelyingPartyId(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final UserProfileCacheContext userProfileCacheContext) {
+        String relyingPartyId = userProfileCacheContext.getRelyingPartyId();
+        if (relyingPartyId == null) {
+            relyingPartyId = relyingPartyIdLookupStrategy.apply(profileRequestContext);
+            userProfileCacheContext.setRelyingPartyId(relyingPartyId);
+        }
+        return relyingPartyId;
+    }
+
+    /**
+     * Get attributes released in the request. The attributes are built from the
+     * attribute context on first use with their values and stored to the user
+     * profile cache context, so the attributes are evaluated once per request.
+     * Values are left out of the attributes returned if the predicate of the
+     * caller decides not to collect them. Display name and description are
+     * resolved when rendered.
+     * 
+     * @param profileRequestContext   current profile context
+     * @param userProfileCacheContext user profile cache context of the request
+     * @param attributeContext        attribute context of the released attributes
+     * @param collectValues           predicate to decide on whether to collect
+     *                                attribute values
+     * @return attributes released in the request, not to be modified
+     */
+    @Nonnull
+    protected List<AttributeImpl> getReleasedAttributes(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final UserProfileCacheContext userProfileCacheContext,
+            @Nonnull final AttributeContext attributeContext,
+            @Nonnull final Predicate<ProfileRequestContext> collectValues) {
+        List<? extends Attribute> released = userProfileCacheContext.getReleasedAttributes();
+        if (released == null) {
+            final List<AttributeImpl> attributes = new ArrayList<>(attributeContext.getIdPAttributes().size());
+            for (final Entry<String, IdPAttribute> entry : attributeContext.getIdPAttributes().entrySet()) {
+                attributes.add(new AttributeImpl(entry.getKey(), toValues(entry.getValue())));
+            }
+            released = Collections.unmodifiableList(attributes);
+            userProfileCacheContext.setReleasedAttributes(released);
+        }
+        final boolean values = collectValues.test(profileRequestContext);
+        final List<AttributeImpl> attributes = new ArrayList<>(released.size());
+        for (final Attribute attribute : released) {
+            attributes.add(values && attribute instanceof AttributeImpl ? (AttributeImpl) attribute
+                    : new AttributeImpl(attribute.getId(), attribute.getName(), attribute.getDescription(),
+                            values ? attribute.getValues() : null));
+        }
+        return Collections.unmodifiableList(attributes);
+    }
+
+    /**
+     * Get display values of the attribute.
+     * 
+     * @param attribute attribute to get display values of
+     * @return display values of the attribute
+     */
+    @Nonnull
+    private static List<String> toValues(@Nonnull final IdPAttribute attribute) {
+        final List<String> values = new ArrayList<>(attribute.getValues().size());
+        attribute.getValues().forEach(value -> values.add(value.getDisplayValue()));
+        return Collections.unmodifiableList(values);
+    }
 }
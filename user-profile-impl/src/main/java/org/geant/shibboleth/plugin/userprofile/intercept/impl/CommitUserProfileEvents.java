@@ -18,13 +18,17 @@ package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
 import javax.annotation.Nonnull;
 
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+
 /**
  * Stores user profile events to user profile cache.
  */
+@ThreadSafeAfterInit
 public class CommitUserProfileEvents extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
@@ -35,8 +39,8 @@ public class CommitUserProfileEvents extends AbstractUserProfileInterceptorActio
     @Override
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
 
-        if (!userProfileCache.commitEventsCache(usernameLookupStrategy.apply(profileRequestContext),
-                userProfileCacheContext)) {
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
+        if (!userProfileCache.commitEventsCache(userProfileCacheContext.getUsername(), userProfileCacheContext)) {
             log.error("{} Failed committing user profile events", getLogPrefix());
         }
     }
@@ -18,50 +18,41 @@ package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
 import javax.annotation.Nonnull;
 
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.shibboleth.idp.plugin.oidc.op.messaging.context.OIDCAuthenticationResponseContext;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 
 /**
  * Stores authentication class reference name to
  * {@link UserProfileCacheContext}.
  */
+@ThreadSafeAfterInit
 public class StoreOIDCAuthContextClassReferencePrincipalName extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
     @Nonnull
     private final Logger log = LoggerFactory.getLogger(StoreOIDCAuthContextClassReferencePrincipalName.class);
 
-    /** oidc response context. */
-    @Nonnull
-    private OIDCAuthenticationResponseContext oidcResponseContext;
-
     /** {@inheritDoc} */
     @Override
-    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-
-        if (!super.doPreExecute(profileRequestContext)) {
-            return false;
-        }
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
         final MessageContext outboundMessageCtx = profileRequestContext.getOutboundMessageContext();
         if (outboundMessageCtx == null) {
             log.warn("{} No outbound message context", getLogPrefix());
-            return false;
+            return;
         }
-        oidcResponseContext = outboundMessageCtx.getSubcontext(OIDCAuthenticationResponseContext.class);
+        final OIDCAuthenticationResponseContext oidcResponseContext = outboundMessageCtx
+                .getSubcontext(OIDCAuthenticationResponseContext.class);
         if (oidcResponseContext == null) {
             log.warn("{} No OIDC response context", getLogPrefix());
-            return false;
+            return;
         }
-        return true;
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
         userProfileCacheContext.setAuthnContextClassReferencePrincipalName(
                 oidcResponseContext.getAcr() != null ? oidcResponseContext.getAcr().getValue() : null);
         log.debug("{} ACR stored to context as {}", getLogPrefix(),
@@ -21,6 +21,7 @@ import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.opensaml.saml.saml2.core.AuthnContext;
@@ -33,7 +34,7 @@ import net.shibboleth.idp.authn.impl.DefaultPrincipalDeterminationStrategy;
 import net.shibboleth.idp.saml.authn.principal.AuthnContextClassRefPrincipal;
 import net.shibboleth.idp.saml.authn.principal.AuthnContextDeclRefPrincipal;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
-import net.shibboleth.shared.annotation.constraint.NonnullBeforeExec;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 
@@ -41,6 +42,7 @@ import net.shibboleth.shared.logic.Constraint;
  * Stores authentication class reference name to
  * {@link UserProfileCacheContext}.
  */
+@ThreadSafeAfterInit
 public class StoreSAMLAuthContextClassReferencePrincipalName extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
@@ -58,10 +60,6 @@ public class StoreSAMLAuthContextClassReferencePrincipalName extends AbstractUse
     @NonnullAfterInit
     private Function<ProfileRequestContext, AuthnContextClassRefPrincipal> classRefLookupStrategy;
 
-    /** AuthenticationContext to operate on. */
-    @NonnullBeforeExec
-    private AuthenticationContext authnContext;
-
     /** Constructor. */
     public StoreSAMLAuthContextClassReferencePrincipalName() {
         super();
@@ -108,23 +106,14 @@ public class StoreSAMLAuthContextClassReferencePrincipalName extends AbstractUse
 
     /** {@inheritDoc} */
     @Override
-    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
 
-        if (!super.doPreExecute(profileRequestContext)) {
-            return false;
-        }
-        authnContext = authnCtxLookupStrategy.apply(profileRequestContext);
+        final AuthenticationContext authnContext = authnCtxLookupStrategy.apply(profileRequestContext);
         if (authnContext == null) {
             log.warn("{} No authentication context class", getLogPrefix());
-            return false;
+            return;
         }
-        return true;
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
         RequestedPrincipalContext requestedPrincipalContext = authnContext
                 .getSubcontext(RequestedPrincipalContext.class);
         if (requestedPrincipalContext != null && requestedPrincipalContext.getMatchingPrincipal() != null) {
@@ -17,11 +17,12 @@
 package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
 import java.text.ParseException;
+import java.time.Duration;
 import java.util.function.Function;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.geant.shibboleth.plugin.userprofile.event.impl.AccessTokenImpl;
 import org.geant.shibboleth.plugin.userprofile.event.impl.AccessTokens;
 import org.geant.shibboleth.plugin.userprofile.event.impl.RefreshTokenImpl;
@@ -41,6 +42,7 @@ import net.shibboleth.idp.plugin.oidc.op.messaging.context.OIDCAuthenticationRes
 import net.shibboleth.idp.plugin.oidc.op.token.support.AccessTokenClaimsSet;
 import net.shibboleth.idp.plugin.oidc.op.token.support.RefreshTokenClaimsSet;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
 import net.shibboleth.shared.security.DataSealer;
@@ -49,6 +51,7 @@ import net.shibboleth.shared.security.DataSealerException;
 /**
  * Updates access token information in user profile cache.
  */
+@ThreadSafeAfterInit
 public class StoreToken extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
@@ -59,24 +62,31 @@ public class StoreToken extends AbstractUserProfileInterceptorAction {
     @NonnullAfterInit
     private DataSealer dataSealer;
 
+    /** Clock skew, tokens are dropped once expired by more than it. */
+    @Nonnull
+    private Duration clockSkew;
+
     /** Strategy used to locate the subcontext with the token. */
     @Nonnull
     private Function<ProfileRequestContext, AccessTokenContext> accessTokenContextLookupStrategy;
 
-    /** oidc response context. */
-    @Nullable
-    private OIDCAuthenticationResponseContext oidcResponseContext;
-
-    /** Token context. */
-    @Nullable
-    private AccessTokenContext tokenCtx;
-
     /** Constructor. */
     public StoreToken() {
         super();
         accessTokenContextLookupStrategy = new ChildContextLookup<>(AccessTokenContext.class)
                 .compose(new ChildContextLookup<>(OIDCAuthenticationResponseContext.class)
                         .compose(new OutboundMessageContextLookup()));
+        clockSkew = Duration.ofMinutes(5);
+    }
+
+    /**
+     * Set the clock skew. Stored tokens are dropped once expired by more than it.
+     * 
+     * @param skew clock skew to set
+     */
+    public void setClockSkew(@Nonnull final Duration skew) {
+        checkSetterPreconditions();
+        clockSkew = Constraint.isNotNull(skew, "Clock skew cannot be null").abs();
     }
 
     /**
@@ -112,72 +122,73 @@ public class StoreToken extends AbstractUserProfileInterceptorAction {
 
     /** {@inheritDoc} */
     @Override
-    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-
-        if (!super.doPreExecute(profileRequestContext)) {
-            return false;
-        }
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
 
-        tokenCtx = accessTokenContextLookupStrategy.apply(profileRequestContext);
+        final AccessTokenContext tokenCtx = accessTokenContextLookupStrategy.apply(profileRequestContext);
         if (tokenCtx == null) {
             log.debug("{} AccessTokenContext is missing", getLogPrefix());
-            return false;
+            return;
         }
 
         if (tokenCtx.getJWT() == null && tokenCtx.getOpaque() == null) {
             log.debug("{} Access token is missing", getLogPrefix());
-            return false;
+            return;
         }
 
         final MessageContext outboundMessageCtx = profileRequestContext.getOutboundMessageContext();
         if (outboundMessageCtx == null) {
             log.warn("{} No outbound message context", getLogPrefix());
-            return false;
+            return;
         }
 
-        oidcResponseContext = outboundMessageCtx.getSubcontext(OIDCAuthenticationResponseContext.class);
+        final OIDCAuthenticationResponseContext oidcResponseContext = outboundMessageCtx
+                .getSubcontext(OIDCAuthenticationResponseContext.class);
         if (oidcResponseContext == null) {
             log.warn("{} No OIDC response context", getLogPrefix());
-            return false;
+            return;
         }
 
-        return true;
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-        String user = usernameLookupStrategy.apply(profileRequestContext);
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
+        final String username = userProfileCacheContext.getUsername();
+        // Tokens are dropped once expired by more than the clock skew.
+        final long expiredBefore = System.currentTimeMillis() / 1000 - clockSkew.toSeconds();
         try {
-            Event event = userProfileCache.getSingleEvent(user, AccessTokens.ENTRY_NAME, userProfileCacheContext);
-            AccessTokens accessTokens = event != null ? AccessTokens.parse(event.getValue()) : new AccessTokens();
-            // TODO: take clockSkew into consideration
-            accessTokens.getAccessTokens()
-                    .removeIf(accessToken -> accessToken.getExp() < System.currentTimeMillis() / 1000);
+            Event event = userProfileCache.getSingleEvent(username, AccessTokens.ENTRY_NAME, userProfileCacheContext);
             AccessTokenClaimsSet accessToken = tokenCtx.getJWT() != null
                     ? AccessTokenClaimsSet.parse(tokenCtx.getJWT(), dataSealer)
                     : AccessTokenClaimsSet.parse(tokenCtx.getOpaque(), dataSealer);
-            accessTokens.getAccessTokens().add(new AccessTokenImpl(accessToken));
-            userProfileCache.setSingleEvent(AccessTokens.ENTRY_NAME, accessTokens.serialize(), userProfileCacheContext);
+            // Inserted to the serialized framed tokens by expiration, without parsing the stored tokens.
+            String accessTokensValue = AccessTokens.append(event != null ? event.getValue() : null,
+                    new AccessTokenImpl(accessToken), expiredBefore);
+            if (accessTokensValue == null) {
+                AccessTokens accessTokens = AccessTokens.parse(event.getData());
+                accessTokens.getAccessTokens().removeIf(token -> token.getExp() < expiredBefore);
+                accessTokens.getAccessTokens().add(new AccessTokenImpl(accessToken));
+                accessTokensValue = accessTokens.toFramedJson().toString();
+            }
+            userProfileCache.setSingleEvent(AccessTokens.ENTRY_NAME, accessTokensValue, userProfileCacheContext);
             if (log.isDebugEnabled()) {
-                log.debug("{} Updated access tokens {} ", getLogPrefix(), accessTokens.serialize());
+                log.debug("{} Updated access tokens {} ", getLogPrefix(), accessTokensValue);
             }
             String refreshToken = oidcResponseContext.getRefreshToken() != null
                     ? oidcResponseContext.getRefreshToken().getValue()
                     : null;
             if (refreshToken != null) {
-                event = userProfileCache.getSingleEvent(user, RefreshTokens.ENTRY_NAME, userProfileCacheContext);
-                RefreshTokens refreshTokens = event != null ? RefreshTokens.parse(event.getValue())
-                        : new RefreshTokens();
-                // TODO: take clockSkew into consideration
-                refreshTokens.getRefreshTokens()
-                        .removeIf(refToken -> refToken.getExp() < System.currentTimeMillis() / 1000);
-                refreshTokens.getRefreshTokens()
-                        .add(new RefreshTokenImpl(RefreshTokenClaimsSet.parse(refreshToken, dataSealer)));
-                userProfileCache.setSingleEvent(RefreshTokens.ENTRY_NAME, refreshTokens.serialize(),
+                event = userProfileCache.getSingleEvent(username, RefreshTokens.ENTRY_NAME, userProfileCacheContext);
+                final RefreshTokenImpl refToken = new RefreshTokenImpl(
+                        RefreshTokenClaimsSet.parse(refreshToken, dataSealer));
+                String refreshTokensValue = RefreshTokens.append(event != null ? event.getValue() : null, refToken,
+                        expiredBefore);
+                if (refreshTokensValue == null) {
+                    RefreshTokens refreshTokens = RefreshTokens.parse(event.getData());
+                    refreshTokens.getRefreshTokens().removeIf(token -> token.getExp() < expiredBefore);
+                    refreshTokens.getRefreshTokens().add(refToken);
+                    refreshTokensValue = refreshTokens.toFramedJson().toString();
+                }
+                userProfileCache.setSingleEvent(RefreshTokens.ENTRY_NAME, refreshTokensValue,
                         userProfileCacheContext);
                 if (log.isDebugEnabled()) {
-                    log.debug("{} Updated refresh tokens {} ", getLogPrefix(), refreshTokens.serialize());
+                    log.debug("{} Updated refresh tokens {} ", getLogPrefix(), refreshTokensValue);
                 }
             }
 
@@ -16,16 +16,12 @@
 
 package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 
-import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.geant.shibboleth.plugin.userprofile.event.impl.ConnectedServiceImpl;
 import org.geant.shibboleth.plugin.userprofile.event.impl.ConnectedServices;
 import org.geant.shibboleth.plugin.userprofile.storage.Event;
@@ -35,26 +31,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Predicates;
 
-import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.context.AttributeContext;
-import net.shibboleth.idp.attribute.transcoding.AttributeTranscoderRegistry;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
-import net.shibboleth.idp.consent.logic.impl.AttributeDisplayDescriptionFunction;
-import net.shibboleth.idp.consent.logic.impl.AttributeDisplayNameFunction;
 import net.shibboleth.idp.ui.context.RelyingPartyUIContext;
 import net.shibboleth.profile.context.RelyingPartyContext;
-import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
-import net.shibboleth.shared.annotation.constraint.NonnullElements;
-import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.logic.Constraint;
-import net.shibboleth.shared.service.ReloadableService;
-import net.shibboleth.shared.primitive.StringSupport;
 
 /**
  * Updates connected organizations data in user profile cache.
  */
+@ThreadSafeAfterInit
 public class UpdateConnectedOrganizations extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
@@ -68,33 +58,13 @@ public class UpdateConnectedOrganizations extends AbstractUserProfileInterceptor
     @Nonnull
     private Function<ProfileRequestContext, AttributeContext> attributeContextLookupStrategy;
 
-    /** AttributeContext to use. */
-    @Nullable
-    private AttributeContext attributeCtx;
-
-    /** Transcoder registry service object. */
-    @NonnullAfterInit
-    private ReloadableService<AttributeTranscoderRegistry> transcoderRegistry;
-
-    /**
-     * The system wide languages to inspect if there is no match between metadata
-     * and browser.
-     */
-    @Nullable
-    private List<String> fallbackLanguages;
-
-    /** Function to resolve attribute description. */
-    @NonnullAfterInit
-    private AttributeDisplayDescriptionFunction attributeDisplayDescriptionFunction;
-
-    /** Function to resolve attribute name. */
-    @NonnullAfterInit
-    private AttributeDisplayNameFunction attributeDisplayNameFunction;
-
     /** Whether to collect attribute values. */
     @Nonnull
     private Predicate<ProfileRequestContext> collectAttributeValues;
 
+    /** Whether to store attribute sets of connected services deduplicated. */
+    private boolean attributeSets;
+
     /**
      * Strategy used to locate the {@link RelyingPartyUIContext} associated with a
      * given {@link ProfileRequestContext}.
@@ -102,9 +72,6 @@ public class UpdateConnectedOrganizations extends AbstractUserProfileInterceptor
     @Nonnull
     private Function<ProfileRequestContext, RelyingPartyUIContext> relyingPartyUIContextLookupStrategy;
 
-    /** Relying party ui context. */
-    private RelyingPartyUIContext rpUIContext;
-
     /** Constructor. */
     public UpdateConnectedOrganizations() {
         super();
@@ -130,33 +97,22 @@ public class UpdateConnectedOrganizations extends AbstractUserProfileInterceptor
     }
 
     /**
-     * Sets the registry of transcoding rules to apply to supply attribute display
-     * metadata.
-     * 
-     * @param registry registry service interface
-     */
-    public void setTranscoderRegistry(@Nullable final ReloadableService<AttributeTranscoderRegistry> registry) {
-        checkSetterPreconditions();
-        transcoderRegistry = registry;
-    }
-
-    /**
-     * Set the system wide default languages.
+     * Predicate to decide on whether to collect attribute values.
      * 
-     * @param langs a semi-colon separated string.
+     * @param collect predicate to decide on whether to collect attribute values.
      */
-    public void setFallbackLanguages(@Nonnull @NonnullElements final List<String> langs) {
-        checkSetterPreconditions();
-        fallbackLanguages = List.copyOf(StringSupport.normalizeStringCollection(langs));
+    public void setCollectAttributeValues(Predicate<ProfileRequestContext> collect) {
+        collectAttributeValues = collect;
     }
 
     /**
-     * Predicate to decide on whether to collect attribute values.
+     * Set whether to store the attribute sets of connected services deduplicated, each
+     * distinct set once by a hash of its content.
      * 
-     * @param collect predicate to decide on whether to collect attribute values.
+     * @param flag whether to store the attribute sets deduplicated
      */
-    public void setCollectAttributeValues(Predicate<ProfileRequestContext> collect) {
-        collectAttributeValues = collect;
+    public void setAttributeSets(boolean flag) {
+        attributeSets = flag;
     }
 
     /**
@@ -173,84 +129,40 @@ public class UpdateConnectedOrganizations extends AbstractUserProfileInterceptor
 
     /** {@inheritDoc} */
     @Override
-    protected void doInitialize() throws ComponentInitializationException {
-        super.doInitialize();
-        if (transcoderRegistry == null) {
-            throw new ComponentInitializationException("transcoderRegistry cannot be null");
-        }
-        attributeDisplayDescriptionFunction = new AttributeDisplayDescriptionFunction(getHttpServletRequest(),
-                fallbackLanguages, transcoderRegistry);
-        attributeDisplayNameFunction = new AttributeDisplayNameFunction(getHttpServletRequest(), fallbackLanguages,
-                transcoderRegistry);
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-
-        if (!super.doPreExecute(profileRequestContext)) {
-            return false;
-        }
-
-        attributeCtx = attributeContextLookupStrategy.apply(profileRequestContext);
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final AttributeContext attributeCtx = attributeContextLookupStrategy.apply(profileRequestContext);
         if (attributeCtx == null) {
             log.debug("{} No attribute context available, nothing to do", getLogPrefix());
-            return false;
+            return;
         }
-
-        rpUIContext = relyingPartyUIContextLookupStrategy.apply(profileRequestContext);
+        final RelyingPartyUIContext rpUIContext = relyingPartyUIContextLookupStrategy.apply(profileRequestContext);
         if (rpUIContext == null) {
             log.debug("{} Unable to locate relying party ui context", getLogPrefix());
-            return false;
+            return;
         }
-
-        return true;
-    }
-
-    /**
-     * Transform IdPAttribute to AttributeImpl.
-     * 
-     * @param entry                 IdPAttribute to be transformed
-     * @param profileRequestContext current profile context
-     * @return AttributeImpl to be stored to user profile cache.
-     */
-    private AttributeImpl toAttributeImpl(Entry<String, IdPAttribute> entry,
-            @Nonnull final ProfileRequestContext profileRequestContext) {
-        List<String> values;
-        if (collectAttributeValues.test(profileRequestContext)) {
-            values = new ArrayList<>();
-            entry.getValue().getValues().forEach(value -> values.add(value.getDisplayValue()));
-        } else {
-            values = null;
-        }
-        return new AttributeImpl(entry.getKey(), attributeDisplayNameFunction.apply(entry.getValue()),
-                attributeDisplayDescriptionFunction.apply(entry.getValue()), values);
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-        String user = usernameLookupStrategy.apply(profileRequestContext);
-        Event event = userProfileCache.getSingleEvent(user, ConnectedServices.ENTRY_NAME, userProfileCacheContext);
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
+        final String username = userProfileCacheContext.getUsername();
+        Event event = userProfileCache.getSingleEvent(username, ConnectedServices.ENTRY_NAME, userProfileCacheContext);
         ConnectedServices organizations;
         try {
-            organizations = event != null ? ConnectedServices.parse(event.getValue()) : new ConnectedServices();
+            organizations = event != null ? ConnectedServices.parse(event.getData()) : new ConnectedServices();
             if (log.isDebugEnabled()) {
                 log.debug("Connected organizations {}", organizations.serialize());
             }
-            String rpId = relyingPartyIdLookupStrategy.apply(profileRequestContext);
+            String rpId = getRelyingPartyId(profileRequestContext, userProfileCacheContext);
             ConnectedServiceImpl organization = organizations.getConnectedServices().containsKey(rpId)
                     ? organizations.getConnectedServices().get(rpId)
                     : new ConnectedServiceImpl(rpId, rpUIContext.getServiceName());
             organization.addCount();
             organization.getLastAttributes().clear();
-            attributeCtx.getIdPAttributes().entrySet().forEach(
-                    entry -> organization.getLastAttributesImpl().add(toAttributeImpl(entry, profileRequestContext)));
+            organization.getLastAttributesImpl().addAll(getReleasedAttributes(profileRequestContext,
+                    userProfileCacheContext, attributeCtx, collectAttributeValues));
             organizations.getConnectedServices().put(rpId, organization);
-            userProfileCache.setSingleEvent(ConnectedServices.ENTRY_NAME, organizations.serialize(),
-                    userProfileCacheContext);
+            organizations.setAttributeSets(attributeSets);
+            final JsonNode data = organizations.toJson();
+            userProfileCache.setSingleEvent(ConnectedServices.ENTRY_NAME, data, userProfileCacheContext);
             if (log.isDebugEnabled()) {
-                log.debug("{} Updated connected organizations with {} ", getLogPrefix(), organizations.serialize());
+                log.debug("{} Updated connected organizations with {} ", getLogPrefix(), data);
             }
         } catch (JsonProcessingException e) {
             log.error("{} Failed parsing connected organizations", getLogPrefix(), e);
@@ -16,16 +16,19 @@
 
 package org.geant.shibboleth.plugin.userprofile.intercept.impl;
 
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
 import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.event.impl.FramedLoginEvents;
 import org.geant.shibboleth.plugin.userprofile.event.impl.LoginEventImpl;
 import org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents;
 import org.geant.shibboleth.plugin.userprofile.storage.Event;
@@ -35,28 +38,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Predicates;
 
 import jakarta.servlet.http.HttpServletRequest;
-import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.context.AttributeContext;
-import net.shibboleth.idp.attribute.transcoding.AttributeTranscoderRegistry;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
-import net.shibboleth.idp.consent.logic.impl.AttributeDisplayDescriptionFunction;
-import net.shibboleth.idp.consent.logic.impl.AttributeDisplayNameFunction;
 import net.shibboleth.idp.ui.context.RelyingPartyUIContext;
 import net.shibboleth.profile.context.RelyingPartyContext;
 import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
-import net.shibboleth.shared.annotation.constraint.NonnullElements;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
-import net.shibboleth.shared.service.ReloadableService;
 import net.shibboleth.shared.servlet.HttpServletSupport;
-import net.shibboleth.shared.primitive.StringSupport;
 
 /**
  * Updates login events data in user profile cache.
  */
+@ThreadSafeAfterInit
 public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
 
     /** Class logger. */
@@ -66,6 +65,15 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
     /** Max entries for user login events. */
     private long maxEntries;
 
+    /** Whether to store user login events in columnar representation. */
+    private boolean columnar;
+
+    /** Whether to store user login events per month. */
+    private boolean bucketed;
+
+    /** Whether to store attribute sets of user login events deduplicated. */
+    private boolean attributeSets;
+
     /**
      * Strategy used to locate the {@link AttributeContext} associated with a given
      * {@link ProfileRequestContext}.
@@ -73,10 +81,6 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
     @Nonnull
     private Function<ProfileRequestContext, AttributeContext> attributeContextLookupStrategy;
 
-    /** Attribute context. */
-    @Nullable
-    private AttributeContext attributeCtx;
-
     /**
      * Strategy used to locate the {@link RelyingPartyUIContext} associated with a
      * given {@link ProfileRequestContext}.
@@ -84,31 +88,6 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
     @Nonnull
     private Function<ProfileRequestContext, RelyingPartyUIContext> relyingPartyUIContextLookupStrategy;
 
-    /** Transcoder registry service object. */
-    @NonnullAfterInit
-    private ReloadableService<AttributeTranscoderRegistry> transcoderRegistry;
-
-    /**
-     * The system wide languages to inspect if there is no match between metadata
-     * and browser.
-     */
-    @Nullable
-    private List<String> fallbackLanguages;
-
-    /** Function to resolve attribute description. */
-    @NonnullAfterInit
-    private AttributeDisplayDescriptionFunction attributeDisplayDescriptionFunction;
-
-    /** Function to resolve attribute name. */
-    @NonnullAfterInit
-    private AttributeDisplayNameFunction attributeDisplayNameFunction;
-
-    /** Relying party id. */
-    private String rpId;
-
-    /** Relying party ui context. */
-    private RelyingPartyUIContext rpUIContext;
-
     /** Whether to collect attribute values. */
     @Nonnull
     private Predicate<ProfileRequestContext> collectAttributeValues;
@@ -136,6 +115,37 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
         maxEntries = max;
     }
 
+    /**
+     * Set whether to store user login events in the compact columnar
+     * representation.
+     * 
+     * @param flag whether to store user login events in columnar representation
+     */
+    public void setColumnar(boolean flag) {
+        columnar = flag;
+    }
+
+    /**
+     * Set whether to store user login events per month, in buckets of their own.
+     * Only the bucket of the current month is then read and written. Requires the
+     * user profile cache to store events in records of their own.
+     * 
+     * @param flag whether to store user login events per month
+     */
+    public void setBucketed(boolean flag) {
+        bucketed = flag;
+    }
+
+    /**
+     * Set whether to store the attribute sets of user login events deduplicated, each
+     * distinct set once by a hash of its content.
+     * 
+     * @param flag whether to store the attribute sets deduplicated
+     */
+    public void setAttributeSets(boolean flag) {
+        attributeSets = flag;
+    }
+
     /**
      * Set the strategy used to locate the {@link AttributeContext} associated with
      * a given {@link ProfileRequestContext}.
@@ -162,27 +172,6 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
                 "RelyingPartyUIContext lookup strategy cannot be null");
     }
 
-    /**
-     * Sets the registry of transcoding rules to apply to supply attribute display
-     * metadata.
-     * 
-     * @param registry registry service interface
-     */
-    public void setTranscoderRegistry(@Nullable final ReloadableService<AttributeTranscoderRegistry> registry) {
-        checkSetterPreconditions();
-        transcoderRegistry = registry;
-    }
-
-    /**
-     * Set the system wide default languages.
-     * 
-     * @param langs a semi-colon separated string.
-     */
-    public void setFallbackLanguages(@Nonnull @NonnullElements final List<String> langs) {
-        checkSetterPreconditions();
-        fallbackLanguages = List.copyOf(StringSupport.normalizeStringCollection(langs));
-    }
-
     /**
      * Predicate to decide on whether to collect attribute values.
      * 
@@ -207,87 +196,78 @@ public class UpdateLoginEvents extends AbstractUserProfileInterceptorAction {
     @Override
     protected void doInitialize() throws ComponentInitializationException {
         super.doInitialize();
-        if (transcoderRegistry == null) {
-            throw new ComponentInitializationException("transcoderRegistry cannot be null");
-        }
-        attributeDisplayDescriptionFunction = new AttributeDisplayDescriptionFunction(getHttpServletRequest(),
-                fallbackLanguages, transcoderRegistry);
-        attributeDisplayNameFunction = new AttributeDisplayNameFunction(getHttpServletRequest(), fallbackLanguages,
-                transcoderRegistry);
         if (addressLookupStrategy == null) {
             addressLookupStrategy = new RemoteAddressStrategy();
         }
+        if (bucketed && !userProfileCache.isSplitEvents()) {
+            throw new ComponentInitializationException("Login events stored per month require split events");
+        }
 
     }
 
     /** {@inheritDoc} */
     @Override
-    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-
-        if (!super.doPreExecute(profileRequestContext)) {
-            return false;
-        }
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
 
-        attributeCtx = attributeContextLookupStrategy.apply(profileRequestContext);
+        final AttributeContext attributeCtx = attributeContextLookupStrategy.apply(profileRequestContext);
         if (attributeCtx == null) {
             log.debug("{} No AttributeSubcontext available, nothing to do", getLogPrefix());
-            return false;
+            return;
         }
 
-        rpId = relyingPartyIdLookupStrategy.apply(profileRequestContext);
+        final UserProfileCacheContext userProfileCacheContext = getUserProfileCacheContext(profileRequestContext);
+        final String rpId = getRelyingPartyId(profileRequestContext, userProfileCacheContext);
         if (rpId == null || rpId.isBlank()) {
             log.warn("{} Relying party id missing", getLogPrefix());
-            return false;
+            return;
         }
 
-        rpUIContext = relyingPartyUIContextLookupStrategy.apply(profileRequestContext);
+        final RelyingPartyUIContext rpUIContext = relyingPartyUIContextLookupStrategy.apply(profileRequestContext);
         if (rpUIContext == null) {
             log.warn("{} Unable to locate relying party ui context", getLogPrefix());
-            return false;
+            return;
         }
 
-        return true;
-    }
-
-    /**
-     * Transform IdPAttribute to AttributeImpl.
-     * 
-     * @param entry                 IdPAttribute to be transformed
-     * @param profileRequestContext current profile context
-     * @return AttributeImpl to be stored to user profile cache.
-     */
-    private AttributeImpl toAttributeImpl(Entry<String, IdPAttribute> entry,
-            @Nonnull final ProfileRequestContext profileRequestContext) {
-        List<String> values;
-        if (collectAttributeValues.test(profileRequestContext)) {
-            values = new ArrayList<>();
-            entry.getValue().getValues().forEach(value -> values.add(value.getDisplayValue()));
-        } else {
-            values = null;
-        }
-        return new AttributeImpl(entry.getKey(), attributeDisplayNameFunction.apply(entry.getValue()),
-                attributeDisplayDescriptionFunction.apply(entry.getValue()), values);
-    }
-
-    /** {@inheritDoc} */
-    @Override
-    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
-        String user = usernameLookupStrategy.apply(profileRequestContext);
+        final String username = userProfileCacheContext.getUsername();
+        String eventName = bucketed ? LoginEvents.getBucketName(YearMonth.now(ZoneOffset.UTC)) : LoginEvents.ENTRY_NAME;
         try {
-            Event event = userProfileCache.getSingleEvent(user, LoginEvents.ENTRY_NAME, userProfileCacheContext);
-            LoginEvents events = event != null ? LoginEvents.parse(event.getValue()) : new LoginEvents();
-            List<AttributeImpl> attributes = new ArrayList<>();
-            attributeCtx.getIdPAttributes().entrySet()
-                    .forEach(entry -> attributes.add(toAttributeImpl(entry, profileRequestContext)));
+            Event event = userProfileCache.getSingleEvent(username, eventName, userProfileCacheContext);
+            List<AttributeImpl> attributes = new ArrayList<>(
+                    getReleasedAttributes(profileRequestContext, userProfileCacheContext, attributeCtx,
+                            collectAttributeValues));
             LoginEventImpl loginEvent = new LoginEventImpl(rpId, rpUIContext.getServiceName(),
                     System.currentTimeMillis() / 1000, attributes,
                     userProfileCacheContext.getAuthnContextClassReferencePrincipalName(),
                     addressLookupStrategy.apply(profileRequestContext));
-            events.setMaxEntries(maxEntries);
-            events.getLoginEvents().add(loginEvent);
-            userProfileCache.setSingleEvent(LoginEvents.ENTRY_NAME, events.serializeWithMaxEntries(), userProfileCacheContext);
+            if (!columnar && !attributeSets) {
+                // Appended to the serialized framed login events without parsing them.
+                final String value = FramedLoginEvents.append(event != null ? event.getValue() : null, loginEvent,
+                        maxEntries);
+                if (value != null) {
+                    userProfileCache.setSingleEvent(eventName, value, userProfileCacheContext);
+                    log.debug("{} Appended login event to login events", getLogPrefix());
+                    return;
+                }
+            }
+            // Appended to the stored tree without object mapping, other representations are converted.
+            JsonNode data = columnar || !attributeSets ? null
+                    : LoginEvents.append(event != null ? event.getData() : null, loginEvent, maxEntries, true);
+            if (data == null) {
+                LoginEvents events = event != null ? LoginEvents.parse(event.getData()) : new LoginEvents();
+                events.setMaxEntries(maxEntries);
+                events.setColumnar(columnar);
+                events.setAttributeSets(attributeSets);
+                events.addLoginEvent(loginEvent);
+                data = events.toJsonWithMaxEntries();
+            }
+            if (!columnar && !attributeSets) {
+                userProfileCache.setSingleEvent(eventName, FramedLoginEvents.frame(data).toString(),
+                        userProfileCacheContext);
+            } else {
+                userProfileCache.setSingleEvent(eventName, data, userProfileCacheContext);
+            }
             if (log.isDebugEnabled()) {
-                log.debug("{} Updated login events {} ", getLogPrefix(), events.serializeWithMaxEntries());
+                log.debug("{} Updated login events {} ", getLogPrefix(), data);
             }
         } catch (JsonProcessingException e) {
             log.error("{} Failed parsing token", getLogPrefix(), e);
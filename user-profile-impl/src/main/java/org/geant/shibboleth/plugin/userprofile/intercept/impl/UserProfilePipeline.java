@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.intercept.impl;
+
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
+import org.geant.shibboleth.plugin.userprofile.storage.Events;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.action.ProfileAction;
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.annotation.constraint.ThreadSafeAfterInit;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Stores user profile events of the request by running the enabled stages in
+ * a single action.
+ * 
+ * <p>
+ * Creates the user profile cache context and resolves the username, the relying
+ * party id and the type of the profile once for the request. The stages share
+ * the resolved values through the context. The stages are run in the order of
+ * storing the name of the authentication context class principal, login event,
+ * connected service, tokens and committing the events. A stage not set is
+ * skipped, the activation condition of a stage decides whether it is run. A
+ * stage signaling an event other than proceed stops the remaining storing
+ * stages, the event is the result of the pipeline. The events modified by the
+ * stages run before are still committed.
+ * </p>
+ * 
+ * <p>
+ * The OAuth2 token endpoint stores only tokens. The relying party id, the
+ * authentication context class principal, the login event and the connected
+ * service are not resolved nor stored for it.
+ * </p>
+ */
+@ThreadSafeAfterInit
+public class UserProfilePipeline extends AbstractProfileAction {
+
+    /** Profile id of OIDC browser SSO. */
+    @Nonnull
+    public static final String OIDC_SSO_PROFILE_ID = "http://shibboleth.net/ns/profiles/oidc/sso/browser";
+
+    /** Profile id of OAuth2 token endpoint. */
+    @Nonnull
+    public static final String OAUTH2_TOKEN_PROFILE_ID = "http://shibboleth.net/ns/profiles/oauth2/token";
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(UserProfilePipeline.class);
+
+    /** Lookup strategy for user name. */
+    @NonnullAfterInit
+    private Function<ProfileRequestContext, String> usernameLookupStrategy;
+
+    /** Lookup strategy for relying party id. */
+    @NonnullAfterInit
+    private Function<ProfileRequestContext, String> relyingPartyIdLookupStrategy;
+
+    /** Stage storing the name of SAML authentication context class principal. */
+    @Nullable
+    private ProfileAction samlAuthContextClassReferenceStage;
+
+    /** Stage storing the name of OIDC authentication context class principal. */
+    @Nullable
+    private ProfileAction oidcAuthContextClassReferenceStage;
+
+    /** Stage storing the login event. */
+    @Nullable
+    private ProfileAction loginEventStage;
+
+    /** Stage storing the connected service. */
+    @Nullable
+    private ProfileAction connectedServiceStage;
+
+    /** Stage storing the tokens. */
+    @Nullable
+    private ProfileAction tokenStage;
+
+    /** Stage committing the events. */
+    @Nullable
+    private ProfileAction commitStage;
+
+    /**
+     * Set Lookup strategy for user name.
+     * 
+     * @param strategy lookup strategy for user name
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        checkSetterPreconditions();
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
+    /**
+     * Set Lookup strategy for relying party id.
+     * 
+     * @param strategy lookup strategy for relying party id
+     */
+    public void setRelyingPartyIdLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        checkSetterPreconditions();
+        relyingPartyIdLookupStrategy = Constraint.isNotNull(strategy,
+                "Relying Party Id lookup strategy cannot be null");
+    }
+
+    /**
+     * Set stage storing the name of SAML authentication context class principal.
+     * Run unless the profile is OIDC browser SSO or OAuth2 token endpoint.
+     * 
+     * @param stage stage storing the name of SAML authentication context class
+     *              principal
+     */
+    public void setSAMLAuthContextClassReferenceStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        samlAuthContextClassReferenceStage = stage;
+    }
+
+    /**
+     * Set stage storing the name of OIDC authentication context class principal.
+     * Run if the profile is OIDC browser SSO.
+     * 
+     * @param stage stage storing the name of OIDC authentication context class
+     *              principal
+     */
+    public void setOIDCAuthContextClassReferenceStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        oidcAuthContextClassReferenceStage = stage;
+    }
+
+    /**
+     * Set stage storing the login event.
+     * 
+     * @param stage stage storing the login event
+     */
+    public void setLoginEventStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        loginEventStage = stage;
+    }
+
+    /**
+     * Set stage storing the connected service.
+     * 
+     * @param stage stage storing the connected service
+     */
+    public void setConnectedServiceStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        connectedServiceStage = stage;
+    }
+
+    /**
+     * Set stage storing the tokens. Run if the profile is OIDC browser SSO or
+     * OAuth2 token endpoint, the only stage besides committing the events run
+     * for the token endpoint.
+     * 
+     * @param stage stage storing the tokens
+     */
+    public void setTokenStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        tokenStage = stage;
+    }
+
+    /**
+     * Set stage committing the events.
+     * 
+     * @param stage stage committing the events
+     */
+    public void setCommitStage(@Nullable final ProfileAction stage) {
+        checkSetterPreconditions();
+        commitStage = stage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (usernameLookupStrategy == null) {
+            throw new ComponentInitializationException("UsernamePrincipal lookup strategy cannot be null");
+        }
+        if (relyingPartyIdLookupStrategy == null) {
+            throw new ComponentInitializationException("RelyingPartyId lookup strategy cannot be null");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final UserProfileCacheContext userProfileCacheContext = new UserProfileCacheContext();
+        profileRequestContext.addSubcontext(userProfileCacheContext, true);
+        final String username = usernameLookupStrategy.apply(profileRequestContext);
+        if (username == null || username.isEmpty()) {
+            log.warn("{} No username", getLogPrefix());
+            return;
+        }
+        userProfileCacheContext.setUsername(username);
+        final String profileId = profileRequestContext.getProfileId();
+        if (OAUTH2_TOKEN_PROFILE_ID.equals(profileId)) {
+            log.debug("{} Storing tokens of '{}'", getLogPrefix(), username);
+            commit(profileRequestContext, userProfileCacheContext, runStage(tokenStage, profileRequestContext));
+            return;
+        }
+        userProfileCacheContext.setRelyingPartyId(relyingPartyIdLookupStrategy.apply(profileRequestContext));
+        final boolean oidcSSO = OIDC_SSO_PROFILE_ID.equals(profileId);
+        log.debug("{} Storing user profile events of '{}' in profile {}", getLogPrefix(), username, profileId);
+        final boolean proceeded = runStage(
+                oidcSSO ? oidcAuthContextClassReferenceStage : samlAuthContextClassReferenceStage,
+                profileRequestContext)
+                && runStage(loginEventStage, profileRequestContext)
+                && runStage(connectedServiceStage, profileRequestContext)
+                && (!oidcSSO || runStage(tokenStage, profileRequestContext));
+        commit(profileRequestContext, userProfileCacheContext, proceeded);
+    }
+
+    /**
+     * Run the commit stage if the storing stages proceeded or modified events
+     * before one of them stopped the pipeline. The event of the stopped stage
+     * stays the result of the pipeline unless committing signals an event.
+     * 
+     * @param profileRequestContext   current profile context
+     * @param userProfileCacheContext user profile cache context of the request
+     * @param proceeded               whether the storing stages proceeded
+     */
+    private void commit(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final UserProfileCacheContext userProfileCacheContext, final boolean proceeded) {
+        if (proceeded) {
+            runStage(commitStage, profileRequestContext);
+            return;
+        }
+        final Events events = userProfileCacheContext.getEvents();
+        if (events == null || !events.isModified()) {
+            return;
+        }
+        final EventContext eventContext = profileRequestContext.getSubcontext(EventContext.class);
+        final Object event = eventContext != null ? eventContext.getEvent() : null;
+        log.debug("{} Committing events modified before the pipeline stopped", getLogPrefix());
+        if (eventContext != null) {
+            eventContext.setEvent(null);
+        }
+        if (runStage(commitStage, profileRequestContext) && eventContext != null) {
+            eventContext.setEvent(event);
+        }
+    }
+
+    /**
+     * Run the stage if set. An event other than proceed signaled by the stage
+     * stops the pipeline and is left in place as the result of the pipeline.
+     * 
+     * @param stage                 stage to run, null if not set
+     * @param profileRequestContext current profile context
+     * @return whether the stage proceeded
+     */
+    private boolean runStage(@Nullable final ProfileAction stage,
+            @Nonnull final ProfileRequestContext profileRequestContext) {
+        if (stage == null) {
+            return true;
+        }
+        stage.execute(profileRequestContext);
+        final EventContext eventContext = profileRequestContext.getSubcontext(EventContext.class);
+        final Object event = eventContext != null ? eventContext.getEvent() : null;
+        if (event == null || EventIds.PROCEED_EVENT_ID.equals(event.toString())) {
+            return true;
+        }
+        log.warn("{} Stage {} signaled event {}, remaining stages are not run", getLogPrefix(), stage, event);
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.profile.impl;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileContext;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeMetadataDictionary;
+import org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents;
+import org.geant.shibboleth.plugin.userprofile.storage.Event;
+import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
+import org.opensaml.messaging.context.navigate.ChildContextLookup;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.shared.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.logic.Constraint;
+
+/**
+ * Action reads login events of the month preceding the oldest month read, when
+ * login events are stored per month, and appends them to the login events of
+ * {@link UserProfileContext}. Months without login events are skipped. Once the
+ * months login events are stored for are read, login events stored before they
+ * were stored per month are read.
+ */
+public class RenderOlderLoginEvents extends AbstractProfileAction {
+
+    /** Class logger. */
+    @Nonnull
+    private final Logger log = LoggerFactory.getLogger(RenderOlderLoginEvents.class);
+
+    /** Context for user profile . */
+    private UserProfileContext userProfileContext;
+
+    /** Number of months login events are stored per month. */
+    private int loginEventMonths;
+
+    /** Dictionary resolving attribute display metadata, stored metadata is used if null. */
+    @Nullable
+    private AttributeMetadataDictionary attributeMetadataDictionary;
+
+    /**
+     * Lookup strategy for user name principal.
+     */
+    @NonnullAfterInit
+    protected Function<ProfileRequestContext, String> usernameLookupStrategy;
+
+    /**
+     * User profile cache.
+     */
+    @NonnullAfterInit
+    protected UserProfileCache userProfileCache;
+
+    /**
+     * Strategy used to locate the {@link UserProfileContext} to populate.
+     */
+    @Nonnull
+    private Function<ProfileRequestContext, UserProfileContext> userProfileContextLookupStrategy;
+
+    /** Constructor. */
+    public RenderOlderLoginEvents() {
+        super();
+        userProfileContextLookupStrategy = new ChildContextLookup<>(UserProfileContext.class);
+    }
+
+    /**
+     * Set number of months login events are stored per month.
+     * 
+     * @param months number of months login events are stored per month
+     */
+    public void setLoginEventMonths(int months) {
+        checkSetterPreconditions();
+        loginEventMonths = months;
+    }
+
+    /**
+     * Set dictionary resolving attribute display metadata.
+     * 
+     * @param dictionary dictionary resolving attribute display metadata
+     */
+    public void setAttributeMetadataDictionary(@Nullable final AttributeMetadataDictionary dictionary) {
+        checkSetterPreconditions();
+        attributeMetadataDictionary = dictionary;
+    }
+
+    /**
+     * Set user profile cache.
+     * 
+     * @param cache user profile cache
+     */
+    public void setUserProfileCache(@Nonnull final UserProfileCache cache) {
+        checkSetterPreconditions();
+        userProfileCache = Constraint.isNotNull(cache, "UserProfileCache cannot be null");
+    }
+
+    /**
+     * Set Lookup strategy for user name.
+     * 
+     * @param strategy lookup strategy for user name
+     */
+    public void setUsernameLookupStrategy(@Nonnull final Function<ProfileRequestContext, String> strategy) {
+        checkSetterPreconditions();
+        usernameLookupStrategy = Constraint.isNotNull(strategy, "Username lookup strategy cannot be null");
+    }
+
+    /**
+     * Set strategy used to locate the {@link UserProfileContext} to populate.
+     * 
+     * @param strategy Strategy used to locate the {@link UserProfileContext} to
+     *                 populate.
+     */
+    public void setUserProfileContextLookupStrategy(
+            @Nonnull final Function<ProfileRequestContext, UserProfileContext> strategy) {
+        checkSetterPreconditions();
+        Constraint.isNotNull(strategy, "UserProfileContext lookup strategy cannot be null");
+        userProfileContextLookupStrategy = strategy;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        if (userProfileCache == null) {
+            throw new ComponentInitializationException("UserProfileCache cannot be null");
+        }
+        if (loginEventMonths > 0 && !userProfileCache.isSplitEvents()) {
+            throw new ComponentInitializationException("Login events stored per month require split events");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+
+        if (!super.doPreExecute(profileRequestContext)) {
+            return false;
+        }
+
+        userProfileContext = userProfileContextLookupStrategy.apply(profileRequestContext);
+        if (userProfileContext == null) {
+            log.error("{} No UserProfileContext name available.", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+            return false;
+        }
+
+        if (userProfileContext.getLoginEventsMonth() == null || !userProfileContext.isOlderLoginEvents()) {
+            log.debug("{} No older login events to read.", getLogPrefix());
+            return false;
+        }
+
+        if (usernameLookupStrategy.apply(profileRequestContext) == null
+                || usernameLookupStrategy.apply(profileRequestContext).isEmpty()) {
+            log.warn("{} No username", getLogPrefix());
+            return false;
+        }
+
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+        String user = usernameLookupStrategy.apply(profileRequestContext);
+        YearMonth oldest = YearMonth.now(ZoneOffset.UTC).minusMonths(Math.max(loginEventMonths, 1) - 1);
+        YearMonth month = userProfileContext.getLoginEventsMonth();
+        final UnaryOperator<AttributeImpl> resolver = attributeMetadataDictionary != null
+                ? attributeMetadataDictionary.getResolver(getHttpServletRequest())
+                : null;
+        try {
+            while (month.isAfter(oldest)) {
+                month = month.minusMonths(1);
+                userProfileContext.setLoginEventsMonth(month);
+                if (addLoginEvents(userProfileCache.getSingleEvent(user, LoginEvents.getBucketName(month)), resolver)) {
+                    return;
+                }
+            }
+            // Login events stored before storing them per month.
+            userProfileContext.setOlderLoginEvents(false);
+            addLoginEvents(userProfileCache.getSingleEvent(user, LoginEvents.ENTRY_NAME), resolver);
+        } catch (JsonProcessingException e) {
+            log.error("{} Failed processing login events.", getLogPrefix(), e);
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+        }
+    }
+
+    /**
+     * Append login events, newest first, to the login events of
+     * {@link UserProfileContext}.
+     * 
+     * @param event    event holding the login events, null if none
+     * @param resolver resolver of attribute display metadata, null if stored
+     *                 metadata is used
+     * @return whether there were login events
+     * @throws JsonProcessingException if the login events are malformed
+     */
+    private boolean addLoginEvents(Event event, UnaryOperator<AttributeImpl> resolver)
+            throws JsonProcessingException {
+        if (event == null) {
+            return false;
+        }
+        LoginEvents loginEvents = LoginEvents.parse(event.getData());
+        if (resolver != null) {
+            loginEvents.getLoginEvents().forEach(
+                    loginEvent -> AttributeMetadataDictionary.resolve(loginEvent.getAttributesImpl(), resolver));
+        }
+        userProfileContext.getLoginEvents().addAll(loginEvents.getLoginEventsNewestFirst());
+        return !loginEvents.getLoginEvents().isEmpty();
+    }
+}
@@ -16,8 +16,10 @@
 
 package org.geant.shibboleth.plugin.userprofile.profile.impl;
 
-import java.util.Collections;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.Comparator;
+import java.util.function.UnaryOperator;
 import java.util.function.Function;
 
 import javax.annotation.Nonnull;
@@ -26,6 +28,8 @@ import javax.annotation.Nullable;
 import org.geant.shibboleth.plugin.userprofile.context.UserProfileContext;
 import org.geant.shibboleth.plugin.userprofile.event.api.LoginEvent;
 import org.geant.shibboleth.plugin.userprofile.event.impl.AccessTokens;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeMetadataDictionary;
 import org.geant.shibboleth.plugin.userprofile.event.impl.ConnectedServices;
 import org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents;
 import org.geant.shibboleth.plugin.userprofile.event.impl.RefreshTokens;
@@ -40,6 +44,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import net.shibboleth.idp.plugin.oidc.op.storage.RevocationCacheContexts;
 import net.shibboleth.idp.profile.AbstractProfileAction;
@@ -64,6 +69,13 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
     /** Context for user profile . */
     private UserProfileContext userProfileContext;
 
+    /** Number of months login events are stored per month, 0 if not stored per month. */
+    private int loginEventMonths;
+
+    /** Dictionary resolving attribute display metadata, stored metadata is used if null. */
+    @Nullable
+    private AttributeMetadataDictionary attributeMetadataDictionary;
+
     /**
      * Lookup strategy for user name principal.
      */
@@ -98,6 +110,27 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
         revocationCache = cache;
     }
 
+    /**
+     * Set number of months login events are stored per month, 0 if login events
+     * are not stored per month.
+     * 
+     * @param months number of months login events are stored per month
+     */
+    public void setLoginEventMonths(int months) {
+        checkSetterPreconditions();
+        loginEventMonths = months;
+    }
+
+    /**
+     * Set dictionary resolving attribute display metadata.
+     * 
+     * @param dictionary dictionary resolving attribute display metadata
+     */
+    public void setAttributeMetadataDictionary(@Nullable final AttributeMetadataDictionary dictionary) {
+        checkSetterPreconditions();
+        attributeMetadataDictionary = dictionary;
+    }
+
     /**
      * Set user profile cache.
      * 
@@ -139,6 +172,9 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
         if (userProfileCache == null) {
             throw new ComponentInitializationException("UserProfileCache cannot be null");
         }
+        if (loginEventMonths > 0 && !userProfileCache.isSplitEvents()) {
+            throw new ComponentInitializationException("Login events stored per month require split events");
+        }
     }
 
     /** {@inheritDoc} */
@@ -169,19 +205,23 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
     @Override
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
         String user = usernameLookupStrategy.apply(profileRequestContext);
+        final UnaryOperator<AttributeImpl> resolver = attributeMetadataDictionary != null
+                ? attributeMetadataDictionary.getResolver(getHttpServletRequest())
+                : null;
         Event event = null;
         // If there is no token revocation cache we ignore tokens.
         if (revocationCache != null) {
             event = userProfileCache.getSingleEvent(user, AccessTokens.ENTRY_NAME);
             try {
                 userProfileContext.getAccessTokens().clear();
-                AccessTokens tokens = event != null ? AccessTokens.parse(event.getValue()) : new AccessTokens();
+                AccessTokens tokens = event != null ? AccessTokens.parse(event.getData()) : new AccessTokens();
                 // TODO: take clockSkew into consideration
                 tokens.getAccessTokens()
                         .removeIf(accessToken -> accessToken.getExp() < System.currentTimeMillis() / 1000);
-                userProfileCache.setSingleEvent(user, AccessTokens.ENTRY_NAME, tokens.serialize());
+                final JsonNode data = tokens.toJson();
+                userProfileCache.setSingleEvent(user, AccessTokens.ENTRY_NAME, data);
                 if (log.isDebugEnabled()) {
-                    log.debug("{} Updated access tokens {} ", getLogPrefix(), tokens.serialize());
+                    log.debug("{} Updated access tokens {} ", getLogPrefix(), data);
                 }
                 // Remove all revoked tokens from tokens displayed.
                 tokens.getAccessTokens().removeIf(accessToken -> revocationCache
@@ -198,13 +238,14 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
             event = userProfileCache.getSingleEvent(user, RefreshTokens.ENTRY_NAME);
             try {
                 userProfileContext.getRefreshTokens().clear();
-                RefreshTokens tokens = event != null ? RefreshTokens.parse(event.getValue()) : new RefreshTokens();
+                RefreshTokens tokens = event != null ? RefreshTokens.parse(event.getData()) : new RefreshTokens();
                 // TODO: take clockSkew into consideration
                 tokens.getRefreshTokens()
                         .removeIf(refreshToken -> refreshToken.getExp() < System.currentTimeMillis() / 1000);
-                userProfileCache.setSingleEvent(user, RefreshTokens.ENTRY_NAME, tokens.serialize());
+                final JsonNode data = tokens.toJson();
+                userProfileCache.setSingleEvent(user, RefreshTokens.ENTRY_NAME, data);
                 if (log.isDebugEnabled()) {
-                    log.debug("{} Updated refresh tokens {} ", getLogPrefix(), tokens.serialize());
+                    log.debug("{} Updated refresh tokens {} ", getLogPrefix(), data);
                 }
                 // Remove all revoked tokens from tokens displayed.
                 tokens.getRefreshTokens().removeIf(refreshToken -> revocationCache
@@ -222,20 +263,35 @@ public class RenderUserProfileCacheItems extends AbstractProfileAction {
         event = userProfileCache.getSingleEvent(user, ConnectedServices.ENTRY_NAME);
         try {
             userProfileContext.getConnectedOrganizations().clear();
-            ConnectedServices organizations = event != null ? ConnectedServices.parse(event.getValue())
+            ConnectedServices organizations = event != null ? ConnectedServices.parse(event.getData())
                     : new ConnectedServices();
+            if (resolver != null) {
+                organizations.getConnectedServices().values().forEach(
+                        service -> AttributeMetadataDictionary.resolve(service.getLastAttributesImpl(), resolver));
+            }
             organizations.getConnectedServices().forEach((rpId, connectedOrganization) -> userProfileContext
                     .getConnectedOrganizations().put(rpId, connectedOrganization));
         } catch (JsonProcessingException e) {
             log.error("{} Failed processing connected organizations.", getLogPrefix(), e);
             ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
         }
-        event = userProfileCache.getSingleEvent(user, LoginEvents.ENTRY_NAME);
+        if (loginEventMonths > 0) {
+            // Older months are read as the user pages back.
+            YearMonth month = YearMonth.now(ZoneOffset.UTC);
+            userProfileContext.setLoginEventsMonth(month);
+            userProfileContext.setOlderLoginEvents(true);
+            event = userProfileCache.getSingleEvent(user, LoginEvents.getBucketName(month));
+        } else {
+            event = userProfileCache.getSingleEvent(user, LoginEvents.ENTRY_NAME);
+        }
         try {
-            LoginEvents organizations = event != null ? LoginEvents.parse(event.getValue()) : new LoginEvents();
+            LoginEvents organizations = event != null ? LoginEvents.parse(event.getData()) : new LoginEvents();
+            if (resolver != null) {
+                organizations.getLoginEvents().forEach(
+                        loginEvent -> AttributeMetadataDictionary.resolve(loginEvent.getAttributesImpl(), resolver));
+            }
             userProfileContext.getLoginEvents().clear();
-            Collections.sort(organizations.getLoginEvents(), (o1, o2) -> Long.compare(o2.getTime(), o1.getTime()));
-            userProfileContext.getLoginEvents().addAll(organizations.getLoginEvents());
+            userProfileContext.getLoginEvents().addAll(organizations.getLoginEventsNewestFirst());
         } catch (JsonProcessingException e) {
             log.error("{} Failed processing connected organizations.", getLogPrefix(), e);
             ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
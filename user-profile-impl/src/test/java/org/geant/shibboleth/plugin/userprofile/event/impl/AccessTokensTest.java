@@ -16,11 +16,13 @@
 
 package org.geant.shibboleth.plugin.userprofile.event.impl;
 
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * Unit tests for {@link AccessTokens}.
@@ -38,4 +40,57 @@ public class AccessTokensTest {
         Assert.assertEquals(accessTokens.getAccessTokens().size(), 2);
 
     }
+
+    @Test
+    public void testAppend() throws JsonMappingException, JsonProcessingException {
+        AccessTokens stored = AccessTokens.parse(
+                " [{\"tokenId\":\"_0101\",\"clientId\":\"foo\",\"exp\":300},"
+                        + " {\"tokenId\":\"_0102\",\"clientId\":\"foo\",\"exp\":100},"
+                        + " {\"tokenId\":\"_0103\",\"clientId\":\"foo\",\"exp\":500}] ");
+        // Framed tokens are ordered by expiration.
+        String framed = stored.toFramedJson().toString();
+        Assert.assertEquals(AccessTokens.parse(framed).getAccessTokens().get(0).getTokenId(), "_0102");
+        // Expired token is dropped, the new token is inserted by its expiration.
+        String appended = AccessTokens.append(framed, token("_0104", 400), 200);
+        AccessTokens accessTokens = AccessTokens.parse(appended);
+        Assert.assertEquals(accessTokens.getAccessTokens().size(), 3);
+        Assert.assertEquals(accessTokens.getAccessTokens().get(0).getTokenId(), "_0101");
+        Assert.assertEquals(accessTokens.getAccessTokens().get(1).getTokenId(), "_0104");
+        Assert.assertEquals(accessTokens.getAccessTokens().get(2).getTokenId(), "_0103");
+        appended = AccessTokens.append(appended, token("_0105", 600), 450);
+        accessTokens = AccessTokens.parse(JsonSupport.readerFor(JsonNode.class).readTree(appended));
+        Assert.assertEquals(accessTokens.getAccessTokens().size(), 2);
+        Assert.assertEquals(accessTokens.getAccessTokens().get(1).getTokenId(), "_0105");
+        // Appended tokens are framed as the stored ones.
+        Assert.assertEquals(AccessTokens.parse(appended).toFramedJson().toString(), appended);
+        Assert.assertEquals(AccessTokens.parse(AccessTokens.append(null, token("_0104", 400), 200))
+                .getAccessTokens().size(), 1);
+        // Tokens not framed are not appended to.
+        Assert.assertNull(AccessTokens.append(stored.serialize(), token("_0104", 400), 200));
+        Assert.assertNull(AccessTokens.append(framed.replaceFirst("100", "900"), token("_0104", 400), 200));
+    }
+
+    @Test
+    public void testMerge() throws JsonMappingException, JsonProcessingException {
+        String base = AccessTokens.append(null, token("_0101", 300), 0);
+        String current = AccessTokens.append(base, token("_0102", 500), 0);
+        String local = AccessTokens.append(base, token("_0103", 400), 0);
+        JsonNode merged = new TokensMerger().merge(readTree(current), readTree(base), readTree(local));
+        // Merged in the framed representation of the local modification, ordered by expiration.
+        String appended = AccessTokens.append(merged.toString(), token("_0104", 600), 0);
+        Assert.assertNotNull(appended);
+        AccessTokens accessTokens = AccessTokens.parse(appended);
+        Assert.assertEquals(accessTokens.getAccessTokens().size(), 4);
+        Assert.assertEquals(accessTokens.getAccessTokens().get(1).getTokenId(), "_0103");
+        Assert.assertEquals(accessTokens.getAccessTokens().get(2).getTokenId(), "_0102");
+    }
+
+    private AccessTokenImpl token(String tokenId, long exp) throws JsonProcessingException {
+        return AccessTokens.parse("[{\"tokenId\":\"" + tokenId + "\",\"clientId\":\"foo\",\"exp\":" + exp + "}]")
+                .getAccessTokens().get(0);
+    }
+
+    private JsonNode readTree(String framed) throws JsonProcessingException {
+        return JsonSupport.readerFor(JsonNode.class).readTree(framed);
+    }
 }
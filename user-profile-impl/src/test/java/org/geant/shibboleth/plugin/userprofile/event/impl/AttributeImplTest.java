@@ -16,6 +16,8 @@
 
 package org.geant.shibboleth.plugin.userprofile.event.impl;
 
+import java.util.Arrays;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -45,4 +47,14 @@ public class AttributeImplTest {
         attribute = AttributeImpl.parse(attribute.serialize());
         Assert.assertNull(attribute.getValues());
     }
+
+    @Test
+    public void testIdOnly() throws JsonMappingException, JsonProcessingException {
+        AttributeImpl attribute = new AttributeImpl("foo", Arrays.asList("bar"));
+        Assert.assertEquals(attribute.serialize(), "{\"id\":\"foo\",\"values\":[\"bar\"]}");
+        attribute = AttributeImpl.parse(attribute.serialize());
+        Assert.assertNull(attribute.getName());
+        Assert.assertNull(attribute.getDescription());
+        Assert.assertEquals(attribute.getDisplayValue(), "foo [ bar ] ");
+    }
 }
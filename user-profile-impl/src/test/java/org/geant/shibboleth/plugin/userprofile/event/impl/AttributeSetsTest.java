@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Unit tests for {@link AttributeSets}.
+ */
+public class AttributeSetsTest {
+
+    @Test
+    public void testLoginEvents() throws JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.setAttributeSets(true);
+        for (int i = 0; i < 5; i++) {
+            loginEvents.getLoginEvents().add(new LoginEventImpl("rpId" + (i % 2), "name", i,
+                    Arrays.asList(new AttributeImpl("attribute" + (i % 2), Arrays.asList("foo")))));
+        }
+        loginEvents.getLoginEvents().add(new LoginEventImpl("rpId", "name", 5, null));
+        JsonNode data = loginEvents.toJsonWithMaxEntries();
+        // Each distinct attribute set is stored once.
+        Assert.assertTrue(AttributeSets.isDeduplicated(data));
+        Assert.assertEquals(data.get(AttributeSets.SETS_FIELD).size(), 2);
+        Assert.assertEquals(data.get(AttributeSets.ENTRIES_FIELD).size(), 6);
+        Assert.assertEquals(AttributeSets.getReference(data.get(AttributeSets.ENTRIES_FIELD).get(0)),
+                AttributeSets.getReference(data.get(AttributeSets.ENTRIES_FIELD).get(2)));
+        Assert.assertNull(AttributeSets.getReference(data.get(AttributeSets.ENTRIES_FIELD).get(5)));
+
+        loginEvents = LoginEvents.parse(data.toString());
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 6);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(3).getAttributes().get(0).getId(), "attribute1");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(4).getAttributes().get(0).getValues().get(0), "foo");
+        Assert.assertNull(loginEvents.getLoginEvents().get(5).getAttributes());
+
+        // Sets no longer referenced are dropped.
+        loginEvents.setMaxEntries(2);
+        loginEvents.setAttributeSets(true);
+        data = loginEvents.toJsonWithMaxEntries();
+        Assert.assertEquals(data.get(AttributeSets.SETS_FIELD).size(), 1);
+    }
+
+    @Test
+    public void testAppend() throws JsonProcessingException {
+        JsonNode data = null;
+        for (int i = 0; i < 5; i++) {
+            data = LoginEvents.append(data, new LoginEventImpl("rpId", "name", i,
+                    Arrays.asList(new AttributeImpl("attribute" + i, null))), 3, true);
+        }
+        Assert.assertEquals(data.get(AttributeSets.ENTRIES_FIELD).size(), 3);
+        Assert.assertEquals(data.get(AttributeSets.SETS_FIELD).size(), 3);
+        LoginEvents loginEvents = LoginEvents.parse(data);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getAttributes().get(0).getId(), "attribute2");
+        // Other representations are not appended to.
+        Assert.assertNull(LoginEvents.append(data, loginEvents.getLoginEvents().get(0), 3, false));
+        Assert.assertNull(LoginEvents.append(LoginEvents.append(null, loginEvents.getLoginEvents().get(0), 3),
+                loginEvents.getLoginEvents().get(0), 3, true));
+    }
+
+    @Test
+    public void testConnectedServices() throws JsonProcessingException {
+        final ConnectedServices services = new ConnectedServices();
+        services.setAttributeSets(true);
+        for (String rpId : Arrays.asList("foo", "bar")) {
+            final ConnectedServiceImpl service = new ConnectedServiceImpl(rpId, rpId);
+            service.getLastAttributesImpl().add(new AttributeImpl("attribute", Arrays.asList("value")));
+            services.getConnectedServices().put(rpId, service);
+        }
+        final JsonNode data = services.toJson();
+        Assert.assertEquals(data.get(AttributeSets.SETS_FIELD).size(), 1);
+        final ConnectedServices parsed = ConnectedServices.parse(services.serialize());
+        Assert.assertEquals(parsed.getConnectedServices().size(), 2);
+        Assert.assertEquals(parsed.getConnectedServices().get("bar").getLastAttributes().get(0).getId(), "attribute");
+
+        // Merged with the sets inlined, in the representation of the local modification.
+        final ConnectedServices merged = ConnectedServices
+                .parse(new ConnectedServicesMerger().merge(new ConnectedServices().toJson(), null, data));
+        Assert.assertEquals(merged.getConnectedServices().get("foo").getLastAttributes().size(), 1);
+    }
+
+    @Test(expectedExceptions = JsonMappingException.class)
+    public void testMissingSet() throws JsonProcessingException {
+        final LoginEvents loginEvents = new LoginEvents();
+        loginEvents.setAttributeSets(true);
+        loginEvents.getLoginEvents()
+                .add(new LoginEventImpl("rpId", "name", 0, Arrays.asList(new AttributeImpl("attribute", null))));
+        final JsonNode data = loginEvents.toJsonWithMaxEntries();
+        ((ObjectNode) data.get(AttributeSets.SETS_FIELD)).removeAll();
+        LoginEvents.parse(data);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Unit tests for {@link ColumnarLoginEvents}.
+ */
+public class ColumnarLoginEventsTest {
+
+    private List<LoginEventImpl> loginEvents(int count) {
+        AttributeImpl mail = new AttributeImpl("mail", "E-mail", "E-mail address", Arrays.asList("foo@example.org"));
+        AttributeImpl name = new AttributeImpl("displayName", "Name", "Display name", Arrays.asList("Foo"));
+        List<LoginEventImpl> loginEvents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            loginEvents.add(new LoginEventImpl("https://sp" + (i % 3) + ".example.org", "Service " + (i % 3),
+                    1700000000 + i * 3600, i % 2 == 0 ? Arrays.asList(mail, name) : Arrays.asList(mail),
+                    "https://refeds.org/profile/mfa", "10.0.0." + (i % 2)));
+        }
+        return loginEvents;
+    }
+
+    @Test
+    public void testRoundTrip() throws JsonProcessingException {
+        List<LoginEventImpl> loginEvents = loginEvents(10);
+        loginEvents.add(new LoginEventImpl("https://sp.example.org", null, 1600000000, null));
+        JsonNode columnar = ColumnarLoginEvents.encode(loginEvents);
+        Assert.assertTrue(ColumnarLoginEvents.isColumnar(columnar));
+        LoginEventImpl[] decoded = ColumnarLoginEvents.decode(JsonSupport.readerFor(JsonNode.class)
+                .readTree(JsonSupport.getWriter().writeValueAsString(columnar)));
+        Assert.assertEquals(decoded.length, 11);
+        Assert.assertEquals(JsonSupport.valueToTree(decoded), JsonSupport.valueToTree(loginEvents));
+        Assert.assertEquals(decoded[3].getAcr(), "https://refeds.org/profile/mfa");
+        Assert.assertEquals(decoded[3].getAddress(), "10.0.0.1");
+        Assert.assertEquals(decoded[3].getTime(), 1700000000 + 3 * 3600);
+        Assert.assertEquals(decoded[10].getTime(), 1600000000);
+        Assert.assertNull(decoded[10].getName());
+        Assert.assertNull(decoded[10].getAttributes());
+        Assert.assertEquals(decoded[10].getAcr(), "n/a");
+    }
+
+    @Test
+    public void testCompact() throws JsonProcessingException {
+        List<LoginEventImpl> loginEvents = loginEvents(50);
+        int listSize = JsonSupport.getWriter().writeValueAsString(loginEvents).length();
+        int columnarSize = JsonSupport.getWriter().writeValueAsString(ColumnarLoginEvents.encode(loginEvents))
+                .length();
+        Assert.assertTrue(columnarSize * 5 < listSize, columnarSize + " vs " + listSize);
+    }
+
+    @Test
+    public void testEmpty() throws JsonProcessingException {
+        Assert.assertEquals(ColumnarLoginEvents.decode(ColumnarLoginEvents.encode(new ArrayList<>())).length, 0);
+        Assert.assertFalse(ColumnarLoginEvents.isColumnar(JsonSupport.valueToTree(new ArrayList<>())));
+    }
+
+    @Test(expectedExceptions = JsonProcessingException.class)
+    public void testTruncated() throws JsonProcessingException {
+        ObjectNode columnar = (ObjectNode) ColumnarLoginEvents.encode(loginEvents(5));
+        columnar.put("columns", columnar.get("columns").asText().substring(0, 8));
+        ColumnarLoginEvents.decode(columnar);
+    }
+
+    @Test
+    public void testLoginEvents() throws JsonProcessingException {
+        LoginEvents events = new LoginEvents();
+        events.setColumnar(true);
+        events.getLoginEvents().addAll(loginEvents(5));
+        LoginEvents parsed = LoginEvents.parse(events.serializeWithMaxEntries());
+        Assert.assertEquals(parsed.getLoginEvents().size(), 5);
+        parsed = LoginEvents.parse(events.toJsonWithMaxEntries());
+        Assert.assertEquals(parsed.getLoginEventsNewestFirst().get(0).getTime(), 1700000000 + 4 * 3600);
+    }
+
+    @Test
+    public void testMerger() throws JsonProcessingException {
+        List<LoginEventImpl> loginEvents = loginEvents(4);
+        JsonNode base = ColumnarLoginEvents.encode(loginEvents.subList(0, 2));
+        JsonNode current = JsonSupport.valueToTree(loginEvents.subList(0, 3));
+        JsonNode local = ColumnarLoginEvents.encode(Arrays.asList(loginEvents.get(0), loginEvents.get(1),
+                loginEvents.get(3)));
+        JsonNode merged = new LoginEventsMerger().merge(current, base, local);
+        Assert.assertTrue(ColumnarLoginEvents.isColumnar(merged));
+        Assert.assertEquals(JsonSupport.valueToTree(ColumnarLoginEvents.decode(merged)),
+                JsonSupport.valueToTree(loginEvents));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Unit tests for {@link ConnectedServicesMerger}.
+ */
+public class ConnectedServicesMergerTest {
+
+    private static final ObjectReader READER = JsonSupport.readerFor(JsonNode.class);
+
+    @Test
+    public void testMerge() throws JsonProcessingException {
+        final JsonNode base = READER.readTree("{\"foo\":{\"id\":\"foo\",\"times\":2}}");
+        final JsonNode current = READER
+                .readTree("{\"foo\":{\"id\":\"foo\",\"times\":3},\"bar\":{\"id\":\"bar\",\"times\":1}}");
+        final ConnectedServices local = ConnectedServices.parse(base);
+        local.getConnectedServices().get("foo").addCount();
+        local.getConnectedServices().put("baz", new ConnectedServiceImpl("baz", "Baz"));
+        local.getConnectedServices().get("baz").addCount();
+        final ConnectedServices merged = ConnectedServices
+                .parse(new ConnectedServicesMerger().merge(current, base, local.toJson()));
+        Assert.assertEquals(merged.getConnectedServices().size(), 3);
+        Assert.assertEquals(merged.getConnectedServices().get("foo").getTimes(), 4);
+        Assert.assertEquals(merged.getConnectedServices().get("bar").getTimes(), 1);
+        Assert.assertEquals(merged.getConnectedServices().get("baz").getTimes(), 1);
+        Assert.assertEquals(merged.getConnectedServices().get("baz").getName(), "Baz");
+    }
+
+    @Test
+    public void testNoBase() throws JsonProcessingException {
+        final JsonNode current = READER.readTree("{\"foo\":{\"id\":\"foo\",\"times\":3}}");
+        final ConnectedServices local = new ConnectedServices();
+        local.getConnectedServices().put("foo", new ConnectedServiceImpl("foo", "Foo"));
+        local.getConnectedServices().get("foo").addCount();
+        final ConnectedServices merged = ConnectedServices
+                .parse(new ConnectedServicesMerger().merge(current, null, local.toJson()));
+        Assert.assertEquals(merged.getConnectedServices().get("foo").getTimes(), 4);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.Arrays;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Unit tests for {@link FramedLoginEvents}.
+ */
+public class FramedLoginEventsTest {
+
+    private LoginEventImpl loginEvent(int i) {
+        return new LoginEventImpl("rpId" + i, "name \"" + i + "\"", i,
+                Arrays.asList(new AttributeImpl("mail", "E-mail", "E-mail address", Arrays.asList("foo@example.org"))),
+                "acr", "10.0.0." + i);
+    }
+
+    @Test
+    public void testAppend() throws JsonProcessingException {
+        String framed = FramedLoginEvents.append(null, loginEvent(0), 3);
+        for (int i = 1; i < 5; i++) {
+            framed = FramedLoginEvents.append(framed, loginEvent(i), 3);
+        }
+        JsonNode data = JsonSupport.readerFor(JsonNode.class).readTree(framed);
+        Assert.assertTrue(FramedLoginEvents.isFramed(data));
+        // The oldest login events are cut.
+        LoginEvents loginEvents = LoginEvents.parse(framed);
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 3);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpId2");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(2).getId(), "rpId4");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(2).getName(), "name \"4\"");
+        // The lengths are those of the framed tree.
+        Assert.assertEquals(FramedLoginEvents.frame(FramedLoginEvents.unframe(data)).toString(), framed);
+        Assert.assertEquals(FramedLoginEvents.append(framed, loginEvent(5), 0), "{\"lengths\":[],\"events\":[]}");
+        Assert.assertEquals(LoginEvents.parse(FramedLoginEvents.append(framed, loginEvent(5), 1)).getLoginEvents()
+                .size(), 1);
+    }
+
+    @Test
+    public void testAppendToFrame() throws JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.addLoginEvent(loginEvent(0));
+        loginEvents.addLoginEvent(loginEvent(1));
+        String framed = FramedLoginEvents.frame(loginEvents.toJsonWithMaxEntries()).toString();
+        framed = FramedLoginEvents.append(framed, loginEvent(2), 50);
+        loginEvents = LoginEvents.parse(framed);
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 3);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpId0");
+        Assert.assertEquals(loginEvents.getLoginEventsNewestFirst().get(0).getId(), "rpId2");
+    }
+
+    @Test
+    public void testOtherRepresentations() throws JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.addLoginEvent(loginEvent(0));
+        Assert.assertNull(FramedLoginEvents.append(loginEvents.serializeWithMaxEntries(), loginEvent(1), 3));
+        Assert.assertFalse(FramedLoginEvents.isFramed(loginEvents.toJsonWithMaxEntries()));
+        loginEvents.setColumnar(true);
+        Assert.assertNull(FramedLoginEvents.append(loginEvents.serializeWithMaxEntries(), loginEvent(1), 3));
+        // Lengths not matching the login events.
+        String framed = FramedLoginEvents.append(null, loginEvent(0), 3);
+        Assert.assertNull(FramedLoginEvents.append(framed.replaceFirst("\\[\\d+", "[1"), loginEvent(1), 3));
+        Assert.assertNull(FramedLoginEvents.append(framed.replace("[", "[1,"), loginEvent(1), 3));
+        Assert.assertNull(FramedLoginEvents.append("{\"lengths\":[],\"events\":[{}]}", loginEvent(1), 3));
+    }
+
+    @Test
+    public void testMerge() throws JsonProcessingException {
+        String base = FramedLoginEvents.append(null, loginEvent(0), 50);
+        String current = FramedLoginEvents.append(base, loginEvent(1), 50);
+        String local = FramedLoginEvents.append(base, loginEvent(2), 50);
+        JsonNode merged = new LoginEventsMerger().merge(readTree(current), readTree(base), readTree(local));
+        // Merged in the framed representation of the local modification, appended to as such.
+        Assert.assertTrue(FramedLoginEvents.isFramed(merged));
+        String appended = FramedLoginEvents.append(merged.toString(), loginEvent(3), 50);
+        Assert.assertNotNull(appended);
+        Assert.assertEquals(LoginEvents.parse(appended).getLoginEvents().size(), 4);
+    }
+
+    private JsonNode readTree(String framed) throws JsonProcessingException {
+        return JsonSupport.readerFor(JsonNode.class).readTree(framed);
+    }
+}
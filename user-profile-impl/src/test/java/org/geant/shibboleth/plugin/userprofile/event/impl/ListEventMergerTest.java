@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.ArrayList;
+
+import org.geant.shibboleth.plugin.userprofile.storage.JsonSupport;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Unit tests for {@link ListEventMerger}.
+ */
+public class ListEventMergerTest {
+
+    private static final ObjectReader READER = JsonSupport.readerFor(JsonNode.class);
+
+    @Test
+    public void testAppend() throws JsonProcessingException {
+        final JsonNode base = READER.readTree("[{\"id\":\"a\",\"time\":1}]");
+        final JsonNode current = READER.readTree("[{\"id\":\"a\",\"time\":1},{\"id\":\"b\",\"time\":2}]");
+        final JsonNode local = READER.readTree("[{\"id\":\"a\",\"time\":1},{\"id\":\"c\",\"time\":3}]");
+        final JsonNode merged = new ListEventMerger().merge(current, base, local);
+        Assert.assertEquals(merged.size(), 3);
+        Assert.assertEquals(merged.get(0).get("id").asText(), "a");
+        Assert.assertEquals(merged.get(1).get("id").asText(), "b");
+        Assert.assertEquals(merged.get(2).get("id").asText(), "c");
+    }
+
+    @Test
+    public void testRemoveAndMaxEntries() throws JsonProcessingException {
+        final JsonNode base = READER.readTree("[\"a\",\"b\"]");
+        final JsonNode current = READER.readTree("[\"a\",\"b\",\"c\",\"d\"]");
+        final JsonNode local = READER.readTree("[\"b\",\"e\"]");
+        final ListEventMerger merger = new ListEventMerger();
+        merger.setMaxEntries(3);
+        Assert.assertEquals(merger.merge(current, base, local).toString(), "[\"c\",\"d\",\"e\"]");
+    }
+
+    @Test
+    public void testEqualEntries() throws JsonProcessingException {
+        final JsonNode base = READER.readTree("[\"a\"]");
+        final JsonNode current = READER.readTree("[\"a\",\"a\"]");
+        final JsonNode local = READER.readTree("[\"a\",\"a\"]");
+        // Both modifications added an equal entry, both are kept.
+        Assert.assertEquals(new ListEventMerger().merge(current, base, local).toString(), "[\"a\",\"a\",\"a\"]");
+    }
+
+    @Test
+    public void testLoginEvents() throws JsonProcessingException {
+        final JsonNode base = READER.readTree("[{\"id\":\"a\",\"time\":1}]");
+        final LoginEvents local = LoginEvents.parse(base);
+        local.getLoginEvents().add(new LoginEventImpl("c", "C", 3, new ArrayList<>()));
+        final JsonNode current = READER.readTree("[{\"id\":\"a\",\"time\":1},{\"id\":\"b\",\"time\":2}]");
+        Assert.assertEquals(LoginEvents.parse(new ListEventMerger().merge(current, base, local.toJsonWithMaxEntries()))
+                .getLoginEvents().size(), 3);
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.geant.shibboleth.plugin.userprofile.event.impl;
 
+import java.time.YearMonth;
 import java.util.Arrays;
 
 import org.testng.Assert;
@@ -23,6 +24,7 @@ import org.testng.annotations.Test;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * Unit tests for {@link LoginEvents}.
@@ -53,4 +55,89 @@ public class LoginEventsTest {
         Assert.assertTrue(loginEvents.getLoginEvents().get(0).getId().equals("rpIdNew1"));
     }
 
+    @Test
+    public void testJsonTree() throws JsonMappingException, JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        AttributeImpl attribute = new AttributeImpl("id", "name", "descr", Arrays.asList("foo"));
+        loginEvents.getLoginEvents()
+                .add(new LoginEventImpl("rpIdNew1", "rpIdNewName1", 2010104, Arrays.asList(attribute)));
+        loginEvents.getLoginEvents()
+                .add(new LoginEventImpl("rpIdNew2", "rpIdNewName2", 2010105, Arrays.asList(attribute)));
+        loginEvents.setMaxEntries(1);
+        loginEvents = LoginEvents.parse(loginEvents.toJsonWithMaxEntries());
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 1);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpIdNew2");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getAttributes().get(0).getValues().get(0), "foo");
+    }
+
+    @Test
+    public void testNewestFirst() throws JsonMappingException, JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.setMaxEntries(3);
+        for (int i = 1; i <= 5; i++) {
+            loginEvents.addLoginEvent(new LoginEventImpl("rpId" + i, "name" + i, i, Arrays.asList()));
+        }
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 3);
+        Assert.assertEquals(loginEvents.getLoginEventsNewestFirst().get(0).getId(), "rpId5");
+        Assert.assertEquals(loginEvents.getLoginEventsNewestFirst().get(2).getId(), "rpId3");
+        loginEvents = LoginEvents.parse(loginEvents.toJsonWithMaxEntries());
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpId3");
+    }
+
+    @Test
+    public void testListContract() throws JsonMappingException, JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.setMaxEntries(2);
+        for (int i = 1; i <= 3; i++) {
+            loginEvents.getLoginEvents().add(new LoginEventImpl("rpId" + i, "name" + i, i, Arrays.asList()));
+        }
+        // The list grows, the oldest login events are dropped when serialized.
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 3);
+        Assert.assertEquals(loginEvents.getLoginEvents().remove(1).getId(), "rpId2");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(1).getId(), "rpId3");
+        loginEvents = LoginEvents.parse(loginEvents.toJsonWithMaxEntries());
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 2);
+    }
+
+    @Test
+    public void testParseKeepsEntriesUntilMaxEntriesSet() throws JsonMappingException, JsonProcessingException {
+        LoginEvents loginEvents = new LoginEvents();
+        loginEvents.setMaxEntries(100);
+        for (int i = 1; i <= 80; i++) {
+            loginEvents.getLoginEvents().add(new LoginEventImpl("rpId" + i, "name" + i, i, Arrays.asList()));
+        }
+        loginEvents = LoginEvents.parse(loginEvents.serializeWithMaxEntries());
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 80);
+        loginEvents.setMaxEntries(100);
+        loginEvents.addLoginEvent(new LoginEventImpl("rpId81", "name81", 81, Arrays.asList()));
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 81);
+        Assert.assertEquals(loginEvents.getLoginEventsNewestFirst().get(0).getId(), "rpId81");
+    }
+
+    @Test
+    public void testBucketName() {
+        Assert.assertEquals(LoginEvents.getBucketName(YearMonth.of(2025, 3)), LoginEvents.ENTRY_NAME + "#2025-03");
+    }
+
+    @Test
+    public void testAppend() throws JsonMappingException, JsonProcessingException {
+        JsonNode data = LoginEvents.append(null, new LoginEventImpl("rpId0", "name0", 0, Arrays.asList()), 3);
+        for (int i = 1; i < 5; i++) {
+            data = LoginEvents.append(data, new LoginEventImpl("rpId" + i, "name" + i, i, Arrays.asList()), 3);
+        }
+        // Oldest login events exceeding max entries are dropped.
+        LoginEvents loginEvents = LoginEvents.parse(data);
+        Assert.assertEquals(loginEvents.getLoginEvents().size(), 3);
+        Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpId2");
+        Assert.assertEquals(loginEvents.getLoginEvents().get(2).getId(), "rpId4");
+        // Stored login events are not modified.
+        JsonNode appended = LoginEvents.append(data, new LoginEventImpl("rpId5", "name5", 5, Arrays.asList()), 3);
+        Assert.assertEquals(data.get(0).get("id").asText(), "rpId2");
+        Assert.assertEquals(appended.get(0).get("id").asText(), "rpId3");
+        Assert.assertEquals(LoginEvents.append(data, loginEvents.getLoginEvents().get(0), 0).size(), 0);
+        // Columnar login events are not appended to.
+        loginEvents.setColumnar(true);
+        Assert.assertNull(LoginEvents.append(loginEvents.toJsonWithMaxEntries(),
+                new LoginEventImpl("rpId5", "name5", 5, Arrays.asList()), 3));
+    }
 }
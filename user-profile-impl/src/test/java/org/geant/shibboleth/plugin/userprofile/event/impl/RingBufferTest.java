@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.event.impl;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link RingBuffer}.
+ */
+public class RingBufferTest {
+
+    @Test
+    public void testAddOverwritesOldest() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(3);
+        for (int i = 1; i <= 5; i++) {
+            buffer.addEvicting(i);
+        }
+        Assert.assertEquals(buffer, List.of(3, 4, 5));
+        Assert.assertEquals(buffer.newestFirst(), List.of(5, 4, 3));
+        Assert.assertEquals(buffer.get(0), Integer.valueOf(3));
+    }
+
+    @Test
+    public void testGrowsToCapacity() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(40);
+        for (int i = 0; i < 100; i++) {
+            buffer.addEvicting(i);
+        }
+        Assert.assertEquals(buffer.size(), 40);
+        Assert.assertEquals(buffer.get(0), Integer.valueOf(60));
+        Assert.assertEquals(buffer.newestFirst().get(0), Integer.valueOf(99));
+    }
+
+    @Test
+    public void testSetCapacity() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int i = 1; i <= 6; i++) {
+            buffer.addEvicting(i);
+        }
+        buffer.setCapacity(2);
+        Assert.assertEquals(buffer, List.of(5, 6));
+        buffer.setCapacity(3);
+        buffer.addEvicting(7);
+        buffer.addEvicting(8);
+        Assert.assertEquals(buffer, List.of(6, 7, 8));
+    }
+
+    @Test
+    public void testZeroCapacity() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(0);
+        buffer.addEvicting(1);
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertTrue(buffer.newestFirst().isEmpty());
+    }
+
+    @Test
+    public void testSetAndClear() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        buffer.addEvicting(1);
+        buffer.addEvicting(2);
+        buffer.addEvicting(3);
+        buffer.set(0, 20);
+        Assert.assertEquals(buffer, List.of(20, 3));
+        buffer.clear();
+        Assert.assertTrue(buffer.isEmpty());
+        buffer.addEvicting(4);
+        Assert.assertEquals(buffer, List.of(4));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        buffer.addEvicting(1);
+        buffer.newestFirst().get(1);
+    }
+
+    @Test
+    public void testListContract() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        buffer.addEvicting(1);
+        buffer.addEvicting(2);
+        // Adding as a list grows the buffer beyond its capacity.
+        Assert.assertTrue(buffer.add(3));
+        buffer.add(0, 0);
+        Assert.assertEquals(buffer, List.of(0, 1, 2, 3));
+        Assert.assertEquals(buffer.remove(2), Integer.valueOf(2));
+        Assert.assertEquals(buffer.remove(0), Integer.valueOf(0));
+        Assert.assertEquals(buffer, List.of(1, 3));
+        Assert.assertTrue(buffer.remove(Integer.valueOf(1)));
+        Assert.assertEquals(buffer.newestFirst(), List.of(3));
+        for (int i = 4; i < 40; i++) {
+            buffer.add(i);
+        }
+        Assert.assertEquals(buffer.size(), 37);
+        buffer.addEvicting(40);
+        Assert.assertEquals(buffer, List.of(39, 40));
+    }
+}
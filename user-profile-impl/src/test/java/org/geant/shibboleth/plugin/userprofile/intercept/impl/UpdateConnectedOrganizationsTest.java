@@ -25,6 +25,8 @@ import java.util.Map;
 import java.util.function.Function;
 
 import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeMetadataDictionary;
 import org.geant.shibboleth.plugin.userprofile.event.impl.ConnectedServices;
 import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
 import org.opensaml.profile.context.ProfileRequestContext;
@@ -69,6 +71,8 @@ public class UpdateConnectedOrganizationsTest {
 
     private AttributeTranscoderRegistryImpl registry;
 
+    private AttributeMetadataDictionary dictionary;
+
     private MemoryStorageService storageService;
 
     private UserProfileCache userProfileCache;
@@ -134,7 +138,7 @@ public class UpdateConnectedOrganizationsTest {
         src = (new RequestContextBuilder()).buildRequestContext();
         prc = (new WebflowRequestContextProfileRequestContextLookup()).apply(this.src);
 
-        action.setTranscoderRegistry(new MockReloadableService<>(registry));
+        dictionary = new AttributeMetadataDictionary(new MockReloadableService<>(registry), null);
 
         RelyingPartyContext relyingPartyContext = (RelyingPartyContext) prc.addSubcontext(new RelyingPartyContext(),
                 true);
@@ -181,6 +185,8 @@ public class UpdateConnectedOrganizationsTest {
         action.initialize();
         final Event event = action.execute(src);
         ActionTestingSupport.assertProceedEvent(event);
+        // Released attributes are shared with the other actions of the request.
+        Assert.assertEquals(userProfileCacheContext.getReleasedAttributes().size(), 4);
         userProfileCache.commitEventsCache(new usernameLookupStrategy().apply(null), userProfileCacheContext);
         org.geant.shibboleth.plugin.userprofile.storage.Event events = userProfileCache
                 .getSingleEvent(new usernameLookupStrategy().apply(null), ConnectedServices.ENTRY_NAME);
@@ -188,6 +194,33 @@ public class UpdateConnectedOrganizationsTest {
         Assert.assertEquals(connectedServices.getConnectedServices().size(), 1);
         Assert.assertEquals(connectedServices.getConnectedServices().get("rpId").getTimes(), 1);
         Assert.assertEquals(connectedServices.getConnectedServices().get("rpId").getLastAttributes().size(), 4);
+        // Attributes are stored by id only and resolved when rendered.
+        final List<AttributeImpl> attributes = connectedServices.getConnectedServices().get("rpId").getLastAttributesImpl();
+        Assert.assertNull(attributes.get(0).getName());
+        AttributeMetadataDictionary.resolve(attributes, dictionary.getResolver(null));
+        Assert.assertEquals(attributes.get(0).getName(), attributes.get(0).getId());
+    }
+
+    @Test
+    public void testCollectValuesPerAction() throws ComponentInitializationException, JsonProcessingException {
+        // The first action of the request does not collect values, the second one does.
+        action.initialize();
+        ActionTestingSupport.assertProceedEvent(action.execute(src));
+        final UpdateConnectedOrganizations collectingAction = new UpdateConnectedOrganizations();
+        collectingAction.setUserProfileCache(userProfileCache);
+        collectingAction.setUsernameLookupStrategy(new usernameLookupStrategy());
+        collectingAction.setRelyingPartyIdLookupStrategy(new RelyingPartyIdLookupFunction());
+        collectingAction.setCollectAttributeValues(input -> true);
+        collectingAction.initialize();
+        ActionTestingSupport.assertProceedEvent(collectingAction.execute(src));
+        userProfileCache.commitEventsCache(new usernameLookupStrategy().apply(null), userProfileCacheContext);
+        final ConnectedServices connectedServices = ConnectedServices.parse(userProfileCache
+                .getSingleEvent(new usernameLookupStrategy().apply(null), ConnectedServices.ENTRY_NAME).getValue());
+        final List<AttributeImpl> attributes = connectedServices.getConnectedServices().get("rpId")
+                .getLastAttributesImpl();
+        Assert.assertEquals(attributes.size(), 4);
+        Assert.assertEquals(attributes.stream().filter(attribute -> "attribute_0".equals(attribute.getId()))
+                .findFirst().orElseThrow().getValues(), List.of("a"));
     }
 
     public class usernameLookupStrategy implements Function<ProfileRequestContext, String> {
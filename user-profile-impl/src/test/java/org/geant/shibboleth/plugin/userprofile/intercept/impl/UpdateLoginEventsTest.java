@@ -25,6 +25,8 @@ import java.util.Map;
 import java.util.function.Function;
 
 import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeImpl;
+import org.geant.shibboleth.plugin.userprofile.event.impl.AttributeMetadataDictionary;
 import org.geant.shibboleth.plugin.userprofile.event.impl.LoginEvents;
 import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
 import org.opensaml.profile.context.ProfileRequestContext;
@@ -69,6 +71,8 @@ public class UpdateLoginEventsTest {
 
     private AttributeTranscoderRegistryImpl registry;
 
+    private AttributeMetadataDictionary dictionary;
+
     private MemoryStorageService storageService;
 
     private UserProfileCache userProfileCache;
@@ -133,8 +137,7 @@ public class UpdateLoginEventsTest {
 
         src = (new RequestContextBuilder()).buildRequestContext();
         prc = (new WebflowRequestContextProfileRequestContextLookup()).apply(this.src);
-        // TODO WHY?
-        action.setTranscoderRegistry(new MockReloadableService<>(registry));
+        dictionary = new AttributeMetadataDictionary(new MockReloadableService<>(registry), null);
 
         RelyingPartyContext relyingPartyContext = (RelyingPartyContext) prc.addSubcontext(new RelyingPartyContext(),
                 true);
@@ -191,6 +194,16 @@ public class UpdateLoginEventsTest {
         Assert.assertEquals(loginEvents.getLoginEvents().size(), 1);
         Assert.assertEquals(loginEvents.getLoginEvents().get(0).getId(), "rpId");
         Assert.assertEquals(loginEvents.getLoginEvents().get(0).getAttributes().size(), 4);
+        // Attributes are stored by id only and resolved when rendered.
+        final List<AttributeImpl> attributes = loginEvents.getLoginEvents().get(0).getAttributesImpl();
+        Assert.assertNull(attributes.get(0).getName());
+        AttributeMetadataDictionary.resolve(attributes, dictionary.getResolver(null));
+        Assert.assertEquals(attributes.get(0).getName(), attributes.get(0).getId());
+        // Resolved display metadata is memoized per attribute.
+        Assert.assertEquals(dictionary.getMemoized(), 4);
+        AttributeMetadataDictionary.resolve(attributes, dictionary.getResolver(null));
+        Assert.assertEquals(dictionary.getMemoized(), 4);
+        Assert.assertEquals(attributes.get(0).getName(), attributes.get(0).getId());
     }
 
     public class usernameLookupStrategy implements Function<ProfileRequestContext, String> {
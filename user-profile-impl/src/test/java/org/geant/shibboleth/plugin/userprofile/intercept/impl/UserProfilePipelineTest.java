@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2022-2025, GÉANT
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an “AS IS” BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geant.shibboleth.plugin.userprofile.intercept.impl;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import org.geant.shibboleth.plugin.userprofile.context.UserProfileCacheContext;
+import org.geant.shibboleth.plugin.userprofile.storage.UserProfileCache;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.storage.impl.MemoryStorageService;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.execution.RequestContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.idp.profile.context.navigate.WebflowRequestContextProfileRequestContextLookup;
+import net.shibboleth.idp.profile.testing.ActionTestingSupport;
+import net.shibboleth.idp.profile.testing.RequestContextBuilder;
+import net.shibboleth.profile.context.RelyingPartyContext;
+import net.shibboleth.profile.context.navigate.RelyingPartyIdLookupFunction;
+import net.shibboleth.shared.component.ComponentInitializationException;
+
+/**
+ * Unit tests for {@link UserProfilePipeline}.
+ */
+public class UserProfilePipelineTest {
+
+    private MemoryStorageService storageService;
+
+    private UserProfileCache userProfileCache;
+
+    private RequestContext src;
+
+    private ProfileRequestContext prc;
+
+    private UserProfilePipeline action;
+
+    private CountingStage samlStage;
+
+    private CountingStage oidcStage;
+
+    private CountingStage loginEventStage;
+
+    private CountingStage tokenStage;
+
+    private CommitUserProfileEvents commitStage;
+
+    @BeforeMethod
+    public void initTests() throws ComponentInitializationException {
+        storageService = new MemoryStorageService();
+        storageService.setId("test");
+        storageService.initialize();
+
+        userProfileCache = new UserProfileCache();
+        userProfileCache.setRecordExpiration(Duration.ofMillis(500));
+        userProfileCache.setStorage(storageService);
+        userProfileCache.setId("id");
+        userProfileCache.initialize();
+
+        src = (new RequestContextBuilder()).buildRequestContext();
+        prc = (new WebflowRequestContextProfileRequestContextLookup()).apply(this.src);
+        RelyingPartyContext relyingPartyContext = (RelyingPartyContext) prc.addSubcontext(new RelyingPartyContext(),
+                true);
+        relyingPartyContext.setRelyingPartyId("rpId");
+
+        samlStage = new CountingStage();
+        oidcStage = new CountingStage();
+        loginEventStage = new CountingStage();
+        tokenStage = new CountingStage();
+        commitStage = new CommitUserProfileEvents();
+        commitStage.setUserProfileCache(userProfileCache);
+        commitStage.setUsernameLookupStrategy(new usernameLookupStrategy());
+        commitStage.setRelyingPartyIdLookupStrategy(new RelyingPartyIdLookupFunction());
+        samlStage.initialize();
+        oidcStage.initialize();
+        loginEventStage.initialize();
+        tokenStage.initialize();
+        commitStage.initialize();
+
+        action = new UserProfilePipeline();
+        action.setUsernameLookupStrategy(new usernameLookupStrategy());
+        action.setRelyingPartyIdLookupStrategy(new RelyingPartyIdLookupFunction());
+        action.setSAMLAuthContextClassReferenceStage(samlStage);
+        action.setOIDCAuthContextClassReferenceStage(oidcStage);
+        action.setLoginEventStage(loginEventStage);
+        action.setTokenStage(tokenStage);
+        action.setCommitStage(commitStage);
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        userProfileCache.destroy();
+        userProfileCache = null;
+
+        storageService.destroy();
+        storageService = null;
+    }
+
+    @Test
+    public void testSAML() throws ComponentInitializationException {
+        action.initialize();
+        final Event event = action.execute(src);
+        ActionTestingSupport.assertProceedEvent(event);
+        final UserProfileCacheContext userProfileCacheContext = prc.getSubcontext(UserProfileCacheContext.class);
+        Assert.assertNotNull(userProfileCacheContext);
+        Assert.assertEquals(userProfileCacheContext.getUsername(), "name");
+        Assert.assertEquals(userProfileCacheContext.getRelyingPartyId(), "rpId");
+        Assert.assertEquals(samlStage.count, 1);
+        Assert.assertEquals(oidcStage.count, 0);
+        Assert.assertEquals(loginEventStage.count, 1);
+        Assert.assertEquals(tokenStage.count, 0);
+    }
+
+    @Test
+    public void testOIDC() throws ComponentInitializationException {
+        prc.setProfileId(UserProfilePipeline.OIDC_SSO_PROFILE_ID);
+        action.initialize();
+        ActionTestingSupport.assertProceedEvent(action.execute(src));
+        Assert.assertEquals(samlStage.count, 0);
+        Assert.assertEquals(oidcStage.count, 1);
+        Assert.assertEquals(tokenStage.count, 1);
+    }
+
+    @Test
+    public void testToken() throws ComponentInitializationException {
+        prc.setProfileId(UserProfilePipeline.OAUTH2_TOKEN_PROFILE_ID);
+        action.initialize();
+        ActionTestingSupport.assertProceedEvent(action.execute(src));
+        // Only tokens are stored for the token endpoint.
+        Assert.assertEquals(samlStage.count, 0);
+        Assert.assertEquals(oidcStage.count, 0);
+        Assert.assertEquals(loginEventStage.count, 0);
+        Assert.assertEquals(tokenStage.count, 1);
+        Assert.assertNull(prc.getSubcontext(UserProfileCacheContext.class).getRelyingPartyId());
+    }
+
+    @Test
+    public void testShared() throws ComponentInitializationException {
+        action.initialize();
+        final RequestContext otherSrc = (new RequestContextBuilder()).buildRequestContext();
+        final ProfileRequestContext otherPrc = (new WebflowRequestContextProfileRequestContextLookup())
+                .apply(otherSrc);
+        ((RelyingPartyContext) otherPrc.addSubcontext(new RelyingPartyContext(), true)).setRelyingPartyId("otherRpId");
+        ActionTestingSupport.assertProceedEvent(action.execute(src));
+        ActionTestingSupport.assertProceedEvent(action.execute(otherSrc));
+        // The state of a request is carried by its own context.
+        Assert.assertEquals(prc.getSubcontext(UserProfileCacheContext.class).getRelyingPartyId(), "rpId");
+        Assert.assertEquals(otherPrc.getSubcontext(UserProfileCacheContext.class).getRelyingPartyId(), "otherRpId");
+        Assert.assertEquals(samlStage.count, 2);
+    }
+
+    @Test
+    public void testStageEvent() throws ComponentInitializationException {
+        final FailingStage failingStage = new FailingStage();
+        failingStage.initialize();
+        action.setSAMLAuthContextClassReferenceStage(failingStage);
+        action.initialize();
+        ActionTestingSupport.assertEvent(action.execute(src), EventIds.INVALID_PROFILE_CTX);
+        // The remaining stages are not run.
+        Assert.assertEquals(loginEventStage.count, 0);
+    }
+
+    @Test
+    public void testStageEventCommitsModifications() throws ComponentInitializationException {
+        final FailingStage failingStage = new FailingStage();
+        failingStage.initialize();
+        final ModifyingStage modifyingStage = new ModifyingStage(userProfileCache);
+        modifyingStage.initialize();
+        action.setSAMLAuthContextClassReferenceStage(modifyingStage);
+        action.setLoginEventStage(failingStage);
+        action.setConnectedServiceStage(loginEventStage);
+        action.initialize();
+        ActionTestingSupport.assertEvent(action.execute(src), EventIds.INVALID_PROFILE_CTX);
+        Assert.assertEquals(loginEventStage.count, 0);
+        // Events modified before the failing stage are committed.
+        Assert.assertEquals(userProfileCache.getSingleEvent("name", "acr").getValue(), "value");
+    }
+
+    @Test
+    public void testNoUsername() throws ComponentInitializationException {
+        action = new UserProfilePipeline();
+        action.setUsernameLookupStrategy(prc -> null);
+        action.setRelyingPartyIdLookupStrategy(new RelyingPartyIdLookupFunction());
+        action.setSAMLAuthContextClassReferenceStage(samlStage);
+        action.initialize();
+        ActionTestingSupport.assertProceedEvent(action.execute(src));
+        Assert.assertEquals(samlStage.count, 0);
+    }
+
+    public class usernameLookupStrategy implements Function<ProfileRequestContext, String> {
+
+        public String apply(final ProfileRequestContext input) {
+            return "name";
+        }
+
+    }
+
+    private static class CountingStage extends AbstractProfileAction {
+
+        private int count;
+
+        @Override
+        protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+            count++;
+        }
+    }
+
+    private static class ModifyingStage extends AbstractProfileAction {
+
+        private final UserProfileCache cache;
+
+        private ModifyingStage(@Nonnull final UserProfileCache userProfileCache) {
+            cache = userProfileCache;
+        }
+
+        @Override
+        protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+            final UserProfileCacheContext context = profileRequestContext.getSubcontext(UserProfileCacheContext.class);
+            cache.getSingleEvent(context.getUsername(), "acr", context);
+            cache.setSingleEvent("acr", "value", context);
+        }
+    }
+
+    private static class FailingStage extends AbstractProfileAction {
+
+        @Override
+        protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext) {
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+        }
+    }
+}